@@ -0,0 +1,103 @@
+package org.iplantc.persondir.support;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of accumulating the mapped records for a user into a single record in
+ * {@link AccumulatingPersonAttributeDao}.  The inner DAO returns records that were mapped ahead of time, so only
+ * the accumulation itself is measured.
+ *
+ * @author Dennis Roberts
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AccumulateAttributesBenchmark {
+
+    /**
+     * The number of groups that the user belongs to.
+     */
+    @Param({"1", "50", "500", "5000"})
+    private int groups;
+
+    /**
+     * True if duplicate attribute values should be removed.
+     */
+    @Param({"false", "true"})
+    private boolean deduplicated;
+
+    private AccumulatingPersonAttributeDao dao;
+
+    @Setup
+    public void setUp() throws Exception {
+        StaticResultPersonAttributeDao mappingDao = new StaticResultPersonAttributeDao(new SyntheticGroups(groups));
+        mappingDao.setQueryAttributeMapping(Collections.singletonMap("username", "memberUid"));
+        Map<String, List<Object>> query = new HashMap<String, List<Object>>();
+        query.put("username", Collections.<Object>singletonList(SyntheticGroups.USERNAME));
+
+        dao = new AccumulatingPersonAttributeDao();
+        dao.setInnerDao(new PrecomputedPersonAttributeDao(mappingDao.getPeopleWithMultivaluedAttributes(query)));
+        dao.setDeduplicateValues(deduplicated);
+        dao.afterPropertiesSet();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        dao.destroy();
+    }
+
+    @Benchmark
+    public IPersonAttributes accumulateAttributes() {
+        return dao.getPerson(SyntheticGroups.USERNAME);
+    }
+
+    /**
+     * Returns the same mapped records for every query.
+     */
+    private static class PrecomputedPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao {
+
+        private final Set<IPersonAttributes> people;
+
+        public PrecomputedPersonAttributeDao(Set<IPersonAttributes> people) {
+            this.people = Collections.unmodifiableSet(new LinkedHashSet<IPersonAttributes>(people));
+        }
+
+        @Override
+        public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+            return people;
+        }
+
+        @Override
+        public Set<String> getPossibleUserAttributeNames() {
+            return null;
+        }
+
+        @Override
+        public Set<String> getAvailableQueryAttributes() {
+            return null;
+        }
+    }
+}
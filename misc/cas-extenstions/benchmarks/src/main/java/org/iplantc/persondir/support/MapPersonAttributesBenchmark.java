@@ -0,0 +1,75 @@
+package org.iplantc.persondir.support;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.iplantc.persondir.support.cache.ValueInterner;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the cost of mapping the records found for a user through the resultAttributeMapping of a multirecord
+ * DAO, with and without value interning.  The unmapped records are built once during setup and passed straight to
+ * mapPersonAttributes, so query generation, the search and result collection aren't included in the measurement.
+ *
+ * @author Dennis Roberts
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MapPersonAttributesBenchmark {
+
+    /**
+     * The number of groups that the user belongs to.
+     */
+    @Param({"1", "50", "500", "5000"})
+    private int groups;
+
+    /**
+     * True if the mapped attribute values should be interned.
+     */
+    @Param({"false", "true"})
+    private boolean interned;
+
+    private StaticResultPersonAttributeDao dao;
+
+    private List<IPersonAttributes> records;
+
+    @Setup
+    public void setUp() {
+        dao = new StaticResultPersonAttributeDao(new SyntheticGroups(groups));
+        dao.setQueryAttributeMapping(Collections.singletonMap("username", "memberUid"));
+        Map<String, Object> resultAttributeMapping = new HashMap<String, Object>();
+        resultAttributeMapping.put("cn", "entitlement");
+        resultAttributeMapping.put("gidNumber", "gidNumber");
+        resultAttributeMapping.put("memberUid", "memberUid");
+        dao.setResultAttributeMapping(resultAttributeMapping);
+        if (interned) {
+            dao.setValueInterner(new ValueInterner());
+        }
+        records = dao.getRecords();
+    }
+
+    @Benchmark
+    public void mapPersonAttributes(Blackhole blackhole) {
+        for (IPersonAttributes record : records) {
+            blackhole.consume(dao.mapPersonAttributes(record));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.iplantc.persondir.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.jasig.services.persondir.IPersonAttributes;
+
+/**
+ * A multirecord DAO that returns the same unmapped records for every query, so that the query generation and
+ * attribute mapping steps of {@link AbstractQueryMultirecordAttributeDao} can be measured without a directory.
+ *
+ * @author Dennis Roberts
+ */
+public class StaticResultPersonAttributeDao extends AbstractQueryMultirecordAttributeDao<String> {
+
+    /**
+     * The unmapped records returned for every query.
+     */
+    private final List<IPersonAttributes> records;
+
+    /**
+     * @param groups the groups to return as unmapped records.
+     */
+    public StaticResultPersonAttributeDao(SyntheticGroups groups) {
+        records = new ArrayList<IPersonAttributes>(groups.size());
+        for (Map<String, List<Object>> group : groups.getGroups()) {
+            records.add(MapBackedMultirecordPersonImpl.withUserNameAttribute("memberUid", group));
+        }
+    }
+
+    /**
+     * @return the unmapped records returned for every query.
+     */
+    public List<IPersonAttributes> getRecords() {
+        return records;
+    }
+
+    /* (non-Javadoc)
+     * @see org.iplantc.persondir.support.AbstractQueryMultirecordAttributeDao#appendAttributeToQuery(java.lang.Object, java.lang.String, java.util.List)
+     */
+    @Override
+    protected String appendAttributeToQuery(String queryBuilder, String dataAttribute, List<Object> queryValues) {
+        return dataAttribute + "=" + queryValues;
+    }
+
+    /* (non-Javadoc)
+     * @see org.iplantc.persondir.support.AbstractQueryMultirecordAttributeDao#getPeopleForQuery(java.lang.Object, java.lang.String)
+     */
+    @Override
+    protected List<IPersonAttributes> getPeopleForQuery(String queryBuilder, String queryUserName) {
+        return records;
+    }
+}
@@ -0,0 +1,103 @@
+package org.iplantc.persondir.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+
+/**
+ * Generates realistic synthetic posixGroup entries for the benchmarks.  Every group has a name, a GID number, a
+ * description and a list of member user IDs.  The user being looked up is a member of every generated group, and
+ * a few well-known groups that nearly every user belongs to are always included so that values are shared between
+ * records the same way that they are in the production directory.
+ *
+ * @author Dennis Roberts
+ */
+public class SyntheticGroups {
+
+    /**
+     * The user ID of the user who is a member of all of the generated groups.
+     */
+    public static final String USERNAME = "ipctest";
+
+    /**
+     * The names of the groups that nearly every user belongs to.
+     */
+    private static final String[] COMMON_GROUPS = {"iplant-everyone", "de-users", "community"};
+
+    /**
+     * The object classes of every generated group.
+     */
+    private static final String[] OBJECT_CLASSES = {"posixGroup", "top"};
+
+    /**
+     * The number of other members in each generated group.
+     */
+    private static final int OTHER_MEMBERS = 20;
+
+    /**
+     * The generated groups.
+     */
+    private final List<Map<String, List<Object>>> groups;
+
+    /**
+     * @param groupCount the number of groups to generate.
+     */
+    public SyntheticGroups(int groupCount) {
+        Random random = new Random(groupCount);
+        groups = new ArrayList<Map<String, List<Object>>>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            String cn = i < COMMON_GROUPS.length ? COMMON_GROUPS[i] : "group-" + i;
+            List<Object> members = new ArrayList<Object>(OTHER_MEMBERS + 1);
+            members.add(USERNAME);
+            for (int j = 0; j < OTHER_MEMBERS; j++) {
+                members.add("user" + random.nextInt(100000));
+            }
+            Map<String, List<Object>> group = new LinkedHashMap<String, List<Object>>();
+            group.put("cn", new ArrayList<Object>(Arrays.<Object>asList(cn)));
+            group.put("gidNumber", new ArrayList<Object>(Arrays.<Object>asList(String.valueOf(10000 + i))));
+            group.put("description", new ArrayList<Object>(Arrays.<Object>asList("Synthetic group " + i)));
+            group.put("objectClass", new ArrayList<Object>(Arrays.<Object>asList((Object[]) OBJECT_CLASSES)));
+            group.put("memberUid", members);
+            groups.add(group);
+        }
+    }
+
+    /**
+     * @return the number of generated groups.
+     */
+    public int size() {
+        return groups.size();
+    }
+
+    /**
+     * @return the generated groups as attribute maps.
+     */
+    public List<Map<String, List<Object>>> getGroups() {
+        return groups;
+    }
+
+    /**
+     * @return the generated groups as JNDI attributes, as they would be returned by a directory search.
+     */
+    public List<Attributes> toAttributes() {
+        List<Attributes> result = new ArrayList<Attributes>(groups.size());
+        for (Map<String, List<Object>> group : groups) {
+            Attributes attributes = new BasicAttributes(true);
+            for (Map.Entry<String, List<Object>> entry : group.entrySet()) {
+                BasicAttribute attribute = new BasicAttribute(entry.getKey());
+                for (Object value : entry.getValue()) {
+                    attribute.add(new String((String) value));
+                }
+                attributes.put(attribute);
+            }
+            result.add(attributes);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,69 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import org.iplantc.persondir.support.SyntheticGroups;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the cost of converting the JNDI attributes of every group that a user belongs to into attribute maps
+ * using {@link AttributesMapperImpl}, both with and without the expected attribute names.
+ *
+ * @author Dennis Roberts
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AttributesMapperBenchmark {
+
+    /**
+     * The number of groups that the user belongs to.
+     */
+    @Param({"1", "50", "500", "5000"})
+    private int groups;
+
+    private List<Attributes> entries;
+
+    private AttributesMapperImpl mapper;
+
+    private AttributesMapperImpl seededMapper;
+
+    @Setup
+    public void setUp() {
+        entries = new SyntheticGroups(groups).toAttributes();
+        mapper = new AttributesMapperImpl();
+        seededMapper = new AttributesMapperImpl(false,
+                Arrays.asList("cn", "gidNumber", "description", "objectClass", "memberUid"));
+    }
+
+    @Benchmark
+    public void mapFromAttributes(Blackhole blackhole) throws NamingException {
+        for (Attributes entry : entries) {
+            blackhole.consume(mapper.mapFromAttributes(entry));
+        }
+    }
+
+    @Benchmark
+    public void mapFromAttributesWithKnownNames(Blackhole blackhole) throws NamingException {
+        for (Attributes entry : entries) {
+            blackhole.consume(seededMapper.mapFromAttributes(entry));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.iplantc.persondir.support.ldap;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.iplantc.persondir.support.AccumulatingPersonAttributeDao;
+import org.iplantc.persondir.support.SyntheticGroups;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.ldap.core.support.LdapContextSource;
+
+/**
+ * Measures a complete group membership lookup, from query generation through accumulation, against an embedded
+ * in-memory LDAP server loaded with synthetic posixGroup entries.
+ *
+ * @author Dennis Roberts
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    /**
+     * The base DN of the embedded directory.
+     */
+    private static final String BASE_DN = "dc=iplantcollaborative,dc=org";
+
+    /**
+     * The DN of the organizational unit containing the groups.
+     */
+    private static final String GROUPS_DN = "ou=Groups," + BASE_DN;
+
+    /**
+     * The number of groups that the user belongs to.
+     */
+    @Param({"1", "50", "500", "5000"})
+    private int groups;
+
+    private InMemoryDirectoryServer server;
+
+    private AccumulatingPersonAttributeDao dao;
+
+    @Setup
+    public void setUp() throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        config.setSchema(null);
+        server = new InMemoryDirectoryServer(config);
+        server.add(new Entry(BASE_DN, new Attribute("objectClass", "top", "domain"),
+                new Attribute("dc", "iplantcollaborative")));
+        server.add(new Entry(GROUPS_DN, new Attribute("objectClass", "top", "organizationalUnit"),
+                new Attribute("ou", "Groups")));
+        for (Map<String, List<Object>> group : new SyntheticGroups(groups).getGroups()) {
+            List<Attribute> attributes = new ArrayList<Attribute>();
+            for (Map.Entry<String, List<Object>> entry : group.entrySet()) {
+                List<String> values = new ArrayList<String>();
+                for (Object value : entry.getValue()) {
+                    values.add(value.toString());
+                }
+                attributes.add(new Attribute(entry.getKey(), values));
+            }
+            server.add(new Entry("cn=" + group.get("cn").get(0) + "," + GROUPS_DN, attributes));
+        }
+        server.startListening();
+
+        LdapContextSource contextSource = new LdapContextSource();
+        contextSource.setUrl("ldap://localhost:" + server.getListenPort());
+        contextSource.setAnonymousReadOnly(true);
+        contextSource.afterPropertiesSet();
+
+        LdapMultirecordAttributeDao groupDao = new LdapMultirecordAttributeDao();
+        groupDao.setContextSource(contextSource);
+        groupDao.setBaseDN(GROUPS_DN);
+        groupDao.setRequireAllQueryAttributes(true);
+        groupDao.setQueryAttributeMapping(Collections.singletonMap("username", "memberUid"));
+        groupDao.setResultAttributeMapping(Collections.singletonMap("cn", "entitlement"));
+        groupDao.afterPropertiesSet();
+
+        dao = new AccumulatingPersonAttributeDao();
+        dao.setInnerDao(groupDao);
+        dao.afterPropertiesSet();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        dao.destroy();
+        server.shutDown(true);
+    }
+
+    @Benchmark
+    public IPersonAttributes getPerson() {
+        return dao.getPerson(SyntheticGroups.USERNAME);
+    }
+}
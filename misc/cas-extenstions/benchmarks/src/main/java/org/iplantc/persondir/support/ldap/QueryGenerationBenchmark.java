@@ -0,0 +1,113 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.iplantc.persondir.support.SyntheticGroups;
+import org.jasig.services.persondir.support.QueryType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.ldap.core.support.LdapContextSource;
+import org.springframework.ldap.filter.EqualsFilter;
+
+/**
+ * Measures the cost of generating LDAP filters.  The filter built by the Spring LDAP filter classes through
+ * {@link LogicalFilterWrapper} is compared with the filter built by a precompiled {@link LdapQueryPlan}, and the
+ * complete generateQuery step of {@link LdapMultirecordAttributeDao} is measured as well.  The number of values in
+ * the query corresponds to the number of users in a batch lookup.
+ *
+ * @author Dennis Roberts
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueryGenerationBenchmark {
+
+    /**
+     * The number of values in the generated filter.
+     */
+    @Param({"1", "50", "500", "5000"})
+    private int valueCount;
+
+    private List<Object> values;
+
+    private LdapQueryPlan queryPlan;
+
+    private Map<String, List<Object>> query;
+
+    private QueryExposingDao dao;
+
+    @Setup
+    public void setUp() throws Exception {
+        values = new ArrayList<Object>(valueCount);
+        values.add(SyntheticGroups.USERNAME);
+        for (int i = 1; i < valueCount; i++) {
+            values.add("user" + i);
+        }
+        queryPlan = new LdapQueryPlan(QueryType.OR, null, Collections.singleton("memberUid"));
+
+        query = new HashMap<String, List<Object>>();
+        query.put("username", values);
+
+        LdapContextSource contextSource = new LdapContextSource();
+        contextSource.setUrl("ldap://localhost:389");
+        contextSource.setAnonymousReadOnly(true);
+        contextSource.afterPropertiesSet();
+
+        dao = new QueryExposingDao();
+        dao.setContextSource(contextSource);
+        dao.setBaseDN("ou=Groups,dc=iplantcollaborative,dc=org");
+        dao.setQueryType(QueryType.OR);
+        dao.setQueryAttributeMapping(Collections.singletonMap("username", "memberUid"));
+        dao.setResultAttributeMapping(Collections.singletonMap("cn", "entitlement"));
+        dao.afterPropertiesSet();
+    }
+
+    @Benchmark
+    public String filterWrapper() {
+        LogicalFilterWrapper filter = new LogicalFilterWrapper(QueryType.OR);
+        for (Object value : values) {
+            filter.append(new EqualsFilter("memberUid", value.toString()));
+        }
+        return filter.encode();
+    }
+
+    @Benchmark
+    public String queryPlan() {
+        LdapQueryPlan.Query filter = queryPlan.newQuery();
+        for (Object value : values) {
+            filter.appendEquals("memberUid", value.toString());
+        }
+        return filter.toLdapQuery();
+    }
+
+    @Benchmark
+    public String generateQuery() {
+        return dao.generateLdapQuery(query);
+    }
+
+    /**
+     * Exposes the generateQuery step of the DAO to the benchmark.
+     */
+    private static class QueryExposingDao extends LdapMultirecordAttributeDao {
+
+        public String generateLdapQuery(Map<String, List<Object>> query) {
+            return generateQuery(query).toLdapQuery();
+        }
+    }
+}
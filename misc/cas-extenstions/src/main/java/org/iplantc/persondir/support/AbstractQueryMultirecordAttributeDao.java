@@ -15,8 +15,12 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.lang.Validate;
+import org.iplantc.persondir.support.cache.SingleFlight;
+import org.iplantc.persondir.support.cache.ValueInterner;
+import org.iplantc.persondir.support.metrics.MetricsRegistry;
 import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
 import org.jasig.services.persondir.support.IUsernameAttributeProvider;
@@ -76,6 +80,36 @@ import org.jasig.services.persondir.support.MultivaluedPersonAttributeUtils;
  *         <td valign="top">No</td>
  *         <td valign="top">null</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">coalesceQueries</td>
+ *         <td>
+ *             If concurrent requests for the same query should share a single execution of the query. When enabled,
+ *             callers that request a query that is already running wait for and receive the result of that query.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">true</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">valueInterner</td>
+ *         <td>
+ *             A {@link ValueInterner} used to replace each mapped attribute value with a canonical instance, so
+ *             that values shared by many people, such as group names, are only kept in memory once. The same
+ *             interner may be shared by several DAOs. If not set attribute values are not interned.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">metrics</td>
+ *         <td>
+ *             The {@link MetricsRegistry} that query timings and result counts are recorded in. The histograms
+ *             query.generate.time, query.search.time and query.map.time record the nanoseconds spent generating,
+ *             executing and mapping each query, query.results records the number of records found, and the
+ *             counters query.nullResults and query.emptyResults count queries that couldn't be run or found nothing.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">A new registry for each DAO</td>
+ *     </tr>
  * </table>
  * 
  * @author Eric Dalquist 
@@ -87,6 +121,10 @@ public abstract class AbstractQueryMultirecordAttributeDao<QB> extends AbstractD
     private Set<String> possibleUserAttributes;
     private boolean requireAllQueryAttributes = false;
     private String unmappedUsernameAttribute = null;
+    private boolean coalesceQueries = true;
+    private ValueInterner valueInterner = null;
+    private MetricsRegistry metrics = new MetricsRegistry();
+    private final SingleFlight<Map<String, List<Object>>, Set<IPersonAttributes>> inFlightQueries = new SingleFlight<Map<String, List<Object>>, Set<IPersonAttributes>>();
     
 
     /**
@@ -176,17 +214,96 @@ public abstract class AbstractQueryMultirecordAttributeDao<QB> extends AbstractD
         this.unmappedUsernameAttribute = userNameAttribute;
     }
     
+    /**
+     * @return the coalesceQueries
+     */
+    public boolean isCoalesceQueries() {
+        return coalesceQueries;
+    }
+    /**
+     * If concurrent requests for the same query should share a single execution of the query.
+     * 
+     * @param coalesceQueries the coalesceQueries to set
+     */
+    public void setCoalesceQueries(boolean coalesceQueries) {
+        this.coalesceQueries = coalesceQueries;
+    }
+    
+    /**
+     * @return the valueInterner
+     */
+    public ValueInterner getValueInterner() {
+        return valueInterner;
+    }
+    /**
+     * The pool of canonical attribute values to intern mapped attribute values into. If null attribute values are
+     * not interned.
+     * 
+     * @param valueInterner the valueInterner to set
+     */
+    public void setValueInterner(ValueInterner valueInterner) {
+        this.valueInterner = valueInterner;
+    }
+    
+    /**
+     * @return the metrics
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+    /**
+     * The registry that query timings and result counts are recorded in. A single registry may be shared by several
+     * DAOs, in which case their metrics are combined.
+     * 
+     * @param metrics the metrics to set
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        Validate.notNull(metrics, "metrics may not be null.");
+        this.metrics = metrics;
+    }
+    
+    /**
+     * @return the number of requests that received the result of an identical query started by another request.
+     */
+    public long getCoalescedQueries() {
+        return this.inFlightQueries.getCoalesced();
+    }
+    
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
      */
-    public final Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+    public final Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
         Validate.notNull(query, "query may not be null.");
         
+        if (!this.coalesceQueries) {
+            return this.findPeople(query);
+        }
+        
+        //Share the result of an identical query that's already running, if there is one
+        return this.inFlightQueries.execute(QueryKeys.normalize(query), new Callable<Set<IPersonAttributes>>() {
+            public Set<IPersonAttributes> call() {
+                return findPeople(query);
+            }
+        });
+    }
+    
+    /**
+     * Generates and executes the query and maps the attributes of the people that were found.
+     * 
+     * @param query The query Map.
+     * @return The mapped people or null if the query could not be run.
+     */
+    private Set<IPersonAttributes> findPeople(Map<String, List<Object>> query) {
         //Generate the query to pass to the subclass
+        long start = System.nanoTime();
         final QB queryBuilder = this.generateQuery(query);
+        this.metrics.histogram("query.generate.time").recordSince(start);
         if (queryBuilder == null) {
-            this.logger.debug("No queryBuilder was generated for query " + query + ", null will be returned");
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("No queryBuilder was generated for query " + query + ", null will be returned");
+            }
             
+            this.metrics.counter("query.nullResults").incrementAndGet();
             return null;
         }
         
@@ -195,17 +312,26 @@ public abstract class AbstractQueryMultirecordAttributeDao<QB> extends AbstractD
         final String username = usernameAttributeProvider.getUsernameFromQuery(query);
         
         //Execute the query in the subclass
+        start = System.nanoTime();
         final List<IPersonAttributes> unmappedPeople = this.getPeopleForQuery(queryBuilder, username);
+        this.metrics.histogram("query.search.time").recordSince(start);
         if (unmappedPeople == null) {
+            this.metrics.counter("query.nullResults").incrementAndGet();
             return null;
         }
+        this.metrics.histogram("query.results").record(unmappedPeople.size());
+        if (unmappedPeople.isEmpty()) {
+            this.metrics.counter("query.emptyResults").incrementAndGet();
+        }
 
         //Map the attributes of the found people according to resultAttributeMapping if it is set
+        start = System.nanoTime();
         final Set<IPersonAttributes> mappedPeople = new LinkedHashSet<IPersonAttributes>();
         for (final IPersonAttributes unmappedPerson : unmappedPeople) {
             final IPersonAttributes mappedPerson = this.mapPersonAttributes(unmappedPerson);
             mappedPeople.add(mappedPerson);
         }
+        this.metrics.histogram("query.map.time").recordSince(start);
         
         return Collections.unmodifiableSet(mappedPeople);
     }
@@ -314,11 +440,34 @@ public abstract class AbstractQueryMultirecordAttributeDao<QB> extends AbstractD
      * @return A copy of the IPersonAttributes with mapped attributes, the original IPersonAttributes if resultAttributeMapping is null.
      */
     protected final IPersonAttributes mapPersonAttributes(final IPersonAttributes person) {
-        final Map<String, List<Object>> personAttributes = person.getAttributes();
-        
+        //If no mapping and the values are deferred, a multirecord person can be returned as it is
+        if (this.resultAttributeMapping == null && this.isDeferringUnmappedValues()
+                && person instanceof BaseMultirecordPersonImpl) {
+            return person;
+        }
+        return this.mapPersonAttributes(person.getName(), person.getAttributes());
+    }
+    
+    /**
+     * Uses resultAttributeMapping to create a person from the attributes of a single record, so that subclasses that
+     * already have a record's attributes in a map don't have to wrap them in an IPersonAttributes first.
+     * 
+     * @param name The name of the person, or null to take it from the configured user name attribute
+     * @param personAttributes The attributes of the record, which must not be modified afterwards
+     * @return A person with mapped attributes, or a person over the given attributes if resultAttributeMapping is null and values are deferred.
+     */
+    protected final IPersonAttributes mapPersonAttributes(final String name, final Map<String, List<Object>> personAttributes) {
         final Map<String, List<Object>> mappedAttributes;
+        //If no mapping and the values are deferred, keep the original attributes so that nothing is copied, but make
+        //sure that records for the same person are compared by their attributes as well as their names
+        if (this.resultAttributeMapping == null && this.isDeferringUnmappedValues()) {
+            if (name != null) {
+                return new MapBackedMultirecordPersonImpl(name, personAttributes);
+            }
+            return MapBackedMultirecordPersonImpl.withUserNameAttribute(this.getConfiguredUserNameAttribute(), personAttributes);
+        }
         //If no mapping just use the attributes as-is
-        if (this.resultAttributeMapping == null) {
+        else if (this.resultAttributeMapping == null) {
             mappedAttributes = personAttributes;
         }
         //Map the attribute names via the resultAttributeMapping
@@ -354,18 +503,28 @@ public abstract class AbstractQueryMultirecordAttributeDao<QB> extends AbstractD
         
         final IPersonAttributes newPerson;
         
-        final String name = person.getName();
         if (name != null) {
-            newPerson = new NamedMultirecordPersonImpl(name, mappedAttributes);
+            newPerson = new CompactMultirecordPersonImpl(name, mappedAttributes, this.valueInterner);
         }
         else {
             final String userNameAttribute = this.getConfiguredUserNameAttribute();
-            newPerson = new AttributeNamedMultirecordPersonImpl(userNameAttribute, mappedAttributes);
+            newPerson = CompactMultirecordPersonImpl.withUserNameAttribute(userNameAttribute, mappedAttributes, this.valueInterner);
         }
             
         return newPerson;
     }
     
+    /**
+     * Subclasses that return attribute values as lazily read views can return true so that, when no
+     * resultAttributeMapping is configured, the values are passed on as they are instead of being copied into a
+     * compact person.
+     * 
+     * @return true if unmapped attribute values should be passed on without copying them.
+     */
+    protected boolean isDeferringUnmappedValues() {
+        return false;
+    }
+    
     /**
      * @return The appropriate attribute to user for the user name. Since {@link #getDefaultAttributeName()} should
      * never return null this method should never return null either.
@@ -1,19 +1,52 @@
 package org.iplantc.persondir.support;
 
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.Validate;
+import org.iplantc.persondir.support.metrics.MetricsRegistry;
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
 import org.jasig.services.persondir.support.NamedPersonImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.dao.support.DataAccessUtils;
 
 /**
@@ -47,10 +80,54 @@ import org.springframework.dao.support.DataAccessUtils;
  * </bean>
  * }
  * </pre>
+ *
+ * Several group sources can be combined by setting the innerDaos property instead of the innerDao property.  The
+ * inner DAOs are queried concurrently and their results are accumulated into a single record.  The inner DAOs are
+ * queried on a pool shared by all lookups that has maxConcurrency threads for each inner DAO, so that maxConcurrency
+ * lookups can query all of their sources at the same time.  When every thread is busy, the queries of up to
+ * maxQueuedLookups more lookups wait in a queue; beyond that, a lookup fails at once with a
+ * {@link DataAccessResourceFailureException} instead of adding to the backlog.  If lookupTimeout is set, any inner
+ * DAO that hasn't responded within that many milliseconds of starting its query, or that waited that long in the
+ * queue without starting, is dropped from the result and a warning is logged so that one slow source can't hold up a
+ * login.  A result that is missing one or more inner DAOs implements {@link PartialResult} so that caching layers
+ * know not to store it.  If any inner DAO fails, the queries of the other inner DAOs are cancelled and the failure is
+ * passed on to the caller.
+ *
+ * Many users can be looked up at once by calling {@link #getPersons(Collection)}.  Inner DAOs that implement
+ * {@link IMultiUserPersonAttributeDao} are asked for all of the users in one call; any other inner DAO is queried
+ * once per user.
+ *
+ * By default, the values of each attribute are appended in the order that the records are returned, so a value that
+ * appears in several records appears several times in the cumulative record.  Setting deduplicateValues merges the
+ * values of each attribute into an order-preserving set instead.  Setting retainMappedAttributesOnly drops every
+ * attribute that isn't listed among the possible user attribute names of the inner DAOs, which are normally the
+ * result attribute names in their resultAttributeMapping.
+ *
+ * Timings and counts are recorded in the {@link MetricsRegistry} set in the metrics property.  The histograms
+ * accumulate.query.time and accumulate.merge.time record the nanoseconds spent querying the inner DAOs and merging
+ * their records, accumulate.records records the number of records merged for each user, and the counters
+ * accumulate.nullResults, accumulate.emptyResults, accumulate.timeouts and accumulate.rejected count lookups that
+ * found nothing, inner DAOs that were dropped because they didn't respond in time and lookups that failed because
+ * the pool and its queue were full.
+ *
+ * Lookups can also be started without blocking the calling thread by calling {@link #getPersonAsync(String)} or
+ * {@link #getPeopleWithMultivaluedAttributesAsync(Map)}.  Asynchronous lookups query each inner DAO in its own task on
+ * the {@link AsyncLookupExecutor} set in the asyncExecutor property, or on the shared executor if the property isn't
+ * set, and combine the results when the last task completes.  They never use the pool described above, so the number
+ * of asynchronous lookups in flight is limited only by the async executor.  The lookup timeout applies to each task
+ * from the time it starts running; a task that times out is dropped from the result, which is then marked as partial,
+ * but its query keeps running until the inner DAO returns.
+ *
+ * Background work such as cache refreshes calls {@link #getPersonInBackground(String)} or
+ * {@link #getPeopleWithMultivaluedAttributesInBackground(Map)}, which query the inner DAOs one after another on the
+ * calling thread.  Background lookups never use the pool, so they can't delay logins by occupying its threads, and the
+ * lookup timeout doesn't apply to them.
  * 
  * @author Dennis Roberts
  */
-public class AccumulatingPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao {
+public class AccumulatingPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao
+        implements InitializingBean, DisposableBean, IMultiUserPersonAttributeDao, IAsyncPersonAttributeDao,
+        IBackgroundPersonAttributeDao {
 
     /**
      * Used to log debugging messages.
@@ -58,20 +135,205 @@ public class AccumulatingPersonAttributeDao extends AbstractDefaultAttributePers
     private static final Logger LOG = LoggerFactory.getLogger(AccumulatingPersonAttributeDao.class);
 
     /**
-     * The DAO that actually retrieves the IPersonAttribute instances.
+     * The DAOs that actually retrieve the IPersonAttribute instances.
+     */
+    private List<IPersonAttributeDao> innerDaos = Collections.emptyList();
+
+    /**
+     * The number of lookups that may query all of their inner DAOs on the pool at the same time.
+     */
+    private int maxConcurrency = 16;
+
+    /**
+     * The number of lookups whose inner DAO queries may wait for a pool thread.
+     */
+    private int maxQueuedLookups = 16;
+
+    /**
+     * The maximum number of milliseconds to wait for the inner DAOs, or zero to wait indefinitely.
+     */
+    private long lookupTimeout = 0;
+
+    /**
+     * True if duplicate attribute values should be removed when records are accumulated.
+     */
+    private boolean deduplicateValues = false;
+
+    /**
+     * True if only the possible user attributes of the inner DAOs should be accumulated.
+     */
+    private boolean retainMappedAttributesOnly = false;
+
+    /**
+     * The names of the attributes to accumulate, or null if all attributes should be accumulated.
+     */
+    private Set<String> retainedAttributes;
+
+    /**
+     * The registry that timings and counts are recorded in.
+     */
+    private MetricsRegistry metrics = new MetricsRegistry();
+
+    /**
+     * Used to query multiple inner DAOs concurrently.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Used to drop inner DAOs that don't respond in time from asynchronous lookups.
+     */
+    private ScheduledThreadPoolExecutor timeoutTimer;
+
+    /**
+     * Used to run asynchronous lookups.
      */
-    private IPersonAttributeDao innerDao;
+    private AsyncLookupExecutor asyncExecutor = AsyncLookupExecutor.getShared();
 
     /**
      * @param innerDao the DAO that actually retrieves the IPersonAttribute instances.
      */
     public void setInnerDao(IPersonAttributeDao innerDao) {
-        this.innerDao = innerDao;
+        this.innerDaos = Collections.singletonList(innerDao);
+    }
+
+    /**
+     * @param innerDaos the DAOs that actually retrieve the IPersonAttribute instances.
+     */
+    public void setInnerDaos(List<IPersonAttributeDao> innerDaos) {
+        this.innerDaos = new ArrayList<IPersonAttributeDao>(innerDaos);
+    }
+
+    /**
+     * @param maxConcurrency the number of lookups that may query all of their inner DAOs on the pool at the same
+     *                       time.  The pool has this many threads for each inner DAO.
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * @param maxQueuedLookups the number of lookups whose inner DAO queries may wait for a pool thread when every
+     *                         thread is busy.  The queue holds this many queries for each inner DAO.
+     */
+    public void setMaxQueuedLookups(int maxQueuedLookups) {
+        this.maxQueuedLookups = maxQueuedLookups;
+    }
+
+    /**
+     * @param lookupTimeout the maximum number of milliseconds to wait for the inner DAOs, or zero to wait
+     *                      indefinitely.
+     */
+    public void setLookupTimeout(long lookupTimeout) {
+        this.lookupTimeout = lookupTimeout;
+    }
+
+    /**
+     * @param deduplicateValues true if duplicate attribute values should be removed when records are accumulated.
+     */
+    public void setDeduplicateValues(boolean deduplicateValues) {
+        this.deduplicateValues = deduplicateValues;
+    }
+
+    /**
+     * @param retainMappedAttributesOnly true if only the possible user attributes of the inner DAOs should be
+     *                                   accumulated.
+     */
+    public void setRetainMappedAttributesOnly(boolean retainMappedAttributesOnly) {
+        this.retainMappedAttributesOnly = retainMappedAttributesOnly;
+    }
+
+    /**
+     * @param metrics the registry that timings and counts are recorded in.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        Validate.notNull(metrics, "metrics may not be null.");
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the registry that timings and counts are recorded in.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param asyncExecutor used to run asynchronous lookups.
+     */
+    public void setAsyncExecutor(AsyncLookupExecutor asyncExecutor) {
+        Validate.notNull(asyncExecutor, "asyncExecutor may not be null.");
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (innerDaos.isEmpty()) {
+            throw new BeanCreationException("innerDao or innerDaos must be set");
+        }
+        if (retainMappedAttributesOnly) {
+            retainedAttributes = getPossibleUserAttributeNames();
+            if (retainedAttributes == null) {
+                LOG.warn("the inner DAOs don't list their possible user attributes; all attributes will be retained");
+            }
+        }
+        if (maxConcurrency < 1) {
+            throw new BeanCreationException("maxConcurrency must be positive");
+        }
+        if (maxQueuedLookups < 0) {
+            throw new BeanCreationException("maxQueuedLookups may not be negative");
+        }
+        if (innerDaos.size() > 1) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            int threads = maxConcurrency * innerDaos.size();
+            BlockingQueue<Runnable> queue = maxQueuedLookups == 0
+                    ? new SynchronousQueue<Runnable>()
+                    : new ArrayBlockingQueue<Runnable>(maxQueuedLookups * innerDaos.size());
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "accumulating-dao-" + threadNumber.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+            if (lookupTimeout > 0) {
+                timeoutTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "accumulating-dao-timeout");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                timeoutTimer.setRemoveOnCancelPolicy(true);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (timeoutTimer != null) {
+            timeoutTimer.shutdownNow();
+        }
     }
 
     /**
      * Builds and returns a single IPersonAttribute instance containing the accumulated attributes of all matching
-     * query results.
+     * query results.  If no records were found but one or more inner DAOs didn't respond in time, a person with no
+     * attributes that implements {@link PartialResult} is returned instead of null so that callers can tell that the
+     * user may still exist.
      * 
      * @param uid the user ID.
      * @return the cumulative IPersonAttribute instance.
@@ -80,8 +342,20 @@ public class AccumulatingPersonAttributeDao extends AbstractDefaultAttributePers
     public IPersonAttributes getPerson(String uid) {
         LOG.trace("getPerson called for uid: {}", uid);
         Validate.notNull(uid, "uid may not be null.");
-        final Map<String, List<Object>> seed = toSeedMap(uid);
-        final Set<IPersonAttributes> people = getPeopleWithMultivaluedAttributes(seed);
+        return toPerson(uid, getPeopleWithMultivaluedAttributes(toSeedMap(uid)));
+    }
+
+    /**
+     * Extracts the cumulative IPersonAttribute instance from the result of a lookup for a single user.
+     *
+     * @param uid the user ID.
+     * @param people the result of the lookup.
+     * @return the cumulative IPersonAttribute instance, or null if no records were found.
+     */
+    private IPersonAttributes toPerson(String uid, Set<IPersonAttributes> people) {
+        if (people instanceof PartialResult && people.isEmpty()) {
+            return new PartialPersonImpl(uid, Collections.<String, List<Object>>emptyMap());
+        }
         return ensureNameValued(uid, (IPersonAttributes) DataAccessUtils.singleResult(people));
     }
 
@@ -90,11 +364,19 @@ public class AccumulatingPersonAttributeDao extends AbstractDefaultAttributePers
      * name is not valued then the user ID is used as the name.
      * 
      * @param uid the user ID.
-     * @param person the IPersonAttributes instance.
-     * @return an IPersonAttributes instance with the name valued.
+     * @param person the IPersonAttributes instance, which may be null if no matching records were found.
+     * @return an IPersonAttributes instance with the name valued or null if the person is null.
      */
     private IPersonAttributes ensureNameValued(String uid, IPersonAttributes person) {
-        return StringUtils.isEmpty(person.getName()) ? new NamedPersonImpl(uid, person.getAttributes()) : person;
+        if (person == null) {
+            return null;
+        }
+        if (!StringUtils.isEmpty(person.getName())) {
+            return person;
+        }
+        return person instanceof PartialResult
+                ? new PartialPersonImpl(uid, person.getAttributes())
+                : new NamedPersonImpl(uid, person.getAttributes());
     }
 
     /**
@@ -107,11 +389,35 @@ public class AccumulatingPersonAttributeDao extends AbstractDefaultAttributePers
     @Override
     public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
         LOG.trace("getPeopleWithMultivaluedAttributes called for query: {}", query);
-        Set<IPersonAttributes> people = innerDao.getPeopleWithMultivaluedAttributes(query);
+        long start = System.nanoTime();
+        Set<IPersonAttributes> people = innerDaos.size() == 1
+                ? innerDaos.get(0).getPeopleWithMultivaluedAttributes(query)
+                : queryInnerDaos(query);
+        metrics.histogram("accumulate.query.time").recordSince(start);
+        return accumulateResults(people);
+    }
+
+    /**
+     * Accumulates the records returned by the inner DAOs into a set containing a single IPersonAttribute instance.
+     *
+     * @param people the records returned by the inner DAOs.
+     * @return a set containing the single cumulative IPersonAttribute instance.
+     */
+    private Set<IPersonAttributes> accumulateResults(Set<IPersonAttributes> people) {
         LOG.debug("innerDao.getPeopleWithMultivaluedAttributes returned {}", people);
+        if (people == null) {
+            metrics.counter("accumulate.nullResults").incrementAndGet();
+            return null;
+        }
         if (people.isEmpty()) {
+            metrics.counter("accumulate.emptyResults").incrementAndGet();
             return people;
         }
+        else if (people instanceof PartialResult) {
+            IPersonAttributes person = accumulateAttributes(people);
+            return new PartialPersonSet(Collections.<IPersonAttributes>singleton(
+                    new PartialPersonImpl(person.getName(), person.getAttributes())));
+        }
         else {
             Set<IPersonAttributes> result = new HashSet<IPersonAttributes>();
             result.add(accumulateAttributes(people));
@@ -119,6 +425,426 @@ public class AccumulatingPersonAttributeDao extends AbstractDefaultAttributePers
         }
     }
 
+    /**
+     * Builds a single IPersonAttribute instance containing the accumulated attributes of all matching query results
+     * without blocking the calling thread.
+     *
+     * @param uid the user ID.
+     * @return a future that completes with the cumulative IPersonAttribute instance.
+     */
+    @Override
+    public CompletableFuture<IPersonAttributes> getPersonAsync(final String uid) {
+        Validate.notNull(uid, "uid may not be null.");
+        return getPeopleWithMultivaluedAttributesAsync(toSeedMap(uid)).thenApply(
+                new Function<Set<IPersonAttributes>, IPersonAttributes>() {
+                    @Override
+                    public IPersonAttributes apply(Set<IPersonAttributes> people) {
+                        return toPerson(uid, people);
+                    }
+                });
+    }
+
+    /**
+     * Builds a set containing a single IPersonAttribute instance containing the accumulated attributes of all
+     * matching query results without blocking the calling thread.  Each inner DAO is queried in its own task on the
+     * async executor.
+     *
+     * @param query the query.
+     * @return a future that completes with a set containing the single cumulative IPersonAttribute instance.
+     */
+    @Override
+    public CompletableFuture<Set<IPersonAttributes>> getPeopleWithMultivaluedAttributesAsync(
+            final Map<String, List<Object>> query) {
+        LOG.trace("getPeopleWithMultivaluedAttributesAsync called for query: {}", query);
+        if (innerDaos.size() > 1) {
+            ensureInitialized();
+        }
+        final long start = System.nanoTime();
+        final List<CompletableFuture<Set<IPersonAttributes>>> sources
+                = new ArrayList<CompletableFuture<Set<IPersonAttributes>>>(innerDaos.size());
+        for (IPersonAttributeDao dao : innerDaos) {
+            sources.add(queryInnerDaoAsync(dao, query));
+        }
+        return CompletableFuture.allOf(sources.toArray(new CompletableFuture<?>[sources.size()])).handle(
+                new BiFunction<Void, Throwable, Set<IPersonAttributes>>() {
+                    @Override
+                    public Set<IPersonAttributes> apply(Void ignored, Throwable failure) {
+                        Set<IPersonAttributes> people = combineAsyncResults(query, sources);
+                        metrics.histogram("accumulate.query.time").recordSince(start);
+                        return accumulateResults(people);
+                    }
+                });
+    }
+
+    /**
+     * Queries a single inner DAO in its own task on the async executor.  If lookupTimeout is set and more than one
+     * inner DAO is being queried, the returned future fails with a TimeoutException if the inner DAO hasn't responded
+     * within lookupTimeout milliseconds of the task starting.
+     *
+     * @param dao the inner DAO.
+     * @param query the query.
+     * @return a future that completes with the records returned by the inner DAO.
+     */
+    private CompletableFuture<Set<IPersonAttributes>> queryInnerDaoAsync(final IPersonAttributeDao dao,
+            final Map<String, List<Object>> query) {
+        final CompletableFuture<Set<IPersonAttributes>> result = new CompletableFuture<Set<IPersonAttributes>>();
+        asyncExecutor.supplyAsync(new Supplier<Set<IPersonAttributes>>() {
+            @Override
+            public Set<IPersonAttributes> get() {
+                if (timeoutTimer != null) {
+                    scheduleTimeout(result);
+                }
+                return dao.getPeopleWithMultivaluedAttributes(query);
+            }
+        }).whenComplete(new BiConsumer<Set<IPersonAttributes>, Throwable>() {
+            @Override
+            public void accept(Set<IPersonAttributes> people, Throwable failure) {
+                if (failure == null) {
+                    result.complete(people);
+                }
+                else {
+                    result.completeExceptionally(unwrap(failure));
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Arranges for a future to fail with a TimeoutException if it hasn't completed within lookupTimeout
+     * milliseconds.
+     *
+     * @param result the future.
+     */
+    private void scheduleTimeout(final CompletableFuture<Set<IPersonAttributes>> result) {
+        final ScheduledFuture<?> timeout = timeoutTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                result.completeExceptionally(new TimeoutException());
+            }
+        }, lookupTimeout, TimeUnit.MILLISECONDS);
+        result.whenComplete(new BiConsumer<Set<IPersonAttributes>, Throwable>() {
+            @Override
+            public void accept(Set<IPersonAttributes> people, Throwable failure) {
+                timeout.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * Combines the results of the inner DAO queries of an asynchronous lookup once all of them have completed.  Inner
+     * DAOs that timed out are skipped, in which case the combined set implements {@link PartialResult}.  Any other
+     * failure is passed on to the caller.
+     *
+     * @param query the query.
+     * @param sources the completed inner DAO queries, in the same order as the inner DAOs.
+     * @return the combined set of IPersonAttribute instances.
+     */
+    private Set<IPersonAttributes> combineAsyncResults(Map<String, List<Object>> query,
+            List<CompletableFuture<Set<IPersonAttributes>>> sources) {
+        if (sources.size() == 1) {
+            return joinInnerDaoQuery(sources.get(0));
+        }
+        Set<IPersonAttributes> result = new LinkedHashSet<IPersonAttributes>();
+        boolean partial = false;
+        for (int i = 0; i < sources.size(); i++) {
+            try {
+                Set<IPersonAttributes> people = joinInnerDaoQuery(sources.get(i));
+                if (people != null) {
+                    result.addAll(people);
+                }
+            }
+            catch (CompletionException e) {
+                partial = true;
+                metrics.counter("accumulate.timeouts").incrementAndGet();
+                LOG.warn("attribute source {} did not respond within {} ms; dropping it from the results for {}",
+                        new Object[] {innerDaos.get(i), lookupTimeout, query});
+            }
+        }
+        return partial ? new PartialPersonSet(result) : result;
+    }
+
+    /**
+     * Gets the result of a completed inner DAO query.  A timeout is reported as a CompletionException; any other
+     * failure is rethrown as it was thrown by the inner DAO.
+     *
+     * @param source the completed inner DAO query.
+     * @return the records returned by the inner DAO.
+     */
+    private static Set<IPersonAttributes> joinInnerDaoQuery(CompletableFuture<Set<IPersonAttributes>> source) {
+        try {
+            return source.join();
+        }
+        catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof TimeoutException) {
+                throw e;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Removes the CompletionException that CompletableFuture wraps around failures.
+     *
+     * @param failure the failure.
+     * @return the underlying failure.
+     */
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    /**
+     * Builds a single IPersonAttribute instance containing the accumulated attributes of all matching query results,
+     * querying the inner DAOs one after another on the calling thread.
+     *
+     * @param uid the user ID.
+     * @return the cumulative IPersonAttribute instance.
+     */
+    @Override
+    public IPersonAttributes getPersonInBackground(String uid) {
+        Validate.notNull(uid, "uid may not be null.");
+        return toPerson(uid, getPeopleWithMultivaluedAttributesInBackground(toSeedMap(uid)));
+    }
+
+    /**
+     * Builds a set containing a single IPersonAttribute instance containing the accumulated attributes of all
+     * matching query results, querying the inner DAOs one after another on the calling thread.
+     *
+     * @param query the query.
+     * @return a set containing the single cumulative IPersonAttribute instance.
+     */
+    @Override
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributesInBackground(Map<String, List<Object>> query) {
+        LOG.trace("getPeopleWithMultivaluedAttributesInBackground called for query: {}", query);
+        long start = System.nanoTime();
+        Set<IPersonAttributes> people;
+        if (innerDaos.size() == 1) {
+            people = queryInBackground(innerDaos.get(0), query);
+        }
+        else {
+            people = new LinkedHashSet<IPersonAttributes>();
+            for (IPersonAttributeDao dao : innerDaos) {
+                Set<IPersonAttributes> found = queryInBackground(dao, query);
+                if (found != null) {
+                    people.addAll(found);
+                }
+            }
+        }
+        metrics.histogram("accumulate.query.time").recordSince(start);
+        return accumulateResults(people);
+    }
+
+    /**
+     * Queries an inner DAO on the calling thread, using its background lookup if it has one.
+     *
+     * @param dao the inner DAO.
+     * @param query the query.
+     * @return the records returned by the inner DAO.
+     */
+    private static Set<IPersonAttributes> queryInBackground(IPersonAttributeDao dao, Map<String, List<Object>> query) {
+        return dao instanceof IBackgroundPersonAttributeDao
+                ? ((IBackgroundPersonAttributeDao) dao).getPeopleWithMultivaluedAttributesInBackground(query)
+                : dao.getPeopleWithMultivaluedAttributes(query);
+    }
+
+    /**
+     * Builds a single IPersonAttribute instance for each of several users.
+     *
+     * @param uids the user IDs.
+     * @return a map from each user ID to the cumulative IPersonAttribute instance for that user, or null if no
+     *         records were found for the user.
+     */
+    public Map<String, IPersonAttributes> getPersons(Collection<String> uids) {
+        Map<String, Set<IPersonAttributes>> people = getPeopleByUids(uids);
+        Map<String, IPersonAttributes> result = new LinkedHashMap<String, IPersonAttributes>(people.size() * 4 / 3 + 1);
+        for (Map.Entry<String, Set<IPersonAttributes>> entry : people.entrySet()) {
+            Set<IPersonAttributes> person = entry.getValue();
+            result.put(entry.getKey(), person.isEmpty() ? null : person.iterator().next());
+        }
+        return result;
+    }
+
+    /**
+     * Builds a set containing a single IPersonAttribute instance for each of several users.  The inner DAOs are
+     * queried one after another.
+     *
+     * @param uids the user IDs.
+     * @return a map from each user ID to a set containing the cumulative IPersonAttribute instance for that user;
+     *         the set is empty if no records were found.
+     */
+    @Override
+    public Map<String, Set<IPersonAttributes>> getPeopleByUids(Collection<String> uids) {
+        LOG.trace("getPeopleByUids called for {} uids", uids.size());
+        Map<String, Set<IPersonAttributes>> found = new LinkedHashMap<String, Set<IPersonAttributes>>();
+        for (String uid : uids) {
+            found.put(uid, new LinkedHashSet<IPersonAttributes>());
+        }
+        for (IPersonAttributeDao dao : innerDaos) {
+            if (dao instanceof IMultiUserPersonAttributeDao) {
+                Map<String, Set<IPersonAttributes>> people = ((IMultiUserPersonAttributeDao) dao).getPeopleByUids(found.keySet());
+                for (Map.Entry<String, Set<IPersonAttributes>> entry : people.entrySet()) {
+                    Set<IPersonAttributes> dest = found.get(entry.getKey());
+                    if (dest != null && entry.getValue() != null) {
+                        dest.addAll(entry.getValue());
+                    }
+                }
+            }
+            else {
+                for (Map.Entry<String, Set<IPersonAttributes>> entry : found.entrySet()) {
+                    Set<IPersonAttributes> people = dao.getPeopleWithMultivaluedAttributes(toSeedMap(entry.getKey()));
+                    if (people != null) {
+                        entry.getValue().addAll(people);
+                    }
+                }
+            }
+        }
+
+        Map<String, Set<IPersonAttributes>> result = new LinkedHashMap<String, Set<IPersonAttributes>>(found.size() * 4 / 3 + 1);
+        for (Map.Entry<String, Set<IPersonAttributes>> entry : found.entrySet()) {
+            Set<IPersonAttributes> people = entry.getValue();
+            if (people.isEmpty()) {
+                result.put(entry.getKey(), Collections.<IPersonAttributes>emptySet());
+            }
+            else {
+                IPersonAttributes person = ensureNameValued(entry.getKey(), accumulateAttributes(people));
+                result.put(entry.getKey(), Collections.singleton(person));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Queries all of the inner DAOs concurrently and combines their results.  Inner DAOs that don't start within
+     * lookupTimeout milliseconds, or don't respond within lookupTimeout milliseconds of starting their query, are
+     * skipped, in which case the combined set implements {@link PartialResult}.  Any other failure cancels the
+     * remaining queries and is passed on to the caller.
+     *
+     * @param query the query.
+     * @return the combined set of IPersonAttribute instances.
+     * @throws DataAccessResourceFailureException if the pool and its queue are full.
+     */
+    private Set<IPersonAttributes> queryInnerDaos(final Map<String, List<Object>> query) {
+        ensureInitialized();
+        BlockingQueue<InnerDaoQuery> completed = new LinkedBlockingQueue<InnerDaoQuery>();
+        List<InnerDaoQuery> queries = new ArrayList<InnerDaoQuery>(innerDaos.size());
+        for (IPersonAttributeDao dao : innerDaos) {
+            InnerDaoQuery innerQuery = new InnerDaoQuery(dao, query, completed);
+            try {
+                executor.execute(innerQuery);
+            }
+            catch (RejectedExecutionException e) {
+                cancelAll(queries);
+                metrics.counter("accumulate.rejected").incrementAndGet();
+                throw new DataAccessResourceFailureException("too many lookups are waiting for attribute sources", e);
+            }
+            queries.add(innerQuery);
+        }
+
+        Map<InnerDaoQuery, Set<IPersonAttributes>> found = new HashMap<InnerDaoQuery, Set<IPersonAttributes>>();
+        Set<InnerDaoQuery> pending = new HashSet<InnerDaoQuery>(queries);
+        long timeout = TimeUnit.MILLISECONDS.toNanos(lookupTimeout);
+        boolean partial = false;
+        try {
+            while (!pending.isEmpty()) {
+                InnerDaoQuery done = lookupTimeout <= 0
+                        ? completed.take()
+                        : completed.poll(Math.max(0, nextDeadline(pending, timeout) - System.nanoTime()),
+                                TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    long now = System.nanoTime();
+                    for (Iterator<InnerDaoQuery> it = pending.iterator(); it.hasNext();) {
+                        InnerDaoQuery innerQuery = it.next();
+                        if (innerQuery.getDeadline(timeout) - now <= 0) {
+                            it.remove();
+                            innerQuery.cancel(true);
+                            partial = true;
+                            metrics.counter("accumulate.timeouts").incrementAndGet();
+                            LOG.warn("attribute source {} did not start or respond within {} ms; dropping it from "
+                                    + "the results for {}", new Object[] {innerQuery.dao, lookupTimeout, query});
+                        }
+                    }
+                }
+                else if (pending.remove(done)) {
+                    found.put(done, done.get());
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            cancelAll(queries);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for attribute sources", e);
+        }
+        catch (ExecutionException e) {
+            cancelAll(queries);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+
+        Set<IPersonAttributes> result = new LinkedHashSet<IPersonAttributes>();
+        for (InnerDaoQuery innerQuery : queries) {
+            Set<IPersonAttributes> people = found.get(innerQuery);
+            if (people != null) {
+                result.addAll(people);
+            }
+        }
+        return partial ? new PartialPersonSet(result) : result;
+    }
+
+    /**
+     * Finds the earliest deadline among inner DAO queries that haven't completed.
+     *
+     * @param pending the queries that haven't completed.
+     * @param timeout the lookup timeout in nanoseconds.
+     * @return the earliest deadline, as a value of System.nanoTime().
+     */
+    private static long nextDeadline(Set<InnerDaoQuery> pending, long timeout) {
+        Iterator<InnerDaoQuery> it = pending.iterator();
+        long next = it.next().getDeadline(timeout);
+        while (it.hasNext()) {
+            long deadline = it.next().getDeadline(timeout);
+            if (deadline - next < 0) {
+                next = deadline;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Cancels inner DAO queries, interrupting any that are running.  Queries that have already completed are left
+     * alone.
+     *
+     * @param queries the queries to cancel.
+     */
+    private static void cancelAll(List<InnerDaoQuery> queries) {
+        for (InnerDaoQuery innerQuery : queries) {
+            innerQuery.cancel(true);
+        }
+    }
+
+    /**
+     * Fails fast if afterPropertiesSet() hasn't been called, because several inner DAOs can't be queried without the
+     * resources that it creates.
+     */
+    private void ensureInitialized() {
+        if (executor == null) {
+            throw new IllegalStateException("afterPropertiesSet() must be called before "
+                    + getClass().getSimpleName() + " can query more than one inner DAO");
+        }
+    }
+
     /**
      * Accumulates the attributes of a set of IPersonAttribute instances into a single IPersonAttribute instance.
      * 
@@ -126,34 +852,55 @@ public class AccumulatingPersonAttributeDao extends AbstractDefaultAttributePers
      * @return the cumulative IPersonAttribute instance.
      */
     private IPersonAttributes accumulateAttributes(Set<IPersonAttributes> people) {
+        long start = System.nanoTime();
+        metrics.histogram("accumulate.records").record(people.size());
         String name = people.isEmpty() ? null : people.iterator().next().getName();
-        Map<String, List<Object>> cumulativeAttributes = new HashMap<String, List<Object>>();
+        Map<String, Collection<Object>> cumulativeValues = new HashMap<String, Collection<Object>>();
         for (IPersonAttributes person : people) {
-            appendAttributes(cumulativeAttributes, person.getAttributes());
+            appendAttributes(cumulativeValues, person.getAttributes(), people.size());
+        }
+        Map<String, List<Object>> cumulativeAttributes
+                = new HashMap<String, List<Object>>(cumulativeValues.size() * 4 / 3 + 1);
+        for (Map.Entry<String, Collection<Object>> entry : cumulativeValues.entrySet()) {
+            Collection<Object> values = entry.getValue();
+            cumulativeAttributes.put(entry.getKey(),
+                    values instanceof List ? (List<Object>) values : new ArrayList<Object>(values));
         }
-        return new NamedPersonImpl(name, cumulativeAttributes);
+        IPersonAttributes person = new NamedPersonImpl(name, cumulativeAttributes);
+        metrics.histogram("accumulate.merge.time").recordSince(start);
+        return person;
     }
 
     /**
      * Appends attribute values from a source attribute map onto the end of equivalently named attributes in a
-     * destination attribute map.
+     * destination attribute map.  If duplicate values are being removed, the destination values are sets that are
+     * presized for the number of records being accumulated.
      * 
      * @param dest the destination attribute map.
      * @param source the source attribute map.
+     * @param recordCount the number of records being accumulated.
      */
-    private void appendAttributes(Map<String, List<Object>> dest, Map<String, List<Object>> source) {
+    private void appendAttributes(Map<String, Collection<Object>> dest, Map<String, List<Object>> source,
+            int recordCount) {
         for (Map.Entry<String, List<Object>> entry : source.entrySet()) {
             List<Object> sourceValue = entry.getValue();
-            if (sourceValue != null) {
-                String key = entry.getKey();
-                List<Object> destValue = dest.get(key);
+            String key = entry.getKey();
+            if (sourceValue != null && (retainedAttributes == null || retainedAttributes.contains(key))) {
+                Collection<Object> destValue = dest.get(key);
                 if (destValue == null) {
-                    destValue = new ArrayList<Object>(entry.getValue());
+                    if (deduplicateValues) {
+                        int expected = Math.max(sourceValue.size(), recordCount);
+                        destValue = new LinkedHashSet<Object>(expected * 4 / 3 + 1);
+                        destValue.addAll(sourceValue);
+                    }
+                    else {
+                        destValue = new ArrayList<Object>(sourceValue);
+                    }
                     dest.put(key, destValue);
                     LOG.debug("new attribute: {} => {}", key, destValue);
                 }
                 else {
-                    destValue.addAll(entry.getValue());
+                    destValue.addAll(sourceValue);
                     LOG.debug("updated attribute: {} => {}", key, destValue);
                 }
             }
@@ -165,7 +912,18 @@ public class AccumulatingPersonAttributeDao extends AbstractDefaultAttributePers
      */
     @Override
     public Set<String> getPossibleUserAttributeNames() {
-        return innerDao.getPossibleUserAttributeNames();
+        if (innerDaos.size() == 1) {
+            return innerDaos.get(0).getPossibleUserAttributeNames();
+        }
+        Set<String> result = new LinkedHashSet<String>();
+        for (IPersonAttributeDao dao : innerDaos) {
+            Set<String> names = dao.getPossibleUserAttributeNames();
+            if (names == null) {
+                return null;
+            }
+            result.addAll(names);
+        }
+        return Collections.unmodifiableSet(result);
     }
 
     /**
@@ -173,6 +931,148 @@ public class AccumulatingPersonAttributeDao extends AbstractDefaultAttributePers
      */
     @Override
     public Set<String> getAvailableQueryAttributes() {
-        return innerDao.getAvailableQueryAttributes();
+        if (innerDaos.size() == 1) {
+            return innerDaos.get(0).getAvailableQueryAttributes();
+        }
+        Set<String> result = new LinkedHashSet<String>();
+        for (IPersonAttributeDao dao : innerDaos) {
+            Set<String> names = dao.getAvailableQueryAttributes();
+            if (names != null) {
+                result.addAll(names);
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * A query against a single inner DAO.  The query records when it starts running so that the lookup deadline
+     * isn't charged for time spent waiting in the queue, and reports itself to a completion queue when it finishes so
+     * that a failure is noticed no matter which inner DAO fails.
+     */
+    private static class InnerDaoQuery extends FutureTask<Set<IPersonAttributes>> {
+
+        /**
+         * The inner DAO being queried.
+         */
+        private final IPersonAttributeDao dao;
+
+        /**
+         * The queue that the query adds itself to when it finishes.
+         */
+        private final BlockingQueue<InnerDaoQuery> completed;
+
+        /**
+         * The value of System.nanoTime() when the query was created.
+         */
+        private final long createTime = System.nanoTime();
+
+        /**
+         * The value of System.nanoTime() when the query started running.
+         */
+        private volatile long startTime;
+
+        /**
+         * True once the query has started running.
+         */
+        private volatile boolean started;
+
+        /**
+         * @param dao the inner DAO to query.
+         * @param query the query.
+         * @param completed the queue that the query adds itself to when it finishes.
+         */
+        public InnerDaoQuery(final IPersonAttributeDao dao, final Map<String, List<Object>> query,
+                BlockingQueue<InnerDaoQuery> completed) {
+            super(new Callable<Set<IPersonAttributes>>() {
+                @Override
+                public Set<IPersonAttributes> call() {
+                    return dao.getPeopleWithMultivaluedAttributes(query);
+                }
+            });
+            this.dao = dao;
+            this.completed = completed;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            startTime = System.nanoTime();
+            started = true;
+            super.run();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void done() {
+            completed.offer(this);
+        }
+
+        /**
+         * Determines when the query times out.  A query that hasn't started times out when it has waited for a pool
+         * thread for the whole timeout; a query that has started times out when it has run for the whole timeout.
+         *
+         * @param timeout the lookup timeout in nanoseconds.
+         * @return the deadline, as a value of System.nanoTime().
+         */
+        public long getDeadline(long timeout) {
+            return (started ? startTime : createTime) + timeout;
+        }
+    }
+
+    /**
+     * A cumulative person record that is missing the records of one or more inner DAOs.
+     */
+    private static class PartialPersonImpl extends NamedPersonImpl implements PartialResult {
+
+        /**
+         * The version of this class used for serialization.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * @param name the person's name.
+         * @param attributes the person's attributes.
+         */
+        public PartialPersonImpl(String name, Map<String, List<Object>> attributes) {
+            super(name, attributes);
+        }
+    }
+
+    /**
+     * A set of person records that is missing the records of one or more inner DAOs.
+     */
+    private static class PartialPersonSet extends AbstractSet<IPersonAttributes> implements PartialResult {
+
+        /**
+         * The records that were found.
+         */
+        private final Set<IPersonAttributes> people;
+
+        /**
+         * @param people the records that were found.
+         */
+        public PartialPersonSet(Set<IPersonAttributes> people) {
+            this.people = people;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Iterator<IPersonAttributes> iterator() {
+            return people.iterator();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            return people.size();
+        }
     }
 }
@@ -0,0 +1,192 @@
+package org.iplantc.persondir.support;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Runs asynchronous attribute lookups.  On a JVM that supports virtual threads each lookup runs on its own virtual
+ * thread, so a lookup that is waiting for the directory doesn't tie up a platform thread; on older JVMs lookups run on
+ * a bounded pool of daemon threads instead.  In both cases no more than maxConcurrency lookups run at the same time,
+ * which protects the directory from bursts of requests without tying the limit to the number of platform threads.
+ *
+ * DAOs that support asynchronous lookups use a single shared executor unless they're given one of their own:
+ *
+ * <pre>
+ * {@code
+ * <bean id="asyncLookupExecutor" class="org.iplantc.persondir.support.AsyncLookupExecutor">
+ *     <property name="maxConcurrency" value="256" />
+ * </bean>
+ * }
+ * </pre>
+ *
+ * @author Dennis Roberts
+ */
+public class AsyncLookupExecutor implements DisposableBean {
+
+    /**
+     * Used to log debugging messages.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncLookupExecutor.class);
+
+    /**
+     * The executor used by DAOs that haven't been given one of their own.
+     */
+    private static AsyncLookupExecutor shared;
+
+    /**
+     * The maximum number of lookups that may run at the same time.
+     */
+    private int maxConcurrency = 64;
+
+    /**
+     * Limits the number of lookups that run at the same time.
+     */
+    private Semaphore permits;
+
+    /**
+     * The executor that lookups are submitted to.
+     */
+    private ExecutorService executor;
+
+    /**
+     * True if lookups run on virtual threads.
+     */
+    private boolean virtualThreads;
+
+    /**
+     * @return the executor used by DAOs that haven't been given one of their own.
+     */
+    public static synchronized AsyncLookupExecutor getShared() {
+        if (shared == null) {
+            shared = new AsyncLookupExecutor();
+        }
+        return shared;
+    }
+
+    /**
+     * @param maxConcurrency the maximum number of lookups that may run at the same time.
+     */
+    public synchronized void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive");
+        }
+        if (executor != null) {
+            throw new IllegalStateException("maxConcurrency can't be changed after the executor has been started");
+        }
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * @return the maximum number of lookups that may run at the same time.
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * @return true if lookups run on virtual threads.
+     */
+    public synchronized boolean isVirtualThreads() {
+        start();
+        return virtualThreads;
+    }
+
+    /**
+     * Starts a lookup.
+     *
+     * @param <T> the type of the lookup's result.
+     * @param lookup the lookup.
+     * @return a future that completes with the result of the lookup.
+     */
+    public <T> CompletableFuture<T> supplyAsync(final Supplier<T> lookup) {
+        final Semaphore lookupPermits;
+        final ExecutorService lookupExecutor;
+        synchronized (this) {
+            start();
+            lookupPermits = permits;
+            lookupExecutor = executor;
+        }
+        return CompletableFuture.supplyAsync(new Supplier<T>() {
+            @Override
+            public T get() {
+                lookupPermits.acquireUninterruptibly();
+                try {
+                    return lookup.get();
+                }
+                finally {
+                    lookupPermits.release();
+                }
+            }
+        }, lookupExecutor);
+    }
+
+    /**
+     * Creates the underlying executor if it hasn't been created yet.
+     */
+    private void start() {
+        if (executor != null) {
+            return;
+        }
+        permits = new Semaphore(maxConcurrency);
+        executor = newVirtualThreadExecutor();
+        virtualThreads = executor != null;
+        if (executor == null) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "async-lookup-" + threadNumber.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        LOG.info("asynchronous lookups will run on {} with at most {} at a time",
+                virtualThreads ? "virtual threads" : "a pool of platform threads", maxConcurrency);
+    }
+
+    /**
+     * Creates a virtual-thread-per-task executor if the JVM supports virtual threads.  The executor is created
+     * reflectively because the module is compiled for JVMs that predate virtual threads.
+     *
+     * @return the executor, or null if virtual threads aren't available.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+        catch (Exception e) {
+            LOG.warn("unable to create a virtual thread executor; using platform threads", e);
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package org.iplantc.persondir.support;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Looks up recently active users when a node starts so that the first logins after a deployment are answered from the
+ * cache instead of all going to the directory at once.  The user IDs are obtained from the {@link RecentUidSource} in
+ * the uidSource property if one is set; otherwise they're read from the hot list file, which contains one user ID per
+ * line.  The users are looked up through the DAO in the personAttributeDao property, which is normally a
+ * {@link CachingPersonAttributeDao} wrapping an {@link AccumulatingPersonAttributeDao}, using at most maxConcurrency
+ * threads and at most maxLookupsPerSecond lookups per second so that the warm-up itself can't overload the directory.
+ *
+ * By default the warm-up runs while the bean is being initialized, so the application context doesn't finish starting
+ * (and the node doesn't start accepting logins) until the warm-up has finished or warmUpTimeout milliseconds have
+ * passed.  If waitForWarmUp is false, the warm-up runs in the background instead and {@link #isReady()} returns false
+ * until it finishes, which allows a health check to keep the node out of rotation in the meantime.
+ *
+ * The hot list file is rewritten every saveInterval milliseconds and when the bean is destroyed with the IDs of the
+ * users who have been active most recently, as reported by the hotUidSource property.  If hotUidSource isn't set and
+ * personAttributeDao is a RecentUidSource, as CachingPersonAttributeDao is, the DAO itself is used.
+ *
+ * <pre>
+ * {@code
+ * <bean id="cacheWarmer" class="org.iplantc.persondir.support.CacheWarmer">
+ *     <property name="personAttributeDao" ref="groupAttributeRepository" />
+ *     <property name="hotListFile" value="/var/lib/cas/hot-users.txt" />
+ *     <property name="maxUids" value="1000" />
+ *     <property name="maxConcurrency" value="4" />
+ *     <property name="maxLookupsPerSecond" value="50" />
+ * </bean>
+ * }
+ * </pre>
+ *
+ * @author Dennis Roberts
+ */
+public class CacheWarmer implements InitializingBean, DisposableBean {
+
+    /**
+     * Used to log debugging messages.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(CacheWarmer.class);
+
+    /**
+     * The character encoding of the hot list file.
+     */
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * The DAO used to look up the users.
+     */
+    private IPersonAttributeDao personAttributeDao;
+
+    /**
+     * Provides the users to look up at startup, or null if they should be read from the hot list file.
+     */
+    private RecentUidSource uidSource;
+
+    /**
+     * Provides the users to save to the hot list file.
+     */
+    private RecentUidSource hotUidSource;
+
+    /**
+     * The file that the hot list is read from and saved to, or null if no hot list is kept.
+     */
+    private File hotListFile;
+
+    /**
+     * The maximum number of users to look up and to save to the hot list.
+     */
+    private int maxUids = 1000;
+
+    /**
+     * The maximum number of lookups that may run at the same time.
+     */
+    private int maxConcurrency = 4;
+
+    /**
+     * The maximum number of lookups to start per second, or zero for no limit.
+     */
+    private int maxLookupsPerSecond = 50;
+
+    /**
+     * The maximum number of milliseconds to spend warming the cache.
+     */
+    private long warmUpTimeout = 120000;
+
+    /**
+     * True if initialization should wait for the warm-up to finish.
+     */
+    private boolean waitForWarmUp = true;
+
+    /**
+     * The number of milliseconds between saves of the hot list.
+     */
+    private long saveInterval = 300000;
+
+    /**
+     * True once the warm-up has finished.
+     */
+    private volatile boolean ready = false;
+
+    /**
+     * The time at which the next lookup may start, as returned by System.nanoTime().
+     */
+    private final AtomicLong nextPermit = new AtomicLong();
+
+    /**
+     * Used to run the background warm-up and to save the hot list periodically.
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param personAttributeDao the DAO used to look up the users.
+     */
+    public void setPersonAttributeDao(IPersonAttributeDao personAttributeDao) {
+        this.personAttributeDao = personAttributeDao;
+    }
+
+    /**
+     * @param uidSource provides the users to look up at startup.
+     */
+    public void setUidSource(RecentUidSource uidSource) {
+        this.uidSource = uidSource;
+    }
+
+    /**
+     * @param hotUidSource provides the users to save to the hot list.
+     */
+    public void setHotUidSource(RecentUidSource hotUidSource) {
+        this.hotUidSource = hotUidSource;
+    }
+
+    /**
+     * @param hotListFile the file that the hot list is read from and saved to.
+     */
+    public void setHotListFile(File hotListFile) {
+        this.hotListFile = hotListFile;
+    }
+
+    /**
+     * @param maxUids the maximum number of users to look up and to save to the hot list.
+     */
+    public void setMaxUids(int maxUids) {
+        this.maxUids = maxUids;
+    }
+
+    /**
+     * @param maxConcurrency the maximum number of lookups that may run at the same time.
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * @param maxLookupsPerSecond the maximum number of lookups to start per second, or zero for no limit.
+     */
+    public void setMaxLookupsPerSecond(int maxLookupsPerSecond) {
+        this.maxLookupsPerSecond = maxLookupsPerSecond;
+    }
+
+    /**
+     * @param warmUpTimeout the maximum number of milliseconds to spend warming the cache.
+     */
+    public void setWarmUpTimeout(long warmUpTimeout) {
+        this.warmUpTimeout = warmUpTimeout;
+    }
+
+    /**
+     * @param waitForWarmUp true if initialization should wait for the warm-up to finish.
+     */
+    public void setWaitForWarmUp(boolean waitForWarmUp) {
+        this.waitForWarmUp = waitForWarmUp;
+    }
+
+    /**
+     * @param saveInterval the number of milliseconds between saves of the hot list, or zero to save it only when the
+     *                     bean is destroyed.
+     */
+    public void setSaveInterval(long saveInterval) {
+        this.saveInterval = saveInterval;
+    }
+
+    /**
+     * @return true once the warm-up has finished.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (personAttributeDao == null) {
+            throw new BeanCreationException("personAttributeDao must be set");
+        }
+        if (maxUids < 1 || maxConcurrency < 1) {
+            throw new BeanCreationException("maxUids and maxConcurrency must be positive");
+        }
+        if (hotUidSource == null && personAttributeDao instanceof RecentUidSource) {
+            hotUidSource = (RecentUidSource) personAttributeDao;
+        }
+
+        final boolean saving = hotListFile != null && hotUidSource != null && saveInterval > 0;
+        if (saving || !waitForWarmUp) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "cache-warmer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        if (waitForWarmUp) {
+            warmUp();
+        }
+        else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    warmUp();
+                }
+            });
+        }
+        if (saving) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    saveHotList();
+                }
+            }, saveInterval, saveInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        saveHotList();
+    }
+
+    /**
+     * Looks up the recently active users.  Failed lookups are logged and skipped, and any lookups that haven't
+     * finished when the timeout expires are abandoned; either way the node is marked as ready afterwards because a
+     * partially warmed cache is still better than refusing to start.
+     */
+    private void warmUp() {
+        final long start = System.currentTimeMillis();
+        try {
+            final List<String> uids = loadUids();
+            if (uids.isEmpty()) {
+                LOG.info("no recently active users to look up; skipping the cache warm-up");
+                return;
+            }
+            LOG.info("looking up {} recently active users", uids.size());
+
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(warmUpTimeout);
+            final AtomicInteger succeeded = new AtomicInteger();
+            final AtomicInteger failed = new AtomicInteger();
+            final AtomicInteger threadNumber = new AtomicInteger();
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 0,
+                    TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "cache-warmer-" + threadNumber.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            nextPermit.set(System.nanoTime());
+            for (final String uid : uids) {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (!acquirePermit(deadline)) {
+                                return;
+                            }
+                            personAttributeDao.getPerson(uid);
+                            succeeded.incrementAndGet();
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        catch (RuntimeException e) {
+                            failed.incrementAndGet();
+                            LOG.debug("unable to look up " + uid + " during the cache warm-up", e);
+                        }
+                    }
+                });
+            }
+            pool.shutdown();
+            if (!pool.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                pool.shutdownNow();
+                LOG.warn("the cache warm-up did not finish within {} ms", warmUpTimeout);
+            }
+            LOG.info("looked up {} of {} recently active users in {} ms ({} failed)", new Object[] {
+                    succeeded.get(), uids.size(), System.currentTimeMillis() - start, failed.get()});
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("the cache warm-up was interrupted");
+        }
+        catch (RuntimeException e) {
+            LOG.error("the cache warm-up failed", e);
+        }
+        finally {
+            ready = true;
+        }
+    }
+
+    /**
+     * Waits until the next lookup may start without exceeding maxLookupsPerSecond.  Each caller reserves the next
+     * available start time, so concurrent callers are spread evenly over each second.
+     *
+     * @param deadline the time after which no more lookups should be started, as returned by System.nanoTime().
+     * @return true if the lookup may start or false if the deadline would be passed first.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    private boolean acquirePermit(long deadline) throws InterruptedException {
+        if (maxLookupsPerSecond <= 0) {
+            return System.nanoTime() - deadline < 0;
+        }
+        final long interval = TimeUnit.SECONDS.toNanos(1) / maxLookupsPerSecond;
+        final long now = System.nanoTime();
+        long permit;
+        while (true) {
+            long next = nextPermit.get();
+            permit = next - now > 0 ? next : now;
+            if (permit - deadline >= 0) {
+                return false;
+            }
+            if (nextPermit.compareAndSet(next, permit + interval)) {
+                break;
+            }
+        }
+        TimeUnit.NANOSECONDS.sleep(permit - now);
+        return true;
+    }
+
+    /**
+     * Obtains the users to look up from the uid source or the hot list file.
+     *
+     * @return the user IDs without duplicates, limited to maxUids entries.
+     */
+    private List<String> loadUids() {
+        final Set<String> uids = new LinkedHashSet<String>();
+        if (uidSource != null) {
+            for (String uid : uidSource.getRecentUids(maxUids)) {
+                if (uid != null && uids.size() < maxUids) {
+                    uids.add(uid);
+                }
+            }
+        }
+        else if (hotListFile != null) {
+            if (!hotListFile.isFile()) {
+                LOG.info("hot list file {} does not exist", hotListFile);
+                return Collections.emptyList();
+            }
+            try {
+                readHotList(uids);
+            }
+            catch (IOException e) {
+                LOG.warn("unable to read the hot list from " + hotListFile, e);
+            }
+        }
+        return new ArrayList<String>(uids);
+    }
+
+    /**
+     * Reads user IDs from the hot list file.  Blank lines and lines beginning with # are ignored.
+     *
+     * @param uids the set to add the user IDs to.
+     * @throws IOException if the file can't be read.
+     */
+    private void readHotList(Set<String> uids) throws IOException {
+        final Reader reader = new InputStreamReader(new FileInputStream(hotListFile), ENCODING);
+        try {
+            final BufferedReader in = new BufferedReader(reader);
+            for (String line = in.readLine(); line != null && uids.size() < maxUids; line = in.readLine()) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    uids.add(line);
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Saves the most recently active users to the hot list file.  The list is written to a temporary file that then
+     * replaces the existing list so that a crash can't leave a truncated list behind.  An empty list isn't saved
+     * because it would replace a useful list after a quiet period.  Failures are logged rather than thrown because
+     * the hot list is only an optimization.
+     */
+    public void saveHotList() {
+        if (hotListFile == null || hotUidSource == null) {
+            return;
+        }
+        try {
+            final List<String> uids = hotUidSource.getRecentUids(maxUids);
+            if (uids.isEmpty()) {
+                LOG.debug("no recently active users; not saving the hot list");
+                return;
+            }
+            writeHotList(uids);
+            LOG.debug("saved {} recently active users to {}", uids.size(), hotListFile);
+        }
+        catch (IOException e) {
+            LOG.warn("unable to save the hot list to " + hotListFile, e);
+        }
+        catch (RuntimeException e) {
+            LOG.warn("unable to save the hot list to " + hotListFile, e);
+        }
+    }
+
+    /**
+     * Writes user IDs to the hot list file.
+     *
+     * @param uids the user IDs.
+     * @throws IOException if the file can't be written.
+     */
+    private void writeHotList(List<String> uids) throws IOException {
+        final File directory = hotListFile.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create " + directory);
+        }
+        final File temp = File.createTempFile(hotListFile.getName(), ".tmp", directory);
+        boolean written = false;
+        try {
+            final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), ENCODING));
+            try {
+                for (String uid : uids) {
+                    out.write(uid);
+                    out.write('\n');
+                }
+            }
+            finally {
+                out.close();
+            }
+            if (!temp.renameTo(hotListFile)) {
+                if (!hotListFile.delete() || !temp.renameTo(hotListFile)) {
+                    throw new IOException("unable to rename " + temp + " to " + hotListFile);
+                }
+            }
+            written = true;
+        }
+        finally {
+            if (!written && !temp.delete()) {
+                LOG.warn("unable to delete {}", temp);
+            }
+        }
+    }
+}
@@ -0,0 +1,678 @@
+package org.iplantc.persondir.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.commons.lang.Validate;
+import org.iplantc.persondir.support.cache.StripedLruCache;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * An implementation of {@link IPersonAttributeDao} that caches the results returned by another IPersonAttributeDao.
+ * Entries are kept in a bounded, striped cache with least-recently-used eviction.  Each entry expires after a
+ * configurable amount of time.  Results for users who have no matching records are cached separately with their own
+ * (usually shorter) time to live so that newly added users don't have to wait long to see their group memberships.
+ * Because this class is itself an IPersonAttributeDao, it can be dropped in anywhere an innerDao is configured:
+ *
+ * <pre>
+ * {@code
+ * <bean id="groupAttributeRepository" class="org.iplantc.persondir.support.CachingPersonAttributeDao">
+ *     <property name="maxSize" value="10000" />
+ *     <property name="timeToLive" value="300000" />
+ *     <property name="negativeTimeToLive" value="30000" />
+ *     <property name="innerDao">
+ *         <bean class="org.iplantc.persondir.support.AccumulatingPersonAttributeDao">
+ *             <property name="innerDao">
+ *                 <bean class="org.iplantc.persondir.support.ldap.LdapMultirecordAttributeDao">
+ *                     ...
+ *                 </bean>
+ *             </property>
+ *         </bean>
+ *     </property>
+ * </bean>
+ * }
+ * </pre>
+ *
+ * If refreshAheadFraction is set, an entry that is used after that fraction of its time to live has passed is
+ * refreshed in the background while the cached value continues to be returned, so users who log in often don't see
+ * the directory's latency when their entries expire.  At most maxRefreshConcurrency refreshes run at a time, on low
+ * priority threads, and at most maxPendingRefreshes wait to run; refreshes that don't fit are skipped, and each entry
+ * is refreshed at most once at a time.  If the inner DAO implements {@link IBackgroundPersonAttributeDao}, refreshes
+ * use its background lookups, which run entirely on the refresh threads, so refreshes never take threads that the
+ * inner DAO shares among logins.  A refresh that returns a partial result, or that finds nothing for an entry that
+ * has records, is discarded and the existing entry is kept until it expires; the next lookup after that asks the
+ * inner DAO again and caches whatever it returns.
+ *
+ * Results that implement {@link PartialResult}, or that contain a person who does, are missing the records of one or
+ * more attribute sources.  They're returned to the caller but never stored in the cache.
+ *
+ * The IDs of the users whose entries were used most recently are available from {@link #getRecentUids(int)}, which
+ * allows a {@link CacheWarmer} to save them and look them up again when the node restarts.
+ *
+ * @author Dennis Roberts
+ */
+public class CachingPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao
+        implements InitializingBean, DisposableBean, RecentUidSource {
+
+    /**
+     * Used to log debugging messages.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(CachingPersonAttributeDao.class);
+
+    /**
+     * The placeholder stored in the cache when the inner DAO returns null.
+     */
+    private static final Set<IPersonAttributes> NULL_RESULT = Collections.unmodifiableSet(
+            Collections.<IPersonAttributes>emptySet());
+
+    /**
+     * The number of invalidation stamps, which must be a power of two.
+     */
+    private static final int INVALIDATION_STAMPS = 256;
+
+    /**
+     * The DAO whose results are being cached.
+     */
+    private IPersonAttributeDao innerDao;
+
+    /**
+     * The maximum number of entries to keep in the cache.
+     */
+    private int maxSize = 10000;
+
+    /**
+     * The number of independently locked cache stripes.
+     */
+    private int stripes = StripedLruCache.DEFAULT_STRIPES;
+
+    /**
+     * The number of milliseconds that non-empty results remain in the cache.
+     */
+    private long timeToLive = 300000;
+
+    /**
+     * The number of milliseconds that empty results remain in the cache.
+     */
+    private long negativeTimeToLive = 30000;
+
+    /**
+     * True if empty results should be cached.
+     */
+    private boolean cacheNegativeResults = true;
+
+    /**
+     * The fraction of an entry's time to live after which using it schedules a refresh, or zero to disable
+     * refresh-ahead.
+     */
+    private double refreshAheadFraction = 0;
+
+    /**
+     * The maximum number of refreshes that may run at the same time.
+     */
+    private int maxRefreshConcurrency = 2;
+
+    /**
+     * The maximum number of refreshes that may wait to run.
+     */
+    private int maxPendingRefreshes = 100;
+
+    /**
+     * The cache itself.
+     */
+    private StripedLruCache<Object, Set<IPersonAttributes>> cache;
+
+    /**
+     * Runs the background refreshes, or null if refresh-ahead is disabled.
+     */
+    private ThreadPoolExecutor refreshExecutor;
+
+    /**
+     * The keys of the entries that are being refreshed or are waiting to be refreshed.
+     */
+    private final ConcurrentMap<Object, Boolean> pendingRefreshes = new ConcurrentHashMap<Object, Boolean>();
+
+    /**
+     * Counts the invalidations of the cache keys that hash to each slot.  A lookup reads the stamp for its key before
+     * it asks the inner DAO and doesn't cache its result if the stamp has changed since, so a lookup or refresh that
+     * was already running when an entry was removed can't put the removed data back.  Keys that share a slot share a
+     * stamp, which can occasionally leave a result uncached but never caches one that should have been discarded.
+     */
+    private final AtomicLongArray invalidations = new AtomicLongArray(INVALIDATION_STAMPS);
+
+    /**
+     * The number of refreshes that completed successfully.
+     */
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /**
+     * The number of refreshes that failed.
+     */
+    private final AtomicLong refreshFailures = new AtomicLong();
+
+    /**
+     * The number of refreshes that were skipped because too many were already waiting.
+     */
+    private final AtomicLong refreshesSkipped = new AtomicLong();
+
+    /**
+     * The number of refreshes whose results were discarded because they were partial or unexpectedly empty.
+     */
+    private final AtomicLong refreshesDiscarded = new AtomicLong();
+
+    /**
+     * @param innerDao the DAO whose results are being cached.
+     */
+    public void setInnerDao(IPersonAttributeDao innerDao) {
+        this.innerDao = innerDao;
+    }
+
+    /**
+     * @return the DAO whose results are being cached.
+     */
+    public IPersonAttributeDao getInnerDao() {
+        return innerDao;
+    }
+
+    /**
+     * @param maxSize the maximum number of entries to keep in the cache.
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param stripes the number of independently locked cache stripes.
+     */
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    /**
+     * @param timeToLive the number of milliseconds that non-empty results remain in the cache.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @param negativeTimeToLive the number of milliseconds that empty results remain in the cache.
+     */
+    public void setNegativeTimeToLive(long negativeTimeToLive) {
+        this.negativeTimeToLive = negativeTimeToLive;
+    }
+
+    /**
+     * @param cacheNegativeResults true if empty results should be cached.
+     */
+    public void setCacheNegativeResults(boolean cacheNegativeResults) {
+        this.cacheNegativeResults = cacheNegativeResults;
+    }
+
+    /**
+     * @param refreshAheadFraction the fraction of an entry's time to live after which using it schedules a refresh,
+     *                             or zero to disable refresh-ahead.
+     */
+    public void setRefreshAheadFraction(double refreshAheadFraction) {
+        this.refreshAheadFraction = refreshAheadFraction;
+    }
+
+    /**
+     * @param maxRefreshConcurrency the maximum number of refreshes that may run at the same time.
+     */
+    public void setMaxRefreshConcurrency(int maxRefreshConcurrency) {
+        this.maxRefreshConcurrency = maxRefreshConcurrency;
+    }
+
+    /**
+     * @param maxPendingRefreshes the maximum number of refreshes that may wait to run.
+     */
+    public void setMaxPendingRefreshes(int maxPendingRefreshes) {
+        this.maxPendingRefreshes = maxPendingRefreshes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (innerDao == null) {
+            throw new BeanCreationException("innerDao must be set");
+        }
+        if (refreshAheadFraction < 0 || refreshAheadFraction >= 1) {
+            throw new BeanCreationException("refreshAheadFraction must be at least zero and less than one");
+        }
+        cache = new StripedLruCache<Object, Set<IPersonAttributes>>(maxSize, stripes);
+        if (refreshAheadFraction > 0) {
+            if (maxRefreshConcurrency < 1 || maxPendingRefreshes < 1) {
+                throw new BeanCreationException("maxRefreshConcurrency and maxPendingRefreshes must be positive");
+            }
+            final AtomicInteger threadNumber = new AtomicInteger();
+            refreshExecutor = new ThreadPoolExecutor(maxRefreshConcurrency, maxRefreshConcurrency, 60,
+                    TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxPendingRefreshes), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "cache-refresh-" + threadNumber.incrementAndGet());
+                            thread.setDaemon(true);
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    });
+            refreshExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Retrieves the attributes for a single user, consulting the cache first.  The inner DAO's getPerson() method
+     * is used on a cache miss so that any special handling it does for single users is preserved.  Because its result
+     * differs from the result of a query for the same user, it's cached under a separate key.
+     *
+     * @param uid the user ID.
+     * @return the person or null if the user wasn't found.
+     */
+    @Override
+    public IPersonAttributes getPerson(final String uid) {
+        Validate.notNull(uid, "uid may not be null.");
+        final QueryKeys.PersonKey key = QueryKeys.forPerson(toSeedMap(uid));
+        final StripedLruCache.CacheEntry<Set<IPersonAttributes>> entry = cache.getEntry(key);
+        Set<IPersonAttributes> people;
+        if (entry == null) {
+            LOG.debug("cache miss for uid: {}", uid);
+            long stamp = getInvalidationStamp(key);
+            people = loadPerson(uid);
+            store(key, people, stamp);
+        }
+        else {
+            people = entry.getValue();
+            if (isRefreshDue(entry)) {
+                scheduleRefresh(key, people, new Callable<Set<IPersonAttributes>>() {
+                    @Override
+                    public Set<IPersonAttributes> call() {
+                        return refreshPerson(uid);
+                    }
+                });
+            }
+        }
+        return people.isEmpty() ? null : people.iterator().next();
+    }
+
+    /**
+     * Retrieves the attributes for a single user from the inner DAO.
+     *
+     * @param uid the user ID.
+     * @return a set containing the person, or the null result placeholder if the user wasn't found.
+     */
+    private Set<IPersonAttributes> loadPerson(String uid) {
+        IPersonAttributes person = innerDao.getPerson(uid);
+        return person == null ? NULL_RESULT : Collections.singleton(person);
+    }
+
+    /**
+     * Retrieves the attributes for a single user from the inner DAO for a background refresh.
+     *
+     * @param uid the user ID.
+     * @return a set containing the person, or the null result placeholder if the user wasn't found.
+     */
+    private Set<IPersonAttributes> refreshPerson(String uid) {
+        if (!(innerDao instanceof IBackgroundPersonAttributeDao)) {
+            return loadPerson(uid);
+        }
+        IPersonAttributes person = ((IBackgroundPersonAttributeDao) innerDao).getPersonInBackground(uid);
+        return person == null ? NULL_RESULT : Collections.singleton(person);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+        Validate.notNull(query, "query may not be null.");
+        final Map<String, List<Object>> key = QueryKeys.normalize(query);
+        final StripedLruCache.CacheEntry<Set<IPersonAttributes>> entry = cache.getEntry(key);
+        Set<IPersonAttributes> people;
+        if (entry == null) {
+            LOG.debug("cache miss for query: {}", query);
+            long stamp = getInvalidationStamp(key);
+            people = loadPeople(query);
+            store(key, people, stamp);
+        }
+        else {
+            people = entry.getValue();
+            if (isRefreshDue(entry)) {
+                scheduleRefresh(key, people, new Callable<Set<IPersonAttributes>>() {
+                    @Override
+                    public Set<IPersonAttributes> call() {
+                        return refreshPeople(key);
+                    }
+                });
+            }
+        }
+        return people == NULL_RESULT ? null : people;
+    }
+
+    /**
+     * Retrieves the records matching a query from the inner DAO.
+     *
+     * @param query the query.
+     * @return the records, or the null result placeholder if the inner DAO returned null.
+     */
+    private Set<IPersonAttributes> loadPeople(Map<String, List<Object>> query) {
+        Set<IPersonAttributes> people = innerDao.getPeopleWithMultivaluedAttributes(query);
+        return people == null ? NULL_RESULT : people;
+    }
+
+    /**
+     * Retrieves the records matching a query from the inner DAO for a background refresh.
+     *
+     * @param query the query.
+     * @return the records, or the null result placeholder if the inner DAO returned null.
+     */
+    private Set<IPersonAttributes> refreshPeople(Map<String, List<Object>> query) {
+        if (!(innerDao instanceof IBackgroundPersonAttributeDao)) {
+            return loadPeople(query);
+        }
+        Set<IPersonAttributes> people
+                = ((IBackgroundPersonAttributeDao) innerDao).getPeopleWithMultivaluedAttributesInBackground(query);
+        return people == null ? NULL_RESULT : people;
+    }
+
+    /**
+     * Determines whether a cache entry is old enough to be refreshed ahead of its expiration.
+     *
+     * @param entry the cache entry.
+     * @return true if refresh-ahead is enabled and refreshAheadFraction of the entry's time to live has passed.
+     */
+    private boolean isRefreshDue(StripedLruCache.CacheEntry<Set<IPersonAttributes>> entry) {
+        if (refreshExecutor == null) {
+            return false;
+        }
+        long timeToLive = entry.getExpires() - entry.getCreated();
+        return System.currentTimeMillis() >= entry.getCreated() + (long) (timeToLive * refreshAheadFraction);
+    }
+
+    /**
+     * Schedules a background refresh of a cache entry unless one is already pending.  If the refresh fails or its
+     * result is degraded, the existing entry is left in place until it expires.
+     *
+     * @param key the cache key.
+     * @param current the cached value being refreshed.
+     * @param loader retrieves the new value from the inner DAO.
+     */
+    private void scheduleRefresh(final Object key, final Set<IPersonAttributes> current,
+            final Callable<Set<IPersonAttributes>> loader) {
+        if (pendingRefreshes.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long stamp = getInvalidationStamp(key);
+                        Set<IPersonAttributes> people = loader.call();
+                        if (isDegraded(people, current)) {
+                            refreshesDiscarded.incrementAndGet();
+                            LOG.debug("keeping cached attributes for query {}; the refresh returned {}", key, people);
+                        }
+                        else {
+                            store(key, people, stamp);
+                            refreshes.incrementAndGet();
+                        }
+                    }
+                    catch (Exception e) {
+                        refreshFailures.incrementAndGet();
+                        LOG.warn("unable to refresh cached attributes for query: " + key, e);
+                    }
+                    finally {
+                        pendingRefreshes.remove(key);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            pendingRefreshes.remove(key);
+            refreshesSkipped.incrementAndGet();
+            LOG.debug("too many pending refreshes; not refreshing cached attributes for query: {}", key);
+        }
+    }
+
+    /**
+     * Determines whether a refreshed result is worse than the cached value it would replace.  A partial result is
+     * always worse.  An empty result is worse than a non-empty one, because sources that time out or fail without
+     * an error can make a user who has records appear to have none.
+     *
+     * @param people the refreshed result.
+     * @param current the cached value.
+     * @return true if the refreshed result shouldn't replace the cached value.
+     */
+    private static boolean isDegraded(Set<IPersonAttributes> people, Set<IPersonAttributes> current) {
+        return PartialResults.isPartial(people) || (people.isEmpty() && !current.isEmpty());
+    }
+
+    /**
+     * Stores a result in the cache, using the negative time to live for empty results.  Partial results aren't
+     * stored, and neither are results for keys that were invalidated after the lookup started.
+     *
+     * @param key the cache key.
+     * @param people the result to cache.
+     * @param stamp the invalidation stamp of the key, read before the lookup started.
+     */
+    private void store(Object key, Set<IPersonAttributes> people, long stamp) {
+        if (getInvalidationStamp(key) != stamp) {
+            LOG.debug("not caching result for query {}; it was invalidated during the lookup", key);
+            return;
+        }
+        if (PartialResults.isPartial(people)) {
+            LOG.debug("not caching partial result for query: {}", key);
+        }
+        else if (!people.isEmpty()) {
+            cache.put(key, people, timeToLive);
+        }
+        else if (cacheNegativeResults) {
+            cache.put(key, people, negativeTimeToLive);
+        }
+        
+        //An invalidation that happened while the result was being stored must still remove it
+        if (getInvalidationStamp(key) != stamp) {
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * @param key a cache key.
+     * @return the number of times that the key, or any key that shares its slot, has been invalidated.
+     */
+    private long getInvalidationStamp(Object key) {
+        return invalidations.get(getInvalidationSlot(key));
+    }
+
+    /**
+     * Records the invalidation of a cache key.  This must be done before the key's entry is removed.
+     *
+     * @param key the cache key.
+     */
+    private void invalidate(Object key) {
+        invalidations.incrementAndGet(getInvalidationSlot(key));
+    }
+
+    /**
+     * @param key a cache key.
+     * @return the index of the key's invalidation stamp.
+     */
+    private static int getInvalidationSlot(Object key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (INVALIDATION_STAMPS - 1);
+    }
+
+    /**
+     * Removes any cached result for a single user, both from getPerson() and from queries for the user alone.
+     * Lookups and refreshes for the user that are already running don't cache their results.
+     *
+     * @param uid the user ID.
+     */
+    public void removeUserAttributes(String uid) {
+        Validate.notNull(uid, "uid may not be null.");
+        Map<String, List<Object>> query = QueryKeys.normalize(toSeedMap(uid));
+        QueryKeys.PersonKey personKey = new QueryKeys.PersonKey(query);
+        invalidate(personKey);
+        invalidate(query);
+        boolean removed = cache.remove(personKey);
+        removed |= cache.remove(query);
+        if (removed) {
+            LOG.debug("removed cached attributes for uid: {}", uid);
+        }
+    }
+
+    /**
+     * Removes all cached results.  Lookups and refreshes that are already running don't cache their results.
+     */
+    public void clearCache() {
+        for (int i = 0; i < INVALIDATION_STAMPS; i++) {
+            invalidations.incrementAndGet(i);
+        }
+        cache.clear();
+    }
+
+    /**
+     * Lists the IDs of the users whose cache entries were used most recently.  Only entries for single-user lookups
+     * are considered, so entries for other kinds of queries don't appear in the list.  A user whose getPerson() and
+     * query results are both cached is listed once.
+     *
+     * @param max the maximum number of user IDs to return.
+     * @return the user IDs, approximately in order from the most recently used.
+     */
+    @Override
+    public List<String> getRecentUids(int max) {
+        final String usernameAttribute = getUsernameAttributeProvider().getUsernameAttribute();
+        final Set<String> uids = new LinkedHashSet<String>();
+        for (Object key : cache.getRecentKeys(max)) {
+            Map<String, List<Object>> query = toQuery(key);
+            List<Object> values = query.size() == 1 ? query.get(usernameAttribute) : null;
+            if (values != null && values.size() == 1 && values.get(0) != null) {
+                uids.add(values.get(0).toString());
+            }
+        }
+        return new ArrayList<String>(uids);
+    }
+
+    /**
+     * Extracts the query from a cache key.
+     *
+     * @param key the cache key, which is either a query or a {@link QueryKeys.PersonKey}.
+     * @return the query.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, List<Object>> toQuery(Object key) {
+        return key instanceof QueryKeys.PersonKey ? ((QueryKeys.PersonKey) key).getQuery() : (Map<String, List<Object>>) key;
+    }
+
+    /**
+     * @return the number of entries currently in the cache.
+     */
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * @return the number of lookups that were satisfied from the cache.
+     */
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    /**
+     * @return the number of lookups that had to be passed to the inner DAO.
+     */
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * @return the number of entries removed to keep the cache within its maximum size.
+     */
+    public long getEvictions() {
+        return cache.getEvictions();
+    }
+
+    /**
+     * @return the number of entries removed because they had expired.
+     */
+    public long getExpirations() {
+        return cache.getExpirations();
+    }
+
+    /**
+     * @return the number of background refreshes that completed successfully.
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * @return the number of background refreshes that failed.
+     */
+    public long getRefreshFailures() {
+        return refreshFailures.get();
+    }
+
+    /**
+     * @return the number of background refreshes that were skipped because too many were already waiting.
+     */
+    public long getRefreshesSkipped() {
+        return refreshesSkipped.get();
+    }
+
+    /**
+     * @return the number of background refreshes whose results were discarded because they were partial or
+     *         unexpectedly empty.
+     */
+    public long getRefreshesDiscarded() {
+        return refreshesDiscarded.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<String> getPossibleUserAttributeNames() {
+        return innerDao.getPossibleUserAttributeNames();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<String> getAvailableQueryAttributes() {
+        return innerDao.getAvailableQueryAttributes();
+    }
+}
@@ -0,0 +1,265 @@
+package org.iplantc.persondir.support;
+
+/**
+ * A circuit breaker that tracks the outcomes of recent calls to a resource and stops calls to the resource when too
+ * many of them fail.  The breaker starts out closed, allowing every call.  When at least minimumCalls outcomes have
+ * been recorded and the failure rate among the last windowSize outcomes reaches failureRateThreshold, the breaker
+ * opens and rejects every call.  After openDuration milliseconds, the breaker becomes half-open and allows up to
+ * halfOpenTrials trial calls.  If all of the trial calls succeed the breaker closes again; if any of them fails it
+ * opens again.
+ *
+ * Callers ask for permission with {@link #tryAcquire()} and report the outcome of the call with
+ * {@link #onSuccess(long)} or {@link #onFailure(long)}, passing the permit that they were given.  A permit for a call
+ * that was abandoned for some other reason is returned with {@link #release(long)}.  Outcomes reported for permits
+ * that were granted before the breaker's most recent state change are ignored, so a slow call that was started
+ * while the breaker was closed can't close a breaker that has since opened.
+ *
+ * @author Dennis Roberts
+ */
+public class CircuitBreaker {
+
+    /**
+     * The permit value returned when a call isn't allowed.
+     */
+    public static final long REJECTED = -1;
+
+    /**
+     * The states that a circuit breaker can be in.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * The minimum fraction of failed calls that opens the breaker.
+     */
+    private final double failureRateThreshold;
+
+    /**
+     * The minimum number of outcomes that must be recorded before the breaker can open.
+     */
+    private final int minimumCalls;
+
+    /**
+     * The number of nanoseconds that the breaker stays open before allowing trial calls.
+     */
+    private final long openDurationNanos;
+
+    /**
+     * The number of trial calls allowed while the breaker is half-open.
+     */
+    private final int halfOpenTrials;
+
+    /**
+     * The outcomes of the most recent calls, stored as a ring buffer; true indicates a failure.
+     */
+    private final boolean[] outcomes;
+
+    /**
+     * The index in the ring buffer where the next outcome will be stored.
+     */
+    private int nextOutcome = 0;
+
+    /**
+     * The number of outcomes currently stored in the ring buffer.
+     */
+    private int outcomeCount = 0;
+
+    /**
+     * The number of failures currently stored in the ring buffer.
+     */
+    private int failureCount = 0;
+
+    /**
+     * The current state of the breaker.
+     */
+    private State state = State.CLOSED;
+
+    /**
+     * Incremented whenever the state changes; used as the permit for calls.
+     */
+    private long generation = 0;
+
+    /**
+     * The time when the breaker last opened, as returned by {@link System#nanoTime()}.
+     */
+    private long openedAt;
+
+    /**
+     * The number of trial calls started since the breaker became half-open.
+     */
+    private int trialsStarted = 0;
+
+    /**
+     * The number of trial calls that have succeeded since the breaker became half-open.
+     */
+    private int trialsSucceeded = 0;
+
+    /**
+     * The number of times that the breaker has opened.
+     */
+    private long trips = 0;
+
+    /**
+     * The number of calls that have been rejected.
+     */
+    private long rejected = 0;
+
+    /**
+     * @param windowSize the number of recent outcomes used to compute the failure rate.
+     * @param minimumCalls the minimum number of outcomes that must be recorded before the breaker can open.
+     * @param failureRateThreshold the minimum fraction of failed calls that opens the breaker.
+     * @param openDuration the number of milliseconds that the breaker stays open before allowing trial calls.
+     * @param halfOpenTrials the number of trial calls allowed while the breaker is half-open.
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long openDuration,
+            int halfOpenTrials) {
+        if (windowSize < 1 || minimumCalls < 1 || halfOpenTrials < 1 || openDuration < 0) {
+            throw new IllegalArgumentException("invalid circuit breaker settings");
+        }
+        if (failureRateThreshold <= 0.0 || failureRateThreshold > 1.0) {
+            throw new IllegalArgumentException("failureRateThreshold must be greater than 0 and at most 1");
+        }
+        this.outcomes = new boolean[windowSize];
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDurationNanos = openDuration * 1000000L;
+        this.halfOpenTrials = halfOpenTrials;
+    }
+
+    /**
+     * Asks for permission to make a call.
+     *
+     * @return a permit to pass to {@link #onSuccess(long)} or {@link #onFailure(long)}, or {@link #REJECTED} if the
+     *         call isn't allowed.
+     */
+    public synchronized long tryAcquire() {
+        if (state == State.OPEN && System.nanoTime() - openedAt >= openDurationNanos) {
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.CLOSED) {
+            return generation;
+        }
+        if (state == State.HALF_OPEN && trialsStarted < halfOpenTrials) {
+            trialsStarted++;
+            return generation;
+        }
+        rejected++;
+        return REJECTED;
+    }
+
+    /**
+     * Records a successful call.
+     *
+     * @param permit the permit returned by {@link #tryAcquire()}.
+     */
+    public synchronized void onSuccess(long permit) {
+        if (permit != generation) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            trialsSucceeded++;
+            if (trialsSucceeded >= halfOpenTrials) {
+                transition(State.CLOSED);
+            }
+        }
+        else if (state == State.CLOSED) {
+            recordOutcome(false);
+        }
+    }
+
+    /**
+     * Records a failed call.
+     *
+     * @param permit the permit returned by {@link #tryAcquire()}.
+     */
+    public synchronized void onFailure(long permit) {
+        if (permit != generation) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            transition(State.OPEN);
+        }
+        else if (state == State.CLOSED) {
+            recordOutcome(true);
+            if (outcomeCount >= minimumCalls && failureCount >= failureRateThreshold * outcomeCount) {
+                transition(State.OPEN);
+            }
+        }
+    }
+
+    /**
+     * Gives up a permit without reporting an outcome, for calls that were abandoned for reasons that have nothing to
+     * do with the resource.
+     *
+     * @param permit the permit returned by {@link #tryAcquire()}.
+     */
+    public synchronized void release(long permit) {
+        if (permit == generation && state == State.HALF_OPEN && trialsStarted > 0) {
+            trialsStarted--;
+        }
+    }
+
+    /**
+     * Stores an outcome in the ring buffer, replacing the oldest outcome if the buffer is full.
+     *
+     * @param failure true if the call failed.
+     */
+    private void recordOutcome(boolean failure) {
+        if (outcomeCount == outcomes.length) {
+            if (outcomes[nextOutcome]) {
+                failureCount--;
+            }
+        }
+        else {
+            outcomeCount++;
+        }
+        outcomes[nextOutcome] = failure;
+        if (failure) {
+            failureCount++;
+        }
+        nextOutcome = (nextOutcome + 1) % outcomes.length;
+    }
+
+    /**
+     * Changes the state of the breaker.
+     *
+     * @param newState the new state.
+     */
+    private void transition(State newState) {
+        state = newState;
+        generation++;
+        trialsStarted = 0;
+        trialsSucceeded = 0;
+        if (newState == State.OPEN) {
+            openedAt = System.nanoTime();
+            trips++;
+        }
+        else if (newState == State.CLOSED) {
+            nextOutcome = 0;
+            outcomeCount = 0;
+            failureCount = 0;
+        }
+    }
+
+    /**
+     * @return the current state of the breaker.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of times that the breaker has opened.
+     */
+    public synchronized long getTrips() {
+        return trips;
+    }
+
+    /**
+     * @return the number of calls that have been rejected.
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+}
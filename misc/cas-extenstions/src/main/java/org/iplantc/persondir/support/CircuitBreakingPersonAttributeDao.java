@@ -0,0 +1,491 @@
+package org.iplantc.persondir.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.lang.Validate;
+import org.iplantc.persondir.support.cache.StripedLruCache;
+import org.iplantc.persondir.support.metrics.MetricsRegistry;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+/**
+ * An implementation of {@link IPersonAttributeDao} that protects callers from a slow or unavailable inner DAO.  Each
+ * call to the inner DAO runs on a bounded thread pool and is abandoned if it doesn't complete within callTimeout
+ * milliseconds, so a hung directory server can't hold the caller's thread indefinitely.  Failed calls, abandoned
+ * calls and calls that take longer than slowCallThreshold milliseconds are reported to a {@link CircuitBreaker}.
+ * When too many recent calls have failed, the breaker opens and the inner DAO isn't called at all until the breaker
+ * allows a few trial calls to find out whether the directory has recovered.  Calls that can't start because all
+ * maxConcurrentCalls threads are busy fall back without being reported to the breaker, because a burst of local
+ * requests says nothing about the health of the directory.
+ *
+ * The last result successfully retrieved for each query is kept in a bounded stale store.  Whenever the inner DAO
+ * can't be used, the stale result is returned instead, with the attribute named by degradedAttribute added to each
+ * record so that clients can tell that the attributes may be out of date.  If there's no stale result, a
+ * {@link DataAccessResourceFailureException} is thrown.  Results that are missing the records of some attribute
+ * sources ({@link PartialResult}) are returned but never kept in the stale store.
+ *
+ * <pre>
+ * {@code
+ * <bean id="groupAttributeRepository" class="org.iplantc.persondir.support.CircuitBreakingPersonAttributeDao">
+ *     <property name="callTimeout" value="3000" />
+ *     <property name="slowCallThreshold" value="1000" />
+ *     <property name="failureRateThreshold" value="0.5" />
+ *     <property name="openDuration" value="30000" />
+ *     <property name="innerDao" ref="accumulatingGroupDao" />
+ * </bean>
+ * }
+ * </pre>
+ *
+ * @author Dennis Roberts
+ */
+public class CircuitBreakingPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao
+        implements InitializingBean, DisposableBean {
+
+    /**
+     * Used to log debugging messages.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreakingPersonAttributeDao.class);
+
+    /**
+     * The placeholder stored in the stale store when the inner DAO returns null.
+     */
+    private static final Set<IPersonAttributes> NULL_RESULT = Collections.unmodifiableSet(
+            Collections.<IPersonAttributes>emptySet());
+
+    /**
+     * The DAO being protected.
+     */
+    private IPersonAttributeDao innerDao;
+
+    /**
+     * The maximum number of milliseconds to wait for the inner DAO.
+     */
+    private long callTimeout = 5000;
+
+    /**
+     * Successful calls that take longer than this many milliseconds are counted as failures.
+     */
+    private long slowCallThreshold = 2000;
+
+    /**
+     * The maximum number of calls to the inner DAO that may be in progress at the same time.
+     */
+    private int maxConcurrentCalls = 16;
+
+    /**
+     * The number of recent calls used to compute the failure rate.
+     */
+    private int windowSize = 20;
+
+    /**
+     * The minimum number of calls that must be made before the breaker can open.
+     */
+    private int minimumCalls = 10;
+
+    /**
+     * The minimum fraction of failed calls that opens the breaker.
+     */
+    private double failureRateThreshold = 0.5;
+
+    /**
+     * The number of milliseconds that the breaker stays open before allowing trial calls.
+     */
+    private long openDuration = 30000;
+
+    /**
+     * The number of trial calls that must succeed before the breaker closes.
+     */
+    private int halfOpenTrials = 3;
+
+    /**
+     * The maximum number of results to keep in the stale store.
+     */
+    private int staleMaxSize = 10000;
+
+    /**
+     * The number of milliseconds that a result remains in the stale store.
+     */
+    private long staleTimeToLive = 86400000;
+
+    /**
+     * The name of the attribute added to stale results, or null if stale results shouldn't be marked.
+     */
+    private String degradedAttribute = "attributesDegraded";
+
+    /**
+     * The registry that call timings and outcomes are recorded in.
+     */
+    private MetricsRegistry metrics = new MetricsRegistry();
+
+    /**
+     * The circuit breaker.
+     */
+    private CircuitBreaker breaker;
+
+    /**
+     * The last good result for each query.
+     */
+    private StripedLruCache<Object, Set<IPersonAttributes>> staleStore;
+
+    /**
+     * Used to call the inner DAO.
+     */
+    private ThreadPoolExecutor executor;
+
+    /**
+     * @param innerDao the DAO being protected.
+     */
+    public void setInnerDao(IPersonAttributeDao innerDao) {
+        this.innerDao = innerDao;
+    }
+
+    /**
+     * @return the DAO being protected.
+     */
+    public IPersonAttributeDao getInnerDao() {
+        return innerDao;
+    }
+
+    /**
+     * @param callTimeout the maximum number of milliseconds to wait for the inner DAO.
+     */
+    public void setCallTimeout(long callTimeout) {
+        this.callTimeout = callTimeout;
+    }
+
+    /**
+     * @param slowCallThreshold successful calls that take longer than this many milliseconds are counted as
+     *                          failures.
+     */
+    public void setSlowCallThreshold(long slowCallThreshold) {
+        this.slowCallThreshold = slowCallThreshold;
+    }
+
+    /**
+     * @param maxConcurrentCalls the maximum number of calls to the inner DAO that may be in progress at once.
+     */
+    public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+        this.maxConcurrentCalls = maxConcurrentCalls;
+    }
+
+    /**
+     * @param windowSize the number of recent calls used to compute the failure rate.
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @param minimumCalls the minimum number of calls that must be made before the breaker can open.
+     */
+    public void setMinimumCalls(int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+    }
+
+    /**
+     * @param failureRateThreshold the minimum fraction of failed calls that opens the breaker.
+     */
+    public void setFailureRateThreshold(double failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    /**
+     * @param openDuration the number of milliseconds that the breaker stays open before allowing trial calls.
+     */
+    public void setOpenDuration(long openDuration) {
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * @param halfOpenTrials the number of trial calls that must succeed before the breaker closes.
+     */
+    public void setHalfOpenTrials(int halfOpenTrials) {
+        this.halfOpenTrials = halfOpenTrials;
+    }
+
+    /**
+     * @param staleMaxSize the maximum number of results to keep in the stale store.
+     */
+    public void setStaleMaxSize(int staleMaxSize) {
+        this.staleMaxSize = staleMaxSize;
+    }
+
+    /**
+     * @param staleTimeToLive the number of milliseconds that a result remains in the stale store.
+     */
+    public void setStaleTimeToLive(long staleTimeToLive) {
+        this.staleTimeToLive = staleTimeToLive;
+    }
+
+    /**
+     * @param degradedAttribute the name of the attribute added to stale results, or null if stale results shouldn't
+     *                          be marked.
+     */
+    public void setDegradedAttribute(String degradedAttribute) {
+        this.degradedAttribute = degradedAttribute;
+    }
+
+    /**
+     * @param metrics the registry that call timings and outcomes are recorded in.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        Validate.notNull(metrics, "metrics may not be null.");
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the registry that call timings and outcomes are recorded in.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (innerDao == null) {
+            throw new BeanCreationException("innerDao must be set");
+        }
+        if (callTimeout <= 0) {
+            throw new BeanCreationException("callTimeout must be positive");
+        }
+        try {
+            breaker = new CircuitBreaker(windowSize, minimumCalls, failureRateThreshold, openDuration, halfOpenTrials);
+        }
+        catch (IllegalArgumentException e) {
+            throw new BeanCreationException(e.getMessage(), e);
+        }
+        staleStore = new StripedLruCache<Object, Set<IPersonAttributes>>(staleMaxSize);
+        final AtomicInteger threadNumber = new AtomicInteger();
+        int threads = Math.max(1, maxConcurrentCalls);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "circuit-breaker-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Retrieves the attributes for a single user.  The inner DAO's getPerson() method is used so that any special
+     * handling it does for single users is preserved.
+     *
+     * @param uid the user ID.
+     * @return the person or null if the user wasn't found.
+     */
+    @Override
+    public IPersonAttributes getPerson(final String uid) {
+        Validate.notNull(uid, "uid may not be null.");
+        Set<IPersonAttributes> people = call(QueryKeys.forPerson(toSeedMap(uid)), new Callable<Set<IPersonAttributes>>() {
+            @Override
+            public Set<IPersonAttributes> call() {
+                IPersonAttributes person = innerDao.getPerson(uid);
+                return person == null ? NULL_RESULT : Collections.singleton(person);
+            }
+        });
+        return people.isEmpty() ? null : people.iterator().next();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
+        Validate.notNull(query, "query may not be null.");
+        Set<IPersonAttributes> people = call(QueryKeys.normalize(query), new Callable<Set<IPersonAttributes>>() {
+            @Override
+            public Set<IPersonAttributes> call() {
+                Set<IPersonAttributes> result = innerDao.getPeopleWithMultivaluedAttributes(query);
+                return result == null ? NULL_RESULT : result;
+            }
+        });
+        return people == NULL_RESULT ? null : people;
+    }
+
+    /**
+     * Calls the inner DAO if the circuit breaker allows it, falling back to the stale store if the breaker is open
+     * or the call fails.
+     *
+     * @param key the normalized query, or a {@link QueryKeys.PersonKey} for getPerson().
+     * @param task calls the inner DAO.
+     * @return the result of the call, or the marked stale result if the inner DAO couldn't be used.
+     * @throws DataAccessResourceFailureException if the inner DAO couldn't be used and there's no stale result.
+     */
+    private Set<IPersonAttributes> call(Object key, Callable<Set<IPersonAttributes>> task) {
+        long permit = breaker.tryAcquire();
+        if (permit == CircuitBreaker.REJECTED) {
+            metrics.counter("breaker.rejected").incrementAndGet();
+            return fallBack(key, null, "the circuit breaker is open");
+        }
+
+        long start = System.nanoTime();
+        Future<Set<IPersonAttributes>> future;
+        try {
+            future = executor.submit(task);
+        }
+        catch (RejectedExecutionException e) {
+            breaker.release(permit);
+            metrics.counter("breaker.saturated").incrementAndGet();
+            return fallBack(key, e, "all " + maxConcurrentCalls + " calls to the inner DAO are still in progress");
+        }
+
+        try {
+            Set<IPersonAttributes> people = future.get(callTimeout, TimeUnit.MILLISECONDS);
+            long elapsed = System.nanoTime() - start;
+            metrics.histogram("breaker.call.time").record(elapsed);
+            if (elapsed > TimeUnit.MILLISECONDS.toNanos(slowCallThreshold)) {
+                metrics.counter("breaker.slowCalls").incrementAndGet();
+                breaker.onFailure(permit);
+            }
+            else {
+                breaker.onSuccess(permit);
+            }
+            if (!PartialResults.isPartial(people)) {
+                staleStore.put(key, people, staleTimeToLive);
+            }
+            return people;
+        }
+        catch (TimeoutException e) {
+            future.cancel(true);
+            breaker.onFailure(permit);
+            metrics.counter("breaker.timeouts").incrementAndGet();
+            return fallBack(key, e, "the inner DAO did not respond within " + callTimeout + " ms");
+        }
+        catch (InterruptedException e) {
+            future.cancel(true);
+            breaker.release(permit);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the inner DAO", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            breaker.onFailure(permit);
+            metrics.counter("breaker.failures").incrementAndGet();
+            return fallBack(key, e.getCause(), "the inner DAO failed");
+        }
+    }
+
+    /**
+     * Returns the stale result for a query, marked as degraded.
+     *
+     * @param key the normalized query, or a {@link QueryKeys.PersonKey} for getPerson().
+     * @param cause the reason that the inner DAO couldn't be used, or null if it wasn't called.
+     * @param reason a description of the reason that the inner DAO couldn't be used.
+     * @return the marked stale result.
+     * @throws DataAccessResourceFailureException if there's no stale result.
+     */
+    private Set<IPersonAttributes> fallBack(Object key, Throwable cause, String reason) {
+        Set<IPersonAttributes> stale = staleStore.get(key);
+        if (stale == null) {
+            LOG.warn("{} and no previous result is available for {}", reason, key);
+            throw new DataAccessResourceFailureException(reason, cause);
+        }
+        LOG.warn("{}; returning the previous result for {}", reason, key);
+        metrics.counter("breaker.staleServed").incrementAndGet();
+        if (stale == NULL_RESULT || stale.isEmpty() || degradedAttribute == null) {
+            return stale;
+        }
+        Set<IPersonAttributes> result = new LinkedHashSet<IPersonAttributes>(stale.size() * 4 / 3 + 1);
+        for (IPersonAttributes person : stale) {
+            result.add(markDegraded(person));
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * Creates a copy of a person with the degraded attribute added.
+     *
+     * @param person the person.
+     * @return the marked copy.
+     */
+    private IPersonAttributes markDegraded(IPersonAttributes person) {
+        Map<String, List<Object>> attributes = new LinkedHashMap<String, List<Object>>(person.getAttributes());
+        List<Object> marker = new ArrayList<Object>(1);
+        marker.add(Boolean.TRUE.toString());
+        attributes.put(degradedAttribute, marker);
+        return new NamedMultirecordPersonImpl(person.getName(), attributes);
+    }
+
+    /**
+     * @return the current state of the circuit breaker.
+     */
+    public CircuitBreaker.State getState() {
+        return breaker.getState();
+    }
+
+    /**
+     * @return the number of times that the circuit breaker has opened.
+     */
+    public long getTrips() {
+        return breaker.getTrips();
+    }
+
+    /**
+     * @return the number of results in the stale store.
+     */
+    public int getStaleSize() {
+        return staleStore.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<String> getPossibleUserAttributeNames() {
+        Set<String> names = innerDao.getPossibleUserAttributeNames();
+        if (names == null || degradedAttribute == null) {
+            return names;
+        }
+        Set<String> result = new LinkedHashSet<String>(names);
+        result.add(degradedAttribute);
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<String> getAvailableQueryAttributes() {
+        return innerDao.getAvailableQueryAttributes();
+    }
+}
@@ -0,0 +1,343 @@
+package org.iplantc.persondir.support;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+import org.iplantc.persondir.support.cache.ValueInterner;
+import org.jasig.services.persondir.IPersonAttributes;
+
+/**
+ * A compact, immutable implementation of IPersonAttributes that treats multiple records for a single person
+ * separately.  The attribute names and values are copied into flat arrays when the person is created, and the hash
+ * code is computed once at the same time, so people can be added to hash-based collections repeatedly without
+ * rehashing all of their attributes.
+ *
+ * Attribute names are case-sensitive, and the attribute order of the original map is preserved.  Two instances are
+ * equal if they have the same name and the same attributes, regardless of attribute order.  The map returned by
+ * {@link #getAttributes()} is an unmodifiable view that obeys the usual Map contract.
+ *
+ * @author Dennis Roberts
+ */
+public class CompactMultirecordPersonImpl implements IPersonAttributes {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The shared name array used for people with no attributes.
+     */
+    private static final String[] NO_NAMES = new String[0];
+
+    /**
+     * The shared value array used for people with no attributes.
+     */
+    private static final Object[][] NO_VALUES = new Object[0][];
+
+    /**
+     * The name of the person.
+     */
+    private final String name;
+
+    /**
+     * The attribute names, in their original order.
+     */
+    private final String[] names;
+
+    /**
+     * The values of each attribute, or null for an attribute with a null value list.
+     */
+    private final Object[][] values;
+
+    /**
+     * The hash code, computed when the person is created.
+     */
+    private final int hash;
+
+    /**
+     * @param name the name of the person.
+     * @param attributes the person's attributes.
+     */
+    public CompactMultirecordPersonImpl(String name, Map<String, List<Object>> attributes) {
+        this(name, attributes, null);
+    }
+
+    /**
+     * @param name the name of the person.
+     * @param attributes the person's attributes.
+     * @param interner the pool used to canonicalize the attribute values, or null if values shouldn't be interned.
+     */
+    public CompactMultirecordPersonImpl(String name, Map<String, List<Object>> attributes, ValueInterner interner) {
+        int size = attributes == null ? 0 : attributes.size();
+        String[] attributeNames = size == 0 ? NO_NAMES : new String[size];
+        Object[][] attributeValues = size == 0 ? NO_VALUES : new Object[size][];
+        int attributesHash = 0;
+        int i = 0;
+        if (size > 0) {
+            for (Map.Entry<String, List<Object>> entry : attributes.entrySet()) {
+                attributeNames[i] = entry.getKey();
+                attributeValues[i] = copyValues(entry.getValue(), interner);
+                attributesHash += entryHash(attributeNames[i], attributeValues[i]);
+                i++;
+            }
+        }
+        this.names = attributeNames;
+        this.values = attributeValues;
+        this.name = name;
+        this.hash = (name == null ? 0 : name.hashCode()) * 31 + attributesHash;
+    }
+
+    /**
+     * Creates a person whose name is taken from the first value of one of its attributes.
+     *
+     * @param userNameAttribute the name of the attribute containing the person's name.
+     * @param attributes the person's attributes.
+     * @param interner the pool used to canonicalize the attribute values, or null if values shouldn't be interned.
+     * @return the new person.
+     */
+    public static CompactMultirecordPersonImpl withUserNameAttribute(String userNameAttribute,
+            Map<String, List<Object>> attributes, ValueInterner interner) {
+        List<Object> userNames = attributes == null ? null : attributes.get(userNameAttribute);
+        Object userName = userNames == null || userNames.isEmpty() ? null : userNames.get(0);
+        return new CompactMultirecordPersonImpl(userName == null ? null : userName.toString(), attributes, interner);
+    }
+
+    /**
+     * Copies a list of attribute values into an array.
+     *
+     * @param list the list of values, which may be null.
+     * @param interner the pool used to canonicalize the values, or null.
+     * @return the array of values or null if the list is null.
+     */
+    private static Object[] copyValues(List<Object> list, ValueInterner interner) {
+        if (list == null) {
+            return null;
+        }
+        Object[] copy = list.toArray();
+        if (interner != null) {
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = interner.intern(copy[i]);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Computes the hash code of a single attribute the same way that Map.Entry does for a list of values.
+     *
+     * @param attributeName the attribute name.
+     * @param attributeValues the attribute values.
+     * @return the hash code.
+     */
+    private static int entryHash(String attributeName, Object[] attributeValues) {
+        return (attributeName == null ? 0 : attributeName.hashCode()) ^ Arrays.hashCode(attributeValues);
+    }
+
+    /**
+     * Finds the index of an attribute.
+     *
+     * @param attributeName the attribute name.
+     * @return the index of the attribute or -1 if the person doesn't have the attribute.
+     */
+    private int indexOf(Object attributeName) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == attributeName || (names[i] != null && names[i].equals(attributeName))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* (non-Javadoc)
+     * @see java.security.Principal#getName()
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributes#getAttributeValue(java.lang.String)
+     */
+    @Override
+    public Object getAttributeValue(String attributeName) {
+        int index = indexOf(attributeName);
+        return index < 0 || values[index] == null || values[index].length == 0 ? null : values[index][0];
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributes#getAttributeValues(java.lang.String)
+     */
+    @Override
+    public List<Object> getAttributeValues(String attributeName) {
+        int index = indexOf(attributeName);
+        return index < 0 ? null : valueList(values[index]);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributes#getAttributes()
+     */
+    @Override
+    public Map<String, List<Object>> getAttributes() {
+        return new AttributeMap();
+    }
+
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * @see java.lang.Object#equals()
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CompactMultirecordPersonImpl)) {
+            return false;
+        }
+        CompactMultirecordPersonImpl other = (CompactMultirecordPersonImpl) o;
+        if (hash != other.hash || names.length != other.names.length) {
+            return false;
+        }
+        if (name == null ? other.name != null : !name.equals(other.name)) {
+            return false;
+        }
+        for (int i = 0; i < names.length; i++) {
+            int otherIndex = equalNames(names[i], other.names[i]) ? i : other.indexOf(names[i]);
+            if (otherIndex < 0 || !Arrays.equals(values[i], other.values[otherIndex])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if two attribute names are equal.
+     */
+    private static boolean equalNames(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+            .append("name", name)
+            .append("attributes", getAttributes())
+            .toString();
+    }
+
+    /**
+     * @param attributeValues an array of attribute values, which may be null.
+     * @return an unmodifiable list view of the array or null if the array is null.
+     */
+    private static List<Object> valueList(Object[] attributeValues) {
+        return attributeValues == null ? null : new ValueList(attributeValues);
+    }
+
+    /**
+     * An unmodifiable list view of the values of a single attribute.
+     */
+    private static class ValueList extends AbstractList<Object> implements RandomAccess {
+
+        private final Object[] attributeValues;
+
+        private ValueList(Object[] attributeValues) {
+            this.attributeValues = attributeValues;
+        }
+
+        @Override
+        public Object get(int index) {
+            return attributeValues[index];
+        }
+
+        @Override
+        public int size() {
+            return attributeValues.length;
+        }
+
+        @Override
+        public Object[] toArray() {
+            return attributeValues.clone();
+        }
+    }
+
+    /**
+     * An unmodifiable map view of the person's attributes.
+     */
+    private class AttributeMap extends AbstractMap<String, List<Object>> {
+
+        @Override
+        public List<Object> get(Object key) {
+            int index = indexOf(key);
+            return index < 0 ? null : valueList(values[index]);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return indexOf(key) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return names.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash - (name == null ? 0 : name.hashCode()) * 31;
+        }
+
+        @Override
+        public Set<Map.Entry<String, List<Object>>> entrySet() {
+            return new AbstractSet<Map.Entry<String, List<Object>>>() {
+                @Override
+                public Iterator<Map.Entry<String, List<Object>>> iterator() {
+                    return new Iterator<Map.Entry<String, List<Object>>>() {
+                        private int next = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < names.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String, List<Object>> next() {
+                            if (next >= names.length) {
+                                throw new NoSuchElementException();
+                            }
+                            int index = next++;
+                            return new SimpleImmutableEntry<String, List<Object>>(names[index],
+                                    valueList(values[index]));
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return names.length;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.iplantc.persondir.support;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+
+/**
+ * Implemented by {@link IPersonAttributeDao} implementations that can perform lookups without blocking the calling
+ * thread, so that callers can overlap attribute resolution with other work.
+ *
+ * @author Dennis Roberts
+ */
+public interface IAsyncPersonAttributeDao extends IPersonAttributeDao {
+
+    /**
+     * Retrieves the attributes for a single user asynchronously.
+     *
+     * @param uid the user ID.
+     * @return a future that completes with the same result as {@link #getPerson(String)}, or exceptionally with the
+     *         exception that it would have thrown.
+     */
+    CompletableFuture<IPersonAttributes> getPersonAsync(String uid);
+
+    /**
+     * Retrieves the records matching a query asynchronously.
+     *
+     * @param query the query.
+     * @return a future that completes with the same result as {@link #getPeopleWithMultivaluedAttributes(Map)}, or
+     *         exceptionally with the exception that it would have thrown.
+     */
+    CompletableFuture<Set<IPersonAttributes>> getPeopleWithMultivaluedAttributesAsync(Map<String, List<Object>> query);
+}
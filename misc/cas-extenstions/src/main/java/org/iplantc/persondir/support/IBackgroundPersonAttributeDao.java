@@ -0,0 +1,33 @@
+package org.iplantc.persondir.support;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+
+/**
+ * Implemented by {@link IPersonAttributeDao} implementations that can perform a lookup entirely on the calling
+ * thread.  Background work such as cache refreshes uses these methods so that it runs only on the threads set aside
+ * for it and never competes with logins for the threads that the DAO shares among foreground lookups.
+ *
+ * @author Dennis Roberts
+ */
+public interface IBackgroundPersonAttributeDao extends IPersonAttributeDao {
+
+    /**
+     * Retrieves the attributes for a single user on the calling thread.
+     *
+     * @param uid the user ID.
+     * @return the same result as {@link #getPerson(String)}.
+     */
+    IPersonAttributes getPersonInBackground(String uid);
+
+    /**
+     * Retrieves the records matching a query on the calling thread.
+     *
+     * @param query the query.
+     * @return the same result as {@link #getPeopleWithMultivaluedAttributes(Map)}.
+     */
+    Set<IPersonAttributes> getPeopleWithMultivaluedAttributesInBackground(Map<String, List<Object>> query);
+}
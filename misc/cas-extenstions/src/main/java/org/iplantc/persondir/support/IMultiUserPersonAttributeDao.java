@@ -0,0 +1,25 @@
+package org.iplantc.persondir.support;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+
+/**
+ * Implemented by {@link IPersonAttributeDao} implementations that can look up many users at once more efficiently
+ * than by looking up each user individually.
+ *
+ * @author Dennis Roberts
+ */
+public interface IMultiUserPersonAttributeDao extends IPersonAttributeDao {
+
+    /**
+     * Retrieves the records for multiple users.
+     *
+     * @param uids the user IDs.
+     * @return a map from each user ID to the records found for that user.  Every requested user ID has an entry in
+     *         the map; the set is empty if no records were found.
+     */
+    Map<String, Set<IPersonAttributes>> getPeopleByUids(Collection<String> uids);
+}
@@ -0,0 +1,84 @@
+package org.iplantc.persondir.support;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An implementation of IPersonAttributes that treats multiple records for a single person separately and uses the
+ * attribute map that it's given instead of copying it.  This allows a record to be built directly over a map that was
+ * produced for it, such as the map returned by an LDAP attributes mapper, without allocating a second map.  The map
+ * must not be modified after the person is created; {@link #getAttributes()} returns an unmodifiable view of it.
+ *
+ * Two instances are equal if they have the same name and the same attributes, so several records for the same person
+ * can be kept in one set.  The hash code is computed the first time it's needed and then reused.
+ *
+ * @author Dennis Roberts
+ */
+public class MapBackedMultirecordPersonImpl extends BaseMultirecordPersonImpl {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The person's name.
+     */
+    private final String name;
+
+    /**
+     * The hash code, or zero if it hasn't been computed yet.
+     */
+    private transient int hash;
+
+    /**
+     * @param name the person's name.
+     * @param attributes the person's attributes, which are used without being copied.
+     */
+    public MapBackedMultirecordPersonImpl(String name, Map<String, List<Object>> attributes) {
+        super(attributes);
+        this.name = name;
+    }
+
+    /**
+     * Creates a person whose name is the first value of one of its attributes.
+     *
+     * @param userNameAttribute the name of the attribute that contains the person's name.
+     * @param attributes the person's attributes, which are used without being copied.
+     * @return the new person.
+     */
+    public static MapBackedMultirecordPersonImpl withUserNameAttribute(String userNameAttribute,
+            Map<String, List<Object>> attributes) {
+        final List<Object> values = attributes.get(userNameAttribute);
+        final Object value = values == null || values.isEmpty() ? null : values.get(0);
+        return new MapBackedMultirecordPersonImpl(value == null ? null : value.toString(), attributes);
+    }
+
+    /**
+     * Uses the given attribute map as it is instead of copying it.
+     *
+     * @param attributes the person's attributes.
+     * @return the same map.
+     */
+    @Override
+    protected Map<String, List<Object>> buildImmutableAttributeMap(Map<String, List<Object>> attributes) {
+        return attributes;
+    }
+
+    /* (non-Javadoc)
+     * @see java.security.Principal#getName()
+     */
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        int h = this.hash;
+        if (h == 0) {
+            h = super.hashCode();
+            this.hash = h;
+        }
+        return h;
+    }
+}
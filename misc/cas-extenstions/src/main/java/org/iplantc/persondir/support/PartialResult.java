@@ -0,0 +1,13 @@
+package org.iplantc.persondir.support;
+
+/**
+ * Marks a lookup result that is missing the records of one or more attribute sources, for example because a source
+ * didn't respond before the lookup deadline.  Such a result is still the best answer available for the current
+ * request, but it must not be cached or used to replace a complete result, because the missing records would then be
+ * hidden for as long as the cached result lives.  Both the sets returned by getPeopleWithMultivaluedAttributes and
+ * the people returned by getPerson may carry this marker.
+ *
+ * @author Dennis Roberts
+ */
+public interface PartialResult {
+}
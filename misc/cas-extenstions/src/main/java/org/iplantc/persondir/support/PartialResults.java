@@ -0,0 +1,39 @@
+package org.iplantc.persondir.support;
+
+import java.util.Set;
+import org.jasig.services.persondir.IPersonAttributes;
+
+/**
+ * Utility methods for working with {@link PartialResult} instances.
+ *
+ * @author Dennis Roberts
+ */
+public final class PartialResults {
+
+    /**
+     * Prevents instantiation.
+     */
+    private PartialResults() {
+    }
+
+    /**
+     * Determines whether a result is missing the records of one or more attribute sources.
+     *
+     * @param people the result, which may be null.
+     * @return true if the result or any person in it implements {@link PartialResult}.
+     */
+    public static boolean isPartial(Set<IPersonAttributes> people) {
+        if (people == null) {
+            return false;
+        }
+        if (people instanceof PartialResult) {
+            return true;
+        }
+        for (IPersonAttributes person : people) {
+            if (person instanceof PartialResult) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
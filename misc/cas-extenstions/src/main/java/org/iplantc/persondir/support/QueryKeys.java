@@ -0,0 +1,99 @@
+package org.iplantc.persondir.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Utility methods for using query maps as keys in caches and similar structures.
+ *
+ * @author Dennis Roberts
+ */
+public class QueryKeys {
+
+    /**
+     * Prevents instantiation.
+     */
+    private QueryKeys() {
+    }
+
+    /**
+     * Builds a key from a query map.  The key is an unmodifiable copy of the query so that later changes made by the
+     * caller can't affect it.  Two keys are equal if the queries had the same attribute names and values, regardless
+     * of the order of the attributes.
+     *
+     * @param query the query map.
+     * @return the key.
+     */
+    public static Map<String, List<Object>> normalize(Map<String, List<Object>> query) {
+        Map<String, List<Object>> key = new HashMap<String, List<Object>>(query.size() * 4 / 3 + 1);
+        for (Map.Entry<String, List<Object>> entry : query.entrySet()) {
+            List<Object> values = entry.getValue();
+            key.put(entry.getKey(), values == null ? null : Collections.unmodifiableList(new ArrayList<Object>(values)));
+        }
+        return Collections.unmodifiableMap(key);
+    }
+
+    /**
+     * Builds a key for the result of a single-user lookup such as getPerson().  The key is kept apart from the key of
+     * a query for the same user because the two results differ: getPerson() returns at most one accumulated record
+     * and null rather than an empty set.
+     *
+     * @param query the query for the user.
+     * @return the key.
+     */
+    public static PersonKey forPerson(Map<String, List<Object>> query) {
+        return new PersonKey(normalize(query));
+    }
+
+    /**
+     * The key for the result of a single-user lookup.
+     */
+    public static final class PersonKey {
+
+        /**
+         * The normalized query for the user.
+         */
+        private final Map<String, List<Object>> query;
+
+        /**
+         * @param query the normalized query for the user.
+         */
+        public PersonKey(Map<String, List<Object>> query) {
+            this.query = query;
+        }
+
+        /**
+         * @return the normalized query for the user.
+         */
+        public Map<String, List<Object>> getQuery() {
+            return query;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof PersonKey && query.equals(((PersonKey) other).query);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return 31 * query.hashCode() + 1;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "person " + query;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.iplantc.persondir.support;
+
+import java.util.List;
+
+/**
+ * Provides the IDs of users who have been active recently, most recently active first.  Used by {@link CacheWarmer}
+ * to decide which users to look up when a node starts.
+ *
+ * @author Dennis Roberts
+ */
+public interface RecentUidSource {
+
+    /**
+     * Lists the IDs of recently active users.
+     *
+     * @param max the maximum number of user IDs to return.
+     * @return the user IDs, most recently active first.
+     */
+    List<String> getRecentUids(int max);
+}
@@ -0,0 +1,335 @@
+package org.iplantc.persondir.support;
+
+import java.util.Random;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses which of several equivalent replicas should handle each request.  The balancer uses the power of two
+ * choices: two admitted replicas are picked at random and the one with the lower expected cost is used.  The expected
+ * cost of a replica is an exponentially weighted moving average of its recent latencies multiplied by one more than
+ * the number of requests that it's currently handling, so a replica that slows down or piles up requests quickly
+ * receives less traffic without every request going to the single fastest replica.  A replica that hasn't handled a
+ * request for a few seconds is preferred for the next one so that its latency estimate stays current.
+ *
+ * A replica that fails failureThreshold times in a row is ejected for ejectionDuration milliseconds.  Once that time
+ * has passed the replica is admitted again on probation: a single success clears its failure count, but another
+ * failure ejects it again immediately.  If every replica has been ejected, the one whose ejection ends soonest is
+ * used anyway, since failing every request outright is never better than trying a replica that might have recovered.
+ *
+ * Callers obtain a replica index from {@link #choose()} and must report the outcome of every request with
+ * {@link #onSuccess(int, long)} or {@link #onFailure(int)}, or end it with {@link #release(int)} if it failed for a
+ * reason that says nothing about the replica's health.
+ *
+ * @author Dennis Roberts
+ */
+public class ReplicaBalancer {
+
+    /**
+     * Used to log debugging messages.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicaBalancer.class);
+
+    /**
+     * The weight given to the most recent latency in the moving average.
+     */
+    private static final double DECAY = 0.3;
+
+    /**
+     * The number of nanoseconds after which a replica's latency is considered stale.  A replica with a stale latency
+     * is preferred for the next request so that a replica that was slow for a while isn't starved of traffic forever.
+     */
+    private static final long PROBE_NANOS = 5000000000L;
+
+    /**
+     * The state of each replica.
+     */
+    private final Replica[] replicas;
+
+    /**
+     * The number of consecutive failures that ejects a replica.
+     */
+    private final int failureThreshold;
+
+    /**
+     * The number of nanoseconds that an ejected replica stays ejected.
+     */
+    private final long ejectionNanos;
+
+    /**
+     * Used to pick replicas at random.
+     */
+    private final Random random = new Random();
+
+    /**
+     * @param replicaCount the number of replicas.
+     * @param failureThreshold the number of consecutive failures that ejects a replica.
+     * @param ejectionDuration the number of milliseconds that an ejected replica stays ejected.
+     */
+    public ReplicaBalancer(int replicaCount, int failureThreshold, long ejectionDuration) {
+        if (replicaCount < 1 || failureThreshold < 1 || ejectionDuration < 0) {
+            throw new IllegalArgumentException("invalid replica balancer settings");
+        }
+        this.replicas = new Replica[replicaCount];
+        for (int i = 0; i < replicaCount; i++) {
+            replicas[i] = new Replica();
+        }
+        this.failureThreshold = failureThreshold;
+        this.ejectionNanos = ejectionDuration * 1000000L;
+    }
+
+    /**
+     * Chooses the replica that should handle the next request and counts the request as in flight on that replica.
+     *
+     * @return the index of the chosen replica.
+     */
+    public int choose() {
+        long now = System.nanoTime();
+        int[] admitted = new int[replicas.length];
+        int admittedCount = 0;
+        int soonest = 0;
+        for (int i = 0; i < replicas.length; i++) {
+            if (replicas[i].isAdmitted(now)) {
+                admitted[admittedCount++] = i;
+            }
+            else if (replicas[i].ejectedUntil() - replicas[soonest].ejectedUntil() < 0) {
+                soonest = i;
+            }
+        }
+
+        int chosen;
+        if (admittedCount == 0) {
+            chosen = soonest;
+        }
+        else if (admittedCount == 1) {
+            chosen = admitted[0];
+        }
+        else {
+            int first;
+            int second;
+            synchronized (random) {
+                first = random.nextInt(admittedCount);
+                second = random.nextInt(admittedCount - 1);
+            }
+            if (second >= first) {
+                second++;
+            }
+            int a = admitted[first];
+            int b = admitted[second];
+            chosen = replicas[a].cost(now) <= replicas[b].cost(now) ? a : b;
+        }
+        replicas[chosen].start();
+        return chosen;
+    }
+
+    /**
+     * Records a successful request.
+     *
+     * @param replica the index of the replica that handled the request.
+     * @param latencyNanos the number of nanoseconds that the request took.
+     */
+    public void onSuccess(int replica, long latencyNanos) {
+        replicas[replica].succeeded(latencyNanos);
+    }
+
+    /**
+     * Records a failed request, ejecting the replica if it has failed too many times in a row.
+     *
+     * @param replica the index of the replica that handled the request.
+     */
+    public void onFailure(int replica) {
+        if (replicas[replica].failed(failureThreshold, ejectionNanos)) {
+            LOG.warn("ejecting replica {} after {} consecutive failures", replica, failureThreshold);
+        }
+    }
+
+    /**
+     * Ends a request without recording an outcome, for requests that failed because of the request itself rather
+     * than the replica.
+     *
+     * @param replica the index of the replica that handled the request.
+     */
+    public void release(int replica) {
+        replicas[replica].finished();
+    }
+
+    /**
+     * @return the number of replicas.
+     */
+    public int size() {
+        return replicas.length;
+    }
+
+    /**
+     * @param replica the index of a replica.
+     * @return true if the replica is currently ejected.
+     */
+    public boolean isEjected(int replica) {
+        return !replicas[replica].isAdmitted(System.nanoTime());
+    }
+
+    /**
+     * @param replica the index of a replica.
+     * @return the moving average of the replica's latency in nanoseconds.
+     */
+    public double getLatency(int replica) {
+        return replicas[replica].latency();
+    }
+
+    /**
+     * @param replica the index of a replica.
+     * @return the number of times that the replica has been ejected.
+     */
+    public long getEjections(int replica) {
+        return replicas[replica].ejections();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("ReplicaBalancer[");
+        for (int i = 0; i < replicas.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(i).append(isEjected(i) ? "=ejected" : "=" + (long) getLatency(i) + "ns");
+        }
+        return builder.append("]").toString();
+    }
+
+    /**
+     * The state of a single replica.
+     */
+    private static class Replica {
+
+        /**
+         * The moving average of the replica's latency in nanoseconds.
+         */
+        private double latency = 0.0;
+
+        /**
+         * True once at least one latency has been recorded.
+         */
+        private boolean measured = false;
+
+        /**
+         * The time when the latency was last recorded, as returned by {@link System#nanoTime()}.
+         */
+        private long lastMeasured = 0;
+
+        /**
+         * The number of requests that the replica is currently handling.
+         */
+        private int inFlight = 0;
+
+        /**
+         * The number of consecutive failures.
+         */
+        private int failures = 0;
+
+        /**
+         * The time when the replica's current ejection ends, as returned by {@link System#nanoTime()}.
+         */
+        private long ejectedUntil = 0;
+
+        /**
+         * True if the replica has ever been ejected; needed because ejectedUntil can legitimately be any value.
+         */
+        private boolean everEjected = false;
+
+        /**
+         * The number of times that the replica has been ejected.
+         */
+        private long ejections = 0;
+
+        /**
+         * @param now the current time, as returned by {@link System#nanoTime()}.
+         * @return true if the replica isn't ejected.
+         */
+        private synchronized boolean isAdmitted(long now) {
+            return !everEjected || now - ejectedUntil >= 0;
+        }
+
+        /**
+         * @return the time when the replica's current ejection ends.
+         */
+        private synchronized long ejectedUntil() {
+            return ejectedUntil;
+        }
+
+        /**
+         * @param now the current time, as returned by {@link System#nanoTime()}.
+         * @return the expected cost of sending another request to the replica, or zero if its latency is stale and
+         *         it isn't handling any requests.
+         */
+        private synchronized double cost(long now) {
+            if (inFlight == 0 && (!measured || now - lastMeasured > PROBE_NANOS)) {
+                return 0.0;
+            }
+            return latency * (inFlight + 1);
+        }
+
+        /**
+         * Counts a request as in flight.
+         */
+        private synchronized void start() {
+            inFlight++;
+        }
+
+        /**
+         * Counts a request as no longer in flight without recording an outcome.
+         */
+        private synchronized void finished() {
+            inFlight = Math.max(0, inFlight - 1);
+        }
+
+        /**
+         * Records a successful request.
+         *
+         * @param latencyNanos the number of nanoseconds that the request took.
+         */
+        private synchronized void succeeded(long latencyNanos) {
+            inFlight = Math.max(0, inFlight - 1);
+            failures = 0;
+            latency = measured ? latency + DECAY * (latencyNanos - latency) : latencyNanos;
+            measured = true;
+            lastMeasured = System.nanoTime();
+        }
+
+        /**
+         * Records a failed request.
+         *
+         * @param threshold the number of consecutive failures that ejects the replica.
+         * @param ejectionNanos the number of nanoseconds that the replica stays ejected.
+         * @return true if the replica was ejected.
+         */
+        private synchronized boolean failed(int threshold, long ejectionNanos) {
+            inFlight = Math.max(0, inFlight - 1);
+            failures++;
+            long now = System.nanoTime();
+            if (failures >= threshold && (!everEjected || now - ejectedUntil >= 0)) {
+                ejectedUntil = now + ejectionNanos;
+                everEjected = true;
+                ejections++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return the moving average of the replica's latency in nanoseconds.
+         */
+        private synchronized double latency() {
+            return latency;
+        }
+
+        /**
+         * @return the number of times that the replica has been ejected.
+         */
+        private synchronized long ejections() {
+            return ejections;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.iplantc.persondir.support.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent requests for the same key.  The first caller for a key runs the task; any caller that asks for
+ * the same key while the task is still running waits for that task and receives the same result (or exception)
+ * instead of running the task again.  Nothing is retained once the task completes.
+ *
+ * @author Dennis Roberts
+ * @param <K> the type of the keys.
+ * @param <V> the type of the results.
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * The tasks that are currently running, keyed by request.
+     */
+    private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * The number of callers that received the result of a task started by another caller.
+     */
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Runs a task unless a task for the same key is already running, in which case the result of that task is
+     * returned.
+     *
+     * @param key the request key.
+     * @param task the task to run.
+     * @return the result of the task.
+     */
+    public V execute(K key, Callable<V> task) {
+        FutureTask<V> future = new FutureTask<V>(task);
+        FutureTask<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing == null) {
+            try {
+                future.run();
+            }
+            finally {
+                inFlight.remove(key, future);
+            }
+        }
+        else {
+            coalesced.incrementAndGet();
+            future = existing;
+        }
+        return getResult(future);
+    }
+
+    /**
+     * Waits for a task to complete and returns its result, rethrowing any unchecked exception thrown by the task.
+     *
+     * @param future the task.
+     * @return the result of the task.
+     */
+    private V getResult(FutureTask<V> future) {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for a concurrent request", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * @return the number of callers that received the result of a task started by another caller.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of tasks that are currently running.
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+}
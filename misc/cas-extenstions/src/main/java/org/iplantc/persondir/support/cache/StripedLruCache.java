@@ -0,0 +1,329 @@
+package org.iplantc.persondir.support.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache with per-entry expiration times.  The cache is split into a fixed number of stripes, each of which
+ * is an access-ordered {@link LinkedHashMap} guarded by its own lock, so that lookups for different keys rarely
+ * contend with each other.  When a stripe grows beyond its share of the maximum size, its least recently used entry
+ * is evicted.
+ *
+ * @author Dennis Roberts
+ * @param <K> the type of the cache keys.
+ * @param <V> the type of the cached values.
+ */
+public class StripedLruCache<K, V> {
+
+    /**
+     * The default number of stripes.
+     */
+    public static final int DEFAULT_STRIPES = 16;
+
+    /**
+     * The stripes that make up the cache.
+     */
+    private final Stripe<K, V>[] stripes;
+
+    /**
+     * The number of successful lookups.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of unsuccessful lookups, including lookups of expired entries.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The number of entries removed to keep the cache within its maximum size.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * The number of entries removed because they had expired.
+     */
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * @param maxSize the maximum number of entries to keep in the cache.
+     */
+    public StripedLruCache(int maxSize) {
+        this(maxSize, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param maxSize the maximum number of entries to keep in the cache.
+     * @param stripeCount the number of independently locked stripes.
+     */
+    public StripedLruCache(int maxSize, int stripeCount) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("stripeCount must be positive");
+        }
+        stripeCount = Math.min(stripeCount, maxSize);
+        int maxStripeSize = (maxSize + stripeCount - 1) / stripeCount;
+        stripes = newStripeArray(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe<K, V>(maxStripeSize, evictions);
+        }
+    }
+
+    /**
+     * Retrieves an unexpired entry from the cache.
+     *
+     * @param key the cache key.
+     * @return the cache entry or null if there's no unexpired entry for the key.
+     */
+    public CacheEntry<V> getEntry(K key) {
+        Stripe<K, V> stripe = stripeFor(key);
+        CacheEntry<V> entry;
+        synchronized (stripe) {
+            entry = stripe.get(key);
+            if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+                stripe.remove(key);
+                expirations.incrementAndGet();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+        }
+        else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Retrieves an unexpired value from the cache.
+     *
+     * @param key the cache key.
+     * @return the cached value or null if there's no unexpired entry for the key.
+     */
+    public V get(K key) {
+        CacheEntry<V> entry = getEntry(key);
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Stores a value in the cache.
+     *
+     * @param key the cache key.
+     * @param value the value to store.
+     * @param timeToLive the number of milliseconds that the entry remains valid.
+     */
+    public void put(K key, V value, long timeToLive) {
+        if (value == null) {
+            throw new IllegalArgumentException("cached values may not be null");
+        }
+        Stripe<K, V> stripe = stripeFor(key);
+        CacheEntry<V> entry = new CacheEntry<V>(value, System.currentTimeMillis(), timeToLive);
+        synchronized (stripe) {
+            stripe.put(key, entry);
+        }
+    }
+
+    /**
+     * Removes an entry from the cache.
+     *
+     * @param key the cache key.
+     * @return true if an entry was removed.
+     */
+    public boolean remove(K key) {
+        Stripe<K, V> stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.remove(key) != null;
+        }
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public void clear() {
+        for (Stripe<K, V> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries currently in the cache, including entries that have expired but have not been
+     *         removed yet.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe<K, V> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Lists the most recently used keys, including the keys of entries that have expired but have not been removed
+     * yet.  Each stripe keeps its own access order, so the keys are taken from the stripes in turn, most recently
+     * used first; the result is ordered by recency within each stripe but only approximately across stripes.
+     *
+     * @param max the maximum number of keys to return.
+     * @return the keys.
+     * @throws IllegalArgumentException if max is negative.
+     */
+    public List<K> getRecentKeys(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("max may not be negative");
+        }
+        List<List<K>> stripeKeys = new ArrayList<List<K>>(stripes.length);
+        int available = 0;
+        for (Stripe<K, V> stripe : stripes) {
+            List<K> keys;
+            synchronized (stripe) {
+                keys = new ArrayList<K>(stripe.keySet());
+            }
+            stripeKeys.add(keys);
+            available += keys.size();
+        }
+        List<K> keys = new ArrayList<K>(Math.min(max, available));
+        for (int depth = 1; keys.size() < Math.min(max, available); depth++) {
+            for (int i = 0; i < stripeKeys.size() && keys.size() < max; i++) {
+                int index = stripeKeys.get(i).size() - depth;
+                if (index >= 0) {
+                    keys.add(stripeKeys.get(i).get(index));
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return the number of successful lookups.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of unsuccessful lookups.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of entries removed to keep the cache within its maximum size.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of entries removed because they had expired.
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * Selects the stripe for a key.  The hash code is spread the same way that HashMap spreads it so that keys with
+     * poorly distributed hash codes don't all land in the same stripe.
+     *
+     * @param key the cache key.
+     * @return the stripe.
+     */
+    private Stripe<K, V> stripeFor(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return stripes[(h & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * Creates an array of stripes.  Arrays of a generic type can't be created directly, so a raw array is created and
+     * cast.
+     *
+     * @param size the number of stripes.
+     * @return the new array.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K, V> Stripe<K, V>[] newStripeArray(int size) {
+        return new Stripe[size];
+    }
+
+    /**
+     * A single cache entry.
+     *
+     * @param <V> the type of the cached value.
+     */
+    public static class CacheEntry<V> {
+
+        private final V value;
+
+        private final long created;
+
+        private final long expires;
+
+        private CacheEntry(V value, long created, long timeToLive) {
+            this.value = value;
+            this.created = created;
+            this.expires = created + timeToLive;
+        }
+
+        /**
+         * @return the cached value.
+         */
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * @return the time that the entry was stored, in milliseconds since the epoch.
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * @return the time that the entry expires, in milliseconds since the epoch.
+         */
+        public long getExpires() {
+            return expires;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expires;
+        }
+    }
+
+    /**
+     * One independently locked section of the cache.
+     */
+    private static class Stripe<K, V> extends LinkedHashMap<K, CacheEntry<V>> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        private final AtomicLong evictions;
+
+        private Stripe(int maxSize, AtomicLong evictions) {
+            super(Math.min(maxSize, 1024), 0.75f, true);
+            this.maxSize = maxSize;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+            if (size() > maxSize) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
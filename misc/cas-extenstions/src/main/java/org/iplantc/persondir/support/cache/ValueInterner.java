@@ -0,0 +1,176 @@
+package org.iplantc.persondir.support.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of canonical attribute values.  When the same value, such as a group name, appears in the attributes
+ * of thousands of users, interning it makes every user's attribute list refer to a single shared instance instead of
+ * a separate copy.  Only strings are interned because they're immutable; other values are returned unchanged.
+ *
+ * The pool holds its entries through weak references, so a canonical value that's no longer referenced anywhere else
+ * is removed automatically by the garbage collector.  The pool is split into independently locked stripes, and a
+ * stripe that grows beyond its share of the maximum size is cleared.  Clearing a stripe only means that new copies
+ * of its values may be created until they're interned again.
+ *
+ * @author Dennis Roberts
+ */
+public class ValueInterner {
+
+    /**
+     * The approximate number of bytes occupied by a String instance and its character array, excluding the
+     * characters themselves.
+     */
+    private static final int STRING_OVERHEAD = 40;
+
+    /**
+     * The stripes that make up the pool.
+     */
+    private final WeakHashMap<String, WeakReference<String>>[] stripes;
+
+    /**
+     * The maximum number of entries in each stripe.
+     */
+    private final int maxStripeSize;
+
+    /**
+     * The number of values that have been passed to the pool.
+     */
+    private final AtomicLong lookups = new AtomicLong();
+
+    /**
+     * The number of values that were replaced with an existing canonical instance.
+     */
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * The approximate number of bytes saved by replacing duplicate values.
+     */
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * The number of times that a stripe was cleared because it was full.
+     */
+    private final AtomicLong prunes = new AtomicLong();
+
+    public ValueInterner() {
+        this(100000);
+    }
+
+    /**
+     * @param maxSize the maximum number of canonical values to keep.
+     */
+    public ValueInterner(int maxSize) {
+        this(maxSize, StripedLruCache.DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param maxSize the maximum number of canonical values to keep.
+     * @param stripeCount the number of independently locked stripes.
+     */
+    public ValueInterner(int maxSize, int stripeCount) {
+        if (maxSize < 1 || stripeCount < 1) {
+            throw new IllegalArgumentException("maxSize and stripeCount must be positive");
+        }
+        stripes = newStripeArray(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new WeakHashMap<String, WeakReference<String>>();
+        }
+        maxStripeSize = Math.max(1, maxSize / stripeCount);
+    }
+
+    /**
+     * Creates an array of stripes.  Arrays of a generic type can't be created directly, so a raw array is created and
+     * cast.
+     *
+     * @param size the number of stripes.
+     * @return the new array.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static WeakHashMap<String, WeakReference<String>>[] newStripeArray(int size) {
+        return new WeakHashMap[size];
+    }
+
+    /**
+     * Returns the canonical instance of a value.
+     *
+     * @param value the value.
+     * @return the canonical instance of the value, or the value itself if it's not a string.
+     */
+    public Object intern(Object value) {
+        if (!(value instanceof String)) {
+            return value;
+        }
+        lookups.incrementAndGet();
+        String string = (String) value;
+        WeakHashMap<String, WeakReference<String>> stripe = stripes[(string.hashCode() & 0x7fffffff) % stripes.length];
+        synchronized (stripe) {
+            WeakReference<String> ref = stripe.get(string);
+            String canonical = ref == null ? null : ref.get();
+            if (canonical != null) {
+                if (canonical != string) {
+                    duplicates.incrementAndGet();
+                    bytesSaved.addAndGet(STRING_OVERHEAD + 2L * string.length());
+                }
+                return canonical;
+            }
+            if (stripe.size() >= maxStripeSize) {
+                stripe.clear();
+                prunes.incrementAndGet();
+            }
+            stripe.put(string, new WeakReference<String>(string));
+            return string;
+        }
+    }
+
+    /**
+     * @return the number of values that have been passed to the pool.
+     */
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    /**
+     * @return the number of values that were replaced with an existing canonical instance.
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return the approximate number of bytes saved by replacing duplicate values.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * @return the number of times that a stripe was cleared because it was full.
+     */
+    public long getPrunes() {
+        return prunes.get();
+    }
+
+    /**
+     * @return the number of canonical values currently in the pool.
+     */
+    public int size() {
+        int size = 0;
+        for (WeakHashMap<String, WeakReference<String>> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "ValueInterner[size=" + size() + ", lookups=" + getLookups() + ", duplicates=" + getDuplicates()
+                + ", bytesSaved=" + getBytesSaved() + ", prunes=" + getPrunes() + "]";
+    }
+}
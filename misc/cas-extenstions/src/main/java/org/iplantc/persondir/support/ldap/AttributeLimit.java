@@ -0,0 +1,121 @@
+package org.iplantc.persondir.support.ldap;
+
+/**
+ * Limits the number and total size of the values of a directory attribute that are kept when search results are
+ * mapped, so that a single entry with an enormous member list, certificate or photo can't cause large allocations on
+ * every lookup.  The size of a String value is its length in characters and the size of a binary value is its length
+ * in bytes.  An attribute that exceeds either limit is handled according to the limit's action:
+ *
+ * <ul>
+ *     <li>SKIP: the attribute is left out of the mapped entry.</li>
+ *     <li>TRUNCATE: only the leading values that fit within both limits are kept.</li>
+ *     <li>HASH: the attribute is replaced with a single value containing a SHA-256 digest of all of its values,
+ *         which is enough to tell whether the attribute has changed.</li>
+ * </ul>
+ *
+ * <pre>
+ * {@code
+ * <bean class="org.iplantc.persondir.support.ldap.AttributeLimit">
+ *     <property name="maxValues" value="1000" />
+ *     <property name="maxBytes" value="65536" />
+ *     <property name="action" value="TRUNCATE" />
+ * </bean>
+ * }
+ * </pre>
+ *
+ * @author Dennis Roberts
+ */
+public class AttributeLimit {
+
+    /**
+     * The ways that an attribute exceeding its limits can be handled.
+     */
+    public enum Action {
+        SKIP, TRUNCATE, HASH
+    }
+
+    /**
+     * The maximum number of values to keep, or zero for no limit.
+     */
+    private int maxValues = 0;
+
+    /**
+     * The maximum total size of the values to keep, or zero for no limit.
+     */
+    private long maxBytes = 0;
+
+    /**
+     * What to do with an attribute that exceeds the limits.
+     */
+    private Action action = Action.TRUNCATE;
+
+    /**
+     * @return the maximum number of values to keep, or zero for no limit.
+     */
+    public int getMaxValues() {
+        return maxValues;
+    }
+
+    /**
+     * @param maxValues the maximum number of values to keep, or zero for no limit.
+     */
+    public void setMaxValues(int maxValues) {
+        if (maxValues < 0) {
+            throw new IllegalArgumentException("maxValues can not be negative");
+        }
+        this.maxValues = maxValues;
+    }
+
+    /**
+     * @return the maximum total size of the values to keep, or zero for no limit.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param maxBytes the maximum total size of the values to keep, or zero for no limit.
+     */
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes can not be negative");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return what to do with an attribute that exceeds the limits.
+     */
+    public Action getAction() {
+        return action;
+    }
+
+    /**
+     * @param action what to do with an attribute that exceeds the limits.
+     */
+    public void setAction(Action action) {
+        if (action == null) {
+            throw new IllegalArgumentException("action can not be null");
+        }
+        this.action = action;
+    }
+
+    /**
+     * @param value an attribute value.
+     * @return the size of the value as it's counted against maxBytes.
+     */
+    public static long sizeOf(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        return value == null ? 0 : value.toString().length();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "AttributeLimit[maxValues=" + maxValues + ", maxBytes=" + maxBytes + ", action=" + action + "]";
+    }
+}
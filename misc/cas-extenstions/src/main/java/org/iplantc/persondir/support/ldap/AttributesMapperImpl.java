@@ -7,35 +7,134 @@
  */
 package org.iplantc.persondir.support.ldap;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 
-import org.apache.commons.collections.EnumerationUtils;
-import org.apache.commons.collections.map.CaseInsensitiveMap;
-import org.apache.commons.collections.map.ListOrderedMap;
+import org.iplantc.persondir.support.metrics.MetricsRegistry;
 import org.springframework.ldap.core.AttributesMapper;
 
 /**
- * Creates a Map for each Attributes result with attribute names as keys
- * and Lists of Attribute values for values.
+ * Creates a Map for each Attributes result with attribute names as keys and Lists of
+ * Attribute values for values. Keys are matched without regard to case, but keep their
+ * case: an attribute that is expected to be returned is keyed by its expected name exactly
+ * as it was configured, and any other attribute is keyed by its name as returned by the
+ * directory.
+ * <br/>
+ * The attribute names that are expected to be returned can be passed to the constructor.
+ * These names are interned once and shared by every Map that the mapper creates, so that
+ * no new key strings have to be created for each entry.
+ * <br/>
+ * In lazy mode the values of each attribute aren't copied into a List; instead, each Map
+ * value is a read-only view that reads values from the underlying Attribute when they're
+ * requested, so attributes that are never read are never copied.
+ * <br/>
+ * An {@link AttributeLimit} can be given for any attribute, keyed by attribute name without
+ * regard to case; the key "*" applies to every attribute without a limit of its own.
+ * Attributes that exceed their limits are skipped, truncated or hashed before any values are
+ * copied, and each violation is counted in the metrics registry as
+ * ldap.limit.&lt;attribute&gt;.&lt;action&gt;. Attributes named as unlimited, such as the
+ * attributes that search results are matched to users by, are never limited.
  * 
  * @author Eric Dalquist
  * @version $Revision: 1.1 $
  */
 public class AttributesMapperImpl implements AttributesMapper {
     private final boolean ignoreNull;
+    private final String[] knownKeys;
+    private final boolean lazy;
+    private final Map<String, AttributeLimit> limits;
+    private final Set<String> unlimited;
+    private final MetricsRegistry metrics;
     
     public AttributesMapperImpl() {
         this(false);
     }
     
     public AttributesMapperImpl(boolean ignoreNull) {
+        this(ignoreNull, null);
+    }
+    
+    /**
+     * @param ignoreNull true if attributes without values should be left out of the Map
+     * @param knownAttributes the names of the attributes that are expected to be returned, may be null
+     */
+    public AttributesMapperImpl(boolean ignoreNull, Collection<String> knownAttributes) {
+        this(ignoreNull, knownAttributes, false);
+    }
+    
+    /**
+     * @param ignoreNull true if attributes without values should be left out of the Map
+     * @param knownAttributes the names of the attributes that are expected to be returned, may be null
+     * @param lazy true if attribute values should be read from the Attribute only when they're requested
+     */
+    public AttributesMapperImpl(boolean ignoreNull, Collection<String> knownAttributes, boolean lazy) {
+        this(ignoreNull, knownAttributes, lazy, null, null);
+    }
+    
+    /**
+     * @param ignoreNull true if attributes without values should be left out of the Map
+     * @param knownAttributes the names of the attributes that are expected to be returned, may be null
+     * @param lazy true if attribute values should be read from the Attribute only when they're requested
+     * @param limits the limits for each attribute, keyed by attribute name or "*", may be null
+     * @param metrics the registry that limit violations are counted in, may be null
+     */
+    public AttributesMapperImpl(boolean ignoreNull, Collection<String> knownAttributes, boolean lazy,
+            Map<String, AttributeLimit> limits, MetricsRegistry metrics) {
+        this(ignoreNull, knownAttributes, lazy, limits, null, metrics);
+    }
+    
+    /**
+     * @param ignoreNull true if attributes without values should be left out of the Map
+     * @param knownAttributes the names of the attributes that are expected to be returned, may be null
+     * @param lazy true if attribute values should be read from the Attribute only when they're requested
+     * @param limits the limits for each attribute, keyed by attribute name or "*", may be null
+     * @param unlimitedAttributes the names of the attributes that are never limited, not even by "*", may be null
+     * @param metrics the registry that limit violations are counted in, may be null
+     */
+    public AttributesMapperImpl(boolean ignoreNull, Collection<String> knownAttributes, boolean lazy,
+            Map<String, AttributeLimit> limits, Collection<String> unlimitedAttributes, MetricsRegistry metrics) {
         this.ignoreNull = ignoreNull;
+        this.lazy = lazy;
+        this.metrics = metrics;
+        
+        if (limits == null || limits.isEmpty()) {
+            this.limits = Collections.emptyMap();
+        }
+        else {
+            this.limits = new TreeMap<String, AttributeLimit>(String.CASE_INSENSITIVE_ORDER);
+            this.limits.putAll(limits);
+        }
+        
+        this.unlimited = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        if (unlimitedAttributes != null) {
+            this.unlimited.addAll(unlimitedAttributes);
+        }
+        
+        final Set<String> matched = new HashSet<String>();
+        final List<String> keys = new ArrayList<String>();
+        if (knownAttributes != null) {
+            for (final String attributeName : knownAttributes) {
+                if (attributeName != null && matched.add(attributeName.toLowerCase())) {
+                    keys.add(attributeName.intern());
+                }
+            }
+        }
+        this.knownKeys = keys.toArray(new String[keys.size()]);
     }
 
     /* (non-Javadoc)
@@ -53,10 +152,14 @@ public class AttributesMapperImpl implements AttributesMapper {
                 final String attrName = attribute.getID();
                 final String key = this.getAttributeKey(attrName);
 
-                final NamingEnumeration<?> valuesEnum = attribute.getAll();
-                final List<?> values = this.getAttributeValues(valuesEnum);
+                final AttributeLimit limit = this.getAttributeLimit(key);
+                final List<?> values = limit == null
+                        ? this.getAttributeValues(attribute)
+                        : this.getLimitedAttributeValues(key, attribute, limit);
                 
-                mapOfAttrValues.put(key, values);
+                if (values != null) {
+                    mapOfAttrValues.put(key, values);
+                }
             }
         }
         
@@ -66,33 +169,156 @@ public class AttributesMapperImpl implements AttributesMapper {
     /**
      * Create a Map instance to be used as attribute map.
      * <br/>
-     * By default, a linked case-insensitive Map will be created
+     * By default, an array-backed, insertion-ordered, case-insensitive Map will be created
      * 
      * @param attributeCount the attribute count, to be used as initial capacity for the Map
      * @return the new Map instance
      */
-    @SuppressWarnings("unchecked")
     protected Map<String, Object> createAttributeMap(int attributeCount) {
-        return ListOrderedMap.decorate(new CaseInsensitiveMap(attributeCount > 0 ? attributeCount : 1));
+        return new CaseInsensitiveAttributeMap(attributeCount);
     }
 
     /**
      * Determine the key to use for the given attribute in the attribute Map.
+     * <br/>
+     * By default, the shared key is used if the attribute name matches one of the known
+     * attributes without regard to case; otherwise the attribute name is used as it is.
      * 
      * @param attributeName the attribute name as returned by the Attributes
      * @return the attribute key to use
      */
     protected String getAttributeKey(String attributeName) {
+        for (final String knownKey : this.knownKeys) {
+            if (knownKey.equalsIgnoreCase(attributeName)) {
+                return knownKey;
+            }
+        }
         return attributeName;
     }
 
     /**
-     * Convert the Attribute's NamingEnumeration of values into a List
+     * Copy the Attribute's values into a List, or wrap the Attribute in a read-only List view in lazy mode
+     * 
+     * @param attribute The Attribute
+     * @return The List of Attribute values
+     * @throws NamingException if the values can't be retrieved
+     */
+    protected List<?> getAttributeValues(Attribute attribute) throws NamingException {
+        if (this.lazy) {
+            return new LazyAttributeValueList(attribute);
+        }
+        
+        final List<Object> values = new ArrayList<Object>(attribute.size());
+        for (final NamingEnumeration<?> valuesEnum = attribute.getAll(); valuesEnum.hasMore();) {
+            values.add(valuesEnum.next());
+        }
+        return values;
+    }
+
+    /**
+     * Find the limit that applies to an attribute.
      * 
-     * @param values The enumeration of Attribute values
-     * @return The List version of the values enumeration
+     * @param key the attribute key
+     * @return the limit, or null if the attribute isn't limited
      */
-    protected List<?> getAttributeValues(NamingEnumeration<?> values) {
-        return EnumerationUtils.toList(values);
+    protected AttributeLimit getAttributeLimit(String key) {
+        if (this.limits.isEmpty() || this.unlimited.contains(key)) {
+            return null;
+        }
+        final AttributeLimit limit = this.limits.get(key);
+        return limit == null ? this.limits.get("*") : limit;
+    }
+
+    /**
+     * Get the values of an attribute, applying its limit. The number of values is checked first so that an
+     * attribute with too many values is handled without looking at the values at all.
+     * 
+     * @param key the attribute key
+     * @param attribute The Attribute
+     * @param limit the limit that applies to the attribute
+     * @return The List of Attribute values, or null if the attribute should be skipped
+     * @throws NamingException if the values can't be retrieved
+     */
+    protected List<?> getLimitedAttributeValues(String key, Attribute attribute, AttributeLimit limit) throws NamingException {
+        final int count = attribute.size();
+        int keep = limit.getMaxValues() > 0 ? Math.min(count, limit.getMaxValues()) : count;
+        if (limit.getMaxBytes() > 0) {
+            long total = 0;
+            for (int i = 0; i < keep; i++) {
+                total += AttributeLimit.sizeOf(attribute.get(i));
+                if (total > limit.getMaxBytes()) {
+                    keep = i;
+                    break;
+                }
+            }
+        }
+        if (keep == count) {
+            return this.getAttributeValues(attribute);
+        }
+        
+        if (this.metrics != null) {
+            this.metrics.counter("ldap.limit." + key + "." + limit.getAction().name().toLowerCase()).incrementAndGet();
+        }
+        switch (limit.getAction()) {
+            case SKIP:
+                return null;
+            case HASH:
+                return Collections.singletonList(hashValues(attribute));
+            default:
+                if (this.lazy) {
+                    return new LazyAttributeValueList(attribute).subList(0, keep);
+                }
+                final List<Object> values = new ArrayList<Object>(keep);
+                for (int i = 0; i < keep; i++) {
+                    values.add(attribute.get(i));
+                }
+                return values;
+        }
+    }
+
+    /**
+     * Compute a SHA-256 digest of all of an attribute's values. Binary values are digested as they are and
+     * String values are digested as UTF-8; each value is preceded by its length so that different splits of the
+     * same bytes produce different digests.
+     * 
+     * @param attribute The Attribute
+     * @return the digest as "sha256:" followed by lower-case hexadecimal digits
+     * @throws NamingException if the values can't be retrieved
+     */
+    private static String hashValues(Attribute attribute) throws NamingException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        final byte[] length = new byte[4];
+        for (int i = 0; i < attribute.size(); i++) {
+            final Object value = attribute.get(i);
+            final byte[] bytes;
+            if (value instanceof byte[]) {
+                bytes = (byte[]) value;
+            }
+            else {
+                try {
+                    bytes = String.valueOf(value).getBytes("UTF-8");
+                }
+                catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException("UTF-8 is not supported", e);
+                }
+            }
+            length[0] = (byte) (bytes.length >>> 24);
+            length[1] = (byte) (bytes.length >>> 16);
+            length[2] = (byte) (bytes.length >>> 8);
+            length[3] = (byte) bytes.length;
+            digest.update(length);
+            digest.update(bytes);
+        }
+        final StringBuilder hex = new StringBuilder("sha256:");
+        for (final byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
     }
 }
@@ -0,0 +1,43 @@
+package org.iplantc.persondir.support.ldap;
+
+import org.iplantc.persondir.support.CachingPersonAttributeDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link GroupChangeListener} that removes cached attributes for users whose group memberships have changed.  The
+ * affected member values are treated as user IDs, which is correct for member attributes such as memberUid that list
+ * user IDs directly.
+ *
+ * @author Dennis Roberts
+ */
+public class CacheInvalidatingGroupChangeListener implements GroupChangeListener {
+
+    /**
+     * Used to log debugging messages.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(CacheInvalidatingGroupChangeListener.class);
+
+    /**
+     * The cache to remove entries from.
+     */
+    private CachingPersonAttributeDao cache;
+
+    /**
+     * @param cache the cache to remove entries from.
+     */
+    public void setCache(CachingPersonAttributeDao cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void groupsChanged(GroupChanges changes) {
+        LOG.debug("invalidating cached attributes for {} users", changes.getAffectedMembers().size());
+        for (String uid : changes.getAffectedMembers()) {
+            cache.removeUserAttributes(uid);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A compact, insertion-ordered map for the attributes of a single directory entry.  Keys are compared without regard
+ * to case.  The keys and values are stored in parallel arrays and looked up with a linear scan, which is faster and
+ * much smaller than a hash map for the handful of attributes that a directory entry typically has.  Keys are stored
+ * exactly as they are passed to {@link #put(String, Object)}, so callers that want lower-case keys should pass
+ * lower-case keys.
+ *
+ * @author Dennis Roberts
+ */
+public class CaseInsensitiveAttributeMap extends AbstractMap<String, Object> {
+
+    private String[] keys;
+
+    private Object[] values;
+
+    private int size = 0;
+
+    /**
+     * @param expectedSize the expected number of attributes.
+     */
+    public CaseInsensitiveAttributeMap(int expectedSize) {
+        int capacity = expectedSize > 0 ? expectedSize : 1;
+        this.keys = new String[capacity];
+        this.values = new Object[capacity];
+    }
+
+    /**
+     * Finds the index of a key.
+     *
+     * @param key the key to search for.
+     * @return the index of the key or -1 if it's not in the map.
+     */
+    private int indexOf(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        String name = (String) key;
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == name) {
+                return i;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (keys[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object get(Object key) {
+        int index = indexOf(key);
+        return index < 0 ? null : values[index];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object put(String key, Object value) {
+        if (key == null) {
+            throw new IllegalArgumentException("attribute names may not be null");
+        }
+        int index = indexOf(key);
+        if (index >= 0) {
+            Object old = values[index];
+            values[index] = value;
+            return old;
+        }
+        if (size == keys.length) {
+            int capacity = size * 2;
+            String[] newKeys = new String[capacity];
+            Object[] newValues = new Object[capacity];
+            System.arraycopy(keys, 0, newKeys, 0, size);
+            System.arraycopy(values, 0, newValues, 0, size);
+            keys = newKeys;
+            values = newValues;
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object remove(Object key) {
+        int index = indexOf(key);
+        return index < 0 ? null : removeAt(index);
+    }
+
+    /**
+     * Removes the entry at an index, preserving the order of the remaining entries.
+     *
+     * @param index the index of the entry to remove.
+     * @return the value that was removed.
+     */
+    private Object removeAt(int index) {
+        Object old = values[index];
+        int moved = size - index - 1;
+        if (moved > 0) {
+            System.arraycopy(keys, index + 1, keys, index, moved);
+            System.arraycopy(values, index + 1, values, index, moved);
+        }
+        size--;
+        keys[size] = null;
+        values[size] = null;
+        return old;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            keys[i] = null;
+            values[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Iterates over the entries in insertion order.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+
+        private int next = 0;
+
+        private int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new Entry(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+        }
+    }
+
+    /**
+     * A view of a single entry.
+     */
+    private class Entry implements Map.Entry<String, Object> {
+
+        private final int index;
+
+        private Entry(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String getKey() {
+            return keys[index];
+        }
+
+        @Override
+        public Object getValue() {
+            return values[index];
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object old = values[index];
+            values[index] = value;
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+            Object value = getValue();
+            return getKey().equals(other.getKey())
+                    && (value == null ? other.getValue() == null : value.equals(other.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object value = getValue();
+            return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.iplantc.persondir.support.ldap;
+
+/**
+ * Implemented by components that keep local copies of group data and need to be told when group entries change in
+ * the directory.
+ *
+ * @author Dennis Roberts
+ */
+public interface GroupChangeListener {
+
+    /**
+     * Called when group entries have been added, changed or deleted.
+     *
+     * @param changes the changes that were detected.
+     */
+    void groupsChanged(GroupChanges changes);
+}
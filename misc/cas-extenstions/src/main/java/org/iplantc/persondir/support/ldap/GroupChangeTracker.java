@@ -0,0 +1,457 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.directory.SearchControls;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.filter.AndFilter;
+import org.springframework.ldap.filter.GreaterThanOrEqualsFilter;
+import org.springframework.ldap.filter.HardcodedFilter;
+import org.springframework.util.Assert;
+
+/**
+ * Detects changes to group entries in the directory and reports them to {@link GroupChangeListener}s so that local
+ * copies of group data can be updated without being reloaded.
+ *
+ * The tracker polls the directory for group entries whose modification timestamp is at least as recent as the most
+ * recent timestamp seen so far.  Each returned entry is compared with the tracker's copy of the entry to work out
+ * which member values are affected by the change.  Deleted entries can't be found by timestamp, so every few polls
+ * the tracker also retrieves the distinguished names of all group entries and treats any missing ones as deleted.
+ * By default the standard modifyTimestamp attribute is used; directories that provide a finer-grained change sequence
+ * attribute such as OpenLDAP's entryCSN can use that instead.
+ *
+ * <pre>
+ * {@code
+ * <bean id="groupChangeTracker" class="org.iplantc.persondir.support.ldap.GroupChangeTracker">
+ *     <property name="contextSource" ref="contextSource" />
+ *     <property name="baseDN" value="ou=Groups,dc=iplantcollaborative,dc=org" />
+ *     <property name="memberAttributes" value="memberUid" />
+ *     <property name="returningAttributes" value="cn,memberUid" />
+ *     <property name="listeners">
+ *         <list>
+ *             <ref bean="groupIndexDao" />
+ *             <bean class="org.iplantc.persondir.support.ldap.CacheInvalidatingGroupChangeListener">
+ *                 <property name="cache" ref="groupAttributeRepository" />
+ *             </bean>
+ *         </list>
+ *     </property>
+ * </bean>
+ * }
+ * </pre>
+ *
+ * @author Dennis Roberts
+ */
+public class GroupChangeTracker implements InitializingBean, DisposableBean {
+
+    /**
+     * Used to log debugging messages.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(GroupChangeTracker.class);
+
+    /**
+     * The attribute name used to request that no attributes be returned.
+     */
+    private static final String NO_ATTRIBUTES = "1.1";
+
+    private static final AttributesMapper MAPPER = new AttributesMapperImpl();
+
+    private LdapTemplate ldapTemplate = null;
+    private ContextSource contextSource = null;
+    private String baseDN = "";
+    private String loadFilter = "(objectClass=*)";
+    private String timestampAttribute = "modifyTimestamp";
+    private Set<String> memberAttributes = Collections.singleton("memberUid");
+    private String[] returningAttributes = null;
+    private long pollInterval = 60000;
+    private int deletionScanInterval = 10;
+    private List<GroupChangeListener> listeners = new ArrayList<GroupChangeListener>();
+
+    /**
+     * The tracker's copy of each group entry, keyed by distinguished name.
+     */
+    private Map<String, GroupEntry> groups = new HashMap<String, GroupEntry>();
+
+    /**
+     * The most recent modification timestamp seen so far.
+     */
+    private String lastTimestamp = null;
+
+    /**
+     * The number of polls since the last deletion scan.
+     */
+    private int pollsSinceDeletionScan = 0;
+
+    /**
+     * Used to poll the directory in the background.
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (contextSource == null) {
+            throw new BeanCreationException("contextSource must be set");
+        }
+
+        loadAll();
+
+        if (pollInterval > 0) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "group-change-tracker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        poll();
+                    }
+                    catch (RuntimeException e) {
+                        LOG.error("unable to poll for group changes", e);
+                    }
+                }
+            }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Loads all group entries to establish the baseline that later changes are compared against.
+     */
+    private synchronized void loadAll() {
+        Map<String, GroupEntry> loaded = new HashMap<String, GroupEntry>();
+        for (GroupEntry group : search(loadFilter)) {
+            loaded.put(group.getDn(), group);
+        }
+        groups = loaded;
+        LOG.info("tracking changes to {} group entries", groups.size());
+    }
+
+    /**
+     * Checks the directory for changed group entries and notifies the listeners of any changes that are found.
+     *
+     * @return the changes that were found.
+     */
+    public synchronized GroupChanges poll() {
+        Map<String, GroupEntry> updated = new LinkedHashMap<String, GroupEntry>();
+        Set<String> removed = new LinkedHashSet<String>();
+        Set<String> affected = new HashSet<String>();
+
+        for (GroupEntry group : search(changedEntriesFilter())) {
+            GroupEntry old = groups.get(group.getDn());
+            if (old == null) {
+                affected.addAll(allMembers(group));
+                updated.put(group.getDn(), group);
+            }
+            else if (!old.getAttributes().equals(group.getAttributes())) {
+                affected.addAll(affectedMembers(old, group));
+                updated.put(group.getDn(), group);
+            }
+        }
+
+        if (++pollsSinceDeletionScan >= deletionScanInterval) {
+            pollsSinceDeletionScan = 0;
+            Set<String> missing = new HashSet<String>(groups.keySet());
+            missing.removeAll(currentDns());
+            for (String dn : missing) {
+                affected.addAll(allMembers(groups.get(dn)));
+                removed.add(dn);
+            }
+        }
+
+        for (GroupEntry group : updated.values()) {
+            groups.put(group.getDn(), group);
+        }
+        for (String dn : removed) {
+            groups.remove(dn);
+        }
+
+        GroupChanges changes = new GroupChanges(updated.values(), removed, affected);
+        if (!changes.isEmpty()) {
+            LOG.debug("detected group changes: {}", changes);
+            for (GroupChangeListener listener : listeners) {
+                listener.groupsChanged(changes);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * @return the filter used to find group entries that have changed since the last poll.
+     */
+    private String changedEntriesFilter() {
+        if (lastTimestamp == null) {
+            return loadFilter;
+        }
+        AndFilter filter = new AndFilter();
+        filter.and(new HardcodedFilter(loadFilter));
+        filter.and(new GreaterThanOrEqualsFilter(timestampAttribute, lastTimestamp));
+        return filter.encode();
+    }
+
+    /**
+     * Retrieves group entries matching a filter, keeping track of the most recent modification timestamp.  The
+     * timestamp attribute is removed from the entries unless it was explicitly requested.
+     *
+     * @param filter the LDAP filter.
+     * @return the matching group entries.
+     */
+    private List<GroupEntry> search(String filter) {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningObjFlag(false);
+        controls.setReturningAttributes(trackedAttributes());
+
+        GroupEntryCallbackHandler handler = new GroupEntryCallbackHandler(MAPPER);
+        ldapTemplate.search(baseDN, filter, controls, handler);
+
+        boolean keepTimestamp = isTimestampRequested();
+        List<GroupEntry> result = new ArrayList<GroupEntry>(handler.getEntries().size());
+        for (GroupEntry group : handler.getEntries()) {
+            Map<String, List<Object>> attributes = new LinkedHashMap<String, List<Object>>();
+            for (Map.Entry<String, List<Object>> attribute : group.getAttributes().entrySet()) {
+                if (attribute.getKey().equalsIgnoreCase(timestampAttribute)) {
+                    updateLastTimestamp(attribute.getValue());
+                    if (!keepTimestamp) {
+                        continue;
+                    }
+                }
+                attributes.put(attribute.getKey(), attribute.getValue());
+            }
+            result.add(new GroupEntry(group.getDn(), attributes));
+        }
+        return result;
+    }
+
+    /**
+     * @return the distinguished names of all group entries currently in the directory.
+     */
+    private Set<String> currentDns() {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningObjFlag(false);
+        controls.setReturningAttributes(new String[] {NO_ATTRIBUTES});
+
+        GroupEntryCallbackHandler handler = new GroupEntryCallbackHandler(MAPPER);
+        ldapTemplate.search(baseDN, loadFilter, controls, handler);
+
+        Set<String> dns = new HashSet<String>();
+        for (GroupEntry group : handler.getEntries()) {
+            dns.add(group.getDn());
+        }
+        return dns;
+    }
+
+    /**
+     * @return the attributes to request from the directory, or null if all user attributes should be returned.
+     */
+    private String[] trackedAttributes() {
+        if (returningAttributes == null) {
+            return new String[] {"*", timestampAttribute};
+        }
+        Set<String> attrs = new LinkedHashSet<String>();
+        Collections.addAll(attrs, returningAttributes);
+        attrs.addAll(memberAttributes);
+        attrs.add(timestampAttribute);
+        return attrs.toArray(new String[attrs.size()]);
+    }
+
+    /**
+     * @return true if the timestamp attribute is one of the configured returning attributes.
+     */
+    private boolean isTimestampRequested() {
+        if (returningAttributes != null) {
+            for (String attr : returningAttributes) {
+                if (attr.equalsIgnoreCase(timestampAttribute)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records a timestamp value if it's more recent than the most recent one seen so far.  Both generalized time
+     * values and change sequence numbers sort chronologically as strings.
+     *
+     * @param values the values of the timestamp attribute.
+     */
+    private void updateLastTimestamp(List<Object> values) {
+        if (values != null) {
+            for (Object value : values) {
+                String timestamp = value == null ? null : value.toString();
+                if (timestamp != null && (lastTimestamp == null || timestamp.compareTo(lastTimestamp) > 0)) {
+                    lastTimestamp = timestamp;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param group a group entry.
+     * @return all values of the member attributes of the entry.
+     */
+    private Set<String> allMembers(GroupEntry group) {
+        Set<String> result = new HashSet<String>();
+        for (String attr : memberAttributes) {
+            result.addAll(GroupMembershipIndex.memberValues(group, attr));
+        }
+        return result;
+    }
+
+    /**
+     * Determines which member values are affected by a change to a group entry.  If only the membership changed then
+     * only the added and removed members are affected.  If any other attribute changed then every member, old and new,
+     * is affected because the attributes that they receive from the group have changed.
+     *
+     * @param old the tracker's copy of the entry.
+     * @param group the current entry.
+     * @return the affected member values.
+     */
+    private Set<String> affectedMembers(GroupEntry old, GroupEntry group) {
+        Set<String> oldMembers = allMembers(old);
+        Set<String> newMembers = allMembers(group);
+        Set<String> result = new HashSet<String>();
+        if (nonMemberAttributes(old).equals(nonMemberAttributes(group))) {
+            for (String member : oldMembers) {
+                if (!newMembers.contains(member)) {
+                    result.add(member);
+                }
+            }
+            for (String member : newMembers) {
+                if (!oldMembers.contains(member)) {
+                    result.add(member);
+                }
+            }
+        }
+        else {
+            result.addAll(oldMembers);
+            result.addAll(newMembers);
+        }
+        return result;
+    }
+
+    /**
+     * @param group a group entry.
+     * @return the attributes of the group other than the member attributes, with lower-case names.
+     */
+    private Map<String, List<Object>> nonMemberAttributes(GroupEntry group) {
+        Set<String> lowerCaseMemberAttributes = new HashSet<String>();
+        for (String attr : memberAttributes) {
+            lowerCaseMemberAttributes.add(attr.toLowerCase());
+        }
+        Map<String, List<Object>> result = new HashMap<String, List<Object>>();
+        for (Map.Entry<String, List<Object>> attribute : group.getAttributes().entrySet()) {
+            String key = attribute.getKey().toLowerCase();
+            if (!lowerCaseMemberAttributes.contains(key)) {
+                result.put(key, attribute.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param contextSource The ContextSource to get DirContext objects for queries from.
+     */
+    public synchronized void setContextSource(final ContextSource contextSource) {
+        Assert.notNull(contextSource, "contextSource can not be null");
+        this.contextSource = contextSource;
+        this.ldapTemplate = new LdapTemplate(this.contextSource);
+    }
+
+    /**
+     * @param baseDN The base distinguished name to search for group entries.
+     */
+    public void setBaseDN(String baseDN) {
+        this.baseDN = baseDN == null ? "" : baseDN;
+    }
+
+    /**
+     * @param loadFilter The LDAP filter used to select group entries.
+     */
+    public void setLoadFilter(String loadFilter) {
+        Assert.hasText(loadFilter, "loadFilter can not be blank");
+        this.loadFilter = loadFilter;
+    }
+
+    /**
+     * @param timestampAttribute The name of the attribute used to detect changed entries.
+     */
+    public void setTimestampAttribute(String timestampAttribute) {
+        Assert.hasText(timestampAttribute, "timestampAttribute can not be blank");
+        this.timestampAttribute = timestampAttribute;
+    }
+
+    /**
+     * @param memberAttributes The names of the attributes that list group members.
+     */
+    public void setMemberAttributes(Set<String> memberAttributes) {
+        Assert.notEmpty(memberAttributes, "memberAttributes can not be empty");
+        this.memberAttributes = memberAttributes;
+    }
+
+    /**
+     * @param returningAttributes The group attributes that listeners need.  This should match the attributes
+     *                            retrieved by the listeners themselves.  If not set all user attributes are retrieved.
+     */
+    public void setReturningAttributes(String[] returningAttributes) {
+        this.returningAttributes = returningAttributes;
+    }
+
+    /**
+     * @param pollInterval The number of milliseconds between polls.  Zero disables background polling.
+     */
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * @param deletionScanInterval The number of polls between scans for deleted entries.
+     */
+    public void setDeletionScanInterval(int deletionScanInterval) {
+        Assert.isTrue(deletionScanInterval > 0, "deletionScanInterval must be positive");
+        this.deletionScanInterval = deletionScanInterval;
+    }
+
+    /**
+     * @param listeners The listeners to notify when changes are detected.
+     */
+    public void setListeners(List<GroupChangeListener> listeners) {
+        this.listeners = new ArrayList<GroupChangeListener>(listeners);
+    }
+}
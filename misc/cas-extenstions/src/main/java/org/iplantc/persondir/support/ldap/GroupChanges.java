@@ -0,0 +1,76 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * A set of changes to group entries detected in a single pass by a {@link GroupChangeTracker}.
+ *
+ * @author Dennis Roberts
+ */
+public class GroupChanges {
+
+    /**
+     * The group entries that were added or changed.
+     */
+    private final Collection<GroupEntry> updatedGroups;
+
+    /**
+     * The distinguished names of the group entries that were deleted.
+     */
+    private final Set<String> removedGroups;
+
+    /**
+     * The member values whose group memberships may have changed.
+     */
+    private final Set<String> affectedMembers;
+
+    /**
+     * @param updatedGroups the group entries that were added or changed.
+     * @param removedGroups the distinguished names of the group entries that were deleted.
+     * @param affectedMembers the member values whose group memberships may have changed.
+     */
+    public GroupChanges(Collection<GroupEntry> updatedGroups, Set<String> removedGroups, Set<String> affectedMembers) {
+        this.updatedGroups = Collections.unmodifiableCollection(updatedGroups);
+        this.removedGroups = Collections.unmodifiableSet(removedGroups);
+        this.affectedMembers = Collections.unmodifiableSet(affectedMembers);
+    }
+
+    /**
+     * @return the group entries that were added or changed.
+     */
+    public Collection<GroupEntry> getUpdatedGroups() {
+        return updatedGroups;
+    }
+
+    /**
+     * @return the distinguished names of the group entries that were deleted.
+     */
+    public Set<String> getRemovedGroups() {
+        return removedGroups;
+    }
+
+    /**
+     * @return the member values whose group memberships may have changed.
+     */
+    public Set<String> getAffectedMembers() {
+        return affectedMembers;
+    }
+
+    /**
+     * @return true if no changes were detected.
+     */
+    public boolean isEmpty() {
+        return updatedGroups.isEmpty() && removedGroups.isEmpty();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "GroupChanges[updated=" + updatedGroups.size() + ", removed=" + removedGroups.size()
+                + ", affectedMembers=" + affectedMembers.size() + "]";
+    }
+}
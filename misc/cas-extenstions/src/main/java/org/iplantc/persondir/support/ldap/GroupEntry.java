@@ -0,0 +1,54 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A group entry loaded from the directory: its distinguished name and the attributes that were retrieved for it.
+ *
+ * @author Dennis Roberts
+ */
+public class GroupEntry {
+
+    /**
+     * The distinguished name of the entry.
+     */
+    private final String dn;
+
+    /**
+     * The attributes of the entry.
+     */
+    private final Map<String, List<Object>> attributes;
+
+    /**
+     * @param dn the distinguished name of the entry.
+     * @param attributes the attributes of the entry.
+     */
+    public GroupEntry(String dn, Map<String, List<Object>> attributes) {
+        this.dn = dn;
+        this.attributes = Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * @return the distinguished name of the entry.
+     */
+    public String getDn() {
+        return dn;
+    }
+
+    /**
+     * @return the attributes of the entry.
+     */
+    public Map<String, List<Object>> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return dn + " " + attributes;
+    }
+}
@@ -0,0 +1,63 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.NameClassPair;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+
+import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.NameClassPairCallbackHandler;
+import org.springframework.ldap.support.LdapUtils;
+
+/**
+ * Collects the entries returned by an LDAP search as {@link GroupEntry} instances.  Unlike an {@link AttributesMapper}
+ * callback, this callback handler retains the distinguished name of each entry.
+ *
+ * @author Dennis Roberts
+ */
+class GroupEntryCallbackHandler implements NameClassPairCallbackHandler {
+
+    /**
+     * Used to convert the attributes of each entry to a map.
+     */
+    private final AttributesMapper mapper;
+
+    /**
+     * The entries that have been collected so far.
+     */
+    private final List<GroupEntry> entries = new ArrayList<GroupEntry>();
+
+    /**
+     * @param mapper used to convert the attributes of each entry to a map.
+     */
+    public GroupEntryCallbackHandler(AttributesMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void handleNameClassPair(NameClassPair nameClassPair) {
+        final SearchResult result = (SearchResult) nameClassPair;
+        try {
+            final Map<String, List<Object>> attributes
+                    = (Map<String, List<Object>>) mapper.mapFromAttributes(result.getAttributes());
+            entries.add(new GroupEntry(result.getNameInNamespace(), attributes));
+        }
+        catch (NamingException e) {
+            throw LdapUtils.convertLdapException(e);
+        }
+    }
+
+    /**
+     * @return the entries that have been collected so far.
+     */
+    public List<GroupEntry> getEntries() {
+        return entries;
+    }
+}
@@ -0,0 +1,99 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jasig.services.persondir.support.QueryType;
+
+/**
+ * A query against a {@link GroupMembershipIndex}.  Each criterion matches the groups that contain any of a set of
+ * values in a single member attribute.  The criteria are combined according to the query type.
+ *
+ * @author Dennis Roberts
+ */
+class GroupIndexQuery {
+
+    /**
+     * How the criteria are combined.
+     */
+    private final QueryType queryType;
+
+    /**
+     * The member attribute name for each criterion.
+     */
+    private final List<String> attributes = new ArrayList<String>();
+
+    /**
+     * The member values for each criterion.
+     */
+    private final List<List<String>> values = new ArrayList<List<String>>();
+
+    /**
+     * @param queryType how the criteria are combined.
+     */
+    public GroupIndexQuery(QueryType queryType) {
+        this.queryType = queryType;
+    }
+
+    /**
+     * Adds a criterion to the query.
+     *
+     * @param attribute the member attribute name.
+     * @param attributeValues the member values to search for.
+     */
+    public void append(String attribute, List<String> attributeValues) {
+        attributes.add(attribute);
+        values.add(attributeValues);
+    }
+
+    /**
+     * @return true if the query has no criteria.
+     */
+    public boolean isEmpty() {
+        return attributes.isEmpty();
+    }
+
+    /**
+     * Finds the groups that satisfy the query.
+     *
+     * @param index the index to search.
+     * @return the matching group entries in index order.
+     */
+    public Collection<GroupEntry> execute(GroupMembershipIndex index) {
+        Set<GroupEntry> result = null;
+        for (int i = 0; i < attributes.size(); i++) {
+            Set<GroupEntry> matches = new LinkedHashSet<GroupEntry>();
+            for (String value : values.get(i)) {
+                matches.addAll(index.getGroups(attributes.get(i), value));
+            }
+            if (result == null) {
+                result = matches;
+            }
+            else if (queryType == QueryType.OR) {
+                result.addAll(matches);
+            }
+            else {
+                result.retainAll(matches);
+            }
+        }
+        return result == null ? new LinkedHashSet<GroupEntry>() : result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder(queryType.toString()).append('(');
+        for (int i = 0; i < attributes.size(); i++) {
+            if (i > 0) {
+                buf.append(", ");
+            }
+            buf.append(attributes.get(i)).append('=').append(values.get(i));
+        }
+        return buf.append(')').toString();
+    }
+}
@@ -0,0 +1,418 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves group membership indexes to disk and loads them again, so that a freshly started server can answer queries
+ * from the index it had before it was restarted instead of waiting for every group entry to be loaded from the
+ * directory.
+ *
+ * The file format is versioned and compact.  Every distinct string in the index (distinguished names, attribute names
+ * and values) is stored exactly once in a string table and referred to elsewhere by its position in the table.  The
+ * layout is:
+ *
+ * <pre>
+ * int     magic number (0x49504753)
+ * int     format version
+ * long    time when the snapshot was written, in milliseconds since the epoch
+ * long    CRC-32 checksum of everything after the header
+ * int     length of everything after the header, in bytes
+ * int     number of strings, followed by each string as an int byte count and its UTF-8 bytes
+ * int     number of indexed member attributes, followed by the string number of each one
+ * int     number of group entries, followed by each entry:
+ *         int   string number of the distinguished name
+ *         int   number of attributes, followed by each attribute:
+ *               int   string number of the attribute name
+ *               int   number of values, followed by each value as a tag byte (0 for a string, 1 for a byte array)
+ *                     and either a string number or an int byte count and the bytes themselves
+ * </pre>
+ *
+ * Snapshots are written to a temporary file in the same directory and then renamed, so a reader never sees a partly
+ * written snapshot.  Snapshots are read through a memory-mapped buffer, which avoids copying the file through a
+ * stream buffer and lets the operating system page it in directly.  A snapshot that is missing, truncated, fails its
+ * checksum, has a different version or indexes different member attributes is ignored.
+ *
+ * @author Dennis Roberts
+ */
+public class GroupIndexSnapshot {
+
+    /**
+     * Used to log debugging messages.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(GroupIndexSnapshot.class);
+
+    /**
+     * Identifies group index snapshot files.
+     */
+    private static final int MAGIC = 0x49504753;
+
+    /**
+     * The current version of the file format.  Version 1 snapshots stored attribute names in lower case.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * The number of bytes in the header that precedes the checksummed body.
+     */
+    private static final int HEADER_LENGTH = 4 + 4 + 8 + 8 + 4;
+
+    /**
+     * The tag that identifies a string value.
+     */
+    private static final byte STRING_VALUE = 0;
+
+    /**
+     * The tag that identifies a binary value.
+     */
+    private static final byte BINARY_VALUE = 1;
+
+    /**
+     * The character encoding used for strings.
+     */
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * Prevents instantiation.
+     */
+    private GroupIndexSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of an index.  The snapshot is written to a temporary file that then replaces the existing
+     * snapshot, if there is one.
+     *
+     * @param index the index to save.
+     * @param file the snapshot file.
+     * @throws IOException if the snapshot can't be written.
+     */
+    public static void write(GroupMembershipIndex index, File file) throws IOException {
+        final long start = System.currentTimeMillis();
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create " + directory);
+        }
+        final File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        boolean written = false;
+        try {
+            writeFile(index, temp);
+            if (!temp.renameTo(file)) {
+                if (!file.delete() || !temp.renameTo(file)) {
+                    throw new IOException("unable to rename " + temp + " to " + file);
+                }
+            }
+            written = true;
+        }
+        finally {
+            if (!written && !temp.delete()) {
+                LOG.warn("unable to delete {}", temp);
+            }
+        }
+        LOG.info("saved {} group entries to {} in {} ms",
+                new Object[] {index.size(), file, System.currentTimeMillis() - start});
+    }
+
+    /**
+     * Writes the header and body of a snapshot to a file and flushes it to the disk.
+     *
+     * @param index the index to save.
+     * @param file the file to write.
+     * @throws IOException if the file can't be written.
+     */
+    private static void writeFile(GroupMembershipIndex index, File file) throws IOException {
+        final Map<String, Integer> strings = buildStringTable(index);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.seek(HEADER_LENGTH);
+            final CRC32 crc = new CRC32();
+            final DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(raf.getFD()), 65536), crc));
+            writeBody(index, strings, out);
+            out.flush();
+            final long bodyLength = raf.length() - HEADER_LENGTH;
+
+            raf.seek(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeLong(System.currentTimeMillis());
+            raf.writeLong(crc.getValue());
+            raf.writeInt((int) bodyLength);
+            raf.getFD().sync();
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Assigns a number to every distinct string in an index.
+     *
+     * @param index the index.
+     * @return a map from each string to its number.
+     */
+    private static Map<String, Integer> buildStringTable(GroupMembershipIndex index) {
+        final Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        for (final String attr : index.getMemberAttributes()) {
+            addString(strings, attr);
+        }
+        for (final GroupEntry entry : index.getEntries().values()) {
+            addString(strings, entry.getDn());
+            for (final Map.Entry<String, List<Object>> attribute : entry.getAttributes().entrySet()) {
+                addString(strings, attribute.getKey());
+                if (attribute.getValue() != null) {
+                    for (final Object value : attribute.getValue()) {
+                        if (value instanceof String) {
+                            addString(strings, (String) value);
+                        }
+                    }
+                }
+            }
+        }
+        return strings;
+    }
+
+    /**
+     * Adds a string to a string table if it isn't already there.
+     *
+     * @param strings the string table.
+     * @param value the string.
+     */
+    private static void addString(Map<String, Integer> strings, String value) {
+        if (!strings.containsKey(value)) {
+            strings.put(value, strings.size());
+        }
+    }
+
+    /**
+     * Writes the body of a snapshot.
+     *
+     * @param index the index to save.
+     * @param strings the string table.
+     * @param out the stream to write to.
+     * @throws IOException if the body can't be written.
+     */
+    private static void writeBody(GroupMembershipIndex index, Map<String, Integer> strings, DataOutputStream out)
+            throws IOException {
+        out.writeInt(strings.size());
+        for (final String value : strings.keySet()) {
+            writeBytes(out, value.getBytes(ENCODING));
+        }
+
+        out.writeInt(index.getMemberAttributes().size());
+        for (final String attr : index.getMemberAttributes()) {
+            out.writeInt(strings.get(attr));
+        }
+
+        final Collection<GroupEntry> entries = index.getEntries().values();
+        out.writeInt(entries.size());
+        for (final GroupEntry entry : entries) {
+            out.writeInt(strings.get(entry.getDn()));
+            final Map<String, List<Object>> attributes = entry.getAttributes();
+            out.writeInt(attributes.size());
+            for (final Map.Entry<String, List<Object>> attribute : attributes.entrySet()) {
+                out.writeInt(strings.get(attribute.getKey()));
+                final List<Object> values = attribute.getValue();
+                final List<Object> storable = new ArrayList<Object>(values == null ? 0 : values.size());
+                if (values != null) {
+                    for (final Object value : values) {
+                        if (value instanceof String || value instanceof byte[]) {
+                            storable.add(value);
+                        }
+                    }
+                }
+                out.writeInt(storable.size());
+                for (final Object value : storable) {
+                    if (value instanceof String) {
+                        out.writeByte(STRING_VALUE);
+                        out.writeInt(strings.get(value));
+                    }
+                    else {
+                        out.writeByte(BINARY_VALUE);
+                        writeBytes(out, (byte[]) value);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a byte count followed by the bytes themselves.
+     *
+     * @param out the stream to write to.
+     * @param bytes the bytes to write.
+     * @throws IOException if the bytes can't be written.
+     */
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Loads an index from a snapshot file.
+     *
+     * @param file the snapshot file.
+     * @param memberAttributes the member attributes that the index must have been built for.
+     * @return the index, or null if the snapshot doesn't exist or can't be used.
+     */
+    public static GroupMembershipIndex read(File file, Collection<String> memberAttributes) {
+        if (!file.isFile()) {
+            return null;
+        }
+        final long start = System.currentTimeMillis();
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            final List<GroupEntry> entries;
+            final long written;
+            try {
+                final FileChannel channel = raf.getChannel();
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC) {
+                    LOG.warn("{} is not a group index snapshot", file);
+                    return null;
+                }
+                final int version = buffer.getInt();
+                if (version != VERSION) {
+                    LOG.info("ignoring {} because it uses snapshot format version {}", file, version);
+                    return null;
+                }
+                written = buffer.getLong();
+                final long checksum = buffer.getLong();
+                final int bodyLength = buffer.getInt();
+                if (bodyLength != buffer.remaining() || checksum(buffer) != checksum) {
+                    LOG.warn("ignoring {} because it is incomplete or corrupt", file);
+                    return null;
+                }
+                entries = readBody(buffer, memberAttributes);
+            }
+            finally {
+                raf.close();
+            }
+            if (entries == null) {
+                LOG.info("ignoring {} because it indexes different member attributes", file);
+                return null;
+            }
+            final GroupMembershipIndex index = GroupMembershipIndex.build(entries, memberAttributes);
+            LOG.info("loaded {} group entries saved {} s ago from {} in {} ms", new Object[] {index.size(),
+                    (System.currentTimeMillis() - written) / 1000, file, System.currentTimeMillis() - start});
+            return index;
+        }
+        catch (IOException e) {
+            LOG.warn("unable to read " + file, e);
+            return null;
+        }
+        catch (BufferUnderflowException e) {
+            LOG.warn("ignoring {} because it is truncated", file);
+            return null;
+        }
+        catch (IndexOutOfBoundsException e) {
+            LOG.warn("ignoring {} because it is corrupt", file);
+            return null;
+        }
+    }
+
+    /**
+     * Computes the checksum of the remaining bytes in a buffer without changing its position.
+     *
+     * @param buffer the buffer.
+     * @return the CRC-32 checksum.
+     */
+    private static long checksum(MappedByteBuffer buffer) {
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[65536];
+        final int position = buffer.position();
+        while (buffer.hasRemaining()) {
+            final int length = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        buffer.position(position);
+        return crc.getValue();
+    }
+
+    /**
+     * Reads the body of a snapshot.
+     *
+     * @param buffer the buffer, positioned at the start of the body.
+     * @param memberAttributes the member attributes that the index must have been built for.
+     * @return the group entries, or null if the snapshot indexes different member attributes.
+     * @throws UnsupportedEncodingException never, since UTF-8 is always supported.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<GroupEntry> readBody(MappedByteBuffer buffer, Collection<String> memberAttributes)
+            throws UnsupportedEncodingException {
+        final String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = new String(readBytes(buffer), ENCODING);
+        }
+
+        final Set<String> savedAttributes = new HashSet<String>();
+        final int attrCount = buffer.getInt();
+        for (int i = 0; i < attrCount; i++) {
+            savedAttributes.add(strings[buffer.getInt()]);
+        }
+        final Set<String> expectedAttributes = new HashSet<String>();
+        for (final String attr : memberAttributes) {
+            expectedAttributes.add(attr.toLowerCase());
+        }
+        if (!savedAttributes.equals(expectedAttributes)) {
+            return null;
+        }
+
+        final int entryCount = buffer.getInt();
+        final List<GroupEntry> entries = new ArrayList<GroupEntry>(entryCount);
+        for (int i = 0; i < entryCount; i++) {
+            final String dn = strings[buffer.getInt()];
+            final int attributeCount = buffer.getInt();
+            final CaseInsensitiveAttributeMap attributes = new CaseInsensitiveAttributeMap(attributeCount);
+            for (int j = 0; j < attributeCount; j++) {
+                final String name = strings[buffer.getInt()];
+                final int valueCount = buffer.getInt();
+                final List<Object> values = new ArrayList<Object>(valueCount);
+                for (int k = 0; k < valueCount; k++) {
+                    if (buffer.get() == STRING_VALUE) {
+                        values.add(strings[buffer.getInt()]);
+                    }
+                    else {
+                        values.add(readBytes(buffer));
+                    }
+                }
+                attributes.put(name, values);
+            }
+            final Map<String, ?> map = attributes;
+            entries.add(new GroupEntry(dn, (Map<String, List<Object>>) map));
+        }
+        return entries;
+    }
+
+    /**
+     * Reads a byte count followed by the bytes themselves.
+     *
+     * @param buffer the buffer to read from.
+     * @return the bytes.
+     */
+    private static byte[] readBytes(MappedByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,342 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable inverted index from member attribute values to the group entries that contain them.  For example, if
+ * memberUid is indexed then the index can answer the question "which groups list ipctest in their memberUid attribute"
+ * without going to the directory.  Member attribute names are matched without regard to case; member values are
+ * matched exactly, the same way the directory matches memberUid values.
+ *
+ * An index produced by {@link #withChanges(Collection, Collection)} shares the maps of the index it was derived from
+ * and records only the entries and member values that changed in small overlay maps, so applying a change costs time
+ * proportional to the size of the change rather than the size of the index.  Once the overlays grow to a quarter of
+ * the shared maps, they're merged into new shared maps.
+ *
+ * @author Dennis Roberts
+ */
+public class GroupMembershipIndex {
+
+    /**
+     * The minimum number of overlay entries that triggers a merge into new shared maps.
+     */
+    private static final int MIN_COMPACTION_SIZE = 1024;
+
+    /**
+     * The placeholder stored in the entry overlay for a removed group entry.
+     */
+    private static final GroupEntry REMOVED = new GroupEntry("", Collections.<String, List<Object>>emptyMap());
+
+    /**
+     * The names of the indexed member attributes, in lower case.
+     */
+    private final Set<String> memberAttributes;
+
+    /**
+     * The shared group entries, keyed by distinguished name.
+     */
+    private final Map<String, GroupEntry> entries;
+
+    /**
+     * Maps lower-case member attribute names to the shared maps from member values to group entries.
+     */
+    private final Map<String, Map<String, List<GroupEntry>>> members;
+
+    /**
+     * The group entries that changed since the shared maps were built; removed entries map to REMOVED.
+     */
+    private final Map<String, GroupEntry> changedEntries;
+
+    /**
+     * Maps lower-case member attribute names to the member values that changed since the shared maps were built; a
+     * value that no longer appears in any group maps to an empty list.
+     */
+    private final Map<String, Map<String, List<GroupEntry>>> changedMembers;
+
+    /**
+     * The number of group entries in the index.
+     */
+    private final int size;
+
+    /**
+     * The number of keys in the overlay maps.
+     */
+    private final int overlaySize;
+
+    /**
+     * The number of keys in the shared maps.
+     */
+    private final int sharedSize;
+
+    /**
+     * @param memberAttributes the names of the indexed member attributes, in lower case.
+     * @param entries the shared group entries, keyed by distinguished name.
+     * @param members maps lower-case member attribute names to maps from member values to group entries.
+     * @param changedEntries the group entries that changed since the shared maps were built.
+     * @param changedMembers the member values that changed since the shared maps were built.
+     * @param size the number of group entries in the index.
+     * @param overlaySize the number of keys in the overlay maps.
+     * @param sharedSize the number of keys in the shared maps.
+     */
+    private GroupMembershipIndex(Set<String> memberAttributes, Map<String, GroupEntry> entries,
+            Map<String, Map<String, List<GroupEntry>>> members, Map<String, GroupEntry> changedEntries,
+            Map<String, Map<String, List<GroupEntry>>> changedMembers, int size, int overlaySize, int sharedSize) {
+        this.memberAttributes = memberAttributes;
+        this.entries = entries;
+        this.members = members;
+        this.changedEntries = changedEntries;
+        this.changedMembers = changedMembers;
+        this.size = size;
+        this.overlaySize = overlaySize;
+        this.sharedSize = sharedSize;
+    }
+
+    /**
+     * Builds a new index.
+     *
+     * @param groups the group entries to index.
+     * @param memberAttributes the names of the attributes to index.
+     * @return the index.
+     */
+    public static GroupMembershipIndex build(Collection<GroupEntry> groups, Collection<String> memberAttributes) {
+        Set<String> attrs = new LinkedHashSet<String>();
+        for (String attr : memberAttributes) {
+            attrs.add(attr.toLowerCase());
+        }
+        Map<String, GroupEntry> entries = new LinkedHashMap<String, GroupEntry>(groups.size() * 4 / 3 + 1);
+        for (GroupEntry group : groups) {
+            entries.put(group.getDn(), group);
+        }
+        return build(Collections.unmodifiableSet(attrs), entries);
+    }
+
+    /**
+     * Builds a new index with empty overlays.
+     *
+     * @param attrs the names of the indexed member attributes, in lower case.
+     * @param entries the group entries to index, keyed by distinguished name.
+     * @return the index.
+     */
+    private static GroupMembershipIndex build(Set<String> attrs, Map<String, GroupEntry> entries) {
+        Map<String, Map<String, List<GroupEntry>>> members = new HashMap<String, Map<String, List<GroupEntry>>>();
+        Map<String, Map<String, List<GroupEntry>>> changedMembers = new HashMap<String, Map<String, List<GroupEntry>>>();
+        for (String attr : attrs) {
+            members.put(attr, new HashMap<String, List<GroupEntry>>());
+            changedMembers.put(attr, Collections.<String, List<GroupEntry>>emptyMap());
+        }
+        int sharedSize = entries.size();
+        for (GroupEntry group : entries.values()) {
+            for (String attr : attrs) {
+                Map<String, List<GroupEntry>> valueMap = members.get(attr);
+                for (String value : memberValues(group, attr)) {
+                    List<GroupEntry> groupsForValue = valueMap.get(value);
+                    if (groupsForValue == null) {
+                        groupsForValue = new ArrayList<GroupEntry>(2);
+                        valueMap.put(value, groupsForValue);
+                        sharedSize++;
+                    }
+                    groupsForValue.add(group);
+                }
+            }
+        }
+        return new GroupMembershipIndex(attrs, entries, members, Collections.<String, GroupEntry>emptyMap(),
+                changedMembers, entries.size(), 0, sharedSize);
+    }
+
+    /**
+     * Builds a new index by applying a set of changes to this one.  This index isn't modified, so readers that are
+     * still using it aren't affected.  Only the entries of the changed groups and the member values that appear in
+     * their old or new versions are copied; everything else is shared with this index.
+     *
+     * @param updatedGroups the group entries that were added or changed.
+     * @param removedGroups the distinguished names of the group entries that were deleted.
+     * @return the new index.
+     */
+    public GroupMembershipIndex withChanges(Collection<GroupEntry> updatedGroups, Collection<String> removedGroups) {
+        Map<String, GroupEntry> newChangedEntries = new HashMap<String, GroupEntry>(changedEntries);
+        int newSize = size;
+
+        List<GroupEntry> oldGroups = new ArrayList<GroupEntry>();
+        for (String dn : removedGroups) {
+            GroupEntry old = getEntry(newChangedEntries, dn);
+            if (old != null) {
+                oldGroups.add(old);
+                newChangedEntries.put(dn, REMOVED);
+                newSize--;
+            }
+        }
+        for (GroupEntry group : updatedGroups) {
+            GroupEntry old = getEntry(newChangedEntries, group.getDn());
+            if (old != null) {
+                oldGroups.add(old);
+            }
+            else {
+                newSize++;
+            }
+            newChangedEntries.put(group.getDn(), group);
+        }
+
+        int newOverlaySize = newChangedEntries.size();
+        Map<String, Map<String, List<GroupEntry>>> newChangedMembers
+                = new HashMap<String, Map<String, List<GroupEntry>>>();
+        for (String attr : memberAttributes) {
+            Map<String, List<GroupEntry>> valueMap = new HashMap<String, List<GroupEntry>>(changedMembers.get(attr));
+            for (GroupEntry old : oldGroups) {
+                for (String value : memberValues(old, attr)) {
+                    List<GroupEntry> groupsForValue = lookup(valueMap, attr, value);
+                    if (groupsForValue != null && groupsForValue.contains(old)) {
+                        List<GroupEntry> copy = new ArrayList<GroupEntry>(groupsForValue);
+                        copy.remove(old);
+                        valueMap.put(value, copy);
+                    }
+                }
+            }
+            for (GroupEntry group : updatedGroups) {
+                for (String value : memberValues(group, attr)) {
+                    List<GroupEntry> groupsForValue = lookup(valueMap, attr, value);
+                    List<GroupEntry> copy = groupsForValue == null
+                            ? new ArrayList<GroupEntry>(2)
+                            : new ArrayList<GroupEntry>(groupsForValue);
+                    copy.add(group);
+                    valueMap.put(value, copy);
+                }
+            }
+            newChangedMembers.put(attr, valueMap);
+            newOverlaySize += valueMap.size();
+        }
+
+        GroupMembershipIndex result = new GroupMembershipIndex(memberAttributes, entries, members, newChangedEntries,
+                newChangedMembers, newSize, newOverlaySize, sharedSize);
+        return newOverlaySize > Math.max(MIN_COMPACTION_SIZE, sharedSize / 4) ? result.compact() : result;
+    }
+
+    /**
+     * Merges the overlays into new shared maps.
+     *
+     * @return an equivalent index with empty overlays.
+     */
+    private GroupMembershipIndex compact() {
+        return build(memberAttributes, new LinkedHashMap<String, GroupEntry>(getEntries()));
+    }
+
+    /**
+     * Finds a group entry, consulting an overlay before the shared entries.
+     *
+     * @param overlay the overlay of changed entries.
+     * @param dn the distinguished name of the entry.
+     * @return the entry or null if it isn't in the index.
+     */
+    private GroupEntry getEntry(Map<String, GroupEntry> overlay, String dn) {
+        GroupEntry changed = overlay.get(dn);
+        if (changed != null) {
+            return changed == REMOVED ? null : changed;
+        }
+        return entries.get(dn);
+    }
+
+    /**
+     * Finds the groups for a member value, consulting an overlay before the shared map.
+     *
+     * @param overlay the overlay for the member attribute.
+     * @param attr the lower-case name of the member attribute.
+     * @param value the member value.
+     * @return the groups, or null if the value doesn't appear in any group.
+     */
+    private List<GroupEntry> lookup(Map<String, List<GroupEntry>> overlay, String attr, String value) {
+        List<GroupEntry> groups = overlay.get(value);
+        if (groups == null) {
+            groups = members.get(attr).get(value);
+        }
+        return groups == null || groups.isEmpty() ? null : groups;
+    }
+
+    /**
+     * Extracts the values of a member attribute from a group entry.
+     *
+     * @param group the group entry.
+     * @param attr the name of the member attribute.
+     * @return the string values of the attribute.
+     */
+    public static Set<String> memberValues(GroupEntry group, String attr) {
+        Set<String> result = new LinkedHashSet<String>();
+        for (Map.Entry<String, List<Object>> attribute : group.getAttributes().entrySet()) {
+            if (attribute.getKey().equalsIgnoreCase(attr) && attribute.getValue() != null) {
+                for (Object value : attribute.getValue()) {
+                    if (value != null) {
+                        result.add(value.toString());
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param attr the name of a member attribute.
+     * @return true if the attribute is indexed.
+     */
+    public boolean isIndexed(String attr) {
+        return attr != null && memberAttributes.contains(attr.toLowerCase());
+    }
+
+    /**
+     * Finds the groups that contain a member value.
+     *
+     * @param attr the name of the member attribute.
+     * @param value the member value.
+     * @return the matching groups, which will be empty if there are no matches or the attribute isn't indexed.
+     */
+    public List<GroupEntry> getGroups(String attr, String value) {
+        String key = attr == null ? null : attr.toLowerCase();
+        Map<String, List<GroupEntry>> overlay = key == null ? null : changedMembers.get(key);
+        List<GroupEntry> groups = overlay == null ? null : lookup(overlay, key, value);
+        return groups == null ? Collections.<GroupEntry>emptyList() : Collections.unmodifiableList(groups);
+    }
+
+    /**
+     * @return the indexed group entries, keyed by distinguished name.
+     */
+    public Map<String, GroupEntry> getEntries() {
+        if (changedEntries.isEmpty()) {
+            return Collections.unmodifiableMap(entries);
+        }
+        Map<String, GroupEntry> merged = new LinkedHashMap<String, GroupEntry>(size * 4 / 3 + 1);
+        for (Map.Entry<String, GroupEntry> entry : entries.entrySet()) {
+            GroupEntry changed = changedEntries.get(entry.getKey());
+            if (changed == null) {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+            else if (changed != REMOVED) {
+                merged.put(entry.getKey(), changed);
+            }
+        }
+        for (Map.Entry<String, GroupEntry> entry : changedEntries.entrySet()) {
+            if (entry.getValue() != REMOVED && !entries.containsKey(entry.getKey())) {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return Collections.unmodifiableMap(merged);
+    }
+
+    /**
+     * @return the names of the indexed member attributes, in lower case.
+     */
+    public Set<String> getMemberAttributes() {
+        return memberAttributes;
+    }
+
+    /**
+     * @return the number of indexed group entries.
+     */
+    public int size() {
+        return size;
+    }
+}
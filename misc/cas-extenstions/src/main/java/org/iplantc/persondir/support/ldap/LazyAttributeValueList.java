@@ -0,0 +1,53 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import org.springframework.ldap.support.LdapUtils;
+
+/**
+ * An unmodifiable list view of the values of a directory attribute.  Values are read from the underlying attribute
+ * only when they're requested, so creating the view doesn't copy anything.  Attribute values that are never read,
+ * such as long member lists that aren't mapped to any result attribute, are never copied at all.
+ *
+ * @author Dennis Roberts
+ */
+class LazyAttributeValueList extends AbstractList<Object> implements RandomAccess {
+
+    /**
+     * The attribute whose values are being viewed.
+     */
+    private final Attribute attribute;
+
+    /**
+     * @param attribute the attribute whose values are being viewed.
+     */
+    public LazyAttributeValueList(Attribute attribute) {
+        this.attribute = attribute;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object get(int index) {
+        if (index < 0 || index >= attribute.size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + attribute.size());
+        }
+        try {
+            return attribute.get(index);
+        }
+        catch (NamingException e) {
+            throw LdapUtils.convertLdapException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return attribute.size();
+    }
+}
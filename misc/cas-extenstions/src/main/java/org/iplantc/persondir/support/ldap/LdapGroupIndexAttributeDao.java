@@ -0,0 +1,488 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.directory.SearchControls;
+
+import org.apache.commons.lang.StringUtils;
+import org.iplantc.persondir.support.AbstractQueryMultirecordAttributeDao;
+import org.iplantc.persondir.support.MapBackedMultirecordPersonImpl;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.MultivaluedPersonAttributeUtils;
+import org.jasig.services.persondir.support.QueryType;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.util.Assert;
+
+/**
+ * An implementation of {@link org.jasig.services.persondir.IPersonAttributeDao} that answers multirecord queries from
+ * an in-memory index of group memberships instead of searching the directory for every query.  All group entries
+ * under the base DN are loaded when the bean is initialized and the member attributes named in the
+ * queryAttributeMapping are indexed.  The index is rebuilt periodically in the background; each rebuild produces a
+ * new index that replaces the old one in a single step, so queries never wait for a rebuild to complete.
+ *
+ * <br>
+ * <br>
+ * Configuration:
+ * <table border="1">
+ *     <tr>
+ *         <th align="left">Property</th>
+ *         <th align="left">Description</th>
+ *         <th align="left">Required</th>
+ *         <th align="left">Default</th>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">contextSource</td>
+ *         <td>
+ *             A {@link ContextSource} from the Spring-LDAP framework.
+ *         </td>
+ *         <td valign="top">Yes</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">baseDN</td>
+ *         <td>
+ *             The base DistinguishedName to load group entries from.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">""</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">loadFilter</td>
+ *         <td>
+ *             The LDAP filter used to select the group entries to load.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">(objectClass=*)</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">refreshInterval</td>
+ *         <td>
+ *             The number of milliseconds between full rebuilds of the index. Zero disables periodic rebuilds.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">900000</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">queryType</td>
+ *         <td>
+ *             How multiple attributes in a query should be combined. The other option is OR.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">AND</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">snapshotFile</td>
+ *         <td>
+ *             A file that the index is saved to, in the format described in {@link GroupIndexSnapshot}. If the
+ *             file exists when the bean is initialized, queries are answered from the saved index right away and
+ *             the index is rebuilt from the directory in the background.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">snapshotInterval</td>
+ *         <td>
+ *             The number of milliseconds between saves of the index to the snapshot file. The index is only saved
+ *             if it has changed since it was last saved.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">300000</td>
+ *     </tr>
+ * </table>
+ *
+ * The queryAttributeMapping is required because it determines which member attributes are indexed.  Query values
+ * containing wildcards can't be answered from the index and never match.  This DAO is also a
+ * {@link GroupChangeListener}, so a {@link GroupChangeTracker} can keep the index current between full rebuilds.
+ *
+ * @author Dennis Roberts
+ */
+public class LdapGroupIndexAttributeDao extends AbstractQueryMultirecordAttributeDao<GroupIndexQuery>
+        implements InitializingBean, DisposableBean, GroupChangeListener {
+
+    private static final AttributesMapper MAPPER = new AttributesMapperImpl();
+
+    private LdapTemplate ldapTemplate = null;
+    private ContextSource contextSource = null;
+    private String baseDN = "";
+    private String loadFilter = "(objectClass=*)";
+    private long refreshInterval = 900000;
+    private QueryType queryType = QueryType.AND;
+    private final SearchControls searchControls = new SearchControls();
+    private File snapshotFile = null;
+    private long snapshotInterval = 300000;
+
+    /**
+     * The names of the indexed member attributes.
+     */
+    private Set<String> memberAttributes;
+
+    /**
+     * The current index.  Readers use whatever index is current when the query starts.
+     */
+    private volatile GroupMembershipIndex index;
+
+    /**
+     * The index that was most recently saved to or loaded from the snapshot file.
+     */
+    private volatile GroupMembershipIndex savedIndex;
+
+    /**
+     * The changes applied while a rebuild is running, which are applied again to the rebuilt index before it's
+     * published, or null if no rebuild is running.  Guarded by this DAO's monitor.
+     */
+    private List<GroupChanges> changesDuringRebuild = null;
+
+    /**
+     * Ensures that only one rebuild runs at a time.
+     */
+    private final Object rebuildLock = new Object();
+
+    /**
+     * Used to rebuild the index in the background.
+     */
+    private ScheduledExecutorService executor;
+
+    public LdapGroupIndexAttributeDao() {
+        this.searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        this.searchControls.setReturningObjFlag(false);
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (this.contextSource == null) {
+            throw new BeanCreationException("contextSource must be set");
+        }
+        final Map<String, Set<String>> queryAttributeMapping = this.getQueryAttributeMapping();
+        if (queryAttributeMapping == null) {
+            throw new BeanCreationException("queryAttributeMapping must be set");
+        }
+
+        final Collection<String> dataAttributes = MultivaluedPersonAttributeUtils.flattenCollection(queryAttributeMapping.values());
+        this.memberAttributes = new LinkedHashSet<String>(dataAttributes);
+        this.memberAttributes.remove(null);
+
+        final Map<String, Set<String>> resultAttributeMapping = this.getResultAttributeMapping();
+        if (resultAttributeMapping != null) {
+            final Set<String> returningAttributes = new LinkedHashSet<String>(resultAttributeMapping.keySet());
+            returningAttributes.addAll(this.memberAttributes);
+            this.searchControls.setReturningAttributes(returningAttributes.toArray(new String[returningAttributes.size()]));
+        }
+
+        if (this.snapshotFile != null) {
+            this.index = GroupIndexSnapshot.read(this.snapshotFile, this.memberAttributes);
+            this.savedIndex = this.index;
+        }
+        final boolean loaded = this.index != null;
+        if (!loaded) {
+            rebuild();
+        }
+
+        if (this.refreshInterval > 0 || this.snapshotFile != null) {
+            this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "group-index-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        final Runnable rebuildTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebuild();
+                }
+                catch (RuntimeException e) {
+                    logger.error("unable to rebuild the group membership index; keeping the previous index", e);
+                }
+            }
+        };
+        if (loaded) {
+            this.executor.execute(rebuildTask);
+        }
+        if (this.refreshInterval > 0) {
+            this.executor.scheduleWithFixedDelay(rebuildTask, this.refreshInterval, this.refreshInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+        if (this.snapshotFile != null && this.snapshotInterval > 0) {
+            this.executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    saveSnapshot();
+                }
+            }, this.snapshotInterval, this.snapshotInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Saves the current index to the snapshot file if it has changed since it was last saved.  Failures are logged
+     * rather than thrown because the snapshot is only an optimization.
+     */
+    public void saveSnapshot() {
+        final GroupMembershipIndex current = this.index;
+        if (this.snapshotFile == null || current == null || current == this.savedIndex) {
+            return;
+        }
+        try {
+            GroupIndexSnapshot.write(current, this.snapshotFile);
+            this.savedIndex = current;
+        }
+        catch (IOException e) {
+            this.logger.warn("unable to save the group membership index to " + this.snapshotFile, e);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+        saveSnapshot();
+    }
+
+    /**
+     * Loads all group entries from the directory and replaces the current index.  Incremental changes that are
+     * applied while the entries are being loaded are applied to the rebuilt index as well, so they aren't lost if
+     * the search read the entries before they changed.
+     */
+    public void rebuild() {
+        synchronized (this.rebuildLock) {
+            final long start = System.currentTimeMillis();
+            synchronized (this) {
+                this.changesDuringRebuild = new ArrayList<GroupChanges>();
+            }
+            try {
+                final GroupEntryCallbackHandler handler = new GroupEntryCallbackHandler(MAPPER);
+                this.ldapTemplate.search(this.baseDN, this.loadFilter, this.searchControls, handler);
+                GroupMembershipIndex newIndex = GroupMembershipIndex.build(handler.getEntries(), this.memberAttributes);
+                synchronized (this) {
+                    for (final GroupChanges changes : this.changesDuringRebuild) {
+                        newIndex = newIndex.withChanges(changes.getUpdatedGroups(), changes.getRemovedGroups());
+                    }
+                    this.index = newIndex;
+                    if (this.logger.isInfoEnabled()) {
+                        this.logger.info("indexed " + newIndex.size() + " group entries in "
+                                + (System.currentTimeMillis() - start) + " ms, reapplying "
+                                + this.changesDuringRebuild.size() + " concurrent changes");
+                    }
+                }
+            }
+            finally {
+                synchronized (this) {
+                    this.changesDuringRebuild = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies incremental changes to the current index.
+     *
+     * @param changes the changes detected in the directory.
+     */
+    @Override
+    public void groupsChanged(GroupChanges changes) {
+        synchronized (this) {
+            if (this.index != null) {
+                this.index = this.index.withChanges(changes.getUpdatedGroups(), changes.getRemovedGroups());
+            }
+            if (this.changesDuringRebuild != null) {
+                this.changesDuringRebuild.add(changes);
+            }
+        }
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("applied " + changes + " to the group membership index");
+        }
+    }
+
+    /**
+     * @return the current index.
+     */
+    public GroupMembershipIndex getIndex() {
+        return this.index;
+    }
+
+    /**
+     * @return the attributes requested when group entries are loaded, or null if all attributes are requested.
+     */
+    public String[] getReturningAttributes() {
+        return this.searchControls.getReturningAttributes();
+    }
+
+    /* (non-Javadoc)
+     * @see org.iplantc.persondir.support.AbstractQueryMultirecordAttributeDao#appendAttributeToQuery(java.lang.Object, java.lang.String, java.util.List)
+     */
+    @Override
+    protected GroupIndexQuery appendAttributeToQuery(GroupIndexQuery queryBuilder, String dataAttribute, List<Object> queryValues) {
+        if (queryBuilder == null) {
+            queryBuilder = new GroupIndexQuery(this.queryType);
+        }
+
+        final List<String> values = new ArrayList<String>(queryValues.size());
+        for (final Object queryValue : queryValues) {
+            final String queryValueString = queryValue == null ? null : queryValue.toString();
+            if (StringUtils.isNotBlank(queryValueString)) {
+                if (queryValueString.contains("*")) {
+                    this.logger.debug("Wildcard value '" + queryValueString + "' can't be answered from the group index");
+                }
+                else {
+                    values.add(queryValueString);
+                }
+            }
+        }
+        queryBuilder.append(dataAttribute, values);
+
+        return queryBuilder;
+    }
+
+    /* (non-Javadoc)
+     * @see org.iplantc.persondir.support.AbstractQueryMultirecordAttributeDao#getPeopleForQuery(java.lang.Object, java.lang.String)
+     */
+    @Override
+    protected List<IPersonAttributes> getPeopleForQuery(GroupIndexQuery queryBuilder, String queryUserName) {
+        if (queryBuilder.isEmpty()) {
+            return null;
+        }
+
+        final Collection<GroupEntry> groups = queryBuilder.execute(this.index);
+        final List<IPersonAttributes> peopleAttributes = new ArrayList<IPersonAttributes>(groups.size());
+        for (final GroupEntry group : groups) {
+            final IPersonAttributes person;
+            if (queryUserName != null) {
+                person = new MapBackedMultirecordPersonImpl(queryUserName, group.getAttributes());
+            }
+            else {
+                final String userNameAttribute = this.getConfiguredUserNameAttribute();
+                person = MapBackedMultirecordPersonImpl.withUserNameAttribute(userNameAttribute, group.getAttributes());
+            }
+            peopleAttributes.add(person);
+        }
+
+        return peopleAttributes;
+    }
+
+    /**
+     * @return The base distinguished name to load group entries from.
+     */
+    public String getBaseDN() {
+        return this.baseDN;
+    }
+
+    /**
+     * @param baseDN The base distinguished name to load group entries from.
+     */
+    public void setBaseDN(String baseDN) {
+        this.baseDN = baseDN == null ? "" : baseDN;
+    }
+
+    /**
+     * @return The ContextSource to get DirContext objects for queries from.
+     */
+    public ContextSource getContextSource() {
+        return this.contextSource;
+    }
+
+    /**
+     * @param contextSource The ContextSource to get DirContext objects for queries from.
+     */
+    public synchronized void setContextSource(final ContextSource contextSource) {
+        Assert.notNull(contextSource, "contextSource can not be null");
+        this.contextSource = contextSource;
+        this.ldapTemplate = new LdapTemplate(this.contextSource);
+    }
+
+    /**
+     * @return The LDAP filter used to select the group entries to load.
+     */
+    public String getLoadFilter() {
+        return this.loadFilter;
+    }
+
+    /**
+     * @param loadFilter The LDAP filter used to select the group entries to load.
+     */
+    public void setLoadFilter(String loadFilter) {
+        Assert.hasText(loadFilter, "loadFilter can not be blank");
+        this.loadFilter = loadFilter;
+    }
+
+    /**
+     * @return The number of milliseconds between full rebuilds of the index.
+     */
+    public long getRefreshInterval() {
+        return this.refreshInterval;
+    }
+
+    /**
+     * @param refreshInterval The number of milliseconds between full rebuilds of the index.
+     */
+    public void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * @return The file that the index is saved to, or null if the index isn't saved.
+     */
+    public File getSnapshotFile() {
+        return this.snapshotFile;
+    }
+
+    /**
+     * @param snapshotFile The file that the index is saved to.
+     */
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * @return The number of milliseconds between saves of the index.
+     */
+    public long getSnapshotInterval() {
+        return this.snapshotInterval;
+    }
+
+    /**
+     * @param snapshotInterval The number of milliseconds between saves of the index.
+     */
+    public void setSnapshotInterval(long snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * @return the queryType
+     */
+    public QueryType getQueryType() {
+        return queryType;
+    }
+
+    /**
+     * @param queryType the queryType to set
+     */
+    public void setQueryType(QueryType queryType) {
+        this.queryType = queryType;
+    }
+}
@@ -8,28 +8,52 @@
 package org.iplantc.persondir.support.ldap;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
+import javax.naming.NameClassPair;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
 import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
 
 import org.apache.commons.lang.StringUtils;
 import org.iplantc.persondir.support.AbstractQueryMultirecordAttributeDao;
+import org.iplantc.persondir.support.AsyncLookupExecutor;
+import org.iplantc.persondir.support.IAsyncPersonAttributeDao;
+import org.iplantc.persondir.support.IMultiUserPersonAttributeDao;
+import org.iplantc.persondir.support.MapBackedMultirecordPersonImpl;
+import org.iplantc.persondir.support.ReplicaBalancer;
+import org.iplantc.persondir.support.metrics.MetricsRegistry;
 import org.jasig.services.persondir.IPersonAttributes;
-import org.jasig.services.persondir.support.CaseInsensitiveAttributeNamedPersonImpl;
-import org.jasig.services.persondir.support.CaseInsensitiveNamedPersonImpl;
+import org.jasig.services.persondir.support.IUsernameAttributeProvider;
+import org.jasig.services.persondir.support.MultivaluedPersonAttributeUtils;
 import org.jasig.services.persondir.support.QueryType;
 import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.ldap.SizeLimitExceededException;
+import org.springframework.ldap.control.PagedResultsCookie;
+import org.springframework.ldap.control.PagedResultsDirContextProcessor;
 import org.springframework.ldap.core.AttributesMapper;
 import org.springframework.ldap.core.ContextSource;
 import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.NameClassPairCallbackHandler;
+import org.springframework.ldap.core.support.SingleContextSource;
 import org.springframework.ldap.filter.EqualsFilter;
-import org.springframework.ldap.filter.Filter;
-import org.springframework.ldap.filter.LikeFilter;
+import org.springframework.ldap.support.LdapUtils;
 import org.springframework.util.Assert;
 
 /**
@@ -69,10 +93,40 @@ import org.springframework.util.Assert;
  *             A {@link ContextSource} from the Spring-LDAP framework. Provides a DataSource
  *             style object that this DAO can retrieve LDAP connections from.
  *         </td>
- *         <td valign="top">Yes</td>
+ *         <td valign="top">Unless replicaContextSources is set</td>
  *         <td valign="top">null</td>
  *     </tr>
  *     <tr>
+ *         <td align="right" valign="top">replicaContextSources</td>
+ *         <td>
+ *             {@link ContextSource}s for several equivalent directory replicas. If set, each search is sent to
+ *             one of the replicas, chosen by a {@link ReplicaBalancer} from recent latencies and outstanding
+ *             searches, and contextSource is ignored for searches. When pooled is true each replica gets its own
+ *             pool.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">replicaFailureThreshold</td>
+ *         <td>
+ *             The number of consecutive failed searches after which a replica is ejected. Only failures that
+ *             point at the replica itself count: communication errors, service unavailable errors and timeouts.
+ *             Errors caused by the search or by the handling of its results, such as size limits, missing entries
+ *             and mapping failures, don't count against the replica.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">3</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">replicaEjectionDuration</td>
+ *         <td>
+ *             The number of milliseconds that an ejected replica is left alone before it's tried again.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">30000</td>
+ *     </tr>
+ *     <tr>
  *         <td align="right" valign="top">setReturningAttributes</td>
  *         <td>
  *             If the ldap attributes set in the ldapAttributesToPortalAttributes Map should be copied
@@ -90,16 +144,147 @@ import org.springframework.util.Assert;
  *         <td valign="top">No</td>
  *         <td valign="top">AND</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">pageSize</td>
+ *         <td>
+ *             If greater than zero, results are retrieved in pages of this size using the LDAP paged results
+ *             control. All pages are retrieved over the same connection. This avoids server size limits for users
+ *             who belong to a very large number of groups. Only one page of raw directory attributes is held at a
+ *             time, but the mapped records of every page are collected before the lookup returns.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">batchSize</td>
+ *         <td>
+ *             The maximum number of users to look up in a single search when
+ *             {@link #getPeopleByUids(Collection)} is called.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">100</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">pooled</td>
+ *         <td>
+ *             If true, read-only connections obtained from the contextSource are kept open in a
+ *             {@link PooledContextSource} and reused. The pool is filled when the DAO is initialized.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">minIdleConnections</td>
+ *         <td>
+ *             The minimum number of idle connections to keep open when pooled is true.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">2</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">maxIdleConnections</td>
+ *         <td>
+ *             The maximum number of idle connections to keep open when pooled is true.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">8</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">maxActiveConnections</td>
+ *         <td>
+ *             The maximum number of connections that may be open at once when pooled is true.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">16</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">warmUpSearches</td>
+ *         <td>
+ *             The number of searches to run using warmUpFilter when the DAO is initialized, so that connections,
+ *             server caches and the result mapping code are ready before the first real lookup. A warm-up search
+ *             that stops because more than one entry matched still counts as successful. Failed warm-up searches
+ *             are logged and otherwise ignored.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">warmUpFilter</td>
+ *         <td>
+ *             The LDAP filter used for warm-up searches. At most one entry is retrieved per search.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">(objectClass=*)</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">nestedGroupResolver</td>
+ *         <td>
+ *             If set, every group entry returned by a search is expanded into the groups that contain it,
+ *             directly or through other groups, using the {@link NestedGroupResolver}'s in-memory group graph.
+ *             The containing groups are returned as additional records without any additional searches.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">queryResultCache</td>
+ *         <td>
+ *             If set, the entries returned by each search are kept for a short time in this
+ *             {@link LdapQueryResultCache}, keyed by base DN, final LDAP filter and search controls, and reused by
+ *             any DAO sharing the cache that sends the same search. Warm-up searches bypass the cache.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">lazyAttributeValues</td>
+ *         <td>
+ *             If true, attribute values are read from the directory's result only when they're used instead of
+ *             being copied for every returned entry. Attributes that aren't in the resultAttributeMapping are never
+ *             copied, and if no resultAttributeMapping is configured the records are returned without copying
+ *             their values at all.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">attributeLimits</td>
+ *         <td>
+ *             {@link AttributeLimit}s keyed by directory attribute name, limiting the number and total size of
+ *             the values kept for each attribute. The key "*" applies to every attribute without a limit of its
+ *             own. Attributes that exceed their limits are skipped, truncated or hashed when results are mapped,
+ *             and each violation is counted as ldap.limit.&lt;attribute&gt;.&lt;action&gt; in the metrics. The
+ *             data attributes in queryAttributeMapping are never limited, because batch lookups use their values
+ *             to decide which users each entry belongs to.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">asyncExecutor</td>
+ *         <td>
+ *             The {@link AsyncLookupExecutor} that runs lookups started by getPersonAsync and
+ *             getPeopleWithMultivaluedAttributesAsync.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">the shared executor</td>
+ *     </tr>
  * </table>
  * 
+ * In addition to the query metrics recorded by {@link AbstractQueryMultirecordAttributeDao}, the histogram
+ * ldap.search.time records the nanoseconds spent in each directory search, including paged and batch searches,
+ * ldap.entry.time records the nanoseconds spent converting each returned entry, and the counters ldap.searches,
+ * ldap.pages and ldap.entries count searches, retrieved pages and returned entries.  When replicas are configured,
+ * ldap.replica.failures counts searches that failed on the chosen replica.  Failed searches aren't retried on another
+ * replica because the callback handlers may already have received part of the results.
+ * 
  * @author andrew.petro@yale.edu
  * @author Eric Dalquist
  * @version $Revision: 18262 $ $Date: 2009-07-06 10:22:21 -0700 (Mon, 06 Jul 2009) $
  * @since uPortal 2.5
  */
-public class LdapMultirecordAttributeDao extends AbstractQueryMultirecordAttributeDao<LogicalFilterWrapper> implements InitializingBean {
-    private static final Pattern QUERY_PLACEHOLDER = Pattern.compile("\\{0\\}");
-    private final static AttributesMapper MAPPER = new AttributesMapperImpl();
+public class LdapMultirecordAttributeDao extends AbstractQueryMultirecordAttributeDao<LdapQueryPlan.Query>
+        implements InitializingBean, DisposableBean, IMultiUserPersonAttributeDao, IAsyncPersonAttributeDao {
 
     /**
      * The LdapTemplate to use to execute queries on the DirContext
@@ -112,6 +297,53 @@ public class LdapMultirecordAttributeDao extends AbstractQueryMultirecordAttribu
     private SearchControls searchControls = new SearchControls();
     private boolean setReturningAttributes = true;
     private QueryType queryType = QueryType.AND;
+    private int pageSize = 0;
+    private int batchSize = 100;
+    private boolean pooled = false;
+    private int minIdleConnections = 2;
+    private int maxIdleConnections = 8;
+    private int maxActiveConnections = 16;
+    private int warmUpSearches = 0;
+    private String warmUpFilter = "(objectClass=*)";
+    private List<ContextSource> replicaContextSources = null;
+    private int replicaFailureThreshold = 3;
+    private long replicaEjectionDuration = 30000;
+    private NestedGroupResolver nestedGroupResolver = null;
+    private LdapQueryResultCache queryResultCache = null;
+    private boolean lazyAttributeValues = false;
+    private Map<String, AttributeLimit> attributeLimits = null;
+    private AsyncLookupExecutor asyncExecutor = AsyncLookupExecutor.getShared();
+    
+    /**
+     * The connection pools used when pooled is true.
+     */
+    private final List<PooledContextSource> pools = new ArrayList<PooledContextSource>();
+    
+    /**
+     * The templates used to search each replica, in the same order as replicaContextSources.
+     */
+    private LdapTemplate[] replicaTemplates = null;
+    
+    /**
+     * Chooses the replica used for each search when replicas are configured.
+     */
+    private ReplicaBalancer replicaBalancer = null;
+    
+    /**
+     * The precompiled shape of the generated LDAP filters.
+     */
+    private LdapQueryPlan queryPlan = null;
+    
+    /**
+     * Converts the attributes of each search result to a Map.
+     */
+    private AttributesMapper mapper = new AttributesMapperImpl();
+    
+    /**
+     * Describes the configuration of the mapper.  It's added to query result cache keys because entries mapped under
+     * different rules can't be shared by DAOs that use the same cache.
+     */
+    private String mapperConfig = "";
     
     
     public LdapMultirecordAttributeDao() {
@@ -129,9 +361,148 @@ public class LdapMultirecordAttributeDao extends AbstractQueryMultirecordAttribu
             this.searchControls.setReturningAttributes(resultAttributeMapping.keySet().toArray(new String[resultAttributeMapping.size()]));
         }
         
-        if (this.contextSource == null) {
-            throw new BeanCreationException("contextSource must be set");
+        final boolean replicated = this.replicaContextSources != null && !this.replicaContextSources.isEmpty();
+        if (this.contextSource == null && !replicated) {
+            throw new BeanCreationException("contextSource or replicaContextSources must be set");
+        }
+        
+        this.compileQueryPlan();
+        this.mapper = this.createMapper();
+        
+        if (replicated) {
+            this.createReplicas();
         }
+        else if (this.pooled) {
+            this.ldapTemplate = new LdapTemplate(this.createPool(this.contextSource));
+        }
+        this.warmUp();
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    @Override
+    public synchronized void destroy() throws Exception {
+        for (final PooledContextSource pool : this.pools) {
+            pool.destroy();
+        }
+        this.pools.clear();
+    }
+
+    /**
+     * Wraps a context source in a connection pool.
+     * 
+     * @param target the context source that connections are obtained from.
+     * @return the pool.
+     * @throws Exception if the pool can't be initialized.
+     */
+    private synchronized ContextSource createPool(ContextSource target) throws Exception {
+        final PooledContextSource pooledContextSource = new PooledContextSource();
+        pooledContextSource.setContextSource(target);
+        pooledContextSource.setMinIdle(this.minIdleConnections);
+        pooledContextSource.setMaxIdle(this.maxIdleConnections);
+        pooledContextSource.setMaxActive(this.maxActiveConnections);
+        pooledContextSource.afterPropertiesSet();
+        this.pools.add(pooledContextSource);
+        return pooledContextSource;
+    }
+
+    /**
+     * Creates a template for each replica, pooling its connections if requested, and the balancer that chooses
+     * between them.
+     * 
+     * @throws Exception if a pool can't be initialized.
+     */
+    private synchronized void createReplicas() throws Exception {
+        final LdapTemplate[] templates = new LdapTemplate[this.replicaContextSources.size()];
+        for (int i = 0; i < templates.length; i++) {
+            final ContextSource replica = this.replicaContextSources.get(i);
+            templates[i] = new LdapTemplate(this.pooled ? this.createPool(replica) : replica);
+        }
+        this.replicaTemplates = templates;
+        this.replicaBalancer = new ReplicaBalancer(templates.length, this.replicaFailureThreshold,
+                this.replicaEjectionDuration);
+    }
+
+    /**
+     * Runs the configured number of warm-up searches through the normal search path.
+     */
+    private void warmUp() {
+        if (this.warmUpSearches <= 0) {
+            return;
+        }
+        final SearchControls controls = new SearchControls(this.searchControls.getSearchScope(), 1,
+                this.searchControls.getTimeLimit(), this.searchControls.getReturningAttributes(), false,
+                this.searchControls.getDerefLinkFlag());
+        final NameClassPairCallbackHandler handler = new NameClassPairCallbackHandler() {
+            @Override
+            public void handleNameClassPair(NameClassPair nameClassPair) {
+                mapEntry(nameClassPair);
+            }
+        };
+        int failures = 0;
+        for (int i = 0; i < this.warmUpSearches; i++) {
+            try {
+                this.searchDirectory(this.warmUpFilter, controls, handler);
+            }
+            catch (SizeLimitExceededException e) {
+                // The count limit of one was reached, so the server answered the search.
+            }
+            catch (RuntimeException e) {
+                failures++;
+                this.logger.warn("LDAP warm-up search failed: " + e.getMessage());
+            }
+        }
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Ran " + this.warmUpSearches + " LDAP warm-up searches, " + failures + " failed");
+        }
+    }
+
+    /**
+     * Creates the mapper used to convert search results, seeding it with the names of the attributes that are
+     * expected to be returned, and records the configuration that the mapper was created with.
+     * 
+     * @return the mapper.
+     */
+    private AttributesMapper createMapper() {
+        final Set<String> knownAttributes = new LinkedHashSet<String>();
+        final String[] returningAttributes = this.searchControls.getReturningAttributes();
+        if (returningAttributes != null) {
+            Collections.addAll(knownAttributes, returningAttributes);
+        }
+        final Map<String, Set<String>> resultAttributeMapping = this.getResultAttributeMapping();
+        if (resultAttributeMapping != null) {
+            knownAttributes.addAll(resultAttributeMapping.keySet());
+        }
+        final Map<String, Set<String>> queryAttributeMapping = this.getQueryAttributeMapping();
+        Collection<String> dataAttributes = null;
+        if (queryAttributeMapping != null) {
+            dataAttributes = MultivaluedPersonAttributeUtils.flattenCollection(queryAttributeMapping.values());
+            knownAttributes.addAll(dataAttributes);
+        }
+        this.mapperConfig = new StringBuilder()
+                .append(knownAttributes).append('\u0000')
+                .append(this.lazyAttributeValues).append('\u0000')
+                .append(dataAttributes == null ? null : new TreeSet<String>(dataAttributes)).append('\u0000')
+                .append(this.attributeLimits == null ? null : new TreeMap<String, AttributeLimit>(this.attributeLimits))
+                .toString();
+        return new AttributesMapperImpl(false, knownAttributes, this.lazyAttributeValues, this.attributeLimits,
+                dataAttributes, this.getMetrics());
+    }
+
+    /**
+     * Builds the query plan from the current query type, query template and query attribute mapping.
+     */
+    private void compileQueryPlan() {
+        final Map<String, Set<String>> queryAttributeMapping = this.getQueryAttributeMapping();
+        final Collection<String> dataAttributes;
+        if (queryAttributeMapping == null) {
+            dataAttributes = Collections.emptySet();
+        }
+        else {
+            dataAttributes = MultivaluedPersonAttributeUtils.flattenCollection(queryAttributeMapping.values());
+        }
+        this.queryPlan = new LdapQueryPlan(this.queryType, this.queryTemplate, dataAttributes);
     }
 
     
@@ -139,24 +510,21 @@ public class LdapMultirecordAttributeDao extends AbstractQueryMultirecordAttribu
      * @see org.jasig.services.persondir.support.AbstractQueryPersonAttributeDao#appendAttributeToQuery(java.lang.Object, java.lang.String, java.util.List)
      */
     @Override
-    protected LogicalFilterWrapper appendAttributeToQuery(LogicalFilterWrapper queryBuilder, String dataAttribute, List<Object> queryValues) {
+    protected LdapQueryPlan.Query appendAttributeToQuery(LdapQueryPlan.Query queryBuilder, String dataAttribute, List<Object> queryValues) {
         if (queryBuilder == null) {
-            queryBuilder = new LogicalFilterWrapper(this.queryType);
+            queryBuilder = this.queryPlan.newQuery();
         }
         
         for (final Object queryValue : queryValues) {
             final String queryValueString = queryValue == null ? null : queryValue.toString();
             
             if (StringUtils.isNotBlank(queryValueString)) {
-                final Filter filter;
                 if (!queryValueString.contains("*")) {
-                    filter = new EqualsFilter(dataAttribute, queryValueString);
+                    queryBuilder.appendEquals(dataAttribute, queryValueString);
                 }
                 else {
-                    filter = new LikeFilter(dataAttribute, queryValueString);
+                    queryBuilder.appendLike(dataAttribute, queryValueString);
                 }
-                
-                queryBuilder.append(filter);
             }
         }
         
@@ -167,44 +535,459 @@ public class LdapMultirecordAttributeDao extends AbstractQueryMultirecordAttribu
      * @see org.jasig.services.persondir.support.AbstractQueryPersonAttributeDao#getPeopleForQuery(java.lang.Object, java.lang.String)
      */
     @Override
-    protected List<IPersonAttributes> getPeopleForQuery(LogicalFilterWrapper queryBuilder, String queryUserName) {
-        final String generatedLdapQuery = queryBuilder.encode();
-
+    protected List<IPersonAttributes> getPeopleForQuery(LdapQueryPlan.Query queryBuilder, String queryUserName) {
         //If no query is generated return null since the query cannot be run
-        if (StringUtils.isBlank(generatedLdapQuery)) {
+        if (queryBuilder.isEmpty()) {
             return null;
         }
         
         //Insert the generated query into the template if it is configured
-        final String ldapQuery;
-        if (this.queryTemplate == null) {
-            ldapQuery = generatedLdapQuery;
+        final String ldapQuery = queryBuilder.toLdapQuery();
+        
+        //Execute the query, converting each entry to an IPersonAttributes instance as it arrives
+        final PersonCallbackHandler handler = new PersonCallbackHandler(queryUserName);
+        this.search(ldapQuery, this.searchControls, handler);
+        handler.addNestedGroups();
+        
+        return handler.getPeople();
+    }
+
+    /* (non-Javadoc)
+     * @see org.iplantc.persondir.support.IAsyncPersonAttributeDao#getPersonAsync(java.lang.String)
+     */
+    @Override
+    public CompletableFuture<IPersonAttributes> getPersonAsync(final String uid) {
+        return this.asyncExecutor.supplyAsync(new Supplier<IPersonAttributes>() {
+            @Override
+            public IPersonAttributes get() {
+                return getPerson(uid);
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see org.iplantc.persondir.support.IAsyncPersonAttributeDao#getPeopleWithMultivaluedAttributesAsync(java.util.Map)
+     */
+    @Override
+    public CompletableFuture<Set<IPersonAttributes>> getPeopleWithMultivaluedAttributesAsync(
+            final Map<String, List<Object>> query) {
+        return this.asyncExecutor.supplyAsync(new Supplier<Set<IPersonAttributes>>() {
+            @Override
+            public Set<IPersonAttributes> get() {
+                return getPeopleWithMultivaluedAttributes(query);
+            }
+        });
+    }
+
+    /**
+     * Looks up multiple users using as few searches as possible.  The user IDs are split into chunks of at most
+     * batchSize entries and a single search with an OR filter is executed for each chunk.  Each returned entry is
+     * then assigned to every requested user listed in one of the data attributes mapped from the username attribute.
+     * 
+     * @param uids the user IDs.
+     * @return a map from each user ID to the mapped records found for that user.
+     */
+    @Override
+    public Map<String, Set<IPersonAttributes>> getPeopleByUids(Collection<String> uids) {
+        final Map<String, Set<IPersonAttributes>> result = new LinkedHashMap<String, Set<IPersonAttributes>>();
+        for (final String uid : uids) {
+            result.put(uid, new LinkedHashSet<IPersonAttributes>());
         }
-        else {
-            final Matcher queryMatcher = QUERY_PLACEHOLDER.matcher(this.queryTemplate);
-            ldapQuery = queryMatcher.replaceAll(generatedLdapQuery);
+        
+        final Set<String> dataAttributes = this.getUsernameDataAttributes();
+        final SearchControls batchSearchControls = this.createBatchSearchControls(dataAttributes);
+        final List<String> uidList = new ArrayList<String>(result.keySet());
+        for (int start = 0; start < uidList.size(); start += this.batchSize) {
+            final List<String> chunk = uidList.subList(start, Math.min(start + this.batchSize, uidList.size()));
+            
+            final LogicalFilterWrapper filter = new LogicalFilterWrapper(QueryType.OR);
+            for (final String dataAttribute : dataAttributes) {
+                for (final String uid : chunk) {
+                    if (StringUtils.isNotBlank(uid)) {
+                        filter.append(new EqualsFilter(dataAttribute, uid));
+                    }
+                }
+            }
+            final String generatedLdapQuery = filter.encode();
+            if (StringUtils.isBlank(generatedLdapQuery)) {
+                continue;
+            }
+            
+            final BatchCallbackHandler handler = new BatchCallbackHandler(dataAttributes, new HashSet<String>(chunk), result);
+            this.search(this.queryPlan.applyTemplate(generatedLdapQuery), batchSearchControls, handler);
+            handler.addNestedGroups();
         }
         
-        //Execute the query
-        @SuppressWarnings("unchecked")
-        final List<Map<String, List<Object>>> queryResults = this.ldapTemplate.search(this.baseDN, ldapQuery, this.searchControls, MAPPER);
+        return result;
+    }
+
+    /**
+     * @return the data attributes that the username query attribute is mapped to.
+     */
+    private Set<String> getUsernameDataAttributes() {
+        final IUsernameAttributeProvider usernameAttributeProvider = this.getUsernameAttributeProvider();
+        final String usernameAttribute = usernameAttributeProvider.getUsernameAttribute();
+        final Map<String, Set<String>> queryAttributeMapping = this.getQueryAttributeMapping();
+        final Set<String> dataAttributes = queryAttributeMapping == null ? null : queryAttributeMapping.get(usernameAttribute);
+        if (dataAttributes == null || dataAttributes.isEmpty()) {
+            return Collections.singleton(usernameAttribute);
+        }
+        return dataAttributes;
+    }
+
+    /**
+     * Creates the search controls used for batch searches.  The data attributes are always requested so that each
+     * entry can be assigned to the users it belongs to.
+     * 
+     * @param dataAttributes the data attributes that the username query attribute is mapped to.
+     * @return the search controls.
+     */
+    private SearchControls createBatchSearchControls(Set<String> dataAttributes) {
+        String[] returningAttributes = this.searchControls.getReturningAttributes();
+        if (returningAttributes != null) {
+            final Set<String> attributes = new LinkedHashSet<String>();
+            Collections.addAll(attributes, returningAttributes);
+            attributes.addAll(dataAttributes);
+            returningAttributes = attributes.toArray(new String[attributes.size()]);
+        }
+        return new SearchControls(this.searchControls.getSearchScope(), this.searchControls.getCountLimit(),
+                this.searchControls.getTimeLimit(), returningAttributes, this.searchControls.getReturningObjFlag(),
+                this.searchControls.getDerefLinkFlag());
+    }
+
+    /**
+     * Executes a search, answering it from the query result cache if one is configured.
+     * 
+     * @param ldapQuery the LDAP filter.
+     * @param controls the search controls.
+     * @param handler the callback handler that receives the search results.
+     */
+    private void search(final String ldapQuery, final SearchControls controls, EntryCallbackHandler handler) {
+        if (this.queryResultCache == null) {
+            this.searchDirectory(ldapQuery, controls, handler);
+            return;
+        }
         
-        final List<IPersonAttributes> peopleAttributes = new ArrayList<IPersonAttributes>(queryResults.size());
-        for (final Map<String, List<Object>> queryResult : queryResults) {
+        //Results mapped under a different mapper configuration can't be shared
+        final String key = LdapQueryResultCache.key(this.baseDN, ldapQuery, controls) + '\u0000' + this.mapperConfig;
+        final List<GroupEntry> entries = this.queryResultCache.get(key, new Callable<List<GroupEntry>>() {
+            @Override
+            public List<GroupEntry> call() {
+                final EntryCollector collector = new EntryCollector();
+                searchDirectory(ldapQuery, controls, collector);
+                return collector.getEntries();
+            }
+        });
+        for (final GroupEntry entry : entries) {
+            handler.handleEntry(entry.getDn(), entry.getAttributes());
+        }
+    }
+
+    /**
+     * Sends a search to the directory, or to one of the replicas if replicas are configured.
+     * 
+     * @param ldapQuery the LDAP filter.
+     * @param controls the search controls.
+     * @param handler the callback handler that receives the search results.
+     */
+    private void searchDirectory(String ldapQuery, SearchControls controls, NameClassPairCallbackHandler handler) {
+        final MetricsRegistry metrics = this.getMetrics();
+        final long start = System.nanoTime();
+        try {
+            if (this.replicaBalancer == null) {
+                this.search(this.ldapTemplate, ldapQuery, controls, handler);
+            }
+            else {
+                this.searchReplica(ldapQuery, controls, handler);
+            }
+        }
+        finally {
+            metrics.histogram("ldap.search.time").recordSince(start);
+            metrics.counter("ldap.searches").incrementAndGet();
+        }
+    }
+
+    /**
+     * Executes a search on the replica chosen by the balancer and reports the outcome back to the balancer.
+     * 
+     * @param ldapQuery the LDAP filter.
+     * @param controls the search controls.
+     * @param handler the callback handler that receives the search results.
+     */
+    private void searchReplica(String ldapQuery, SearchControls controls, NameClassPairCallbackHandler handler) {
+        final int replica = this.replicaBalancer.choose();
+        final long start = System.nanoTime();
+        try {
+            this.search(this.replicaTemplates[replica], ldapQuery, controls, handler);
+        }
+        catch (RuntimeException e) {
+            if (isReplicaFailure(e)) {
+                this.replicaBalancer.onFailure(replica);
+                this.getMetrics().counter("ldap.replica.failures").incrementAndGet();
+            }
+            else {
+                this.replicaBalancer.release(replica);
+            }
+            throw e;
+        }
+        catch (Error e) {
+            this.replicaBalancer.release(replica);
+            throw e;
+        }
+        this.replicaBalancer.onSuccess(replica, System.nanoTime() - start);
+    }
+
+    /**
+     * Determines whether a search failure means that the replica itself is unhealthy: it couldn't be reached, it
+     * refused service or it didn't answer in time.  Any other failure was caused by the search or by the handling of
+     * its results and says nothing about the replica.
+     * 
+     * @param e the exception thrown by the search.
+     * @return true if the failure should count against the replica.
+     */
+    static boolean isReplicaFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof org.springframework.ldap.CommunicationException
+                    || cause instanceof org.springframework.ldap.ServiceUnavailableException
+                    || cause instanceof org.springframework.ldap.TimeLimitExceededException
+                    || cause instanceof javax.naming.CommunicationException
+                    || cause instanceof javax.naming.ServiceUnavailableException
+                    || cause instanceof javax.naming.TimeLimitExceededException
+                    || cause instanceof java.net.SocketTimeoutException) {
+                return true;
+            }
+            // JNDI reports a read timeout as a plain NamingException, so the message is the only way to spot it.
+            if (cause instanceof NamingException && cause.getMessage() != null
+                    && cause.getMessage().contains("timed out")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Executes a search using a specific template, using paged results if a page size is configured.
+     * 
+     * @param template the template used to execute the search.
+     * @param ldapQuery the LDAP filter.
+     * @param controls the search controls.
+     * @param handler the callback handler that receives the search results.
+     */
+    private void search(LdapTemplate template, String ldapQuery, SearchControls controls, NameClassPairCallbackHandler handler) {
+        if (this.pageSize > 0) {
+            this.searchPaged(template.getContextSource(), ldapQuery, controls, handler);
+        }
+        else {
+            template.search(this.baseDN, ldapQuery, controls, handler);
+        }
+    }
+
+    /**
+     * Executes a search using the paged results control.  Paged results cookies are only valid on the connection
+     * that they were issued on, so every page is retrieved using the same DirContext.
+     * 
+     * @param source the context source that the connection is obtained from.
+     * @param ldapQuery the LDAP filter.
+     * @param controls the search controls.
+     * @param handler the callback handler that receives the entries in each page.
+     */
+    private void searchPaged(ContextSource source, String ldapQuery, SearchControls controls, NameClassPairCallbackHandler handler) {
+        final DirContext context = source.getReadOnlyContext();
+        final SingleContextSource singleContextSource = new SingleContextSource(context);
+        try {
+            final LdapTemplate pagedTemplate = new LdapTemplate(singleContextSource);
+            PagedResultsCookie cookie = null;
+            do {
+                final PagedResultsDirContextProcessor processor = new PagedResultsDirContextProcessor(this.pageSize, cookie);
+                pagedTemplate.search(this.baseDN, ldapQuery, controls, handler, processor);
+                this.getMetrics().counter("ldap.pages").incrementAndGet();
+                cookie = processor.getCookie();
+            } while (cookie != null && cookie.getCookie() != null);
+        }
+        finally {
+            singleContextSource.destroy();
+        }
+    }
+
+    /**
+     * Converts the attributes of a single search result to a Map.
+     * 
+     * @param nameClassPair the search result.
+     * @return the attributes of the search result.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, List<Object>> mapEntry(NameClassPair nameClassPair) {
+        final MetricsRegistry metrics = this.getMetrics();
+        final long start = System.nanoTime();
+        try {
+            return (Map<String, List<Object>>) this.mapper.mapFromAttributes(((SearchResult) nameClassPair).getAttributes());
+        }
+        catch (NamingException e) {
+            throw LdapUtils.convertLdapException(e);
+        }
+        finally {
+            metrics.histogram("ldap.entry.time").recordSince(start);
+            metrics.counter("ldap.entries").incrementAndGet();
+        }
+    }
+
+    /**
+     * Receives each search result as a distinguished name and a mapped attribute map, whether the result came from
+     * the directory or from the query result cache.
+     */
+    private abstract class EntryCallbackHandler implements NameClassPairCallbackHandler {
+
+        /* (non-Javadoc)
+         * @see org.springframework.ldap.core.NameClassPairCallbackHandler#handleNameClassPair(javax.naming.NameClassPair)
+         */
+        @Override
+        public void handleNameClassPair(NameClassPair nameClassPair) {
+            final Map<String, List<Object>> queryResult = mapEntry(nameClassPair);
+            this.handleEntry(((SearchResult) nameClassPair).getNameInNamespace(), queryResult);
+        }
+
+        /**
+         * Handles a single search result.
+         * 
+         * @param dn the distinguished name of the entry.
+         * @param queryResult the mapped attributes of the entry.
+         */
+        protected abstract void handleEntry(String dn, Map<String, List<Object>> queryResult);
+    }
+
+    /**
+     * Collects the search results so that they can be stored in the query result cache.
+     */
+    private class EntryCollector extends EntryCallbackHandler {
+        private final List<GroupEntry> entries = new ArrayList<GroupEntry>();
+
+        /* (non-Javadoc)
+         * @see org.iplantc.persondir.support.ldap.LdapMultirecordAttributeDao.EntryCallbackHandler#handleEntry(java.lang.String, java.util.Map)
+         */
+        @Override
+        protected void handleEntry(String dn, Map<String, List<Object>> queryResult) {
+            this.entries.add(new GroupEntry(dn, queryResult));
+        }
+
+        public List<GroupEntry> getEntries() {
+            return this.entries;
+        }
+    }
+
+    /**
+     * Converts each search result to an IPersonAttributes instance as soon as it's received so that the raw
+     * directory attributes for a result can be discarded before the next result arrives.  The converted records are
+     * collected until the search completes because getPeopleForQuery() returns them as a single list, so the memory
+     * used by a lookup still grows with the number of matching entries.
+     */
+    private class PersonCallbackHandler extends EntryCallbackHandler {
+        private final String queryUserName;
+        private final List<IPersonAttributes> people = new ArrayList<IPersonAttributes>();
+        private final List<String> dns = new ArrayList<String>();
+
+        public PersonCallbackHandler(String queryUserName) {
+            this.queryUserName = queryUserName;
+        }
+
+        /* (non-Javadoc)
+         * @see org.iplantc.persondir.support.ldap.LdapMultirecordAttributeDao.EntryCallbackHandler#handleEntry(java.lang.String, java.util.Map)
+         */
+        @Override
+        protected void handleEntry(String dn, Map<String, List<Object>> queryResult) {
+            if (nestedGroupResolver != null) {
+                this.dns.add(dn);
+            }
+            this.addPerson(queryResult);
+        }
+
+        /**
+         * Adds a record for each group that contains one of the returned groups, if nested groups are expanded.
+         */
+        public void addNestedGroups() {
+            if (nestedGroupResolver == null || this.dns.isEmpty()) {
+                return;
+            }
+            for (final GroupEntry group : nestedGroupResolver.getAncestors(this.dns).values()) {
+                this.addPerson(group.getAttributes());
+            }
+        }
+
+        private void addPerson(Map<String, List<Object>> queryResult) {
             final IPersonAttributes person;
-            if (queryUserName != null) {
-                person = new CaseInsensitiveNamedPersonImpl(queryUserName, queryResult);
+            if (this.queryUserName != null) {
+                person = new MapBackedMultirecordPersonImpl(this.queryUserName, queryResult);
             }
             else {
                 //Create the IPersonAttributes doing a best-guess at a userName attribute
-                final String userNameAttribute = this.getConfiguredUserNameAttribute();
-                person = new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, queryResult);
+                final String userNameAttribute = getConfiguredUserNameAttribute();
+                person = MapBackedMultirecordPersonImpl.withUserNameAttribute(userNameAttribute, queryResult);
             }
             
-            peopleAttributes.add(person);
+            this.people.add(person);
+        }
+
+        public List<IPersonAttributes> getPeople() {
+            return this.people;
+        }
+    }
+
+    /**
+     * Assigns each entry returned by a batch search to the requested users listed in the entry's data attributes.
+     */
+    private class BatchCallbackHandler extends EntryCallbackHandler {
+        private final Set<String> dataAttributes;
+        private final Set<String> requestedUids;
+        private final Map<String, Set<IPersonAttributes>> result;
+        private final Map<String, List<String>> dns = new HashMap<String, List<String>>();
+
+        public BatchCallbackHandler(Set<String> dataAttributes, Set<String> requestedUids, Map<String, Set<IPersonAttributes>> result) {
+            this.dataAttributes = dataAttributes;
+            this.requestedUids = requestedUids;
+            this.result = result;
+        }
+
+        /* (non-Javadoc)
+         * @see org.iplantc.persondir.support.ldap.LdapMultirecordAttributeDao.EntryCallbackHandler#handleEntry(java.lang.String, java.util.Map)
+         */
+        @Override
+        protected void handleEntry(String dn, Map<String, List<Object>> queryResult) {
+            for (final String dataAttribute : this.dataAttributes) {
+                final List<Object> members = queryResult.get(dataAttribute);
+                if (members == null) {
+                    continue;
+                }
+                for (final Object member : members) {
+                    final String uid = member == null ? null : member.toString();
+                    if (uid != null && this.requestedUids.contains(uid)) {
+                        this.result.get(uid).add(mapPersonAttributes(uid, queryResult));
+                        if (nestedGroupResolver != null) {
+                            List<String> uidDns = this.dns.get(uid);
+                            if (uidDns == null) {
+                                uidDns = new ArrayList<String>();
+                                this.dns.put(uid, uidDns);
+                            }
+                            uidDns.add(dn);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds a record for each group that contains one of the groups returned for each user, if nested groups are
+         * expanded.
+         */
+        public void addNestedGroups() {
+            if (nestedGroupResolver == null) {
+                return;
+            }
+            for (final Map.Entry<String, List<String>> entry : this.dns.entrySet()) {
+                final String uid = entry.getKey();
+                for (final GroupEntry group : nestedGroupResolver.getAncestors(entry.getValue()).values()) {
+                    this.result.get(uid).add(mapPersonAttributes(uid, group.getAttributes()));
+                }
+            }
         }
-        
-        return peopleAttributes;
     }
 
     /**
@@ -297,6 +1080,237 @@ public class LdapMultirecordAttributeDao extends AbstractQueryMultirecordAttribu
      */
     public void setQueryType(QueryType queryType) {
         this.queryType = queryType;
+        if (this.queryPlan != null) {
+            this.compileQueryPlan();
+        }
+    }
+
+    /**
+     * @return the page size used for paged searches, or zero if paging is disabled.
+     */
+    public int getPageSize() {
+        return this.pageSize;
+    }
+    /**
+     * @param pageSize the page size used for paged searches, or zero to disable paging.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return the maximum number of users to look up in a single batch search.
+     */
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+    /**
+     * @param batchSize the maximum number of users to look up in a single batch search.
+     */
+    public void setBatchSize(int batchSize) {
+        Assert.isTrue(batchSize > 0, "batchSize must be positive");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return true if connections are pooled.
+     */
+    public boolean isPooled() {
+        return this.pooled;
+    }
+    /**
+     * @param pooled true if read-only connections should be kept open and reused.
+     */
+    public void setPooled(boolean pooled) {
+        this.pooled = pooled;
+    }
+
+    /**
+     * @return the minimum number of idle connections to keep open when pooled.
+     */
+    public int getMinIdleConnections() {
+        return this.minIdleConnections;
+    }
+    /**
+     * @param minIdleConnections the minimum number of idle connections to keep open when pooled.
+     */
+    public void setMinIdleConnections(int minIdleConnections) {
+        this.minIdleConnections = minIdleConnections;
+    }
+
+    /**
+     * @return the maximum number of idle connections to keep open when pooled.
+     */
+    public int getMaxIdleConnections() {
+        return this.maxIdleConnections;
+    }
+    /**
+     * @param maxIdleConnections the maximum number of idle connections to keep open when pooled.
+     */
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        this.maxIdleConnections = maxIdleConnections;
+    }
+
+    /**
+     * @return the maximum number of connections that may be open at once when pooled.
+     */
+    public int getMaxActiveConnections() {
+        return this.maxActiveConnections;
+    }
+    /**
+     * @param maxActiveConnections the maximum number of connections that may be open at once when pooled.
+     */
+    public void setMaxActiveConnections(int maxActiveConnections) {
+        this.maxActiveConnections = maxActiveConnections;
+    }
+
+    /**
+     * @return the number of warm-up searches run when the DAO is initialized.
+     */
+    public int getWarmUpSearches() {
+        return this.warmUpSearches;
+    }
+    /**
+     * @param warmUpSearches the number of warm-up searches to run when the DAO is initialized.
+     */
+    public void setWarmUpSearches(int warmUpSearches) {
+        this.warmUpSearches = warmUpSearches;
+    }
+
+    /**
+     * @return the LDAP filter used for warm-up searches.
+     */
+    public String getWarmUpFilter() {
+        return this.warmUpFilter;
+    }
+    /**
+     * @param warmUpFilter the LDAP filter used for warm-up searches.
+     */
+    public void setWarmUpFilter(String warmUpFilter) {
+        Assert.hasText(warmUpFilter, "warmUpFilter can not be empty");
+        this.warmUpFilter = warmUpFilter;
+    }
+
+    /**
+     * @return the context sources for the directory replicas, or null if replicas aren't used.
+     */
+    public List<ContextSource> getReplicaContextSources() {
+        return this.replicaContextSources;
+    }
+    /**
+     * @param replicaContextSources the context sources for several equivalent directory replicas.
+     */
+    public void setReplicaContextSources(List<ContextSource> replicaContextSources) {
+        this.replicaContextSources = replicaContextSources;
+    }
+
+    /**
+     * @return the number of consecutive failed searches after which a replica is ejected.
+     */
+    public int getReplicaFailureThreshold() {
+        return this.replicaFailureThreshold;
+    }
+    /**
+     * @param replicaFailureThreshold the number of consecutive failed searches after which a replica is ejected.
+     */
+    public void setReplicaFailureThreshold(int replicaFailureThreshold) {
+        Assert.isTrue(replicaFailureThreshold > 0, "replicaFailureThreshold must be positive");
+        this.replicaFailureThreshold = replicaFailureThreshold;
+    }
+
+    /**
+     * @return the number of milliseconds that an ejected replica is left alone.
+     */
+    public long getReplicaEjectionDuration() {
+        return this.replicaEjectionDuration;
+    }
+    /**
+     * @param replicaEjectionDuration the number of milliseconds that an ejected replica is left alone.
+     */
+    public void setReplicaEjectionDuration(long replicaEjectionDuration) {
+        Assert.isTrue(replicaEjectionDuration >= 0, "replicaEjectionDuration can not be negative");
+        this.replicaEjectionDuration = replicaEjectionDuration;
+    }
+
+    /**
+     * @return the balancer used to choose replicas, or null if replicas aren't used.
+     */
+    public ReplicaBalancer getReplicaBalancer() {
+        return this.replicaBalancer;
+    }
+
+    /**
+     * @return the resolver used to expand nested groups, or null if nested groups aren't expanded.
+     */
+    public NestedGroupResolver getNestedGroupResolver() {
+        return this.nestedGroupResolver;
+    }
+    /**
+     * @param nestedGroupResolver the resolver used to expand nested groups.
+     */
+    public void setNestedGroupResolver(NestedGroupResolver nestedGroupResolver) {
+        this.nestedGroupResolver = nestedGroupResolver;
+    }
+
+    /**
+     * @return the cache used to share search results, or null if search results aren't cached.
+     */
+    public LdapQueryResultCache getQueryResultCache() {
+        return this.queryResultCache;
+    }
+    /**
+     * @param queryResultCache the cache used to share search results.
+     */
+    public void setQueryResultCache(LdapQueryResultCache queryResultCache) {
+        this.queryResultCache = queryResultCache;
+    }
+
+    /**
+     * @return true if attribute values are read only when they're used.
+     */
+    public boolean isLazyAttributeValues() {
+        return this.lazyAttributeValues;
+    }
+    /**
+     * @param lazyAttributeValues true if attribute values should be read only when they're used.
+     */
+    public void setLazyAttributeValues(boolean lazyAttributeValues) {
+        this.lazyAttributeValues = lazyAttributeValues;
+    }
+
+    /**
+     * @return the limits for each directory attribute, or null if attributes aren't limited.
+     */
+    public Map<String, AttributeLimit> getAttributeLimits() {
+        return this.attributeLimits;
+    }
+    /**
+     * @param attributeLimits the limits for each directory attribute, keyed by attribute name or "*".
+     */
+    public void setAttributeLimits(Map<String, AttributeLimit> attributeLimits) {
+        this.attributeLimits = attributeLimits;
+    }
+
+    /**
+     * @return the executor that runs asynchronous lookups.
+     */
+    public AsyncLookupExecutor getAsyncExecutor() {
+        return this.asyncExecutor;
+    }
+    /**
+     * @param asyncExecutor the executor that runs asynchronous lookups.
+     */
+    public void setAsyncExecutor(AsyncLookupExecutor asyncExecutor) {
+        Assert.notNull(asyncExecutor, "asyncExecutor may not be null");
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /* (non-Javadoc)
+     * @see org.iplantc.persondir.support.AbstractQueryMultirecordAttributeDao#isDeferringUnmappedValues()
+     */
+    @Override
+    protected boolean isDeferringUnmappedValues() {
+        return this.lazyAttributeValues;
     }
 
     public String getQueryTemplate() {
@@ -307,5 +1321,8 @@ public class LdapMultirecordAttributeDao extends AbstractQueryMultirecordAttribu
      */
     public void setQueryTemplate(String queryTemplate) {
         this.queryTemplate = queryTemplate;
+        if (this.queryPlan != null) {
+            this.compileQueryPlan();
+        }
     }
 }
@@ -0,0 +1,250 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jasig.services.persondir.support.QueryType;
+
+/**
+ * The precompiled shape of the LDAP filters generated by {@link LdapMultirecordAttributeDao}.  Everything that
+ * doesn't depend on the query values is worked out once, when the plan is built: the attribute prefix for each data
+ * attribute, the logical operator and the fixed parts of the query template.  Generating a filter for a request then
+ * only requires escaping the values and copying them into a single StringBuilder.
+ *
+ * The generated filters are identical to the ones produced by the Spring LDAP EqualsFilter, LikeFilter, AndFilter
+ * and OrFilter classes.
+ *
+ * @author Dennis Roberts
+ */
+class LdapQueryPlan {
+
+    /**
+     * The placeholder in the query template that is replaced with the generated filter.
+     */
+    private static final String QUERY_PLACEHOLDER = "{0}";
+
+    /**
+     * The replacement text for characters that have to be escaped in filter values, indexed by character.
+     */
+    private static final String[] FILTER_ESCAPES = new String['\\' + 1];
+
+    static {
+        FILTER_ESCAPES['*'] = "\\2a";
+        FILTER_ESCAPES['('] = "\\28";
+        FILTER_ESCAPES[')'] = "\\29";
+        FILTER_ESCAPES['\\'] = "\\5c";
+        FILTER_ESCAPES[0] = "\\00";
+    }
+
+    /**
+     * The prefix for a filter with more than one component.
+     */
+    private final String operatorPrefix;
+
+    /**
+     * The fixed parts of the query template, or null if there's no template.
+     */
+    private final String[] templateSegments;
+
+    /**
+     * The total length of the fixed parts of the query template.
+     */
+    private final int templateLength;
+
+    /**
+     * The precomputed "(attribute=" prefixes, keyed by data attribute name.
+     */
+    private final Map<String, String> attributePrefixes = new HashMap<String, String>();
+
+    /**
+     * @param queryType how multiple filter components are combined.
+     * @param queryTemplate the optional wrapper template for the generated filter.
+     * @param dataAttributes the data attributes that are expected to appear in queries.
+     */
+    public LdapQueryPlan(QueryType queryType, String queryTemplate, Collection<String> dataAttributes) {
+        this.operatorPrefix = queryType == QueryType.OR ? "(|" : "(&";
+        this.templateSegments = queryTemplate == null ? null : splitTemplate(queryTemplate);
+        int length = 0;
+        if (this.templateSegments != null) {
+            for (String segment : this.templateSegments) {
+                length += segment.length();
+            }
+        }
+        this.templateLength = length;
+        for (String dataAttribute : dataAttributes) {
+            if (dataAttribute != null) {
+                this.attributePrefixes.put(dataAttribute, buildPrefix(dataAttribute));
+            }
+        }
+    }
+
+    /**
+     * Splits a query template into the text that appears before, between and after the placeholders.
+     *
+     * @param queryTemplate the query template.
+     * @return the template segments; there is always one more segment than there are placeholders.
+     */
+    private static String[] splitTemplate(String queryTemplate) {
+        int count = 0;
+        for (int pos = queryTemplate.indexOf(QUERY_PLACEHOLDER); pos >= 0;
+                pos = queryTemplate.indexOf(QUERY_PLACEHOLDER, pos + QUERY_PLACEHOLDER.length())) {
+            count++;
+        }
+        String[] segments = new String[count + 1];
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            int pos = queryTemplate.indexOf(QUERY_PLACEHOLDER, start);
+            segments[i] = queryTemplate.substring(start, pos);
+            start = pos + QUERY_PLACEHOLDER.length();
+        }
+        segments[count] = queryTemplate.substring(start);
+        return segments;
+    }
+
+    /**
+     * @param dataAttribute the data attribute name.
+     * @return the filter prefix for the attribute.
+     */
+    private static String buildPrefix(String dataAttribute) {
+        return "(" + dataAttribute + "=";
+    }
+
+    /**
+     * @return a new, empty query.
+     */
+    public Query newQuery() {
+        return new Query();
+    }
+
+    /**
+     * Inserts a generated filter into the query template.
+     *
+     * @param filter the generated filter.
+     * @return the complete LDAP filter.
+     */
+    public String applyTemplate(String filter) {
+        if (templateSegments == null) {
+            return filter;
+        }
+        StringBuilder buf = new StringBuilder(templateLength + filter.length() * (templateSegments.length - 1));
+        appendTemplate(buf, filter, 0, filter.length());
+        return buf.toString();
+    }
+
+    /**
+     * Appends the query template to a buffer, substituting part of a character sequence for each placeholder.
+     */
+    private void appendTemplate(StringBuilder buf, CharSequence filter, int start, int end) {
+        buf.append(templateSegments[0]);
+        for (int i = 1; i < templateSegments.length; i++) {
+            buf.append(filter, start, end).append(templateSegments[i]);
+        }
+    }
+
+    /**
+     * Appends a value to a filter, escaping special characters.
+     *
+     * @param buf the buffer containing the filter.
+     * @param value the value to append.
+     * @param allowWildcards true if asterisks should be passed through as wildcards.
+     */
+    private static void appendEscaped(StringBuilder buf, String value, boolean allowWildcards) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String escape = c < FILTER_ESCAPES.length ? FILTER_ESCAPES[c] : null;
+            if (escape == null || (allowWildcards && c == '*')) {
+                buf.append(c);
+            }
+            else {
+                buf.append(escape);
+            }
+        }
+    }
+
+    /**
+     * A filter being built for a single request using this plan.
+     */
+    public class Query {
+
+        /**
+         * The filter components appended so far.
+         */
+        private final StringBuilder components = new StringBuilder(64);
+
+        /**
+         * The number of filter components appended so far.
+         */
+        private int count = 0;
+
+        /**
+         * Appends an equality filter component.
+         *
+         * @param dataAttribute the data attribute name.
+         * @param value the value to match exactly.
+         */
+        public void appendEquals(String dataAttribute, String value) {
+            append(dataAttribute, value, false);
+        }
+
+        /**
+         * Appends a substring filter component.
+         *
+         * @param dataAttribute the data attribute name.
+         * @param value the value to match, with asterisks as wildcards.
+         */
+        public void appendLike(String dataAttribute, String value) {
+            append(dataAttribute, value, true);
+        }
+
+        private void append(String dataAttribute, String value, boolean allowWildcards) {
+            String prefix = attributePrefixes.get(dataAttribute);
+            components.append(prefix == null ? buildPrefix(dataAttribute) : prefix);
+            appendEscaped(components, value, allowWildcards);
+            components.append(')');
+            count++;
+        }
+
+        /**
+         * @return true if no filter components have been appended.
+         */
+        public boolean isEmpty() {
+            return count == 0;
+        }
+
+        /**
+         * @return the generated filter, without the query template.
+         */
+        public String encode() {
+            if (count <= 1) {
+                return components.toString();
+            }
+            return new StringBuilder(components.length() + 3)
+                    .append(operatorPrefix).append(components).append(')').toString();
+        }
+
+        /**
+         * @return the complete LDAP filter, including the query template if there is one.
+         */
+        public String toLdapQuery() {
+            if (templateSegments == null) {
+                return encode();
+            }
+            if (count > 1) {
+                return applyTemplate(encode());
+            }
+            StringBuilder buf = new StringBuilder(templateLength + components.length() * (templateSegments.length - 1));
+            appendTemplate(buf, components, 0, components.length());
+            return buf.toString();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return encode();
+        }
+    }
+}
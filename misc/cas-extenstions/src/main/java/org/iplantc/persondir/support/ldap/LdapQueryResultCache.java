@@ -0,0 +1,206 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import javax.naming.directory.SearchControls;
+import org.iplantc.persondir.support.cache.SingleFlight;
+import org.iplantc.persondir.support.cache.StripedLruCache;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * A short-lived cache of raw LDAP search results that can be shared by several DAOs.  Entries are keyed by the base
+ * DN, the final encoded LDAP filter and the search controls, and hold the entries returned by the search as mapped
+ * attribute maps before any result attribute mapping is applied, so that any DAO that sends the same search can use
+ * them no matter how it maps the results.  Concurrent identical searches are coalesced so that only one of them is
+ * sent to the directory.
+ *
+ * The cache key doesn't identify the directory server, so a cache should only be shared by DAOs that search the
+ * same directory.
+ *
+ * <pre>
+ * {@code
+ * <bean id="ldapQueryResultCache" class="org.iplantc.persondir.support.ldap.LdapQueryResultCache">
+ *     <property name="maxSize" value="1000" />
+ *     <property name="timeToLive" value="10000" />
+ * </bean>
+ * }
+ * </pre>
+ *
+ * @author Dennis Roberts
+ */
+public class LdapQueryResultCache implements InitializingBean {
+
+    /**
+     * The maximum number of search results to keep in the cache.
+     */
+    private int maxSize = 1000;
+
+    /**
+     * The number of independently locked cache stripes.
+     */
+    private int stripes = StripedLruCache.DEFAULT_STRIPES;
+
+    /**
+     * The number of milliseconds that search results remain in the cache.
+     */
+    private long timeToLive = 10000;
+
+    /**
+     * The cache itself.
+     */
+    private StripedLruCache<String, List<GroupEntry>> cache;
+
+    /**
+     * Used to coalesce concurrent identical searches.
+     */
+    private final SingleFlight<String, List<GroupEntry>> inFlight = new SingleFlight<String, List<GroupEntry>>();
+
+    /**
+     * @param maxSize the maximum number of search results to keep in the cache.
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param stripes the number of independently locked cache stripes.
+     */
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    /**
+     * @param timeToLive the number of milliseconds that search results remain in the cache.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        cache = new StripedLruCache<String, List<GroupEntry>>(maxSize, stripes);
+    }
+
+    /**
+     * Builds the cache key for a search.  The order of the returning attributes doesn't matter.
+     *
+     * @param baseDN the base DN of the search.
+     * @param filter the encoded LDAP filter.
+     * @param controls the search controls.
+     * @return the cache key.
+     */
+    public static String key(String baseDN, String filter, SearchControls controls) {
+        StringBuilder builder = new StringBuilder(baseDN.length() + filter.length() + 64);
+        builder.append(baseDN).append('\u0000').append(filter).append('\u0000')
+                .append(controls.getSearchScope()).append(',')
+                .append(controls.getCountLimit()).append(',')
+                .append(controls.getTimeLimit()).append(',')
+                .append(controls.getDerefLinkFlag());
+        String[] returningAttributes = controls.getReturningAttributes();
+        if (returningAttributes != null) {
+            String[] sorted = returningAttributes.clone();
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = sorted[i].toLowerCase();
+            }
+            Arrays.sort(sorted);
+            for (String attr : sorted) {
+                builder.append('\u0000').append(attr);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the cached results for a search, running the search if there are none.
+     *
+     * @param key the cache key, as returned by {@link #key(String, String, SearchControls)}.
+     * @param search runs the search and returns the entries that were found.
+     * @return the entries, which must not be modified.
+     */
+    public List<GroupEntry> get(final String key, final Callable<List<GroupEntry>> search) {
+        List<GroupEntry> result = cache.get(key);
+        if (result != null) {
+            return result;
+        }
+        return inFlight.execute(key, new Callable<List<GroupEntry>>() {
+            @Override
+            public List<GroupEntry> call() throws Exception {
+                List<GroupEntry> entries = cache.get(key);
+                if (entries == null) {
+                    entries = freeze(search.call());
+                    cache.put(key, entries, timeToLive);
+                }
+                return entries;
+            }
+        });
+    }
+
+    /**
+     * Makes a list of entries safe to share between threads and DAOs.  Values that are lazily read views of directory
+     * attributes are copied so that the cache doesn't hold on to the directory's attribute objects for as long as the
+     * entries are cached.
+     *
+     * @param entries the entries.
+     * @return an unmodifiable copy of the entries whose attribute values are unmodifiable as well.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<GroupEntry> freeze(List<GroupEntry> entries) {
+        List<GroupEntry> result = new ArrayList<GroupEntry>(entries.size());
+        for (GroupEntry entry : entries) {
+            Map<String, List<Object>> attributes = entry.getAttributes();
+            CaseInsensitiveAttributeMap frozen = new CaseInsensitiveAttributeMap(attributes.size());
+            for (Map.Entry<String, List<Object>> attribute : attributes.entrySet()) {
+                List<Object> values = attribute.getValue();
+                if (values instanceof LazyAttributeValueList) {
+                    values = new ArrayList<Object>(values);
+                }
+                frozen.put(attribute.getKey(), values == null ? null : Collections.unmodifiableList(values));
+            }
+            Map<String, ?> map = frozen;
+            result.add(new GroupEntry(entry.getDn(), (Map<String, List<Object>>) map));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Discards every cached search result.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * @return the number of search results in the cache.
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return the number of searches answered from the cache.
+     */
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    /**
+     * @return the number of searches that weren't answered from the cache.
+     */
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * @return the number of searches that were answered by waiting for an identical search that was already running.
+     */
+    public long getCoalesced() {
+        return inFlight.getCoalesced();
+    }
+}
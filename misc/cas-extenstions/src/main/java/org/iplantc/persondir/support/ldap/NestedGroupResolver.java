@@ -0,0 +1,405 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.naming.directory.SearchControls;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.core.DistinguishedName;
+import org.springframework.ldap.core.LdapTemplate;
+
+/**
+ * Expands direct group memberships into nested group memberships without searching the directory once for each level
+ * of nesting.  Every group entry under the base DN is loaded when the bean is initialized, and a graph from each group
+ * to the groups that list it in their member attribute is built from the loaded entries.  The set of ancestors of a
+ * group is computed the first time it's needed and cached until the graph changes.  Membership cycles are detected
+ * and logged; every group in a cycle is treated as an ancestor of the others.
+ *
+ * The graph is rebuilt periodically in the background.  This class is also a {@link GroupChangeListener}, so a
+ * {@link GroupChangeTracker} can keep the graph current between full rebuilds; in that case the tracker must retrieve
+ * the member attribute.
+ *
+ * <pre>
+ * {@code
+ * <bean id="nestedGroupResolver" class="org.iplantc.persondir.support.ldap.NestedGroupResolver">
+ *     <property name="contextSource" ref="contextSource" />
+ *     <property name="baseDN" value="ou=Groups,dc=iplantcollaborative,dc=org" />
+ *     <property name="loadFilter" value="(objectClass=groupOfNames)" />
+ *     <property name="memberAttribute" value="member" />
+ *     <property name="returningAttributes" value="cn,member" />
+ * </bean>
+ * }
+ * </pre>
+ *
+ * @author Dennis Roberts
+ */
+public class NestedGroupResolver implements GroupChangeListener, InitializingBean, DisposableBean {
+
+    /**
+     * Used to log debugging messages.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(NestedGroupResolver.class);
+
+    /**
+     * Used to convert the attributes of each group entry to a map.
+     */
+    private static final AttributesMapper MAPPER = new AttributesMapperImpl();
+
+    /**
+     * Used to load group entries.
+     */
+    private LdapTemplate ldapTemplate;
+
+    /**
+     * The base DN to load group entries from.
+     */
+    private String baseDN = "";
+
+    /**
+     * The LDAP filter used to select the group entries to load.
+     */
+    private String loadFilter = "(objectClass=groupOfNames)";
+
+    /**
+     * The name of the attribute that lists the distinguished names of a group's members.
+     */
+    private String memberAttribute = "member";
+
+    /**
+     * The attributes to retrieve for each group, or null to retrieve all user attributes.
+     */
+    private String[] returningAttributes = null;
+
+    /**
+     * The number of milliseconds between full rebuilds of the graph.
+     */
+    private long refreshInterval = 900000;
+
+    /**
+     * The current group graph.
+     */
+    private volatile Graph graph = new Graph(Collections.<String, GroupEntry>emptyMap(), "member");
+
+    /**
+     * Used to rebuild the graph in the background.
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param contextSource the context source used to load group entries.
+     */
+    public void setContextSource(ContextSource contextSource) {
+        this.ldapTemplate = new LdapTemplate(contextSource);
+    }
+
+    /**
+     * @param baseDN the base DN to load group entries from.
+     */
+    public void setBaseDN(String baseDN) {
+        this.baseDN = baseDN == null ? "" : baseDN;
+    }
+
+    /**
+     * @param loadFilter the LDAP filter used to select the group entries to load.
+     */
+    public void setLoadFilter(String loadFilter) {
+        this.loadFilter = loadFilter;
+    }
+
+    /**
+     * @param memberAttribute the name of the attribute that lists the distinguished names of a group's members.
+     */
+    public void setMemberAttribute(String memberAttribute) {
+        this.memberAttribute = memberAttribute;
+    }
+
+    /**
+     * @param returningAttributes the attributes to retrieve for each group.  These should include every attribute
+     *                            that is mapped by the DAO that uses this resolver.  The member attribute is always
+     *                            retrieved.
+     */
+    public void setReturningAttributes(String[] returningAttributes) {
+        this.returningAttributes = returningAttributes;
+    }
+
+    /**
+     * @param refreshInterval the number of milliseconds between full rebuilds of the graph, or zero to disable
+     *                        periodic rebuilds.
+     */
+    public void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (ldapTemplate == null) {
+            throw new BeanCreationException("contextSource must be set");
+        }
+        if (memberAttribute == null || memberAttribute.length() == 0) {
+            throw new BeanCreationException("memberAttribute must be set");
+        }
+        rebuild();
+
+        if (refreshInterval > 0) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "nested-group-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        rebuild();
+                    }
+                    catch (RuntimeException e) {
+                        LOG.error("unable to rebuild the nested group graph; keeping the previous graph", e);
+                    }
+                }
+            }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Loads every group entry from the directory and replaces the current graph.
+     */
+    public void rebuild() {
+        long start = System.currentTimeMillis();
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningObjFlag(false);
+        if (returningAttributes != null) {
+            Set<String> attrs = new LinkedHashSet<String>();
+            Collections.addAll(attrs, returningAttributes);
+            attrs.add(memberAttribute);
+            controls.setReturningAttributes(attrs.toArray(new String[attrs.size()]));
+        }
+        GroupEntryCallbackHandler handler = new GroupEntryCallbackHandler(MAPPER);
+        ldapTemplate.search(baseDN, loadFilter, controls, handler);
+        Map<String, GroupEntry> groups = new HashMap<String, GroupEntry>(handler.getEntries().size() * 4 / 3 + 1);
+        for (GroupEntry group : handler.getEntries()) {
+            groups.put(normalize(group.getDn()), group);
+        }
+        replaceGraph(new Graph(groups, memberAttribute));
+        LOG.info("loaded {} groups for nested group expansion in {} ms", groups.size(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Applies changed group entries to the graph.  Cached ancestor sets are discarded because any change can affect
+     * the ancestors of groups that weren't changed themselves.
+     *
+     * @param changes the changes detected in the directory.
+     */
+    @Override
+    public void groupsChanged(GroupChanges changes) {
+        synchronized (this) {
+            Map<String, GroupEntry> groups = new HashMap<String, GroupEntry>(graph.groups);
+            for (String dn : changes.getRemovedGroups()) {
+                groups.remove(normalize(dn));
+            }
+            for (GroupEntry group : changes.getUpdatedGroups()) {
+                groups.put(normalize(group.getDn()), group);
+            }
+            graph = new Graph(groups, memberAttribute);
+        }
+        LOG.debug("applied {} to the nested group graph", changes);
+    }
+
+    /**
+     * Replaces the current graph.
+     *
+     * @param newGraph the new graph.
+     */
+    private synchronized void replaceGraph(Graph newGraph) {
+        graph = newGraph;
+    }
+
+    /**
+     * Finds the groups that contain a set of groups, directly or through other groups.
+     *
+     * @param groupDns the distinguished names of the groups.
+     * @return the ancestor groups that aren't among the given groups, keyed by normalized distinguished name.
+     */
+    public Map<String, GroupEntry> getAncestors(Collection<String> groupDns) {
+        Graph current = graph;
+        Set<String> direct = new LinkedHashSet<String>();
+        for (String dn : groupDns) {
+            direct.add(normalize(dn));
+        }
+        Map<String, GroupEntry> result = new LinkedHashMap<String, GroupEntry>();
+        for (String dn : direct) {
+            for (String ancestor : current.ancestors(dn)) {
+                if (!direct.contains(ancestor) && !result.containsKey(ancestor)) {
+                    GroupEntry group = current.groups.get(ancestor);
+                    if (group != null) {
+                        result.put(ancestor, group);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of groups in the graph.
+     */
+    public int size() {
+        return graph.groups.size();
+    }
+
+    /**
+     * Normalizes a distinguished name so that names that differ only in case or spacing compare equal.
+     *
+     * @param dn the distinguished name.
+     * @return the normalized name.
+     */
+    static String normalize(String dn) {
+        try {
+            return new DistinguishedName(dn).toCompactString().toLowerCase();
+        }
+        catch (RuntimeException e) {
+            return dn.trim().toLowerCase();
+        }
+    }
+
+    /**
+     * An immutable graph from each group to the groups that contain it, along with a cache of each group's ancestors.
+     */
+    private static class Graph {
+
+        /**
+         * The group entries, keyed by normalized distinguished name.
+         */
+        private final Map<String, GroupEntry> groups;
+
+        /**
+         * Maps the normalized distinguished name of each group to the names of the groups that list it as a member.
+         */
+        private final Map<String, List<String>> parents = new HashMap<String, List<String>>();
+
+        /**
+         * The ancestors of each group that have been computed so far.
+         */
+        private final ConcurrentMap<String, Set<String>> ancestors = new ConcurrentHashMap<String, Set<String>>();
+
+        /**
+         * @param groups the group entries, keyed by normalized distinguished name.
+         * @param memberAttribute the name of the attribute that lists the distinguished names of a group's members.
+         */
+        private Graph(Map<String, GroupEntry> groups, String memberAttribute) {
+            this.groups = groups;
+            for (Map.Entry<String, GroupEntry> entry : groups.entrySet()) {
+                for (String member : GroupMembershipIndex.memberValues(entry.getValue(), memberAttribute)) {
+                    String child = normalize(member);
+                    if (groups.containsKey(child)) {
+                        List<String> childParents = parents.get(child);
+                        if (childParents == null) {
+                            childParents = new ArrayList<String>(2);
+                            parents.put(child, childParents);
+                        }
+                        childParents.add(entry.getKey());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Finds the ancestors of a group, computing them if they haven't been computed already.
+         *
+         * @param dn the normalized distinguished name of the group.
+         * @return the normalized distinguished names of the group's ancestors.
+         */
+        private Set<String> ancestors(String dn) {
+            Set<String> result = ancestors.get(dn);
+            if (result == null) {
+                result = computeAncestors(dn);
+                Set<String> existing = ancestors.putIfAbsent(dn, result);
+                if (existing != null) {
+                    result = existing;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Walks up the graph from a group, reusing cached ancestor sets where they're available.
+         *
+         * @param dn the normalized distinguished name of the group.
+         * @return the normalized distinguished names of the group's ancestors.
+         */
+        private Set<String> computeAncestors(String dn) {
+            Set<String> result = new LinkedHashSet<String>();
+            Deque<String> pending = new ArrayDeque<String>();
+            pending.add(dn);
+            boolean cycle = false;
+            while (!pending.isEmpty()) {
+                List<String> groupParents = parents.get(pending.poll());
+                if (groupParents == null) {
+                    continue;
+                }
+                for (String parent : groupParents) {
+                    if (parent.equals(dn)) {
+                        cycle = true;
+                    }
+                    else if (result.add(parent)) {
+                        Set<String> cached = ancestors.get(parent);
+                        if (cached != null) {
+                            for (String ancestor : cached) {
+                                if (ancestor.equals(dn)) {
+                                    cycle = true;
+                                }
+                                else {
+                                    result.add(ancestor);
+                                }
+                            }
+                        }
+                        else {
+                            pending.add(parent);
+                        }
+                    }
+                }
+            }
+            if (cycle) {
+                LOG.warn("group {} is nested within itself", dn);
+            }
+            return Collections.unmodifiableSet(result);
+        }
+    }
+}
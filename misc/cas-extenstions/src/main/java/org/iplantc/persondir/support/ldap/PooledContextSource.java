@@ -0,0 +1,643 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.naming.CommunicationException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.LdapContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.ldap.UncategorizedLdapException;
+import org.springframework.ldap.core.ContextSource;
+
+/**
+ * A {@link ContextSource} that keeps a pool of open, authenticated read-only contexts obtained from another
+ * ContextSource, so that the cost of opening a connection, negotiating TLS and binding isn't paid on every search.
+ * The contexts handed out are proxies; closing one returns the underlying context to the pool instead of closing the
+ * connection.  A context that fails with a communication error is discarded rather than returned.  Request controls
+ * set while a context was borrowed, such as the paged results control, are cleared when the context is returned so
+ * that they can't leak into validation searches or the next borrower's searches.
+ *
+ * Idle contexts are optionally validated with a cheap base-object search before they're handed out.  A background
+ * thread periodically closes contexts that have been idle for too long, validates the remaining idle contexts and
+ * opens new ones to keep at least minIdle contexts ready.  The pool is filled to minIdle when the bean is
+ * initialized so that the first searches after a restart don't have to wait for new connections.
+ *
+ * Read-write contexts and contexts for other principals are obtained directly from the target ContextSource and
+ * aren't pooled.
+ *
+ * <pre>
+ * {@code
+ * <bean id="pooledContextSource" class="org.iplantc.persondir.support.ldap.PooledContextSource">
+ *     <property name="contextSource" ref="contextSource" />
+ *     <property name="minIdle" value="2" />
+ *     <property name="maxIdle" value="8" />
+ *     <property name="maxActive" value="16" />
+ * </bean>
+ * }
+ * </pre>
+ *
+ * @author Dennis Roberts
+ */
+public class PooledContextSource implements ContextSource, InitializingBean, DisposableBean {
+
+    /**
+     * Used to log debugging messages.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(PooledContextSource.class);
+
+    /**
+     * The context source that new contexts are obtained from.
+     */
+    private ContextSource contextSource;
+
+    /**
+     * The minimum number of idle contexts to keep open.
+     */
+    private int minIdle = 2;
+
+    /**
+     * The maximum number of idle contexts to keep open.
+     */
+    private int maxIdle = 8;
+
+    /**
+     * The maximum number of contexts that may be open at once, including contexts that are in use.
+     */
+    private int maxActive = 16;
+
+    /**
+     * The maximum number of milliseconds to wait for a context when all of them are in use.
+     */
+    private long maxWait = 5000;
+
+    /**
+     * True if idle contexts should be validated before they're handed out.
+     */
+    private boolean testOnBorrow = true;
+
+    /**
+     * The name of the entry read to validate a context, relative to the base of the target context source.
+     */
+    private String validationBase = "";
+
+    /**
+     * The filter used to validate a context.
+     */
+    private String validationFilter = "(objectClass=*)";
+
+    /**
+     * The number of milliseconds between eviction runs, or zero to disable eviction.
+     */
+    private long evictionInterval = 60000;
+
+    /**
+     * The number of milliseconds that a context may remain idle before it's eligible for eviction.
+     */
+    private long maxIdleTime = 300000;
+
+    /**
+     * The idle contexts, most recently used first.
+     */
+    private final Deque<PooledContext> idle = new ArrayDeque<PooledContext>();
+
+    /**
+     * The number of contexts that are open, including contexts that are in use.
+     */
+    private int open = 0;
+
+    /**
+     * True once the pool has been shut down.
+     */
+    private boolean closed = false;
+
+    /**
+     * The search controls used to validate contexts.
+     */
+    private SearchControls validationControls;
+
+    /**
+     * Used to evict idle contexts in the background.
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param contextSource the context source that new contexts are obtained from.
+     */
+    public void setContextSource(ContextSource contextSource) {
+        this.contextSource = contextSource;
+    }
+
+    /**
+     * @return the context source that new contexts are obtained from.
+     */
+    public ContextSource getContextSource() {
+        return contextSource;
+    }
+
+    /**
+     * @param minIdle the minimum number of idle contexts to keep open.
+     */
+    public void setMinIdle(int minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    /**
+     * @param maxIdle the maximum number of idle contexts to keep open.
+     */
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @param maxActive the maximum number of contexts that may be open at once, including contexts that are in use.
+     */
+    public void setMaxActive(int maxActive) {
+        this.maxActive = maxActive;
+    }
+
+    /**
+     * @param maxWait the maximum number of milliseconds to wait for a context when all of them are in use.
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * @param testOnBorrow true if idle contexts should be validated before they're handed out.
+     */
+    public void setTestOnBorrow(boolean testOnBorrow) {
+        this.testOnBorrow = testOnBorrow;
+    }
+
+    /**
+     * @param validationBase the name of the entry read to validate a context, relative to the base of the target
+     *                       context source.
+     */
+    public void setValidationBase(String validationBase) {
+        this.validationBase = validationBase;
+    }
+
+    /**
+     * @param validationFilter the filter used to validate a context.
+     */
+    public void setValidationFilter(String validationFilter) {
+        this.validationFilter = validationFilter;
+    }
+
+    /**
+     * @param evictionInterval the number of milliseconds between eviction runs, or zero to disable eviction.
+     */
+    public void setEvictionInterval(long evictionInterval) {
+        this.evictionInterval = evictionInterval;
+    }
+
+    /**
+     * @param maxIdleTime the number of milliseconds that a context may remain idle before it's eligible for
+     *                    eviction.
+     */
+    public void setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (contextSource == null) {
+            throw new BeanCreationException("contextSource must be set");
+        }
+        if (maxActive < 1 || maxIdle < 0 || minIdle < 0 || minIdle > maxIdle || maxIdle > maxActive) {
+            throw new BeanCreationException("pool sizes must satisfy 0 <= minIdle <= maxIdle <= maxActive");
+        }
+        validationControls = new SearchControls(SearchControls.OBJECT_SCOPE, 1, 0, new String[] {"1.1"}, false,
+                false);
+
+        fill();
+        LOG.debug("opened {} pooled LDAP contexts", getNumIdle());
+
+        if (evictionInterval > 0) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ldap-context-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        evict();
+                    }
+                    catch (RuntimeException e) {
+                        LOG.error("unable to evict idle LDAP contexts", e);
+                    }
+                }
+            }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Closes every idle context and stops handing out new ones.  Contexts that are in use are closed when they're
+     * returned.
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        List<PooledContext> contexts;
+        synchronized (this) {
+            closed = true;
+            contexts = new ArrayList<PooledContext>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        for (PooledContext context : contexts) {
+            discard(context);
+        }
+    }
+
+    /**
+     * Borrows a pooled read-only context.  Closing the returned context returns it to the pool.
+     *
+     * @return the context.
+     */
+    @Override
+    public DirContext getReadOnlyContext() {
+        PooledContext context = borrow();
+        return context.createProxy();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DirContext getReadWriteContext() {
+        return contextSource.getReadWriteContext();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DirContext getContext(String principal, String credentials) {
+        return contextSource.getContext(principal, credentials);
+    }
+
+    /**
+     * Takes a valid context from the pool, opening a new one if there are no idle contexts and the pool isn't full.
+     *
+     * @return the context.
+     */
+    private PooledContext borrow() {
+        long deadline = System.currentTimeMillis() + maxWait;
+        while (true) {
+            PooledContext context = null;
+            synchronized (this) {
+                while (!closed && idle.isEmpty() && open >= maxActive) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new UncategorizedLdapException("timed out waiting for a pooled LDAP context");
+                    }
+                    try {
+                        wait(remaining);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new UncategorizedLdapException("interrupted while waiting for a pooled LDAP context", e);
+                    }
+                }
+                if (closed) {
+                    throw new UncategorizedLdapException("the LDAP context pool has been shut down");
+                }
+                context = idle.pollFirst();
+                if (context == null) {
+                    open++;
+                }
+            }
+
+            if (context == null) {
+                return create();
+            }
+            if (!testOnBorrow || validate(context)) {
+                return context;
+            }
+            discard(context);
+        }
+    }
+
+    /**
+     * Opens a new context.  The caller must already have counted the context as open.
+     *
+     * @return the new context.
+     */
+    private PooledContext create() {
+        try {
+            return new PooledContext(contextSource.getReadOnlyContext());
+        }
+        catch (RuntimeException e) {
+            synchronized (this) {
+                open--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a context to the pool, or closes it if it's broken or the pool already has enough idle contexts.
+     *
+     * @param context the context being returned.
+     */
+    private void release(PooledContext context) {
+        if (!context.broken && !clearRequestControls(context)) {
+            context.broken = true;
+        }
+        synchronized (this) {
+            if (!context.broken && !closed && idle.size() < maxIdle) {
+                context.lastUsed = System.currentTimeMillis();
+                idle.addFirst(context);
+                notifyAll();
+                return;
+            }
+        }
+        discard(context);
+    }
+
+    /**
+     * Closes a context and removes it from the count of open contexts.
+     *
+     * @param context the context to close.
+     */
+    private void discard(PooledContext context) {
+        synchronized (this) {
+            open--;
+            notifyAll();
+        }
+        try {
+            context.target.close();
+        }
+        catch (NamingException e) {
+            LOG.debug("unable to close a pooled LDAP context", e);
+        }
+    }
+
+    /**
+     * Removes any request controls that were set on a context while it was borrowed.  Spring LDAP's paged results
+     * processor, for example, sets the paged results control and never removes it.
+     *
+     * @param context the context to clear.
+     * @return true if the controls were cleared or the context doesn't support controls.
+     */
+    private boolean clearRequestControls(PooledContext context) {
+        if (!(context.target instanceof LdapContext)) {
+            return true;
+        }
+        try {
+            ((LdapContext) context.target).setRequestControls(null);
+            return true;
+        }
+        catch (NamingException e) {
+            LOG.debug("discarding an LDAP context whose request controls couldn't be cleared", e);
+            return false;
+        }
+    }
+
+    /**
+     * Checks that a context still works by reading a single entry.  Any request controls left on the context are
+     * cleared first so that they can't affect the validation search.
+     *
+     * @param context the context to validate.
+     * @return true if the context is usable.
+     */
+    private boolean validate(PooledContext context) {
+        if (!clearRequestControls(context)) {
+            return false;
+        }
+        try {
+            NamingEnumeration<?> results = context.target.search(validationBase, validationFilter, validationControls);
+            try {
+                while (results.hasMore()) {
+                    results.next();
+                }
+            }
+            finally {
+                results.close();
+            }
+            return true;
+        }
+        catch (NamingException e) {
+            LOG.debug("discarding an LDAP context that failed validation", e);
+            return false;
+        }
+    }
+
+    /**
+     * Opens new contexts until there are at least minIdle idle contexts or the pool is full.  Failures are logged
+     * rather than thrown so that an unavailable directory server doesn't prevent the application from starting.
+     */
+    private void fill() {
+        while (true) {
+            synchronized (this) {
+                if (closed || idle.size() >= minIdle || open >= maxActive) {
+                    return;
+                }
+                open++;
+            }
+            try {
+                release(create());
+            }
+            catch (RuntimeException e) {
+                LOG.warn("unable to open a pooled LDAP context", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes contexts that have been idle for too long, validates the remaining idle contexts and then opens new
+     * contexts if there are fewer than minIdle idle contexts.
+     */
+    public void evict() {
+        List<PooledContext> expired = new ArrayList<PooledContext>();
+        List<PooledContext> remaining = new ArrayList<PooledContext>();
+        synchronized (this) {
+            long cutoff = System.currentTimeMillis() - maxIdleTime;
+            Iterator<PooledContext> it = idle.descendingIterator();
+            while (it.hasNext()) {
+                PooledContext context = it.next();
+                if (idle.size() > minIdle && context.lastUsed < cutoff) {
+                    it.remove();
+                    expired.add(context);
+                }
+            }
+            if (testOnBorrow) {
+                remaining.addAll(idle);
+                idle.clear();
+            }
+        }
+        for (PooledContext context : expired) {
+            discard(context);
+        }
+        for (PooledContext context : remaining) {
+            if (validate(context)) {
+                synchronized (this) {
+                    if (!closed && idle.size() < maxIdle) {
+                        idle.addLast(context);
+                        notifyAll();
+                        continue;
+                    }
+                }
+            }
+            discard(context);
+        }
+        if (!expired.isEmpty()) {
+            LOG.debug("evicted {} idle LDAP contexts", expired.size());
+        }
+        fill();
+    }
+
+    /**
+     * @return the number of idle contexts in the pool.
+     */
+    public synchronized int getNumIdle() {
+        return idle.size();
+    }
+
+    /**
+     * @return the number of contexts that are currently in use.
+     */
+    public synchronized int getNumActive() {
+        return open - idle.size();
+    }
+
+    /**
+     * A context that belongs to the pool.
+     */
+    private class PooledContext {
+
+        /**
+         * The underlying context.
+         */
+        private final DirContext target;
+
+        /**
+         * The time when the context was last returned to the pool.
+         */
+        private long lastUsed;
+
+        /**
+         * True if the context failed with a communication error.
+         */
+        private volatile boolean broken = false;
+
+        /**
+         * @param target the underlying context.
+         */
+        private PooledContext(DirContext target) {
+            this.target = target;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Creates a proxy that hands this context back to the pool when it's closed.  The proxy implements
+         * LdapContext if the underlying context does, so request controls such as the paged results control can
+         * still be used.
+         *
+         * @return the proxy.
+         */
+        private DirContext createProxy() {
+            Class<?>[] interfaces = target instanceof LdapContext
+                    ? new Class<?>[] {LdapContext.class}
+                    : new Class<?>[] {DirContext.class};
+            return (DirContext) Proxy.newProxyInstance(PooledContextSource.class.getClassLoader(), interfaces,
+                    new BorrowedContextHandler(this));
+        }
+    }
+
+    /**
+     * Forwards calls to a pooled context until the borrowed context is closed.
+     */
+    private class BorrowedContextHandler implements InvocationHandler {
+
+        /**
+         * The pooled context.
+         */
+        private final PooledContext context;
+
+        /**
+         * True once the borrowed context has been closed.
+         */
+        private boolean returned = false;
+
+        /**
+         * @param context the pooled context.
+         */
+        private BorrowedContextHandler(PooledContext context) {
+            this.context = context;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals") && args != null && args.length == 1) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode") && (args == null || args.length == 0)) {
+                return System.identityHashCode(proxy);
+            }
+            if (name.equals("toString") && (args == null || args.length == 0)) {
+                return "PooledContext[" + context.target + "]";
+            }
+            if (name.equals("close") && (args == null || args.length == 0)) {
+                synchronized (this) {
+                    if (!returned) {
+                        returned = true;
+                        release(context);
+                    }
+                }
+                return null;
+            }
+            synchronized (this) {
+                if (returned) {
+                    throw new NamingException("the LDAP context has already been closed");
+                }
+            }
+            try {
+                return method.invoke(context.target, args);
+            }
+            catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof CommunicationException || cause instanceof ServiceUnavailableException) {
+                    context.broken = true;
+                }
+                throw cause;
+            }
+        }
+    }
+}
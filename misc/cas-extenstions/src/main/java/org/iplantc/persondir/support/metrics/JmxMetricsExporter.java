@@ -0,0 +1,100 @@
+package org.iplantc.persondir.support.metrics;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Registers a {@link MetricsRegistry} with the platform MBean server when the bean is initialized, and unregisters it
+ * when the bean is destroyed.  Only the JMX support built into the JVM is used:
+ *
+ * <pre>
+ * {@code
+ * <bean id="metrics" class="org.iplantc.persondir.support.metrics.MetricsRegistry" />
+ *
+ * <bean class="org.iplantc.persondir.support.metrics.JmxMetricsExporter">
+ *     <property name="registry" ref="metrics" />
+ *     <property name="objectName" value="org.iplantc.persondir:type=Metrics,name=groups" />
+ * </bean>
+ * }
+ * </pre>
+ *
+ * @author Dennis Roberts
+ */
+public class JmxMetricsExporter implements InitializingBean, DisposableBean {
+
+    /**
+     * Used to log debugging messages.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(JmxMetricsExporter.class);
+
+    /**
+     * The registry to publish.
+     */
+    private MetricsRegistry registry;
+
+    /**
+     * The JMX object name to publish the registry under.
+     */
+    private String objectName;
+
+    /**
+     * The name that the registry was actually registered under.
+     */
+    private ObjectName registeredName;
+
+    /**
+     * @param registry the registry to publish.
+     */
+    public void setRegistry(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * @param objectName the JMX object name to publish the registry under.
+     */
+    public void setObjectName(String objectName) {
+        this.objectName = objectName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (registry == null) {
+            throw new BeanCreationException("registry must be set");
+        }
+        if (objectName == null) {
+            throw new BeanCreationException("objectName must be set");
+        }
+        ObjectName name = new ObjectName(objectName);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name)) {
+            LOG.warn("replacing the MBean already registered as {}", name);
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(new MetricsMBean(registry), name);
+        registeredName = name;
+        LOG.debug("registered metrics as {}", name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (registeredName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(registeredName)) {
+                server.unregisterMBean(registeredName);
+            }
+            registeredName = null;
+        }
+    }
+}
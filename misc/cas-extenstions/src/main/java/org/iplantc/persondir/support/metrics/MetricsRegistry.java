@@ -0,0 +1,104 @@
+package org.iplantc.persondir.support.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A named collection of histograms and counters.  Metrics are created the first time they're requested, so callers
+ * can simply ask for a metric by name whenever they need to record something.  A registry can be shared by several
+ * components, in which case metrics with the same name are combined.  The registry can be published through JMX
+ * using {@link JmxMetricsExporter}.
+ *
+ * Histograms whose names end in ".time" record elapsed times in nanoseconds.
+ *
+ * @author Dennis Roberts
+ */
+public class MetricsRegistry {
+
+    /**
+     * The percentiles reported for each histogram in a snapshot.
+     */
+    private static final int[] SNAPSHOT_PERCENTILES = {50, 95, 99};
+
+    /**
+     * The histograms, indexed by name.
+     */
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * The counters, indexed by name.
+     */
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Returns the histogram with the given name, creating it if necessary.
+     *
+     * @param name the name of the histogram.
+     * @return the histogram.
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram();
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if necessary.
+     *
+     * @param name the name of the counter.
+     * @return the counter.
+     */
+    public AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Takes a snapshot of the current values of all metrics.  Each counter appears under its own name.  Each
+     * histogram appears as several values named after the histogram: count, mean, p50, p95, p99 and max.
+     *
+     * @return the current metric values, sorted by name.
+     */
+    public SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> result = new TreeMap<String, Number>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            Histogram histogram = entry.getValue();
+            result.put(name + ".count", histogram.getCount());
+            result.put(name + ".mean", histogram.getMean());
+            for (int percentile : SNAPSHOT_PERCENTILES) {
+                result.put(name + ".p" + percentile, histogram.getPercentile(percentile));
+            }
+            result.put(name + ".max", histogram.getMax());
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "MetricsRegistry" + snapshot();
+    }
+}
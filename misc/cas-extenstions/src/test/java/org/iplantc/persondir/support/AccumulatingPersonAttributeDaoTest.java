@@ -0,0 +1,352 @@
+package org.iplantc.persondir.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.junit.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+/**
+ * Unit tests for {@link AccumulatingPersonAttributeDao}.
+ *
+ * @author Dennis Roberts
+ */
+public class AccumulatingPersonAttributeDaoTest {
+
+    /**
+     * Verifies that querying several inner DAOs before afterPropertiesSet() has been called fails with a clear
+     * message.
+     */
+    @Test
+    public void shouldFailFastWhenNotInitialized() {
+        AccumulatingPersonAttributeDao dao = newDao(new StubPersonAttributeDao(), new StubPersonAttributeDao());
+        try {
+            dao.getPerson("alice");
+            fail("expected an IllegalStateException");
+        }
+        catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("afterPropertiesSet"));
+        }
+    }
+
+    /**
+     * Verifies that the records of all inner DAOs are accumulated into a single complete record.
+     */
+    @Test
+    public void shouldAccumulateAllSources() throws Exception {
+        AccumulatingPersonAttributeDao dao = newDao(
+                new StubPersonAttributeDao().addPerson("alice", "entitlement", "a"),
+                new StubPersonAttributeDao().addPerson("alice", "entitlement", "b"));
+        dao.afterPropertiesSet();
+        IPersonAttributes person = dao.getPerson("alice");
+        assertEquals(new HashSet<Object>(Arrays.asList("a", "b")),
+                new HashSet<Object>(person.getAttributeValues("entitlement")));
+        assertFalse(person instanceof PartialResult);
+        assertFalse(PartialResults.isPartial(dao.getPeopleWithMultivaluedAttributes(query("alice"))));
+        dao.destroy();
+    }
+
+    /**
+     * Verifies that a source that doesn't respond in time is dropped and the result is marked as partial.
+     */
+    @Test
+    public void shouldMarkTimedOutResultsAsPartial() throws Exception {
+        StubPersonAttributeDao slow = new StubPersonAttributeDao().addPerson("alice", "entitlement", "b");
+        slow.block("alice");
+        AccumulatingPersonAttributeDao dao = newDao(
+                new StubPersonAttributeDao().addPerson("alice", "entitlement", "a"), slow);
+        dao.setLookupTimeout(50);
+        dao.afterPropertiesSet();
+        try {
+            IPersonAttributes person = dao.getPerson("alice");
+            assertEquals(Arrays.<Object>asList("a"), person.getAttributeValues("entitlement"));
+            assertTrue(person instanceof PartialResult);
+
+            Set<IPersonAttributes> people = dao.getPeopleWithMultivaluedAttributes(query("alice"));
+            assertTrue(PartialResults.isPartial(people));
+            assertEquals(2, dao.getMetrics().counter("accumulate.timeouts").get());
+        }
+        finally {
+            slow.release();
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Verifies that a user who wasn't found in the sources that responded isn't reported as missing when another
+     * source timed out.
+     */
+    @Test
+    public void shouldNotReportMissingUserWhenSourceTimedOut() throws Exception {
+        StubPersonAttributeDao slow = new StubPersonAttributeDao().block("bob");
+        AccumulatingPersonAttributeDao dao = newDao(new StubPersonAttributeDao(), slow);
+        dao.setLookupTimeout(50);
+        dao.afterPropertiesSet();
+        try {
+            IPersonAttributes person = dao.getPerson("bob");
+            assertNotNull(person);
+            assertTrue(person instanceof PartialResult);
+            assertTrue(person.getAttributes().isEmpty());
+        }
+        finally {
+            slow.release();
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Verifies that a lookup fails at once instead of running on the calling thread when every pool thread is busy
+     * and the queue is full.
+     */
+    @Test
+    public void shouldFailFastWhenPoolAndQueueAreFull() throws Exception {
+        final StubPersonAttributeDao first = new StubPersonAttributeDao().addPerson("bob", "entitlement", "a");
+        final StubPersonAttributeDao second = new StubPersonAttributeDao().addPerson("bob", "entitlement", "b");
+        first.block("alice");
+        second.block("alice");
+        final AccumulatingPersonAttributeDao dao = newDao(first, second);
+        dao.setMaxConcurrency(1);
+        dao.setMaxQueuedLookups(0);
+        dao.setLookupTimeout(10000);
+        dao.afterPropertiesSet();
+        Thread blocked = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dao.getPerson("alice");
+            }
+        });
+        blocked.start();
+        try {
+            first.awaitBlocked();
+            second.awaitBlocked();
+            try {
+                dao.getPerson("bob");
+                fail("expected a DataAccessResourceFailureException");
+            }
+            catch (DataAccessResourceFailureException e) {
+                // expected
+            }
+            assertNull(first.getThread("bob"));
+            assertNull(second.getThread("bob"));
+            assertEquals(1, dao.getMetrics().counter("accumulate.rejected").get());
+        }
+        finally {
+            first.release();
+            second.release();
+            blocked.join();
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Verifies that queries wait in the queue for a pool thread when every thread is busy.
+     */
+    @Test
+    public void shouldQueueLookupsWhenPoolIsBusy() throws Exception {
+        final StubPersonAttributeDao first = new StubPersonAttributeDao().addPerson("bob", "entitlement", "a");
+        final StubPersonAttributeDao second = new StubPersonAttributeDao().addPerson("bob", "entitlement", "b");
+        first.block("alice");
+        second.block("alice");
+        final AccumulatingPersonAttributeDao dao = newDao(first, second);
+        dao.setMaxConcurrency(1);
+        dao.setMaxQueuedLookups(1);
+        dao.afterPropertiesSet();
+        Thread blocked = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dao.getPerson("alice");
+            }
+        });
+        blocked.start();
+        try {
+            first.awaitBlocked();
+            second.awaitBlocked();
+            Thread release = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(50);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    first.release();
+                    second.release();
+                }
+            });
+            release.start();
+            IPersonAttributes person = dao.getPerson("bob");
+            release.join();
+            assertEquals(2, person.getAttributeValues("entitlement").size());
+            assertTrue(first.getThread("bob").getName().startsWith("accumulating-dao-"));
+            assertTrue(second.getThread("bob").getName().startsWith("accumulating-dao-"));
+        }
+        finally {
+            first.release();
+            second.release();
+            blocked.join();
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Verifies that the queries of the other inner DAOs are cancelled when one inner DAO fails.
+     */
+    @Test
+    public void shouldCancelOtherQueriesWhenOneFails() throws Exception {
+        IllegalArgumentException failure = new IllegalArgumentException("bad query");
+        StubPersonAttributeDao slow = new StubPersonAttributeDao().block("alice");
+        AccumulatingPersonAttributeDao dao = newDao(slow,
+                new StubPersonAttributeDao().setFailure(failure).setDelay(50));
+        dao.afterPropertiesSet();
+        try {
+            try {
+                dao.getPerson("alice");
+                fail("expected an IllegalArgumentException");
+            }
+            catch (IllegalArgumentException e) {
+                assertSame(failure, e);
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (slow.getInterruptions() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, slow.getInterruptions());
+        }
+        finally {
+            slow.release();
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Verifies that a caching DAO doesn't store a partial result, so the next lookup queries the sources again.
+     */
+    @Test
+    public void shouldNotCachePartialResults() throws Exception {
+        StubPersonAttributeDao fast = new StubPersonAttributeDao().addPerson("alice", "entitlement", "a");
+        StubPersonAttributeDao slow = new StubPersonAttributeDao().block("alice");
+        AccumulatingPersonAttributeDao dao = newDao(fast, slow);
+        dao.setLookupTimeout(50);
+        dao.afterPropertiesSet();
+        CachingPersonAttributeDao cache = new CachingPersonAttributeDao();
+        cache.setInnerDao(dao);
+        cache.afterPropertiesSet();
+        try {
+            cache.getPerson("alice");
+            cache.getPerson("alice");
+            assertEquals(2, fast.getCalls());
+            assertEquals(0, cache.getCacheSize());
+        }
+        finally {
+            slow.release();
+            cache.destroy();
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Verifies that asynchronous lookups query each inner DAO on the async executor instead of the shared pool.
+     */
+    @Test
+    public void shouldQueryInnerDaosOnAsyncExecutor() throws Exception {
+        StubPersonAttributeDao first = new StubPersonAttributeDao().addPerson("alice", "entitlement", "a");
+        StubPersonAttributeDao second = new StubPersonAttributeDao().addPerson("alice", "entitlement", "b");
+        AccumulatingPersonAttributeDao dao = newDao(first, second);
+        dao.setMaxConcurrency(1);
+        dao.afterPropertiesSet();
+        try {
+            IPersonAttributes person = dao.getPersonAsync("alice").get();
+            assertEquals(new HashSet<Object>(Arrays.asList("a", "b")),
+                    new HashSet<Object>(person.getAttributeValues("entitlement")));
+            assertFalse(first.getThread("alice").getName().startsWith("accumulating-dao-"));
+            assertFalse(second.getThread("alice").getName().startsWith("accumulating-dao-"));
+        }
+        finally {
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Verifies that an asynchronous lookup drops a source that doesn't respond in time and marks its result as
+     * partial.
+     */
+    @Test
+    public void shouldMarkTimedOutAsyncResultsAsPartial() throws Exception {
+        StubPersonAttributeDao slow = new StubPersonAttributeDao().addPerson("alice", "entitlement", "b");
+        slow.block("alice");
+        AccumulatingPersonAttributeDao dao = newDao(
+                new StubPersonAttributeDao().addPerson("alice", "entitlement", "a"), slow);
+        dao.setLookupTimeout(50);
+        dao.afterPropertiesSet();
+        try {
+            IPersonAttributes person = dao.getPersonAsync("alice").get();
+            assertEquals(Arrays.<Object>asList("a"), person.getAttributeValues("entitlement"));
+            assertTrue(person instanceof PartialResult);
+            assertTrue(PartialResults.isPartial(dao.getPeopleWithMultivaluedAttributesAsync(query("alice")).get()));
+            assertEquals(2, dao.getMetrics().counter("accumulate.timeouts").get());
+        }
+        finally {
+            slow.release();
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Verifies that an asynchronous lookup fails with the exception thrown by an inner DAO.
+     */
+    @Test
+    public void shouldPassOnAsyncFailures() throws Exception {
+        IllegalArgumentException failure = new IllegalArgumentException("bad query");
+        AccumulatingPersonAttributeDao dao = newDao(new StubPersonAttributeDao(),
+                new StubPersonAttributeDao().setFailure(failure));
+        dao.afterPropertiesSet();
+        try {
+            dao.getPersonAsync("alice").get();
+            fail("expected an ExecutionException");
+        }
+        catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+        finally {
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Builds a query for a single user.
+     *
+     * @param uid the user ID.
+     * @return the query.
+     */
+    private static Map<String, List<Object>> query(String uid) {
+        return Collections.singletonMap("username", Collections.<Object>singletonList(uid));
+    }
+
+    /**
+     * Creates an accumulating DAO that queries the given inner DAOs.
+     *
+     * @param innerDaos the inner DAOs.
+     * @return the accumulating DAO.
+     */
+    private static AccumulatingPersonAttributeDao newDao(IPersonAttributeDao... innerDaos) {
+        AccumulatingPersonAttributeDao dao = new AccumulatingPersonAttributeDao();
+        List<IPersonAttributeDao> daos = Arrays.asList(innerDaos);
+        dao.setInnerDaos(daos);
+        return dao;
+    }
+}
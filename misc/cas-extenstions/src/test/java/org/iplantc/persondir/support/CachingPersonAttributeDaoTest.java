@@ -0,0 +1,186 @@
+package org.iplantc.persondir.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link CachingPersonAttributeDao}.
+ *
+ * @author Dennis Roberts
+ */
+public class CachingPersonAttributeDaoTest {
+
+    /**
+     * Verifies that refreshes query the inner DAOs of an accumulating DAO on the refresh threads instead of on the
+     * pool that logins use.
+     */
+    @Test
+    public void shouldRefreshWithoutUsingSharedPool() throws Exception {
+        StubPersonAttributeDao first = new StubPersonAttributeDao().addPerson("alice", "entitlement", "a");
+        StubPersonAttributeDao second = new StubPersonAttributeDao().addPerson("alice", "entitlement", "b");
+        AccumulatingPersonAttributeDao accumulator = new AccumulatingPersonAttributeDao();
+        accumulator.setInnerDaos(Arrays.<IPersonAttributeDao>asList(first, second));
+        accumulator.setMaxConcurrency(1);
+        accumulator.afterPropertiesSet();
+        CachingPersonAttributeDao dao = newDao(accumulator);
+        try {
+            dao.getPerson("alice");
+            Thread.sleep(50);
+            dao.getPerson("alice");
+            awaitRefresh(dao);
+            assertEquals(1, dao.getRefreshes());
+            assertTrue(first.getThread("alice").getName().startsWith("cache-refresh-"));
+            assertTrue(second.getThread("alice").getName().startsWith("cache-refresh-"));
+        }
+        finally {
+            dao.destroy();
+            accumulator.destroy();
+        }
+    }
+
+    /**
+     * Verifies that a refresh that finds nothing doesn't replace an entry that has records.
+     */
+    @Test
+    public void shouldKeepEntryWhenRefreshFindsNothing() throws Exception {
+        StubPersonAttributeDao inner = new StubPersonAttributeDao().addPerson("alice", "entitlement", "a");
+        CachingPersonAttributeDao dao = newDao(inner);
+        try {
+            dao.getPerson("alice");
+            inner.removePerson("alice");
+            Thread.sleep(50);
+            dao.getPerson("alice");
+            awaitRefresh(dao);
+            assertEquals(1, dao.getRefreshesDiscarded());
+            assertEquals(0, dao.getRefreshes());
+            assertEquals(2, inner.getCalls());
+            IPersonAttributes person = dao.getPerson("alice");
+            assertEquals(Arrays.<Object>asList("a"), person.getAttributeValues("entitlement"));
+        }
+        finally {
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Verifies that a query for a user isn't answered with the result that getPerson() cached for the same user, and
+     * that removing the user's attributes removes both results.
+     */
+    @Test
+    public void shouldCachePersonAndQueryResultsSeparately() throws Exception {
+        StubPersonAttributeDao inner = new StubPersonAttributeDao();
+        CachingPersonAttributeDao dao = newDao(inner);
+        try {
+            assertNull(dao.getPerson("bob"));
+            Map<String, List<Object>> query
+                    = Collections.singletonMap("username", Collections.<Object>singletonList("bob"));
+            Set<IPersonAttributes> people = dao.getPeopleWithMultivaluedAttributes(query);
+            assertNotNull(people);
+            assertTrue(people.isEmpty());
+            assertEquals(2, inner.getCalls());
+            assertEquals(2, dao.getCacheSize());
+            assertEquals(Arrays.asList("bob"), dao.getRecentUids(10));
+
+            dao.removeUserAttributes("bob");
+            assertEquals(0, dao.getCacheSize());
+        }
+        finally {
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Verifies that a lookup that was already running when a user's attributes were removed doesn't cache the removed
+     * attributes.
+     */
+    @Test
+    public void shouldNotCacheLookupThatOverlapsRemoval() throws Exception {
+        StubPersonAttributeDao inner = new StubPersonAttributeDao().addPerson("alice", "entitlement", "a");
+        inner.block("alice");
+        final CachingPersonAttributeDao dao = newDao(inner);
+        Thread lookup = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dao.getPerson("alice");
+            }
+        });
+        try {
+            lookup.start();
+            inner.awaitBlocked();
+            dao.removeUserAttributes("alice");
+            inner.release();
+            lookup.join();
+            assertEquals(0, dao.getCacheSize());
+        }
+        finally {
+            inner.release();
+            lookup.join();
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Verifies that a refresh that was already running when a user's attributes were removed doesn't put them back.
+     */
+    @Test
+    public void shouldNotCacheRefreshThatOverlapsRemoval() throws Exception {
+        StubPersonAttributeDao inner = new StubPersonAttributeDao().addPerson("alice", "entitlement", "a");
+        CachingPersonAttributeDao dao = newDao(inner);
+        try {
+            dao.getPerson("alice");
+            inner.block("alice");
+            Thread.sleep(50);
+            dao.getPerson("alice");
+            inner.awaitBlocked();
+            dao.removeUserAttributes("alice");
+            inner.release();
+            awaitRefresh(dao);
+            assertEquals(0, dao.getCacheSize());
+        }
+        finally {
+            inner.release();
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Waits for the first background refresh to finish, whatever its outcome.
+     *
+     * @param dao the caching DAO.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    private static void awaitRefresh(CachingPersonAttributeDao dao) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dao.getRefreshes() + dao.getRefreshesDiscarded() + dao.getRefreshFailures() == 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Creates a caching DAO that refreshes its entries almost immediately after caching them.
+     *
+     * @param innerDao the DAO whose results are cached.
+     * @return the caching DAO.
+     * @throws Exception if the DAO can't be initialized.
+     */
+    private static CachingPersonAttributeDao newDao(IPersonAttributeDao innerDao) throws Exception {
+        CachingPersonAttributeDao dao = new CachingPersonAttributeDao();
+        dao.setInnerDao(innerDao);
+        dao.setTimeToLive(60000);
+        dao.setRefreshAheadFraction(0.0001);
+        dao.afterPropertiesSet();
+        return dao;
+    }
+}
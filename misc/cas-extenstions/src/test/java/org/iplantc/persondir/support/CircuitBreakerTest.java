@@ -0,0 +1,117 @@
+package org.iplantc.persondir.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link CircuitBreaker}.
+ *
+ * @author Dennis Roberts
+ */
+public class CircuitBreakerTest {
+
+    /**
+     * Verifies that the breaker doesn't open before the minimum number of calls has been recorded.
+     */
+    @Test
+    public void shouldStayClosedBelowMinimumCalls() {
+        CircuitBreaker breaker = new CircuitBreaker(10, 4, 0.5, 1000, 1);
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure(breaker.tryAcquire());
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onFailure(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getTrips());
+    }
+
+    /**
+     * Verifies that the breaker opens when the failure rate reaches the threshold and rejects calls while open.
+     */
+    @Test
+    public void shouldOpenAtFailureRateAndRejectCalls() {
+        CircuitBreaker breaker = new CircuitBreaker(4, 4, 0.5, 60000, 1);
+        breaker.onSuccess(breaker.tryAcquire());
+        breaker.onSuccess(breaker.tryAcquire());
+        breaker.onFailure(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onFailure(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+        assertEquals(1, breaker.getRejected());
+    }
+
+    /**
+     * Verifies that the breaker closes after enough successful trial calls.
+     */
+    @Test
+    public void shouldCloseAfterSuccessfulTrials() throws Exception {
+        CircuitBreaker breaker = openBreaker(2);
+        Thread.sleep(30);
+        long first = breaker.tryAcquire();
+        long second = breaker.tryAcquire();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(first != CircuitBreaker.REJECTED && second != CircuitBreaker.REJECTED);
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+        breaker.onSuccess(first);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onSuccess(second);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    /**
+     * Verifies that a failed trial call opens the breaker again.
+     */
+    @Test
+    public void shouldReopenAfterFailedTrial() throws Exception {
+        CircuitBreaker breaker = openBreaker(1);
+        Thread.sleep(30);
+        breaker.onFailure(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getTrips());
+    }
+
+    /**
+     * Verifies that a released trial permit can be used by another caller.
+     */
+    @Test
+    public void shouldReuseReleasedTrialPermit() throws Exception {
+        CircuitBreaker breaker = openBreaker(1);
+        Thread.sleep(30);
+        breaker.release(breaker.tryAcquire());
+        long permit = breaker.tryAcquire();
+        assertTrue(permit != CircuitBreaker.REJECTED);
+        breaker.onSuccess(permit);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    /**
+     * Verifies that outcomes reported with permits from before a state change are ignored.
+     */
+    @Test
+    public void shouldIgnoreStalePermits() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(2, 2, 0.5, 10, 1);
+        long stale = breaker.tryAcquire();
+        breaker.onFailure(breaker.tryAcquire());
+        breaker.onFailure(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(30);
+        breaker.tryAcquire();
+        breaker.onSuccess(stale);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    /**
+     * @param halfOpenTrials the number of trial calls allowed while half-open.
+     * @return a breaker that has just opened and stays open for 10 milliseconds.
+     */
+    private static CircuitBreaker openBreaker(int halfOpenTrials) {
+        CircuitBreaker breaker = new CircuitBreaker(2, 2, 0.5, 10, halfOpenTrials);
+        breaker.onFailure(breaker.tryAcquire());
+        breaker.onFailure(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+}
@@ -0,0 +1,141 @@
+package org.iplantc.persondir.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.junit.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+/**
+ * Unit tests for {@link CircuitBreakingPersonAttributeDao}.
+ *
+ * @author Dennis Roberts
+ */
+public class CircuitBreakingPersonAttributeDaoTest {
+
+    /**
+     * Verifies that calls rejected because every thread is busy fall back without opening the breaker.
+     */
+    @Test
+    public void shouldNotOpenBreakerWhenSaturated() throws Exception {
+        StubPersonAttributeDao inner = new StubPersonAttributeDao().addPerson("bob", "entitlement", "a");
+        inner.block("alice");
+        final CircuitBreakingPersonAttributeDao dao = new CircuitBreakingPersonAttributeDao();
+        dao.setInnerDao(inner);
+        dao.setMaxConcurrentCalls(1);
+        dao.setCallTimeout(10000);
+        dao.setWindowSize(4);
+        dao.setMinimumCalls(2);
+        dao.afterPropertiesSet();
+        Thread blocked = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dao.getPerson("alice");
+            }
+        });
+        blocked.start();
+        try {
+            inner.awaitBlocked();
+            for (int i = 0; i < 10; i++) {
+                try {
+                    dao.getPerson("bob");
+                    fail("expected a DataAccessResourceFailureException");
+                }
+                catch (DataAccessResourceFailureException e) {
+                    // expected; there's no stale result to fall back to
+                }
+            }
+            assertEquals(CircuitBreaker.State.CLOSED, dao.getState());
+            assertEquals(10, dao.getMetrics().counter("breaker.saturated").get());
+        }
+        finally {
+            inner.release();
+            blocked.join();
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Verifies that every record for a user is served, marked as degraded, when the inner DAO fails.
+     */
+    @Test
+    public void shouldFallBackToEveryRecord() throws Exception {
+        StubPersonAttributeDao inner = new StubPersonAttributeDao()
+                .addRecord("alice", "entitlement", "a")
+                .addRecord("alice", "entitlement", "b")
+                .addRecord("alice", "entitlement", "c");
+        CircuitBreakingPersonAttributeDao dao = newDao(inner);
+        try {
+            Map<String, List<Object>> query = query("alice");
+            assertEquals(3, dao.getPeopleWithMultivaluedAttributes(query).size());
+
+            inner.setFailure(new IllegalStateException("directory unavailable"));
+            Set<IPersonAttributes> stale = dao.getPeopleWithMultivaluedAttributes(query);
+            assertEquals(3, stale.size());
+            Set<Object> entitlements = new HashSet<Object>();
+            for (IPersonAttributes person : stale) {
+                assertEquals("true", person.getAttributeValue("degraded"));
+                entitlements.add(person.getAttributeValue("entitlement"));
+            }
+            assertEquals(new HashSet<Object>(Arrays.asList("a", "b", "c")), entitlements);
+        }
+        finally {
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Verifies that the stale results of getPerson() and of a query for the same user are kept apart.
+     */
+    @Test
+    public void shouldKeepStalePersonAndQueryResultsApart() throws Exception {
+        StubPersonAttributeDao inner = new StubPersonAttributeDao().addPerson("alice", "entitlement", "a");
+        CircuitBreakingPersonAttributeDao dao = newDao(inner);
+        try {
+            dao.getPerson("alice");
+            inner.setFailure(new IllegalStateException("directory unavailable"));
+            try {
+                dao.getPeopleWithMultivaluedAttributes(query("alice"));
+                fail("expected a DataAccessResourceFailureException");
+            }
+            catch (DataAccessResourceFailureException e) {
+                // expected; only the result of getPerson() was stored
+            }
+            assertEquals("true", dao.getPerson("alice").getAttributeValue("degraded"));
+        }
+        finally {
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Creates a DAO that marks stale results with the degraded attribute and never opens its breaker in these tests.
+     *
+     * @param inner the inner DAO.
+     * @return the DAO.
+     */
+    private static CircuitBreakingPersonAttributeDao newDao(StubPersonAttributeDao inner) throws Exception {
+        CircuitBreakingPersonAttributeDao dao = new CircuitBreakingPersonAttributeDao();
+        dao.setInnerDao(inner);
+        dao.setCallTimeout(10000);
+        dao.setMinimumCalls(100);
+        dao.setDegradedAttribute("degraded");
+        dao.afterPropertiesSet();
+        return dao;
+    }
+
+    /**
+     * @param uid the user ID.
+     * @return a query for the user.
+     */
+    private static Map<String, List<Object>> query(String uid) {
+        return Collections.singletonMap("username", Collections.<Object>singletonList(uid));
+    }
+}
@@ -0,0 +1,101 @@
+package org.iplantc.persondir.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.iplantc.persondir.support.cache.ValueInterner;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link CompactMultirecordPersonImpl}.
+ *
+ * @author Dennis Roberts
+ */
+public class CompactMultirecordPersonImplTest {
+
+    /**
+     * Verifies that attributes are returned in their original order with case-sensitive names.
+     */
+    @Test
+    public void shouldReturnAttributesInOriginalOrder() {
+        CompactMultirecordPersonImpl person = new CompactMultirecordPersonImpl("ipctest", attributes());
+        assertEquals("ipctest", person.getName());
+        assertEquals(new ArrayList<String>(attributes().keySet()),
+                new ArrayList<String>(person.getAttributes().keySet()));
+        assertEquals(Arrays.<Object>asList("g1", "g2"), person.getAttributeValues("entitlement"));
+        assertEquals("ipctest", person.getAttributeValue("uid"));
+        assertNull(person.getAttributeValue("UID"));
+        assertNull(person.getAttributeValues("missing"));
+    }
+
+    /**
+     * Verifies that equality and hash codes match a plain map with the same attributes, regardless of order.
+     */
+    @Test
+    public void shouldBeEqualRegardlessOfAttributeOrder() {
+        Map<String, List<Object>> reversed = new LinkedHashMap<String, List<Object>>();
+        reversed.put("entitlement", Arrays.<Object>asList("g1", "g2"));
+        reversed.put("uid", Arrays.<Object>asList("ipctest"));
+        CompactMultirecordPersonImpl a = new CompactMultirecordPersonImpl("ipctest", attributes());
+        CompactMultirecordPersonImpl b = new CompactMultirecordPersonImpl("ipctest", reversed);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(attributes(), a.getAttributes());
+        assertEquals(attributes().hashCode(), a.getAttributes().hashCode());
+        assertEquals(false, a.equals(new CompactMultirecordPersonImpl("other", attributes())));
+    }
+
+    /**
+     * Verifies that later changes to the source map don't affect the person and that the attributes can't be
+     * modified.
+     */
+    @Test
+    public void shouldBeImmutable() {
+        Map<String, List<Object>> source = attributes();
+        CompactMultirecordPersonImpl person = new CompactMultirecordPersonImpl("ipctest", source);
+        source.get("entitlement").set(0, "changed");
+        assertEquals("g1", person.getAttributeValue("entitlement"));
+        try {
+            person.getAttributes().put("x", null);
+            fail("the attributes were modified");
+        }
+        catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Verifies that the name can be taken from an attribute and that values are interned.
+     */
+    @Test
+    public void shouldUseUserNameAttributeAndInterner() {
+        ValueInterner interner = new ValueInterner(100);
+        Map<String, List<Object>> first = attributes();
+        Map<String, List<Object>> second = attributes();
+        second.put("entitlement", Arrays.<Object>asList(new String("g1"), "g2"));
+        CompactMultirecordPersonImpl a = CompactMultirecordPersonImpl.withUserNameAttribute("uid", first, interner);
+        CompactMultirecordPersonImpl b = CompactMultirecordPersonImpl.withUserNameAttribute("uid", second, interner);
+        assertEquals("ipctest", a.getName());
+        assertNotSame(first.get("entitlement").get(0), second.get("entitlement").get(0));
+        assertSame(a.getAttributeValue("entitlement"), b.getAttributeValue("entitlement"));
+        assertNull(CompactMultirecordPersonImpl.withUserNameAttribute("cn", first, null).getName());
+    }
+
+    /**
+     * @return a modifiable attribute map with uid and entitlement attributes.
+     */
+    private static Map<String, List<Object>> attributes() {
+        Map<String, List<Object>> attributes = new LinkedHashMap<String, List<Object>>();
+        attributes.put("uid", new ArrayList<Object>(Arrays.<Object>asList("ipctest")));
+        attributes.put("entitlement", new ArrayList<Object>(Arrays.<Object>asList("g1", "g2")));
+        return attributes;
+    }
+}
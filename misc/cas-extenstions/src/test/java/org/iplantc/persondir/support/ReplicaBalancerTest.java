@@ -0,0 +1,122 @@
+package org.iplantc.persondir.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ReplicaBalancer}.
+ *
+ * @author Dennis Roberts
+ */
+public class ReplicaBalancerTest {
+
+    /**
+     * Verifies that the replica with the lower latency is chosen when neither is busy.
+     */
+    @Test
+    public void shouldPreferFasterReplica() {
+        ReplicaBalancer balancer = new ReplicaBalancer(2, 3, 1000);
+        balancer.onSuccess(0, 1000000);
+        balancer.onSuccess(1, 10000000);
+        for (int i = 0; i < 20; i++) {
+            int replica = balancer.choose();
+            assertEquals(0, replica);
+            balancer.onSuccess(replica, 1000000);
+        }
+    }
+
+    /**
+     * Verifies that a replica's latency is weighted by the number of requests that it's already handling.
+     */
+    @Test
+    public void shouldWeighLatencyByRequestsInFlight() {
+        ReplicaBalancer balancer = new ReplicaBalancer(2, 3, 1000);
+        balancer.onSuccess(0, 1000000);
+        balancer.onSuccess(1, 1500000);
+        assertEquals(0, balancer.choose());
+        assertEquals(1, balancer.choose());
+    }
+
+    /**
+     * Verifies that only admitted replicas are chosen and that a replica is ejected after enough consecutive
+     * failures.
+     */
+    @Test
+    public void shouldEjectReplicaAfterConsecutiveFailures() {
+        ReplicaBalancer balancer = new ReplicaBalancer(3, 2, 60000);
+        balancer.onFailure(1);
+        assertFalse(balancer.isEjected(1));
+        balancer.onFailure(1);
+        assertTrue(balancer.isEjected(1));
+        assertEquals(1, balancer.getEjections(1));
+        for (int i = 0; i < 50; i++) {
+            int replica = balancer.choose();
+            assertTrue(replica != 1);
+            balancer.onSuccess(replica, 1000000);
+        }
+    }
+
+    /**
+     * Verifies that a success between failures resets the count of consecutive failures.
+     */
+    @Test
+    public void shouldResetFailuresOnSuccess() {
+        ReplicaBalancer balancer = new ReplicaBalancer(2, 2, 60000);
+        balancer.onFailure(0);
+        balancer.onSuccess(0, 1000000);
+        balancer.onFailure(0);
+        assertFalse(balancer.isEjected(0));
+    }
+
+    /**
+     * Verifies that a replica returns on probation: one more failure ejects it again, but a success clears it.
+     */
+    @Test
+    public void shouldAdmitEjectedReplicaOnProbation() throws Exception {
+        ReplicaBalancer balancer = new ReplicaBalancer(2, 3, 20);
+        for (int i = 0; i < 3; i++) {
+            balancer.onFailure(0);
+        }
+        assertTrue(balancer.isEjected(0));
+        Thread.sleep(40);
+        assertFalse(balancer.isEjected(0));
+        balancer.onFailure(0);
+        assertTrue(balancer.isEjected(0));
+        assertEquals(2, balancer.getEjections(0));
+
+        Thread.sleep(40);
+        balancer.onSuccess(0, 1000000);
+        balancer.onFailure(0);
+        assertFalse(balancer.isEjected(0));
+    }
+
+    /**
+     * Verifies that the replica whose ejection ends soonest is used when every replica has been ejected.
+     */
+    @Test
+    public void shouldUseSoonestReturningReplicaWhenAllAreEjected() throws Exception {
+        ReplicaBalancer balancer = new ReplicaBalancer(2, 1, 60000);
+        balancer.onFailure(1);
+        Thread.sleep(5);
+        balancer.onFailure(0);
+        assertEquals(1, balancer.choose());
+    }
+
+    /**
+     * Verifies that a released request neither records a failure nor clears earlier failures.
+     */
+    @Test
+    public void shouldNotRecordOutcomeForReleasedRequests() {
+        ReplicaBalancer balancer = new ReplicaBalancer(1, 2, 60000);
+        balancer.onFailure(0);
+        for (int i = 0; i < 5; i++) {
+            balancer.release(balancer.choose());
+        }
+        assertFalse(balancer.isEjected(0));
+        balancer.onFailure(0);
+        assertTrue(balancer.isEjected(0));
+    }
+}
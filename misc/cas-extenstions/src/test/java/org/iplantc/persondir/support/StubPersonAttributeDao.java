@@ -0,0 +1,238 @@
+package org.iplantc.persondir.support;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
+
+/**
+ * An attribute DAO for unit tests that returns a fixed record for each known user.  Lookups can be delayed or
+ * blocked so that tests can control how long the DAO takes to respond.
+ *
+ * @author Dennis Roberts
+ */
+public class StubPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao {
+
+    /**
+     * The records to return, keyed by user ID.
+     */
+    private final Map<String, Set<IPersonAttributes>> people = new ConcurrentHashMap<String, Set<IPersonAttributes>>();
+
+    /**
+     * The number of lookups that have been performed.
+     */
+    private final AtomicInteger calls = new AtomicInteger();
+
+    /**
+     * The number of lookups that were interrupted.
+     */
+    private final AtomicInteger interruptions = new AtomicInteger();
+
+    /**
+     * The thread that performed the most recent lookup for each user ID.
+     */
+    private final Map<String, Thread> threads = new ConcurrentHashMap<String, Thread>();
+
+    /**
+     * The number of milliseconds that each lookup takes.
+     */
+    private volatile long delay;
+
+    /**
+     * The user ID whose lookups wait for the gate to open, or null if no lookups wait.
+     */
+    private volatile String blockedUid;
+
+    /**
+     * Lookups for the blocked user ID wait until this latch is released.
+     */
+    private volatile CountDownLatch gate = new CountDownLatch(0);
+
+    /**
+     * Released when a lookup for the blocked user ID starts waiting.
+     */
+    private volatile CountDownLatch blocked = new CountDownLatch(1);
+
+    /**
+     * The exception thrown by each lookup, or null if lookups succeed.
+     */
+    private volatile RuntimeException failure;
+
+    /**
+     * Adds a user with a single attribute.
+     *
+     * @param uid the user ID.
+     * @param attribute the attribute name.
+     * @param values the attribute values.
+     * @return this DAO.
+     */
+    public StubPersonAttributeDao addPerson(String uid, String attribute, Object... values) {
+        people.put(uid, Collections.singleton(newRecord(uid, attribute, values)));
+        return this;
+    }
+
+    /**
+     * Adds another record with a single attribute for a user.
+     *
+     * @param uid the user ID.
+     * @param attribute the attribute name.
+     * @param values the attribute values.
+     * @return this DAO.
+     */
+    public StubPersonAttributeDao addRecord(String uid, String attribute, Object... values) {
+        Set<IPersonAttributes> records = people.get(uid);
+        records = records == null
+                ? new LinkedHashSet<IPersonAttributes>()
+                : new LinkedHashSet<IPersonAttributes>(records);
+        records.add(newRecord(uid, attribute, values));
+        people.put(uid, Collections.unmodifiableSet(records));
+        return this;
+    }
+
+    /**
+     * Creates a record with a single attribute.
+     *
+     * @param uid the user ID.
+     * @param attribute the attribute name.
+     * @param values the attribute values.
+     * @return the record.
+     */
+    private static IPersonAttributes newRecord(String uid, String attribute, Object... values) {
+        Map<String, List<Object>> attributes = new HashMap<String, List<Object>>();
+        attributes.put(attribute, Arrays.asList(values));
+        return new NamedMultirecordPersonImpl(uid, attributes);
+    }
+
+    /**
+     * Removes a user so that later lookups find nothing.
+     *
+     * @param uid the user ID.
+     * @return this DAO.
+     */
+    public StubPersonAttributeDao removePerson(String uid) {
+        people.remove(uid);
+        return this;
+    }
+
+    /**
+     * @param delay the number of milliseconds that each lookup takes.
+     * @return this DAO.
+     */
+    public StubPersonAttributeDao setDelay(long delay) {
+        this.delay = delay;
+        return this;
+    }
+
+    /**
+     * @param failure the exception thrown by each lookup, or null if lookups succeed.
+     * @return this DAO.
+     */
+    public StubPersonAttributeDao setFailure(RuntimeException failure) {
+        this.failure = failure;
+        return this;
+    }
+
+    /**
+     * Makes lookups for a user wait until {@link #release()} is called.
+     *
+     * @param uid the user ID.
+     * @return this DAO.
+     */
+    public StubPersonAttributeDao block(String uid) {
+        blockedUid = uid;
+        gate = new CountDownLatch(1);
+        blocked = new CountDownLatch(1);
+        return this;
+    }
+
+    /**
+     * Waits until a lookup for the blocked user starts waiting.
+     *
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public void awaitBlocked() throws InterruptedException {
+        blocked.await();
+    }
+
+    /**
+     * Allows blocked lookups to complete.
+     */
+    public void release() {
+        gate.countDown();
+    }
+
+    /**
+     * @return the number of lookups that have been performed.
+     */
+    public int getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return the number of lookups that were interrupted.
+     */
+    public int getInterruptions() {
+        return interruptions.get();
+    }
+
+    /**
+     * @param uid the user ID.
+     * @return the thread that performed the most recent lookup for the user.
+     */
+    public Thread getThread(String uid) {
+        return threads.get(uid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+        calls.incrementAndGet();
+        String uid = String.valueOf(query.get("username").get(0));
+        threads.put(uid, Thread.currentThread());
+        try {
+            if (uid.equals(blockedUid)) {
+                blocked.countDown();
+                gate.await();
+            }
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+        }
+        catch (InterruptedException e) {
+            interruptions.incrementAndGet();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted", e);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        Set<IPersonAttributes> records = people.get(uid);
+        return records == null ? Collections.<IPersonAttributes>emptySet() : records;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<String> getPossibleUserAttributeNames() {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<String> getAvailableQueryAttributes() {
+        return Collections.singleton("username");
+    }
+}
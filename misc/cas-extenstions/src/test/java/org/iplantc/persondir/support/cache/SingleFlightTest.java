@@ -0,0 +1,107 @@
+package org.iplantc.persondir.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SingleFlight}.
+ *
+ * @author Dennis Roberts
+ */
+public class SingleFlightTest {
+
+    /**
+     * Verifies that concurrent callers for the same key share a single execution of the task.
+     */
+    @Test
+    public void shouldCoalesceConcurrentCalls() throws Exception {
+        final SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Integer> task = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                started.countDown();
+                release.await();
+                return runs.incrementAndGet();
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<Integer> first = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return flight.execute("key", task);
+                }
+            });
+            started.await();
+            Future<Integer> second = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return flight.execute("key", task);
+                }
+            });
+            while (flight.getCoalesced() == 0) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            assertEquals(Integer.valueOf(1), first.get(5, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(1), second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, runs.get());
+            assertEquals(0, flight.getInFlight());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Verifies that nothing is retained once a task has completed.
+     */
+    @Test
+    public void shouldRunTaskAgainAfterCompletion() {
+        SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+        final AtomicInteger runs = new AtomicInteger();
+        Callable<Integer> task = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return runs.incrementAndGet();
+            }
+        };
+        assertEquals(Integer.valueOf(1), flight.execute("key", task));
+        assertEquals(Integer.valueOf(2), flight.execute("key", task));
+        assertEquals(0, flight.getCoalesced());
+    }
+
+    /**
+     * Verifies that unchecked exceptions thrown by the task are rethrown unchanged.
+     */
+    @Test
+    public void shouldRethrowUncheckedExceptions() {
+        SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+        final IllegalArgumentException failure = new IllegalArgumentException("boom");
+        try {
+            flight.execute("key", new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    throw failure;
+                }
+            });
+            fail("the exception was not rethrown");
+        }
+        catch (IllegalArgumentException e) {
+            assertEquals(failure, e);
+        }
+        assertEquals(0, flight.getInFlight());
+    }
+}
@@ -0,0 +1,123 @@
+package org.iplantc.persondir.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link StripedLruCache}.
+ *
+ * @author Dennis Roberts
+ */
+public class StripedLruCacheTest {
+
+    /**
+     * Verifies that a stored value can be retrieved until it expires.
+     */
+    @Test
+    public void shouldExpireEntriesAfterTimeToLive() throws Exception {
+        StripedLruCache<String, String> cache = new StripedLruCache<String, String>(10, 1);
+        cache.put("a", "1", 50);
+        assertEquals("1", cache.get("a"));
+        Thread.sleep(80);
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.getExpirations());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    /**
+     * Verifies that entry creation and expiration times reflect the time to live.
+     */
+    @Test
+    public void shouldRecordCreationAndExpirationTimes() {
+        StripedLruCache<String, String> cache = new StripedLruCache<String, String>(10, 1);
+        long before = System.currentTimeMillis();
+        cache.put("a", "1", 1000);
+        StripedLruCache.CacheEntry<String> entry = cache.getEntry("a");
+        assertTrue(entry.getCreated() >= before);
+        assertEquals(entry.getCreated() + 1000, entry.getExpires());
+    }
+
+    /**
+     * Verifies that the least recently used entry is evicted when the cache is full.
+     */
+    @Test
+    public void shouldEvictLeastRecentlyUsedEntry() {
+        StripedLruCache<String, String> cache = new StripedLruCache<String, String>(2, 1);
+        cache.put("a", "1", 60000);
+        cache.put("b", "2", 60000);
+        cache.get("a");
+        cache.put("c", "3", 60000);
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    /**
+     * Verifies that entries can be removed individually and all at once.
+     */
+    @Test
+    public void shouldRemoveEntries() {
+        StripedLruCache<String, String> cache = new StripedLruCache<String, String>(10, 4);
+        cache.put("a", "1", 60000);
+        cache.put("b", "2", 60000);
+        assertTrue(cache.remove("a"));
+        assertFalse(cache.remove("a"));
+        assertEquals(1, cache.size());
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Verifies that null values are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNullValues() {
+        new StripedLruCache<String, String>(10).put("a", null, 1000);
+    }
+
+    /**
+     * Verifies that the recent keys are listed from the most recently used within a stripe.
+     */
+    @Test
+    public void shouldListRecentKeysMostRecentFirst() {
+        StripedLruCache<String, String> cache = new StripedLruCache<String, String>(10, 1);
+        cache.put("a", "1", 60000);
+        cache.put("b", "2", 60000);
+        cache.put("c", "3", 60000);
+        cache.get("a");
+        assertEquals(Arrays.asList("a", "c", "b"), cache.getRecentKeys(10));
+        assertEquals(Arrays.asList("a", "c"), cache.getRecentKeys(2));
+    }
+
+    /**
+     * Verifies that recent keys are collected from every stripe.
+     */
+    @Test
+    public void shouldListRecentKeysFromEveryStripe() {
+        StripedLruCache<Integer, String> cache = new StripedLruCache<Integer, String>(100, 8);
+        for (int i = 0; i < 50; i++) {
+            cache.put(i, "v" + i, 60000);
+        }
+        List<Integer> keys = cache.getRecentKeys(100);
+        assertEquals(50, keys.size());
+        assertEquals(50, new java.util.HashSet<Integer>(keys).size());
+        assertEquals(5, cache.getRecentKeys(5).size());
+    }
+
+    /**
+     * Verifies that a negative maximum number of recent keys is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNegativeRecentKeyCount() {
+        new StripedLruCache<String, String>(10).getRecentKeys(-1);
+    }
+}
@@ -0,0 +1,63 @@
+package org.iplantc.persondir.support.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import org.iplantc.persondir.support.metrics.MetricsRegistry;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link AttributesMapperImpl}.
+ *
+ * @author Dennis Roberts
+ */
+public class AttributesMapperImplTest {
+
+    /**
+     * Verifies that known attributes are keyed by their configured names and other attributes by the names that
+     * the directory returned.
+     */
+    @Test
+    public void shouldKeepConfiguredAndDirectoryCase() throws Exception {
+        AttributesMapperImpl mapper = new AttributesMapperImpl(false, Arrays.asList("memberUid"));
+        BasicAttributes attributes = new BasicAttributes(true);
+        attributes.put(new BasicAttribute("MEMBERUID", "alice"));
+        attributes.put(new BasicAttribute("objectClass", "posixGroup"));
+        Map<?, ?> mapped = (Map<?, ?>) mapper.mapFromAttributes(attributes);
+
+        List<Object> keys = new ArrayList<Object>(mapped.keySet());
+        Collections.sort(keys, null);
+        assertEquals(Arrays.<Object>asList("memberUid", "objectClass"), keys);
+        assertSame("memberUid", keys.get(0));
+        assertEquals(Arrays.asList("posixGroup"), mapped.get("objectclass"));
+    }
+
+    /**
+     * Verifies that limits are matched to attributes without regard to case and counted under the attribute key.
+     */
+    @Test
+    public void shouldMatchLimitsWithoutRegardToCase() throws Exception {
+        AttributeLimit limit = new AttributeLimit();
+        limit.setMaxValues(1);
+        limit.setAction(AttributeLimit.Action.TRUNCATE);
+        MetricsRegistry metrics = new MetricsRegistry();
+        AttributesMapperImpl mapper = new AttributesMapperImpl(false, null, false,
+                Collections.singletonMap("DESCRIPTION", limit), metrics);
+        BasicAttributes attributes = new BasicAttributes(true);
+        BasicAttribute description = new BasicAttribute("description");
+        description.add("a");
+        description.add("b");
+        attributes.put(description);
+        Map<?, ?> mapped = (Map<?, ?>) mapper.mapFromAttributes(attributes);
+
+        assertEquals(Arrays.asList("a"), mapped.get("description"));
+        assertEquals(1, metrics.counter("ldap.limit.description.truncate").get());
+    }
+}
@@ -0,0 +1,97 @@
+package org.iplantc.persondir.support.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link CaseInsensitiveAttributeMap}.
+ *
+ * @author Dennis Roberts
+ */
+public class CaseInsensitiveAttributeMapTest {
+
+    /**
+     * Verifies that keys are matched without regard to case but stored as given.
+     */
+    @Test
+    public void shouldMatchKeysWithoutRegardToCase() {
+        Map<String, Object> map = new CaseInsensitiveAttributeMap(1);
+        map.put("memberUid", "a");
+        assertEquals("a", map.get("MEMBERUID"));
+        assertTrue(map.containsKey("memberuid"));
+        assertEquals("a", map.put("MemberUID", "b"));
+        assertEquals(1, map.size());
+        assertEquals("memberUid", map.keySet().iterator().next());
+        assertEquals("b", map.get("memberUid"));
+        assertNull(map.get(42));
+    }
+
+    /**
+     * Verifies that the map grows beyond its expected size and preserves insertion order.
+     */
+    @Test
+    public void shouldGrowAndPreserveOrder() {
+        Map<String, Object> map = new CaseInsensitiveAttributeMap(0);
+        for (int i = 0; i < 10; i++) {
+            map.put("attr" + i, i);
+        }
+        assertEquals(10, map.size());
+        int expected = 0;
+        for (String key : map.keySet()) {
+            assertEquals("attr" + expected++, key);
+        }
+    }
+
+    /**
+     * Verifies that entries can be removed directly and through an iterator.
+     */
+    @Test
+    public void shouldRemoveEntries() {
+        Map<String, Object> map = new CaseInsensitiveAttributeMap(4);
+        map.put("a", 1);
+        map.put("b", 2);
+        map.put("c", 3);
+        assertEquals(2, map.remove("B"));
+        assertEquals(new ArrayList<String>(Arrays.asList("a", "c")), new ArrayList<String>(map.keySet()));
+        Iterator<String> keys = map.keySet().iterator();
+        keys.next();
+        keys.remove();
+        assertEquals(new ArrayList<String>(Arrays.asList("c")), new ArrayList<String>(map.keySet()));
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey("c"));
+    }
+
+    /**
+     * Verifies that the map obeys the usual equals and hashCode contract.
+     */
+    @Test
+    public void shouldEqualHashMapWithSameEntries() {
+        Map<String, Object> map = new CaseInsensitiveAttributeMap(2);
+        map.put("a", 1);
+        map.put("b", 2);
+        Map<String, Object> other = new HashMap<String, Object>();
+        other.put("b", 2);
+        other.put("a", 1);
+        assertEquals(other, map);
+        assertEquals(map, other);
+        assertEquals(other.hashCode(), map.hashCode());
+    }
+
+    /**
+     * Verifies that null attribute names are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNullKeys() {
+        new CaseInsensitiveAttributeMap(1).put(null, "a");
+    }
+}
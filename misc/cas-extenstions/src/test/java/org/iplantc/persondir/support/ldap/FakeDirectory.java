@@ -0,0 +1,254 @@
+package org.iplantc.persondir.support.ldap;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import org.springframework.ldap.core.ContextSource;
+
+/**
+ * An in-memory stand-in for a directory server, used to test code that searches the directory without starting an
+ * LDAP server.  Every search returns the same entries regardless of the filter, unless a failure has been set, in
+ * which case every search throws it.
+ *
+ * @author Dennis Roberts
+ */
+class FakeDirectory implements ContextSource {
+
+    /**
+     * The entries returned by every search.
+     */
+    private final List<SearchResult> entries = Collections.synchronizedList(new ArrayList<SearchResult>());
+
+    /**
+     * The number of searches performed.
+     */
+    private final AtomicInteger searches = new AtomicInteger();
+
+    /**
+     * The search controls of the most recent search.
+     */
+    private volatile SearchControls lastControls;
+
+    /**
+     * The request controls in effect for the most recent search.
+     */
+    private volatile Control[] lastRequestControls;
+
+    /**
+     * Run at the start of every search, or null.
+     */
+    private volatile Runnable onSearch;
+
+    /**
+     * The exception thrown by every search, or null.
+     */
+    private volatile NamingException failure;
+
+    /**
+     * Adds an entry.
+     *
+     * @param dn the distinguished name of the entry.
+     * @param attributes the attribute values, keyed by attribute name.
+     */
+    public void addEntry(String dn, Map<String, List<Object>> attributes) {
+        BasicAttributes attrs = new BasicAttributes(true);
+        for (Map.Entry<String, List<Object>> attribute : attributes.entrySet()) {
+            BasicAttribute attr = new BasicAttribute(attribute.getKey());
+            for (Object value : attribute.getValue()) {
+                attr.add(value);
+            }
+            attrs.put(attr);
+        }
+        SearchResult result = new SearchResult(dn, null, attrs);
+        result.setNameInNamespace(dn);
+        entries.add(result);
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @param onSearch run at the start of every search.
+     */
+    public void setOnSearch(Runnable onSearch) {
+        this.onSearch = onSearch;
+    }
+
+    /**
+     * @param failure the exception thrown by every search, or null.
+     */
+    public void setFailure(NamingException failure) {
+        this.failure = failure;
+    }
+
+    /**
+     * @return the number of searches performed.
+     */
+    public int getSearches() {
+        return searches.get();
+    }
+
+    /**
+     * @return the search controls of the most recent search.
+     */
+    public SearchControls getLastControls() {
+        return lastControls;
+    }
+
+    /**
+     * @return the request controls in effect for the most recent search.
+     */
+    public Control[] getLastRequestControls() {
+        return lastRequestControls;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DirContext getReadOnlyContext() {
+        return newContext();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DirContext getReadWriteContext() {
+        return newContext();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DirContext getContext(String principal, String credentials) {
+        return newContext();
+    }
+
+    /**
+     * @return a new context that answers searches from this directory.
+     */
+    private DirContext newContext() {
+        return (DirContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {LdapContext.class},
+                new ContextHandler());
+    }
+
+    /**
+     * Implements the context methods that the code under test uses.
+     */
+    private class ContextHandler implements InvocationHandler {
+
+        /**
+         * The request controls set on the context.
+         */
+        private Control[] requestControls;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("search")) {
+                return search(args);
+            }
+            if (name.equals("setRequestControls")) {
+                requestControls = (Control[]) args[0];
+                return null;
+            }
+            if (name.equals("getRequestControls")) {
+                return requestControls;
+            }
+            if (name.equals("getResponseControls")) {
+                return null;
+            }
+            if (name.equals("close")) {
+                return null;
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (name.equals("toString")) {
+                return "FakeDirectory context";
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        /**
+         * Performs a search.
+         *
+         * @param args the arguments passed to the search method.
+         * @return an enumeration of the directory's entries.
+         * @throws NamingException if a failure has been set.
+         */
+        private NamingEnumeration<SearchResult> search(Object[] args) throws NamingException {
+            searches.incrementAndGet();
+            for (Object arg : args) {
+                if (arg instanceof SearchControls) {
+                    lastControls = (SearchControls) arg;
+                }
+            }
+            lastRequestControls = requestControls;
+            Runnable hook = onSearch;
+            if (hook != null) {
+                hook.run();
+            }
+            NamingException e = failure;
+            if (e != null) {
+                throw e;
+            }
+            final Iterator<SearchResult> results;
+            synchronized (entries) {
+                results = new ArrayList<SearchResult>(entries).iterator();
+            }
+            return new NamingEnumeration<SearchResult>() {
+                @Override
+                public SearchResult next() {
+                    return results.next();
+                }
+
+                @Override
+                public boolean hasMore() {
+                    return results.hasNext();
+                }
+
+                @Override
+                public void close() {
+                }
+
+                @Override
+                public boolean hasMoreElements() {
+                    return results.hasNext();
+                }
+
+                @Override
+                public SearchResult nextElement() {
+                    return results.next();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.iplantc.persondir.support.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ldap.core.support.LdapContextSource;
+
+/**
+ * Unit tests for {@link GroupChangeTracker} that run against an embedded directory server.
+ *
+ * @author Dennis Roberts
+ */
+public class GroupChangeTrackerTest {
+
+    /**
+     * The base distinguished name of the embedded directory.
+     */
+    private static final String BASE_DN = "dc=iplantcollaborative,dc=org";
+
+    /**
+     * The distinguished name of the entry that contains the group entries.
+     */
+    private static final String GROUPS_DN = "ou=Groups," + BASE_DN;
+
+    /**
+     * The embedded directory server.
+     */
+    private InMemoryDirectoryServer server;
+
+    /**
+     * The tracker being tested.
+     */
+    private GroupChangeTracker tracker;
+
+    /**
+     * Starts the embedded directory with two groups and loads them into a tracker that only polls when asked to.
+     *
+     * @throws Exception if the directory or the tracker can't be started.
+     */
+    @Before
+    public void setUp() throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        config.setSchema(null);
+        server = new InMemoryDirectoryServer(config);
+        server.add(new Entry(BASE_DN, new Attribute("objectClass", "top", "domain"),
+                new Attribute("dc", "iplantcollaborative")));
+        server.add(new Entry(GROUPS_DN, new Attribute("objectClass", "top", "organizationalUnit"),
+                new Attribute("ou", "Groups")));
+        addGroup("a", "alice", "bob");
+        addGroup("b", "carol");
+        server.startListening();
+
+        LdapContextSource contextSource = new LdapContextSource();
+        contextSource.setUrl("ldap://localhost:" + server.getListenPort());
+        contextSource.setAnonymousReadOnly(true);
+        contextSource.afterPropertiesSet();
+
+        tracker = new GroupChangeTracker();
+        tracker.setContextSource(contextSource);
+        tracker.setBaseDN(GROUPS_DN);
+        tracker.setLoadFilter("(objectClass=posixGroup)");
+        tracker.setReturningAttributes(new String[] {"cn"});
+        tracker.setPollInterval(0);
+        tracker.setDeletionScanInterval(1);
+        tracker.afterPropertiesSet();
+    }
+
+    /**
+     * Stops the tracker and the embedded directory.
+     *
+     * @throws Exception if the tracker can't be stopped.
+     */
+    @After
+    public void tearDown() throws Exception {
+        tracker.destroy();
+        server.shutDown(true);
+    }
+
+    /**
+     * Verifies that a poll without any directory changes reports nothing.
+     */
+    @Test
+    public void shouldReportNothingWhenNothingChanged() {
+        assertTrue(tracker.poll().isEmpty());
+    }
+
+    /**
+     * Verifies that removing a member from a group affects only that member.
+     */
+    @Test
+    public void shouldDetectModifiedGroups() throws Exception {
+        tracker.poll();
+        server.modify("cn=a," + GROUPS_DN, new Modification(ModificationType.DELETE, "memberUid", "bob"));
+        GroupChanges changes = tracker.poll();
+        assertEquals(Collections.singleton("bob"), changes.getAffectedMembers());
+        assertEquals(1, changes.getUpdatedGroups().size());
+        assertEquals(Arrays.<Object>asList("alice"),
+                changes.getUpdatedGroups().iterator().next().getAttributes().get("memberUid"));
+        assertEquals(0, changes.getRemovedGroups().size());
+    }
+
+    /**
+     * Verifies that a new group affects all of its members.
+     */
+    @Test
+    public void shouldDetectAddedGroups() throws Exception {
+        tracker.poll();
+        addGroup("c", "dave", "erin");
+        GroupChanges changes = tracker.poll();
+        assertEquals(new HashSet<String>(Arrays.asList("dave", "erin")), changes.getAffectedMembers());
+        assertEquals(1, changes.getUpdatedGroups().size());
+        assertEquals(0, changes.getRemovedGroups().size());
+    }
+
+    /**
+     * Verifies that a deleted group is reported and affects all of its former members.
+     */
+    @Test
+    public void shouldDetectDeletedGroups() throws Exception {
+        tracker.poll();
+        server.delete("cn=b," + GROUPS_DN);
+        GroupChanges changes = tracker.poll();
+        assertEquals(Collections.singleton("carol"), changes.getAffectedMembers());
+        assertEquals(0, changes.getUpdatedGroups().size());
+        assertEquals(1, changes.getRemovedGroups().size());
+    }
+
+    /**
+     * Adds a group entry to the embedded directory.
+     *
+     * @param cn the common name of the group.
+     * @param members the user IDs of the group members.
+     * @throws Exception if the entry can't be added.
+     */
+    private void addGroup(String cn, String... members) throws Exception {
+        server.add(new Entry("cn=" + cn + "," + GROUPS_DN, new Attribute("objectClass", "top", "posixGroup"),
+                new Attribute("cn", cn), new Attribute("memberUid", members)));
+    }
+}
@@ -0,0 +1,124 @@
+package org.iplantc.persondir.support.ldap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link GroupIndexSnapshot}.
+ *
+ * @author Dennis Roberts
+ */
+public class GroupIndexSnapshotTest {
+
+    /**
+     * The snapshot file used by each test.
+     */
+    private File file;
+
+    /**
+     * Creates the snapshot file name.
+     */
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("group-index", ".snapshot");
+    }
+
+    /**
+     * Removes the snapshot file.
+     */
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Verifies that an index, including binary values, survives a round trip through a snapshot.
+     */
+    @Test
+    public void shouldRoundTripIndex() throws IOException {
+        GroupMembershipIndex index = buildIndex();
+        GroupIndexSnapshot.write(index, file);
+        GroupMembershipIndex loaded = GroupIndexSnapshot.read(file, Arrays.asList("memberUid"));
+        assertNotNull(loaded);
+        assertEquals(index.size(), loaded.size());
+        assertEquals("cn=a", loaded.getGroups("memberUid", "bob").get(0).getDn());
+        assertEquals(2, loaded.getGroups("memberUid", "bob").size());
+        GroupEntry a = loaded.getEntries().get("cn=a");
+        assertEquals(Arrays.<Object>asList("alice", "bob"), a.getAttributes().get("memberUid"));
+        assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) a.getAttributes().get("photo").get(0));
+    }
+
+    /**
+     * Verifies that a snapshot built for different member attributes is ignored.
+     */
+    @Test
+    public void shouldIgnoreSnapshotForOtherAttributes() throws IOException {
+        GroupIndexSnapshot.write(buildIndex(), file);
+        assertNull(GroupIndexSnapshot.read(file, Arrays.asList("member")));
+    }
+
+    /**
+     * Verifies that missing, truncated and corrupted snapshots are ignored.
+     */
+    @Test
+    public void shouldIgnoreDamagedSnapshots() throws IOException {
+        file.delete();
+        assertNull(GroupIndexSnapshot.read(file, Arrays.asList("memberUid")));
+
+        GroupIndexSnapshot.write(buildIndex(), file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - 3);
+            raf.write(0x7f);
+        }
+        finally {
+            raf.close();
+        }
+        assertNull(GroupIndexSnapshot.read(file, Arrays.asList("memberUid")));
+
+        GroupIndexSnapshot.write(buildIndex(), file);
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 10);
+        }
+        finally {
+            raf.close();
+        }
+        assertNull(GroupIndexSnapshot.read(file, Arrays.asList("memberUid")));
+
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.writeBytes("not a snapshot at all, just some text");
+        }
+        finally {
+            raf.close();
+        }
+        assertNull(GroupIndexSnapshot.read(file, Arrays.asList("memberUid")));
+    }
+
+    /**
+     * @return an index of two groups, one of which has a binary attribute.
+     */
+    private static GroupMembershipIndex buildIndex() {
+        Map<String, List<Object>> attributes = new LinkedHashMap<String, List<Object>>();
+        attributes.put("memberUid", Arrays.<Object>asList("alice", "bob"));
+        attributes.put("photo", Arrays.<Object>asList(new byte[] {1, 2, 3}));
+        GroupEntry a = new GroupEntry("cn=a", attributes);
+        GroupEntry b = GroupMembershipIndexTest.group("cn=b", "bob");
+        return GroupMembershipIndex.build(Arrays.asList(a, b), Arrays.asList("memberUid"));
+    }
+}
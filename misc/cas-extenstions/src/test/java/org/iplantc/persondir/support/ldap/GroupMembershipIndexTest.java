@@ -0,0 +1,131 @@
+package org.iplantc.persondir.support.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link GroupMembershipIndex}.
+ *
+ * @author Dennis Roberts
+ */
+public class GroupMembershipIndexTest {
+
+    /**
+     * Verifies that groups can be found by member value and that attribute names are matched without regard to case.
+     */
+    @Test
+    public void shouldFindGroupsByMember() {
+        GroupEntry a = group("cn=a", "alice", "bob");
+        GroupEntry b = group("cn=b", "bob");
+        GroupMembershipIndex index = GroupMembershipIndex.build(Arrays.asList(a, b), Arrays.asList("memberUid"));
+        assertEquals(Arrays.asList(a, b), index.getGroups("MEMBERUID", "bob"));
+        assertEquals(Arrays.asList(a), index.getGroups("memberuid", "alice"));
+        assertTrue(index.getGroups("memberUid", "Alice").isEmpty());
+        assertTrue(index.getGroups("cn", "a").isEmpty());
+        assertTrue(index.isIndexed("MemberUid"));
+        assertFalse(index.isIndexed("cn"));
+        assertEquals(2, index.size());
+    }
+
+    /**
+     * Verifies that applying changes adds, updates and removes groups without affecting the original index.
+     */
+    @Test
+    public void shouldApplyChangesWithoutModifyingOriginal() {
+        GroupEntry a = group("cn=a", "alice", "bob");
+        GroupEntry b = group("cn=b", "bob");
+        GroupEntry c = group("cn=c", "carol");
+        GroupMembershipIndex original = GroupMembershipIndex.build(Arrays.asList(a, b, c),
+                Arrays.asList("memberUid"));
+
+        GroupEntry newA = group("cn=a", "alice", "dave");
+        GroupEntry d = group("cn=d", "dave");
+        GroupMembershipIndex changed = original.withChanges(Arrays.asList(newA, d), Arrays.asList("cn=b"));
+
+        assertEquals(Arrays.asList(newA), changed.getGroups("memberUid", "alice"));
+        assertTrue(changed.getGroups("memberUid", "bob").isEmpty());
+        assertEquals(Arrays.asList(newA, d), changed.getGroups("memberUid", "dave"));
+        assertEquals(Arrays.asList(c), changed.getGroups("memberUid", "carol"));
+        assertEquals(3, changed.size());
+        assertFalse(changed.getEntries().containsKey("cn=b"));
+
+        assertEquals(Arrays.asList(a, b), original.getGroups("memberUid", "bob"));
+        assertTrue(original.getGroups("memberUid", "dave").isEmpty());
+        assertEquals(3, original.size());
+    }
+
+    /**
+     * Verifies that a long series of changes gives the same result as building the index from scratch.
+     */
+    @Test
+    public void shouldMatchRebuiltIndexAfterManyChanges() {
+        Map<String, GroupEntry> groups = new LinkedHashMap<String, GroupEntry>();
+        for (int i = 0; i < 20; i++) {
+            groups.put("cn=g" + i, group("cn=g" + i, "u" + i, "u" + (i + 1)));
+        }
+        GroupMembershipIndex index = GroupMembershipIndex.build(groups.values(), Arrays.asList("memberUid"));
+        for (int round = 0; round < 200; round++) {
+            String dn = "cn=g" + (round * 7 % 25);
+            if (round % 5 == 0) {
+                groups.remove(dn);
+                index = index.withChanges(Collections.<GroupEntry>emptyList(), Arrays.asList(dn));
+            }
+            else {
+                GroupEntry entry = group(dn, "u" + (round % 13), "u" + (round % 17));
+                groups.put(dn, entry);
+                index = index.withChanges(Arrays.asList(entry), Collections.<String>emptyList());
+            }
+        }
+        GroupMembershipIndex rebuilt = GroupMembershipIndex.build(groups.values(), Arrays.asList("memberUid"));
+        assertEquals(rebuilt.size(), index.size());
+        for (int u = 0; u < 30; u++) {
+            assertEquals(new java.util.HashSet<GroupEntry>(rebuilt.getGroups("memberUid", "u" + u)),
+                    new java.util.HashSet<GroupEntry>(index.getGroups("memberUid", "u" + u)));
+        }
+    }
+
+    /**
+     * Verifies that an index that has accumulated enough changes to be compacted still matches an index built from
+     * scratch, and that the original index is unaffected.
+     */
+    @Test
+    public void shouldMatchRebuiltIndexAfterCompaction() {
+        Map<String, GroupEntry> groups = new LinkedHashMap<String, GroupEntry>();
+        groups.put("cn=base", group("cn=base", "shared"));
+        GroupMembershipIndex original = GroupMembershipIndex.build(groups.values(), Arrays.asList("memberUid"));
+        GroupMembershipIndex index = original;
+        for (int i = 0; i < 3000; i++) {
+            GroupEntry entry = group("cn=g" + (i % 500), "shared", "u" + i);
+            groups.put(entry.getDn(), entry);
+            index = index.withChanges(Arrays.asList(entry), Collections.<String>emptyList());
+        }
+        GroupMembershipIndex rebuilt = GroupMembershipIndex.build(groups.values(), Arrays.asList("memberUid"));
+        assertEquals(rebuilt.size(), index.size());
+        assertEquals(rebuilt.getEntries(), index.getEntries());
+        assertEquals(501, index.getGroups("memberUid", "shared").size());
+        assertEquals(Arrays.asList(groups.get("cn=g499")), index.getGroups("memberUid", "u2999"));
+        assertTrue(index.getGroups("memberUid", "u0").isEmpty());
+        assertEquals(1, original.getGroups("memberUid", "shared").size());
+        assertEquals(1, original.size());
+    }
+
+    /**
+     * @param dn the distinguished name of the group.
+     * @param members the memberUid values of the group.
+     * @return the group entry.
+     */
+    static GroupEntry group(String dn, String... members) {
+        Map<String, List<Object>> attributes = new LinkedHashMap<String, List<Object>>();
+        attributes.put("cn", Arrays.<Object>asList(dn.substring(3)));
+        attributes.put("memberUid", Arrays.<Object>asList((Object[]) members));
+        return new GroupEntry(dn, attributes);
+    }
+}
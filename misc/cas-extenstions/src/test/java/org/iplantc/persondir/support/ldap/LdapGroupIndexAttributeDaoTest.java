@@ -0,0 +1,55 @@
+package org.iplantc.persondir.support.ldap;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link LdapGroupIndexAttributeDao}.
+ *
+ * @author Dennis Roberts
+ */
+public class LdapGroupIndexAttributeDaoTest {
+
+    /**
+     * Verifies that changes applied while a rebuild is loading entries aren't lost when the rebuilt index is
+     * published.
+     */
+    @Test
+    public void shouldReapplyChangesMadeDuringRebuild() throws Exception {
+        FakeDirectory directory = new FakeDirectory();
+        directory.addEntry("cn=a", GroupMembershipIndexTest.group("cn=a", "alice").getAttributes());
+        final LdapGroupIndexAttributeDao dao = new LdapGroupIndexAttributeDao();
+        dao.setContextSource(directory);
+        dao.setRefreshInterval(0);
+        Map<String, Object> queryAttributeMapping = new HashMap<String, Object>();
+        queryAttributeMapping.put("username", "memberUid");
+        dao.setQueryAttributeMapping(queryAttributeMapping);
+        dao.afterPropertiesSet();
+        assertEquals(1, dao.getIndex().size());
+
+        final GroupEntry added = GroupMembershipIndexTest.group("cn=b", "bob");
+        directory.setOnSearch(new Runnable() {
+            @Override
+            public void run() {
+                dao.groupsChanged(new GroupChanges(Arrays.asList(added), Collections.<String>emptySet(),
+                        Collections.singleton("bob")));
+            }
+        });
+        dao.rebuild();
+        List<GroupEntry> groups = dao.getIndex().getGroups("memberUid", "bob");
+        assertEquals(Arrays.asList(added), groups);
+        assertEquals(2, dao.getIndex().size());
+
+        directory.setOnSearch(null);
+        dao.groupsChanged(new GroupChanges(Collections.<GroupEntry>emptyList(), Collections.singleton("cn=a"),
+                Collections.singleton("alice")));
+        assertEquals(0, dao.getIndex().getGroups("memberUid", "alice").size());
+        dao.destroy();
+    }
+}
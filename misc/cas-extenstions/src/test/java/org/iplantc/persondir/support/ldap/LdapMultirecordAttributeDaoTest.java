@@ -0,0 +1,328 @@
+package org.iplantc.persondir.support.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.naming.CommunicationException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.SearchControls;
+import javax.naming.SizeLimitExceededException;
+import org.iplantc.persondir.support.ReplicaBalancer;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.junit.Test;
+import org.springframework.ldap.TimeLimitExceededException;
+import org.springframework.ldap.UncategorizedLdapException;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.core.support.LdapContextSource;
+import org.springframework.ldap.support.LdapUtils;
+
+/**
+ * Unit tests for {@link LdapMultirecordAttributeDao}.
+ *
+ * @author Dennis Roberts
+ */
+public class LdapMultirecordAttributeDaoTest {
+
+    /**
+     * The base distinguished name of the embedded directories.
+     */
+    private static final String BASE_DN = "dc=iplantcollaborative,dc=org";
+
+    /**
+     * The distinguished name of the entry that contains the group entries in the embedded directories.
+     */
+    private static final String GROUPS_DN = "ou=Groups," + BASE_DN;
+
+    /**
+     * Verifies that warm-up searches that stop at the count limit count as successful and don't eject replicas.
+     */
+    @Test
+    public void shouldNotEjectReplicasWhenWarmUpHitsCountLimit() throws Exception {
+        FakeDirectory first = new FakeDirectory();
+        FakeDirectory second = new FakeDirectory();
+        first.setFailure(new SizeLimitExceededException());
+        second.setFailure(new SizeLimitExceededException());
+        LdapMultirecordAttributeDao dao = newDao();
+        dao.setReplicaContextSources(Arrays.<ContextSource>asList(first, second));
+        dao.setReplicaFailureThreshold(1);
+        dao.setWarmUpSearches(4);
+        dao.afterPropertiesSet();
+
+        ReplicaBalancer balancer = dao.getReplicaBalancer();
+        assertEquals(4, first.getSearches() + second.getSearches());
+        assertFalse(balancer.isEjected(0));
+        assertFalse(balancer.isEjected(1));
+        dao.destroy();
+    }
+
+    /**
+     * Verifies that errors caused by the search itself don't count against a replica, but communication errors do.
+     */
+    @Test
+    public void shouldOnlyEjectReplicasForReplicaFailures() throws Exception {
+        FakeDirectory replica = new FakeDirectory();
+        replica.setFailure(new NameNotFoundException("ou=Groups"));
+        LdapMultirecordAttributeDao dao = newDao();
+        dao.setReplicaContextSources(Arrays.<ContextSource>asList(replica));
+        dao.setReplicaFailureThreshold(1);
+        dao.afterPropertiesSet();
+        ReplicaBalancer balancer = dao.getReplicaBalancer();
+
+        lookUp(dao);
+        assertFalse(balancer.isEjected(0));
+
+        replica.setFailure(new CommunicationException("connection reset"));
+        lookUp(dao);
+        assertTrue(balancer.isEjected(0));
+        dao.destroy();
+    }
+
+    /**
+     * Verifies that failures are classified by the exception and its causes.
+     */
+    @Test
+    public void shouldClassifyReplicaFailures() {
+        assertTrue(LdapMultirecordAttributeDao.isReplicaFailure(
+                LdapUtils.convertLdapException(new ServiceUnavailableException())));
+        assertTrue(LdapMultirecordAttributeDao.isReplicaFailure(
+                LdapUtils.convertLdapException(new NamingException("LDAP response read timed out, timeout used:5000ms."))));
+        assertTrue(LdapMultirecordAttributeDao.isReplicaFailure(new TimeLimitExceededException(null)));
+        assertFalse(LdapMultirecordAttributeDao.isReplicaFailure(
+                LdapUtils.convertLdapException(new SizeLimitExceededException())));
+        assertFalse(LdapMultirecordAttributeDao.isReplicaFailure(new IllegalArgumentException("bad value")));
+        assertFalse(LdapMultirecordAttributeDao.isReplicaFailure(
+                new UncategorizedLdapException("timed out waiting for a pooled LDAP context")));
+    }
+
+    /**
+     * Verifies that attribute limits don't apply to the data attributes that batch lookups assign entries by.
+     */
+    @Test
+    public void shouldNotLimitDataAttributesInBatchLookups() throws Exception {
+        FakeDirectory directory = new FakeDirectory();
+        directory.addEntry("cn=g,ou=Groups", GroupMembershipIndexTest.group("cn=g", "alice", "bob").getAttributes());
+        AttributeLimit limit = new AttributeLimit();
+        limit.setMaxValues(1);
+        limit.setAction(AttributeLimit.Action.SKIP);
+        LdapMultirecordAttributeDao dao = newDao();
+        dao.setContextSource(directory);
+        dao.setAttributeLimits(Collections.singletonMap("*", limit));
+        dao.afterPropertiesSet();
+
+        Map<String, Set<IPersonAttributes>> people = dao.getPeopleByUids(Arrays.asList("alice", "bob"));
+        for (String uid : Arrays.asList("alice", "bob")) {
+            assertEquals(1, people.get(uid).size());
+            assertEquals("g", people.get(uid).iterator().next().getAttributeValue("entitlement"));
+        }
+        dao.destroy();
+    }
+
+    /**
+     * Verifies that a user's records aren't merged when values are deferred and there's no result attribute mapping.
+     */
+    @Test
+    public void shouldKeepEveryRecordWithLazyValuesAndNoMapping() throws Exception {
+        FakeDirectory directory = new FakeDirectory();
+        for (String cn : Arrays.asList("g1", "g2", "g3")) {
+            directory.addEntry("cn=" + cn + ",ou=Groups",
+                    GroupMembershipIndexTest.group("cn=" + cn, "alice").getAttributes());
+        }
+        LdapMultirecordAttributeDao dao = new LdapMultirecordAttributeDao();
+        dao.setBaseDN("ou=Groups");
+        dao.setQueryAttributeMapping(Collections.<String, Object>singletonMap("username", "memberUid"));
+        dao.setContextSource(directory);
+        dao.setLazyAttributeValues(true);
+        dao.afterPropertiesSet();
+
+        Map<String, List<Object>> query = new HashMap<String, List<Object>>();
+        query.put("username", Arrays.<Object>asList("alice"));
+        assertEquals(3, dao.getPeopleWithMultivaluedAttributes(query).size());
+        assertEquals(3, dao.getPeopleByUids(Arrays.asList("alice")).get("alice").size());
+        dao.destroy();
+    }
+
+    /**
+     * Verifies that records are built over the mapped attributes without copying them, and keep the configured case
+     * of attribute names whatever case the directory returns them in.
+     */
+    @Test
+    public void shouldBuildRecordsOverMappedAttributes() throws Exception {
+        Map<String, List<Object>> attributes = new LinkedHashMap<String, List<Object>>();
+        attributes.put("CN", Arrays.<Object>asList("g"));
+        attributes.put("MEMBERUID", Arrays.<Object>asList("alice"));
+        FakeDirectory directory = new FakeDirectory();
+        directory.addEntry("cn=g,ou=Groups", attributes);
+        for (boolean lazy : new boolean[] { false, true }) {
+            LdapMultirecordAttributeDao dao = new LdapMultirecordAttributeDao();
+            dao.setBaseDN("ou=Groups");
+            dao.setQueryAttributeMapping(Collections.<String, Object>singletonMap("username", "memberUid"));
+            SearchControls controls = new SearchControls();
+            controls.setReturningAttributes(new String[] { "cn", "memberUid" });
+            dao.setSearchControls(controls);
+            dao.setContextSource(directory);
+            dao.setLazyAttributeValues(lazy);
+            dao.afterPropertiesSet();
+
+            IPersonAttributes person = dao.getPerson("alice");
+            Set<String> keys = new HashSet<String>();
+            for (Map.Entry<String, List<Object>> attribute : person.getAttributes().entrySet()) {
+                keys.add(attribute.getKey());
+            }
+            assertEquals(new HashSet<String>(Arrays.asList("cn", "memberUid")), keys);
+            assertEquals("g", person.getAttributeValue("cn"));
+            assertEquals("alice", person.getAttributeValue("memberUid"));
+            if (lazy) {
+                //The values are the mapper's own views, not copies of them
+                assertTrue(person.getAttributes().get("cn") instanceof LazyAttributeValueList);
+            }
+            dao.destroy();
+        }
+    }
+
+    /**
+     * Verifies that DAOs sharing a query result cache don't share entries mapped under different configurations.
+     */
+    @Test
+    public void shouldNotShareCachedResultsBetweenMapperConfigurations() throws Exception {
+        FakeDirectory directory = new FakeDirectory();
+        directory.addEntry("cn=g,ou=Groups", GroupMembershipIndexTest.group("cn=g", "alice").getAttributes());
+        LdapQueryResultCache cache = new LdapQueryResultCache();
+        cache.afterPropertiesSet();
+        LdapMultirecordAttributeDao eager = newDao();
+        eager.setContextSource(directory);
+        eager.setQueryResultCache(cache);
+        eager.afterPropertiesSet();
+        LdapMultirecordAttributeDao lazy = newDao();
+        lazy.setContextSource(directory);
+        lazy.setQueryResultCache(cache);
+        lazy.setLazyAttributeValues(true);
+        lazy.afterPropertiesSet();
+
+        assertEquals("g", eager.getPerson("alice").getAttributeValue("entitlement"));
+        assertEquals("g", eager.getPerson("alice").getAttributeValue("entitlement"));
+        assertEquals(1, directory.getSearches());
+        assertEquals("g", lazy.getPerson("alice").getAttributeValue("entitlement"));
+        assertEquals(2, directory.getSearches());
+        assertEquals(2, cache.size());
+        eager.destroy();
+        lazy.destroy();
+    }
+
+    /**
+     * Verifies that a replica whose directory server has stopped is ejected after failing once, and that lookups are
+     * answered by the remaining replica from then on.
+     */
+    @Test
+    public void shouldFailOverFromStoppedReplica() throws Exception {
+        InMemoryDirectoryServer first = startDirectory();
+        InMemoryDirectoryServer second = startDirectory();
+        LdapMultirecordAttributeDao dao = newDao();
+        dao.setBaseDN(GROUPS_DN);
+        dao.setReplicaContextSources(Arrays.<ContextSource>asList(contextSource(first), contextSource(second)));
+        dao.setReplicaFailureThreshold(1);
+        dao.afterPropertiesSet();
+        ReplicaBalancer balancer = dao.getReplicaBalancer();
+        try {
+            first.shutDown(true);
+
+            int failures = 0;
+            for (int i = 0; i < 50 && !balancer.isEjected(0); i++) {
+                try {
+                    assertEquals("g", dao.getPerson("alice").getAttributeValue("entitlement"));
+                }
+                catch (RuntimeException e) {
+                    failures++;
+                }
+            }
+            assertTrue(balancer.isEjected(0));
+            assertFalse(balancer.isEjected(1));
+            assertEquals(1, failures);
+            for (int i = 0; i < 5; i++) {
+                assertEquals("g", dao.getPerson("alice").getAttributeValue("entitlement"));
+            }
+        }
+        finally {
+            dao.destroy();
+            first.shutDown(true);
+            second.shutDown(true);
+        }
+    }
+
+    /**
+     * Looks up a user, ignoring any failure.
+     *
+     * @param dao the DAO to use.
+     */
+    private static void lookUp(LdapMultirecordAttributeDao dao) {
+        try {
+            dao.getPerson("alice");
+        }
+        catch (RuntimeException e) {
+            // expected; the directory has been told to fail
+        }
+    }
+
+    /**
+     * Starts an embedded directory server containing a group, cn=g, whose only member is alice.
+     *
+     * @return the server.
+     * @throws Exception if the server can't be started.
+     */
+    private static InMemoryDirectoryServer startDirectory() throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        config.setSchema(null);
+        InMemoryDirectoryServer server = new InMemoryDirectoryServer(config);
+        server.add(new Entry(BASE_DN, new Attribute("objectClass", "top", "domain"),
+                new Attribute("dc", "iplantcollaborative")));
+        server.add(new Entry(GROUPS_DN, new Attribute("objectClass", "top", "organizationalUnit"),
+                new Attribute("ou", "Groups")));
+        server.add(new Entry("cn=g," + GROUPS_DN, new Attribute("objectClass", "top", "posixGroup"),
+                new Attribute("cn", "g"), new Attribute("memberUid", "alice")));
+        server.startListening();
+        return server;
+    }
+
+    /**
+     * @param server an embedded directory server.
+     * @return an anonymous context source for the server.
+     */
+    private static ContextSource contextSource(InMemoryDirectoryServer server) throws Exception {
+        LdapContextSource contextSource = new LdapContextSource();
+        contextSource.setUrl("ldap://localhost:" + server.getListenPort());
+        contextSource.setAnonymousReadOnly(true);
+        contextSource.afterPropertiesSet();
+        return contextSource;
+    }
+
+    /**
+     * Creates a DAO that looks up groups by the memberUid attribute.
+     *
+     * @return the DAO.
+     */
+    static LdapMultirecordAttributeDao newDao() {
+        LdapMultirecordAttributeDao dao = new LdapMultirecordAttributeDao();
+        dao.setBaseDN("ou=Groups");
+        Map<String, Object> queryAttributeMapping = new HashMap<String, Object>();
+        queryAttributeMapping.put("username", "memberUid");
+        dao.setQueryAttributeMapping(queryAttributeMapping);
+        dao.setResultAttributeMapping(Collections.<String, Object>singletonMap("cn", "entitlement"));
+        return dao;
+    }
+}
@@ -0,0 +1,108 @@
+package org.iplantc.persondir.support.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.jasig.services.persondir.support.QueryType;
+import org.junit.Test;
+import org.springframework.ldap.filter.EqualsFilter;
+import org.springframework.ldap.filter.LikeFilter;
+
+/**
+ * Unit tests for {@link LdapQueryPlan}.  The generated filters are compared with the ones produced by the Spring LDAP
+ * filter classes, which the plan replaces.
+ *
+ * @author Dennis Roberts
+ */
+public class LdapQueryPlanTest {
+
+    /**
+     * Values containing every character that has to be escaped.
+     */
+    private static final String[] VALUES = {"ipctest", "a*b", "(x)", "back\\slash", "nul\u0000", "café", ""};
+
+    /**
+     * Verifies that a single equality component is encoded without a logical operator.
+     */
+    @Test
+    public void shouldEncodeSingleEqualsLikeSpring() {
+        for (String value : VALUES) {
+            LdapQueryPlan.Query query = plan(QueryType.AND, null).newQuery();
+            query.appendEquals("memberUid", value);
+            assertEquals(new EqualsFilter("memberUid", value).encode(), query.encode());
+        }
+    }
+
+    /**
+     * Verifies that substring components keep their wildcards but escape everything else.
+     */
+    @Test
+    public void shouldEncodeLikeLikeSpring() {
+        for (String value : VALUES) {
+            LdapQueryPlan.Query query = plan(QueryType.AND, null).newQuery();
+            query.appendLike("cn", value);
+            assertEquals(new LikeFilter("cn", value).encode(), query.encode());
+        }
+    }
+
+    /**
+     * Verifies that AND and OR queries are encoded the same way as LogicalFilterWrapper encodes them.
+     */
+    @Test
+    public void shouldEncodeLogicalFiltersLikeWrapper() {
+        for (QueryType queryType : QueryType.values()) {
+            LdapQueryPlan.Query query = plan(queryType, null).newQuery();
+            LogicalFilterWrapper wrapper = new LogicalFilterWrapper(queryType);
+            for (String value : VALUES) {
+                query.appendEquals("memberUid", value);
+                wrapper.append(new EqualsFilter("memberUid", value));
+                query.appendLike("cn", value);
+                wrapper.append(new LikeFilter("cn", value));
+            }
+            assertEquals(wrapper.encode(), query.encode());
+        }
+    }
+
+    /**
+     * Verifies that attributes that weren't known when the plan was built are still encoded.
+     */
+    @Test
+    public void shouldEncodeUnknownAttributes() {
+        LdapQueryPlan.Query query = plan(QueryType.OR, null).newQuery();
+        query.appendEquals("uid", "a");
+        query.appendEquals("mail", "b");
+        LogicalFilterWrapper wrapper = new LogicalFilterWrapper(QueryType.OR);
+        wrapper.append(new EqualsFilter("uid", "a"));
+        wrapper.append(new EqualsFilter("mail", "b"));
+        assertEquals(wrapper.encode(), query.encode());
+    }
+
+    /**
+     * Verifies that the query template is applied to single and compound filters, including templates with several
+     * placeholders.
+     */
+    @Test
+    public void shouldApplyQueryTemplate() {
+        LdapQueryPlan plan = plan(QueryType.AND, "(&(objectClass=posixGroup){0})");
+        LdapQueryPlan.Query query = plan.newQuery();
+        assertTrue(query.isEmpty());
+        query.appendEquals("memberUid", "a(b)");
+        assertEquals("(&(objectClass=posixGroup)(memberUid=a\\28b\\29))", query.toLdapQuery());
+        query.appendEquals("cn", "c");
+        assertEquals("(&(objectClass=posixGroup)(&(memberUid=a\\28b\\29)(cn=c)))", query.toLdapQuery());
+
+        LdapQueryPlan.Query twice = plan(QueryType.AND, "(|{0}(!{0}))").newQuery();
+        twice.appendEquals("uid", "x");
+        assertEquals("(|(uid=x)(!(uid=x)))", twice.toLdapQuery());
+    }
+
+    /**
+     * @param queryType how the filter components are combined.
+     * @param template the query template, or null.
+     * @return a plan that knows about the memberUid and cn attributes.
+     */
+    private static LdapQueryPlan plan(QueryType queryType, String template) {
+        return new LdapQueryPlan(queryType, template, Arrays.asList("memberUid", "cn"));
+    }
+}
@@ -0,0 +1,46 @@
+package org.iplantc.persondir.support.ldap;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import javax.naming.directory.BasicAttribute;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link LdapQueryResultCache}.
+ *
+ * @author Dennis Roberts
+ */
+public class LdapQueryResultCacheTest {
+
+    /**
+     * Verifies that lazily read values are copied before they're cached instead of being kept as views.
+     */
+    @Test
+    public void shouldCopyLazyValues() throws Exception {
+        final BasicAttribute members = new BasicAttribute("memberUid");
+        members.add("alice");
+        members.add("bob");
+        CaseInsensitiveAttributeMap attributes = new CaseInsensitiveAttributeMap(1);
+        attributes.put("memberUid", new LazyAttributeValueList(members));
+        @SuppressWarnings("unchecked")
+        Map<String, List<Object>> map = (Map<String, List<Object>>) (Map<String, ?>) attributes;
+        final GroupEntry entry = new GroupEntry("cn=g,ou=Groups", map);
+        LdapQueryResultCache cache = new LdapQueryResultCache();
+        cache.afterPropertiesSet();
+
+        List<GroupEntry> entries = cache.get("key", new Callable<List<GroupEntry>>() {
+            @Override
+            public List<GroupEntry> call() {
+                return Collections.singletonList(entry);
+            }
+        });
+        members.add("carol");
+
+        assertEquals(Arrays.<Object>asList("alice", "bob"), entries.get(0).getAttributes().get("memberUid"));
+    }
+}
@@ -0,0 +1,49 @@
+package org.iplantc.persondir.support.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link PooledContextSource}.
+ *
+ * @author Dennis Roberts
+ */
+public class PooledContextSourceTest {
+
+    /**
+     * Verifies that request controls set while a context was borrowed don't survive its return to the pool.
+     */
+    @Test
+    public void shouldClearRequestControlsOnRelease() throws Exception {
+        FakeDirectory directory = new FakeDirectory();
+        PooledContextSource pool = new PooledContextSource();
+        pool.setContextSource(directory);
+        pool.setMinIdle(0);
+        pool.setMaxIdle(1);
+        pool.setMaxActive(1);
+        pool.setTestOnBorrow(true);
+        pool.setEvictionInterval(0);
+        pool.afterPropertiesSet();
+        try {
+            DirContext context = pool.getReadOnlyContext();
+            ((LdapContext) context).setRequestControls(new Control[] {new PagedResultsControl(10, false)});
+            context.close();
+            assertEquals(1, pool.getNumIdle());
+
+            context = pool.getReadOnlyContext();
+            assertEquals(1, directory.getSearches());
+            assertNull(directory.getLastRequestControls());
+            assertNull(((LdapContext) context).getRequestControls());
+            context.close();
+        }
+        finally {
+            pool.destroy();
+        }
+    }
+}
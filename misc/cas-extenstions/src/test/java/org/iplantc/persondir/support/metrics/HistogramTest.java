@@ -0,0 +1,75 @@
+package org.iplantc.persondir.support.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link Histogram}.
+ *
+ * @author Dennis Roberts
+ */
+public class HistogramTest {
+
+    /**
+     * Verifies that small values are counted exactly.
+     */
+    @Test
+    public void shouldCountSmallValuesExactly() {
+        Histogram histogram = new Histogram();
+        for (long value = 0; value < 4; value++) {
+            histogram.record(value);
+        }
+        assertEquals(4, histogram.getCount());
+        assertEquals(6, histogram.getSum());
+        assertEquals(0, histogram.getPercentile(25));
+        assertEquals(1, histogram.getPercentile(50));
+        assertEquals(3, histogram.getPercentile(100));
+        assertEquals(1.5, histogram.getMean(), 0.0);
+    }
+
+    /**
+     * Verifies that every percentile estimate is at least the true value and at most 25% larger, across the range
+     * of bucket boundaries.
+     */
+    @Test
+    public void shouldBoundPercentileError() {
+        for (int exponent = 2; exponent < 62; exponent++) {
+            for (long value : new long[] {(1L << exponent), (1L << exponent) + 1, (3L << (exponent - 1)) - 1,
+                    (1L << (exponent + 1)) - 1}) {
+                Histogram histogram = new Histogram();
+                histogram.record(value);
+                histogram.record(Long.MAX_VALUE);
+                long estimate = histogram.getPercentile(50);
+                assertTrue(value + " estimated as " + estimate, estimate >= value);
+                assertTrue(value + " estimated as " + estimate, estimate <= value + value / 4);
+            }
+        }
+    }
+
+    /**
+     * Verifies that estimates never exceed the largest value recorded and that negative values count as zero.
+     */
+    @Test
+    public void shouldLimitEstimatesToMaximum() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(1000);
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(1000, histogram.getPercentile(99));
+        assertEquals(1000, histogram.getMax());
+        assertEquals(1000, histogram.getSum());
+    }
+
+    /**
+     * Verifies that an empty histogram reports zeros.
+     */
+    @Test
+    public void shouldReportZerosWhenEmpty() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0.0, histogram.getMean(), 0.0);
+        assertEquals(0, histogram.getMax());
+    }
+}